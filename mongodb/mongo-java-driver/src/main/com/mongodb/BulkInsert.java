@@ -0,0 +1,253 @@
+// BulkInsert.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * loads a stream of objects into a collection as fast as possible.
+ * objects are read from the iterator in batches, batches are encoded on several threads,
+ * and several insert messages are kept in flight at once.
+ * batches can reach the database in any order.
+ * <pre>
+ *   int n = coll.bulkInsert( objects ).batchSize( 500 ).threads( 4 ).execute();
+ * </pre>
+ * with WriteConcern.STRICT on the collection each batch is confirmed by the database before it counts as done.
+ * @dochub insert
+ */
+public class BulkInsert {
+
+    /**
+     * told about every batch once it's done
+     */
+    public static interface Listener {
+        /**
+         * called on whichever thread finished the batch, so should be quick
+         * @param batch the batch's number, from 0 in the order objects were read
+         * @param numObjects how many objects were in it
+         * @param lastError the getlasterror result if the collection is STRICT, otherwise null
+         * @param error null if the batch made it
+         */
+        public void batchDone( int batch , int numObjects , DBObject lastError , MongoException error );
+    }
+
+    BulkInsert( DBCollection collection , Iterator<DBObject> objects ){
+        _collection = collection;
+        _objects = objects;
+        _threads = Math.max( 1 , Runtime.getRuntime().availableProcessors() );
+        _inFlight = Math.max( 2 , Bytes.CONNECTIONS_PER_HOST );
+    }
+
+    /**
+     * how many objects go in each batch.  a batch too big for one message is sent as several
+     * @return this
+     */
+    public BulkInsert batchSize( int n ){
+        if ( n < 1 )
+            throw new IllegalArgumentException( "batchSize has to be >= 1" );
+        _batchSize = n;
+        return this;
+    }
+
+    /**
+     * how many threads encode batches.  defaults to the number of processors
+     * @return this
+     */
+    public BulkInsert threads( int n ){
+        if ( n < 1 )
+            throw new IllegalArgumentException( "threads has to be >= 1" );
+        _threads = n;
+        return this;
+    }
+
+    /**
+     * how many batches can be sent but not yet done.  each one holds a pooled encoder
+     * @return this
+     */
+    public BulkInsert inFlight( int n ){
+        if ( n < 1 )
+            throw new IllegalArgumentException( "inFlight has to be >= 1" );
+        _inFlight = n;
+        return this;
+    }
+
+    /**
+     * @return this
+     */
+    public BulkInsert listener( Listener l ){
+        _listener = l;
+        return this;
+    }
+
+    /**
+     * reads the iterator to the end and inserts everything, stopping at the first failed batch.
+     * batches already in flight when one fails still finish
+     * @return the number of objects inserted
+     * @throws MongoException the first batch's error
+     */
+    public int execute()
+        throws MongoException {
+        if ( _started )
+            throw new IllegalStateException( "already executed" );
+        _started = true;
+
+        final BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>( _threads * 2 );
+        final Semaphore inFlight = new Semaphore( _inFlight );
+
+        List<Thread> workers = new ArrayList<Thread>();
+        for ( int i=0; i<_threads; i++ ){
+            Thread t = new Thread( "BulkInsert-encoder-" + i ){
+                    public void run(){
+                        _work( queue , inFlight );
+                    }
+                };
+            t.setDaemon( true );
+            t.start();
+            workers.add( t );
+        }
+
+        boolean interrupted = false;
+        try {
+            int batch = 0;
+            while ( _error.get() == null && _objects.hasNext() ){
+                DBObject[] objects = new DBObject[ _batchSize ];
+                int n = 0;
+                while ( n < _batchSize && _objects.hasNext() )
+                    objects[n++] = _objects.next();
+                if ( n < _batchSize ){
+                    DBObject[] last = new DBObject[n];
+                    System.arraycopy( objects , 0 , last , 0 , n );
+                    objects = last;
+                }
+                interrupted = _put( queue , new Batch( batch++ , objects ) ) || interrupted;
+            }
+        }
+        finally {
+            for ( int i=0; i<workers.size(); i++ )
+                interrupted = _put( queue , _END ) || interrupted;
+        }
+
+        for ( Thread t : workers ){
+            while ( t.isAlive() ){
+                try {
+                    t.join();
+                }
+                catch ( InterruptedException ie ){
+                    interrupted = true;
+                }
+            }
+        }
+
+        // everything is sent, wait for the last batches to finish
+        inFlight.acquireUninterruptibly( _inFlight );
+
+        if ( interrupted )
+            Thread.currentThread().interrupt();
+
+        if ( _error.get() != null )
+            throw _error.get();
+        return _inserted.get();
+    }
+
+    private void _work( BlockingQueue<Batch> queue , final Semaphore inFlight ){
+        while ( true ){
+            final Batch b;
+            try {
+                b = queue.take();
+            }
+            catch ( InterruptedException ie ){
+                continue;
+            }
+            if ( b == _END )
+                return;
+
+            if ( _error.get() != null )
+                continue;
+
+            inFlight.acquireUninterruptibly();
+            DBFuture<DBObject> f;
+            try {
+                f = _collection.insertAsync( b._objects );
+            }
+            catch ( RuntimeException e ){
+                f = new DBFuture<DBObject>();
+                f.fail( e );
+            }
+
+            f.addCallback( new DBFuture.Callback<DBObject>(){
+                    public void done( DBObject res , MongoException error ){
+                        try {
+                            if ( error == null )
+                                _inserted.addAndGet( b._objects.length );
+                            else
+                                _error.compareAndSet( null , error );
+
+                            if ( _listener != null )
+                                _listener.batchDone( b._num , b._objects.length , res , error );
+                        }
+                        finally {
+                            inFlight.release();
+                        }
+                    }
+                } );
+        }
+    }
+
+    /**
+     * @return true if interrupted along the way
+     */
+    private static boolean _put( BlockingQueue<Batch> queue , Batch b ){
+        boolean interrupted = false;
+        while ( true ){
+            try {
+                queue.put( b );
+                return interrupted;
+            }
+            catch ( InterruptedException ie ){
+                interrupted = true;
+            }
+        }
+    }
+
+    final DBCollection _collection;
+    final Iterator<DBObject> _objects;
+
+    private int _batchSize = 1000;
+    private int _threads;
+    private int _inFlight;
+    private Listener _listener;
+
+    private boolean _started = false;
+    private final AtomicInteger _inserted = new AtomicInteger();
+    private final AtomicReference<MongoException> _error = new AtomicReference<MongoException>();
+
+    static class Batch {
+        Batch( int num , DBObject[] objects ){
+            _num = num;
+            _objects = objects;
+        }
+
+        final int _num;
+        final DBObject[] _objects;
+    }
+
+    private static final Batch _END = new Batch( -1 , new DBObject[0] );
+}
@@ -46,6 +46,12 @@ public class ByteDecoder extends Bytes {
     /** Returns this decoder to the pool.
      */
     protected void done(){
+        if ( _buf.capacity() > MAX_POOLED_BUFFER_SIZE )
+            _buf = ByteBuffer.wrap( new byte[ INITIAL_BUFFER_SIZE ] );
+        if ( _namebuf.length > MAX_POOLED_BUFFER_SIZE )
+            _namebuf = new byte[ INITIAL_STRING_SIZE ];
+        if ( _chars.length > MAX_POOLED_BUFFER_SIZE )
+            _chars = new char[ INITIAL_STRING_SIZE ];
         _pool.done( this );
     }
 
@@ -64,13 +70,43 @@ public class ByteDecoder extends Bytes {
         _private = false;
     }
 
+    /** the biggest reply a pooled decoder will grow to hold */
+    static final int MAX_BUFFER_SIZE = 1024 + ( MAX_OBJECT_SIZE * 2 );
+    static final int INITIAL_STRING_SIZE = 1024;
+
+    /** string values this short are looked up in the value table, longer ones are rarely repeated */
+    static final int MAX_SHARED_VALUE = 16;
+
     private ByteDecoder(){
-        //_buf = ByteBuffer.allocateDirect( 1024 + ( MAX_OBJECT_SIZE * 2 ) );
-        _buf = ByteBuffer.wrap( new byte[ 1024 + ( MAX_OBJECT_SIZE * 2 ) ] );
+        _buf = ByteBuffer.wrap( new byte[ INITIAL_BUFFER_SIZE ] );
         _private = true;
+        _tables();
         reset();
     }
 
+    /**
+     * makes sure a reply of len bytes fits, growing a pooled decoder's buffer if needed.
+     * whatever has been read so far is kept, and _buf may be a new buffer afterwards
+     * @return false if len is more than this decoder can ever hold
+     */
+    boolean _ensureCapacity( int len ){
+        if ( len <= _buf.capacity() )
+            return true;
+        if ( ! _private || len > MAX_BUFFER_SIZE )
+            return false;
+
+        int size = _buf.capacity();
+        while ( size < len )
+            size *= 2;
+        
+        ByteBuffer bigger = ByteBuffer.wrap( new byte[ Math.min( size , MAX_BUFFER_SIZE ) ] );
+        bigger.order( Bytes.ORDER );
+        System.arraycopy( _buf.array() , 0 , bigger.array() , 0 , _buf.position() );
+        bigger.position( _buf.position() );
+        _buf = bigger;
+        return true;
+    }
+
     /** Returns this decoder to its starting state with a new <code>ByteBuffer</code> to decode.
      * @param buf new <code>ByteBuffer</code>
      */
@@ -96,6 +132,13 @@ public class ByteDecoder extends Bytes {
         if ( _buf.position() >= _buf.limit() )
             return null;
 
+        // a second object means the tables will pay for themselves.  a decoder used once never makes them
+        if ( _names == null ){
+            if ( _readOne )
+                _tables();
+            _readOne = true;
+        }
+
         final int start = _buf.position();
         final int len = _buf.getInt();
         
@@ -127,6 +170,8 @@ public class ByteDecoder extends Bytes {
         }
         
         if ( c != null ){
+            if ( ReflectionDBObject.class.isAssignableFrom( c ) )
+                return ReflectionDBObject.getWrapper( c ).newInstance();
             try {
                 return (DBObject)c.newInstance();
             }
@@ -154,11 +199,6 @@ public class ByteDecoder extends Bytes {
             return 1;
         
         String name = readCStr();
-        
-        if ( path.length() == 0 ) 
-            path = name;
-        else
-            path = path + "." + name;
 
         Object created = null;
 
@@ -189,12 +229,17 @@ public class ByteDecoder extends Bytes {
             int size = _buf.getInt() - 1;
             if ( size > _buf.remaining() )
                 throw new MongoException( "invalid bson? size:" + size + " remaining: " + _buf.remaining() );
+            if ( size > _namebuf.length )
+                _namebuf = new byte[ size ];
             _buf.get( _namebuf , 0 , size );
-            try {
-                created = new String( _namebuf , 0 , size , "UTF-8" );
+            if ( size <= MAX_SHARED_VALUE ){
+                int hash = 0;
+                for ( int j=0; j<size; j++ )
+                    hash = 31 * hash + _namebuf[j];
+                created = _values == null ? _string( _namebuf , size ) : _values.get( this , _namebuf , size , hash );
             }
-            catch ( java.io.UnsupportedEncodingException uee ){
-                throw new MongoInternalException( "impossible" , uee );
+            else {
+                created = _string( _namebuf , size );
             }
             _buf.get(); // skip over length
             break;
@@ -229,6 +274,7 @@ public class ByteDecoder extends Bytes {
             throw new UnsupportedOperationException( "can't handle CODE yet" );
 
         case ARRAY:
+            path = _path( path , name );
             created = new BasicDBList();
             _buf.getInt();  // total size - we don't care....
 
@@ -239,6 +285,7 @@ public class ByteDecoder extends Bytes {
             break;
 
         case OBJECT:
+            path = _path( path , name );
             _buf.getInt();  // total size - we don't care....
             
             if ( created == null ){
@@ -287,6 +334,15 @@ public class ByteDecoder extends Bytes {
         return _buf.position() - start;
     }
     
+    /**
+     * only embedded objects need their path, to find their class, so only they pay for building it
+     */
+    private static String _path( String path , String name ){
+        if ( path.length() == 0 )
+            return name;
+        return path + "." + name;
+    }
+    
     Object parseBinary(){
         final int totalLen = _buf.getInt();
         final byte bType = _buf.get();
@@ -307,20 +363,84 @@ public class ByteDecoder extends Bytes {
         return new DBBinary( bType , data );
     }
     
+    /**
+     * field names come through the name table, so every document in a batch shares one String per name
+     */
     private String readCStr(){
         int pos = 0;
+        int hash = 0;
         while ( true ){
             byte b = _buf.get();
             if ( b == 0 )
                 break;
+            if ( pos == _namebuf.length ){
+                byte[] bigger = new byte[ pos * 2 ];
+                System.arraycopy( _namebuf , 0 , bigger , 0 , pos );
+                _namebuf = bigger;
+            }
             _namebuf[pos++] = b;
+            hash = 31 * hash + b;
         }
-        try {
-            return new String( _namebuf , 0 , pos , "UTF-8" );
+        return _names == null ? _string( _namebuf , pos ) : _names.get( this , _namebuf , pos , hash );
+    }
+
+    /**
+     * decodes len bytes of utf-8.  ascii, which is nearly everything, is copied a byte at a time without a CharsetDecoder
+     */
+    String _string( byte[] b , int len ){
+        if ( len > _chars.length )
+            _chars = new char[ Math.max( len , _chars.length * 2 ) ];
+        for ( int i=0; i<len; i++ ){
+            if ( b[i] < 0 ){
+                try {
+                    return new String( b , 0 , len , "UTF-8" );
+                }
+                catch ( java.io.UnsupportedEncodingException uee ){
+                    throw new MongoInternalException( "impossible" , uee );
+                }
+            }
+            _chars[i] = (char)b[i];
+        }
+        return new String( _chars , 0 , len );
+    }
+
+    /**
+     * strings one decoder has made, found by their utf-8 bytes.
+     * one slot per hash, so a collision just replaces what was there
+     */
+    static class StringTable {
+
+        StringTable( int size , int maxLength ){
+            _bytes = new byte[ size ][];
+            _strings = new String[ size ];
+            _maxLength = maxLength;
         }
-        catch ( java.io.UnsupportedEncodingException use ){
-            throw new MongoInternalException( "impossible" );
+
+        String get( ByteDecoder decoder , byte[] b , int len , int hash ){
+            if ( len > _maxLength )
+                return decoder._string( b , len );
+
+            final int slot = ( hash ^ ( hash >>> 16 ) ) & ( _bytes.length - 1 );
+            final byte[] had = _bytes[slot];
+            if ( had != null && had.length == len ){
+                int i = 0;
+                while ( i < len && had[i] == b[i] )
+                    i++;
+                if ( i == len )
+                    return _strings[slot];
+            }
+
+            String s = decoder._string( b , len );
+            byte[] copy = new byte[ len ];
+            System.arraycopy( b , 0 , copy , 0 , len );
+            _bytes[slot] = copy;
+            _strings[slot] = s;
+            return s;
         }
+
+        final byte[][] _bytes;
+        final String[] _strings;
+        final int _maxLength;
     }
 
     int getInt(){
@@ -343,7 +463,18 @@ public class ByteDecoder extends Bytes {
         _buf.flip();
     }
 
-    private final byte _namebuf[] = new byte[ MAX_STRING ];
+    private byte _namebuf[] = new byte[ INITIAL_STRING_SIZE ];
+    private char _chars[] = new char[ INITIAL_STRING_SIZE ];
+
+    private void _tables(){
+        _names = new StringTable( 1024 , 128 );
+        _values = new StringTable( 256 , MAX_SHARED_VALUE );
+    }
+
+    /** only pooled decoders, and ones that have read more than one object, have tables */
+    StringTable _names;
+    StringTable _values;
+    private boolean _readOne = false;
 
     ByteBuffer _buf;
     private final boolean _private;
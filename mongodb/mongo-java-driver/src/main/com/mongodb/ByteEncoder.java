@@ -22,7 +22,6 @@ import java.util.*;
 import java.util.regex.*;
 import java.util.concurrent.atomic.*;
 import java.nio.*;
-import java.nio.charset.*;
 import java.lang.reflect.Array;
 
 import com.mongodb.util.*;
@@ -70,6 +69,10 @@ public class ByteEncoder extends Bytes {
      */
     protected void done(){
         reset();
+        if ( _buf.capacity() > MAX_POOLED_BUFFER_SIZE ){
+            // don't let one big document pin a big buffer in the pool
+            _buf = _newBuffer( INITIAL_BUFFER_SIZE );
+        }
         _pool.done( this );
     }
     
@@ -80,16 +83,45 @@ public class ByteEncoder extends Bytes {
             }
 
             protected long memSize( ByteEncoder d ){
-                return d._buf.capacity() + ( 2 * MAX_STRING ) + 1024;
+                return d._buf.capacity() + 1024;
             }
         };
 
 
     // ----
     
+    /** the most one message can hold.  buffers grow to this and no further */
+    static final int MAX_BUFFER_SIZE = MAX_OBJECT_SIZE + 2048;
+
+    /** field names longer than this aren't worth keeping encoded */
+    static final int MAX_CACHED_NAME = 64;
+    /** slots in the name table, a power of two */
+    static final int MAX_CACHED_NAMES = 4096;
+    
     private ByteEncoder(){
-        _buf = ByteBuffer.allocateDirect( MAX_OBJECT_SIZE + 2048 );
-        _buf.order( Bytes.ORDER );
+        _buf = _newBuffer( INITIAL_BUFFER_SIZE );
+    }
+
+    private static ByteBuffer _newBuffer( int size ){
+        ByteBuffer buf = ByteBuffer.allocate( size );
+        buf.order( Bytes.ORDER );
+        return buf;
+    }
+
+    /**
+     * swaps in a buffer twice the size, keeping the first keep bytes
+     * @return false if the buffer is already as big as it gets
+     */
+    boolean _grow( int keep ){
+        if ( _buf.capacity() >= MAX_BUFFER_SIZE )
+            return false;
+        
+        ByteBuffer bigger = _newBuffer( Math.min( _buf.capacity() * 2 , MAX_BUFFER_SIZE ) );
+        _buf.position( 0 );
+        _buf.limit( keep );
+        bigger.put( _buf );
+        _buf = bigger;
+        return true;
     }
 
     /**
@@ -152,13 +184,31 @@ public class ByteEncoder extends Bytes {
 
     RuntimeException getTooLargeException(){
         return new IllegalArgumentException( "tried to save too large of an object.  " + 
-                                             " max size : " + ( _buf.capacity() / 2  ) );
+                                             " max size : " + MAX_OBJECT_SIZE );
     }
 
     /**
-     * this is really for embedded objects
+     * this is really for embedded objects.
+     * a top level object (name is null) that doesn't fit makes the buffer grow and gets encoded again.
+     * @throws BufferOverflowException if it won't fit even in the biggest buffer
      */
     int putObject( String name , DBObject o ){
+        if ( name != null )
+            return _putObject( name , o );
+        
+        final int start = _buf.position();
+        while ( true ){
+            try {
+                return _putObject( null , o );
+            }
+            catch ( BufferOverflowException e ){
+                if ( ! _grow( start ) )
+                    throw e;
+            }
+        }
+    }
+
+    private int _putObject( String name , DBObject o ){
         if ( o == null )
             throw new NullPointerException( "can't save a null object" );
 
@@ -174,6 +224,9 @@ public class ByteEncoder extends Bytes {
 
         if ( _handleSpecialObjects( name , o ) )
             return _buf.position() - start;
+
+        if ( myType == OBJECT && o instanceof ReflectionDBObject && ! o.containsField( "_transientFields" ) )
+            return _putReflectionObject( name , (ReflectionDBObject)o );
         
         if ( name != null ){
             _put( myType , name );
@@ -217,6 +270,73 @@ public class ByteEncoder extends Bytes {
         return _buf.position() - start;
     }
 
+    /**
+     * writes straight from the getters, in the order and with the types the class's wrapper worked out,
+     * rather than going through keySet/get and checking each value's type
+     */
+    private int _putReflectionObject( String name , ReflectionDBObject o ){
+        final int start = _buf.position();
+        final ReflectionDBObject.JavaWrapper w = o.getWrapper();
+
+        if ( name != null )
+            _put( OBJECT , name );
+
+        final int sizePos = _buf.position();
+        _buf.putInt( 0 );
+
+        final boolean idFirst = name == null && w._id != null;
+        if ( idFirst )
+            _putReflectionField( o , w._id );
+        
+        for ( ReflectionDBObject.FieldInfo fi : w._ordered ){
+            if ( idFirst && fi == w._id )
+                continue;
+            _putReflectionField( o , fi );
+        }
+        _buf.put( EOO );
+        
+        _buf.putInt( sizePos , _buf.position() - sizePos );
+        return _buf.position() - start;
+    }
+
+    private void _putReflectionField( ReflectionDBObject o , ReflectionDBObject.FieldInfo fi ){
+        final Object val = fi.get( o );
+        if ( val == null || fi._type == 0 || Bytes._anyHooks ){
+            _putObjectField( fi._name , val );
+            return;
+        }
+
+        _put( fi._type , fi._name );
+        switch ( fi._type ){
+        case NUMBER_INT:
+            _buf.putInt( ((Number)val).intValue() );
+            break;
+        case NUMBER_LONG:
+            _buf.putLong( ((Number)val).longValue() );
+            break;
+        case NUMBER:
+            _buf.putDouble( ((Number)val).doubleValue() );
+            break;
+        case BOOLEAN:
+            _buf.put( ((Boolean)val).booleanValue() ? (byte)0x1 : (byte)0x0 );
+            break;
+        case STRING:
+            _putValueString( (String)val );
+            break;
+        case DATE:
+            _buf.putLong( ((Date)val).getTime() );
+            break;
+        case OID:
+            ObjectId oid = (ObjectId)val;
+            _buf.putInt( oid._time );
+            _buf.putInt( oid._machine );
+            _buf.putInt( oid._inc );
+            break;
+        default:
+            throw new MongoInternalException( "unexpected type for [" + fi._name + "] : " + fi._type );
+        }
+    }
+
     private void _putObjectField( String name , Object val ){
 
         if ( name.equals( "_transientFields" ) )
@@ -512,7 +632,36 @@ public class ByteEncoder extends Bytes {
      */
     private void _put( byte type , String name ){
         _buf.put( type );
+
+        final int hash = name.hashCode();
+        final int slot = ( hash ^ ( hash >>> 16 ) ) & ( MAX_CACHED_NAMES - 1 );
+        final Name had = _names[slot];
+        if ( had != null && had._name.equals( name ) ){
+            _buf.put( had._bytes );
+            return;
+        }
+
+        final int start = _buf.position();
         _put( name );
+        if ( name.length() <= MAX_CACHED_NAME ){
+            byte[] b = new byte[ _buf.position() - start ];
+            System.arraycopy( _buf.array() , _buf.arrayOffset() + start , b , 0 , b.length );
+            _names[slot] = new Name( name , b );
+        }
+    }
+
+    /**
+     * a field name and its utf-8 bytes, with the trailing 0.
+     * the name table is shared by every encoder, so a slot only ever holds a whole Name, and racing writes just lose one
+     */
+    static final class Name {
+        Name( String name , byte[] bytes ){
+            _name = name;
+            _bytes = bytes;
+        }
+
+        final String _name;
+        final byte[] _bytes;
     }
 
     void _putValueString( String s ){
@@ -522,19 +671,72 @@ public class ByteEncoder extends Bytes {
         _buf.putInt( lenPos , strLen );
     }
     
+    /**
+     * writes name as utf-8 followed by a 0, straight into the buffer's array.
+     * ascii goes a char at a time until the first char that isn't, and a lone surrogate is written as '?'
+     * @return how many bytes were written, including the 0
+     * @throws BufferOverflowException if it doesn't fit, with the position where it was
+     */
     int _put( String name ){
+        final int len = name.length();
+        final byte[] out = _buf.array();
+        final int start = _buf.arrayOffset() + _buf.position();
+        final int end = _buf.arrayOffset() + _buf.limit();
+
+        int pos = start;
+        int i = 0;
+
+        if ( end - pos > len ){
+            for ( ; i<len; i++ ){
+                final char c = name.charAt( i );
+                if ( c >= 0x80 )
+                    break;
+                out[pos++] = (byte)c;
+            }
+        }
 
-        _cbuf.position( 0 );
-        _cbuf.limit( _cbuf.capacity() );
-        _cbuf.append( name );
-        
-        _cbuf.flip();
-        final int start = _buf.position();
-        _encoder.encode( _cbuf , _buf , false );
+        for ( ; i<len; i++ ){
+            int c = name.charAt( i );
+            if ( c < 0x80 ){
+                if ( pos >= end )
+                    throw new BufferOverflowException();
+                out[pos++] = (byte)c;
+            }
+            else if ( c < 0x800 ){
+                if ( pos + 2 > end )
+                    throw new BufferOverflowException();
+                out[pos++] = (byte)( 0xC0 | ( c >> 6 ) );
+                out[pos++] = (byte)( 0x80 | ( c & 0x3F ) );
+            }
+            else if ( Character.isHighSurrogate( (char)c ) && i + 1 < len && Character.isLowSurrogate( name.charAt( i + 1 ) ) ){
+                c = Character.toCodePoint( (char)c , name.charAt( ++i ) );
+                if ( pos + 4 > end )
+                    throw new BufferOverflowException();
+                out[pos++] = (byte)( 0xF0 | ( c >> 18 ) );
+                out[pos++] = (byte)( 0x80 | ( ( c >> 12 ) & 0x3F ) );
+                out[pos++] = (byte)( 0x80 | ( ( c >> 6 ) & 0x3F ) );
+                out[pos++] = (byte)( 0x80 | ( c & 0x3F ) );
+            }
+            else if ( c >= 0xD800 && c <= 0xDFFF ){
+                if ( pos >= end )
+                    throw new BufferOverflowException();
+                out[pos++] = (byte)'?';
+            }
+            else {
+                if ( pos + 3 > end )
+                    throw new BufferOverflowException();
+                out[pos++] = (byte)( 0xE0 | ( c >> 12 ) );
+                out[pos++] = (byte)( 0x80 | ( ( c >> 6 ) & 0x3F ) );
+                out[pos++] = (byte)( 0x80 | ( c & 0x3F ) );
+            }
+        }
 
-        _buf.put( (byte)0 );
+        if ( pos >= end )
+            throw new BufferOverflowException();
+        out[pos++] = 0;
 
-        return _buf.position() - start;
+        _buf.position( pos - _buf.arrayOffset() );
+        return pos - start;
     }
 
     boolean _dontRefContains( Object o ){
@@ -543,10 +745,11 @@ public class ByteEncoder extends Bytes {
         return _dontRef.peek().contains( o );
     }
     
-    private final CharBuffer _cbuf = CharBuffer.allocate( MAX_STRING );
-    private final CharsetEncoder _encoder = _utf8.newEncoder();
+    /** field names already encoded, with their 0, shared by every encoder.  one slot per hash, so a collision just replaces what was there */
+    private static final Name[] _names = new Name[ MAX_CACHED_NAMES ];
+
     private Stack<IdentitySet> _dontRef = new Stack<IdentitySet>();
     
     private boolean _flipped = false;
-    final ByteBuffer _buf;
+    ByteBuffer _buf;
 }
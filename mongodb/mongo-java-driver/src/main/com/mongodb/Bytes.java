@@ -48,20 +48,12 @@ public class Bytes {
     static final int MAX_OBJECT_SIZE = 1024 * 1024 * 4;
     
     static final int CONNECTIONS_PER_HOST = Integer.parseInt( System.getProperty( "MONGO.POOLSIZE" , "10" ) );
-    static final int NUM_ENCODERS;
+    static final int NUM_ENCODERS = CONNECTIONS_PER_HOST;
 
-    static {
-        Runtime r = Runtime.getRuntime();
-        int numBufs = (int)(r.maxMemory() / MAX_OBJECT_SIZE);
-        numBufs = numBufs / 5;
-        if ( numBufs > CONNECTIONS_PER_HOST ){
-            numBufs = CONNECTIONS_PER_HOST;
-        }
-        if ( numBufs == 0 )
-            throw new IllegalStateException( "the mongo driver doesn't have enough memory to create its buffers" );
-
-        NUM_ENCODERS = numBufs;
-    }
+    /** encoder and decoder buffers start out this big, and double when they need to */
+    static final int INITIAL_BUFFER_SIZE = 1024 * 16;
+    /** pooled encoders and decoders whose buffers grew past this drop back to INITIAL_BUFFER_SIZE when returned */
+    static final int MAX_POOLED_BUFFER_SIZE = 1024 * 256;
 
     static final byte EOO = 0;    
     static final byte NUMBER = 1;
@@ -306,7 +298,7 @@ public class Bytes {
         return d.readObject();
     }
 
-    private static boolean _anyHooks = false;
+    static boolean _anyHooks = false;
     static Map<Class,List<Transformer>> _encodingHooks = Collections.synchronizedMap( new HashMap<Class,List<Transformer>>() );
     static Map<Byte,List<Transformer>> _decodingHooks = Collections.synchronizedMap( new HashMap<Byte,List<Transformer>>() );
     
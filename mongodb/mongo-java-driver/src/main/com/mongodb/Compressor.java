@@ -0,0 +1,230 @@
+// Compressor.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.io.*;
+import java.nio.*;
+import java.util.zip.*;
+
+/**
+ * wraps messages in OP_COMPRESSED with zlib, and unwraps replies that come back that way.
+ * a compressed message is the usual header with opcode 2012, then the original opcode,
+ * the length of the original message after its header, a byte saying which compressor, and the compressed bytes.
+ * each port has its own.  compressing is only done by whoever is writing, and inflating by whoever is reading,
+ * so each side has its own lock, which is only there so end() can't pull the zlib stream out from under them.
+ * lengths in a reply come from the server, so anything a decoder couldn't hold is an IOException
+ */
+class Compressor {
+
+    static final int OP_COMPRESSED = 2012;
+    static final byte ZLIB = 2;
+    /** the header, then the original opcode, the uncompressed size and the compressor id */
+    static final int HEADER_LENGTH = DBMessage.HEADER_LENGTH + 9;
+
+    Compressor( int threshold , int level ){
+        _threshold = threshold;
+        _level = level;
+    }
+
+    /**
+     * frees zlib's native memory, which otherwise stays until finalization.
+     * called when the port's socket goes away.  if it reconnects, they're made again
+     */
+    void end(){
+        synchronized ( _deflateLock ){
+            if ( _deflater != null )
+                _deflater.end();
+            _deflater = null;
+        }
+        synchronized ( _inflateLock ){
+            if ( _inflater != null )
+                _inflater.end();
+            _inflater = null;
+        }
+    }
+
+    /**
+     * @param msg a prepared message, from its position to its limit
+     * @return msg if it's under the threshold or doesn't get any smaller, otherwise a compressed copy
+     */
+    ByteBuffer compress( ByteBuffer msg ){
+        final int len = msg.remaining();
+        if ( len < _threshold || len <= DBMessage.HEADER_LENGTH )
+            return msg;
+
+        final byte[] src;
+        final int off;
+        if ( msg.hasArray() ){
+            src = msg.array();
+            off = msg.arrayOffset() + msg.position();
+        }
+        else {
+            src = new byte[ len ];
+            msg.duplicate().get( src );
+            off = 0;
+        }
+
+        final int bodyLen = len - DBMessage.HEADER_LENGTH;
+        byte[] dst = new byte[ HEADER_LENGTH + bodyLen ];
+
+        int total = HEADER_LENGTH;
+        synchronized ( _deflateLock ){
+            if ( _deflater == null )
+                _deflater = new Deflater( _level );
+            _deflater.reset();
+            _deflater.setInput( src , off + DBMessage.HEADER_LENGTH , bodyLen );
+            _deflater.finish();
+            while ( ! _deflater.finished() ){
+                if ( total == dst.length )
+                    return msg; // no smaller, so not worth it
+                total += _deflater.deflate( dst , total , dst.length - total );
+            }
+        }
+
+        ByteBuffer res = ByteBuffer.wrap( dst , 0 , total );
+        res.order( Bytes.ORDER );
+        final ByteBuffer in = msg.duplicate().order( Bytes.ORDER );
+        final int start = msg.position();
+        res.putInt( 0 , total );
+        res.putInt( 4 , in.getInt( start + 4 ) ); // id
+        res.putInt( 8 , in.getInt( start + 8 ) ); // responseTo
+        res.putInt( 12 , OP_COMPRESSED );
+        res.putInt( 16 , in.getInt( start + 12 ) ); // original opcode
+        res.putInt( 20 , bodyLen );
+        res.put( 24 , ZLIB );
+        return res;
+    }
+
+    static boolean isCompressed( ByteBuffer header ){
+        return header.getInt( 12 ) == OP_COMPRESSED;
+    }
+
+    /**
+     * @param len the length at the start of a compressed message
+     * @throws IOException if it's too short to be one, or longer than a reply can be
+     */
+    static void checkLength( int len )
+        throws IOException {
+        if ( len < HEADER_LENGTH || len > ByteDecoder.MAX_BUFFER_SIZE )
+            throw new IOException( "db sent invalid length: " + len );
+    }
+
+    /**
+     * @param msg a whole compressed message
+     * @return how long it is uncompressed, header included
+     */
+    static int uncompressedLength( byte[] msg )
+        throws IOException {
+        if ( msg.length < HEADER_LENGTH )
+            throw new IOException( "compressed message too short: " + msg.length );
+        ByteBuffer bb = ByteBuffer.wrap( msg ).order( Bytes.ORDER );
+        if ( bb.get( 24 ) != ZLIB )
+            throw new IOException( "unknown compressor: " + bb.get( 24 ) );
+        final int size = bb.getInt( 20 );
+        if ( size < 0 || size > ByteDecoder.MAX_BUFFER_SIZE - DBMessage.HEADER_LENGTH )
+            throw new IOException( "db sent invalid uncompressed length: " + size );
+        return DBMessage.HEADER_LENGTH + size;
+    }
+
+    /**
+     * inflates msg into dest as the message it was before it was compressed.
+     * dest has to have room for uncompressedLength( msg ) bytes from 0, and ends up with its position there
+     */
+    void inflate( byte[] msg , ByteBuffer dest )
+        throws IOException {
+        final int len = uncompressedLength( msg );
+        if ( len > dest.capacity() )
+            throw new IOException( "no room to inflate a reply of " + len + " bytes into " + dest.capacity() );
+        ByteBuffer in = ByteBuffer.wrap( msg ).order( Bytes.ORDER );
+
+        dest.position( 0 );
+        dest.putInt( len );
+        dest.putInt( in.getInt( 4 ) );
+        dest.putInt( in.getInt( 8 ) );
+        dest.putInt( in.getInt( 16 ) );
+
+        synchronized ( _inflateLock ){
+            if ( _inflater == null )
+                _inflater = new Inflater();
+            _inflater.reset();
+            _inflater.setInput( msg , HEADER_LENGTH , msg.length - HEADER_LENGTH );
+            try {
+                int pos = DBMessage.HEADER_LENGTH;
+                while ( pos < len ){
+                    int x = _inflater.inflate( dest.array() , dest.arrayOffset() + pos , len - pos );
+                    if ( x == 0 && ( _inflater.finished() || _inflater.needsInput() ) )
+                        throw new IOException( "compressed reply ended early" );
+                    pos += x;
+                }
+            }
+            catch ( DataFormatException dfe ){
+                throw new IOException( "bad compressed reply: " + dfe );
+            }
+        }
+        dest.position( len );
+    }
+
+    /**
+     * @param header the first 16 bytes of a compressed message, already read from in
+     * @return the whole message, read from in
+     */
+    static byte[] readRest( byte[] header , InputStream in )
+        throws IOException {
+        final int len = ByteBuffer.wrap( header ).order( Bytes.ORDER ).getInt( 0 );
+        checkLength( len );
+        byte[] msg = new byte[ len ];
+        System.arraycopy( header , 0 , msg , 0 , header.length );
+        _readFully( in , msg , header.length );
+        return msg;
+    }
+
+    /**
+     * a reply to be read from in as if it was never compressed, for streaming
+     */
+    InputStream replyStream( InputStream in )
+        throws IOException {
+        byte[] header = new byte[ DBMessage.HEADER_LENGTH ];
+        _readFully( in , header , 0 );
+        if ( ! isCompressed( ByteBuffer.wrap( header ).order( Bytes.ORDER ) ) )
+            return new SequenceInputStream( new ByteArrayInputStream( header ) , in );
+
+        byte[] msg = readRest( header , in );
+        ByteBuffer out = ByteBuffer.allocate( uncompressedLength( msg ) );
+        out.order( Bytes.ORDER );
+        inflate( msg , out );
+        return new ByteArrayInputStream( out.array() );
+    }
+
+    private static void _readFully( InputStream in , byte[] b , int off )
+        throws IOException {
+        while ( off < b.length ){
+            int x = in.read( b , off , b.length - off );
+            if ( x < 0 )
+                throw new IOException( "connection to server closed unexpectedly" );
+            off += x;
+        }
+    }
+
+    final int _threshold;
+    final int _level;
+    private final Object _deflateLock = new Object();
+    private final Object _inflateLock = new Object();
+    private Deflater _deflater;
+    private Inflater _inflater;
+}
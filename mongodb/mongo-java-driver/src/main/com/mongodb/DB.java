@@ -322,7 +322,15 @@ public abstract class DB {
             throw new MongoException("Error - unable to get nonce value for authentication.");
         }
 
-        String nonce = res.getString("nonce");
+        res = (BasicDBObject)command( _authCommand( username , hash , res.getString("nonce") ) );
+        
+        return res.getInt("ok") == 1;
+    }
+
+    /**
+     * the authenticate command that answers nonce
+     */
+    static DBObject _authCommand( String username , byte[] hash , String nonce ){
         String key = nonce + username + new String( hash );
         
         BasicDBObject cmd = new BasicDBObject();
@@ -331,10 +339,7 @@ public abstract class DB {
         cmd.put("user", username);
         cmd.put("nonce", nonce);
         cmd.put("key", Util.hexMD5(key.getBytes()));
-
-        res = (BasicDBObject)command(cmd);
-        
-        return res.getInt("ok") == 1;
+        return cmd;
     }
 
     public void addUser( String username , char[] passwd ){
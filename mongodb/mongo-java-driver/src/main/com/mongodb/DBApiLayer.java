@@ -18,6 +18,8 @@
 
 package com.mongodb;
 
+import java.lang.ref.*;
+import java.net.*;
 import java.nio.*;
 import java.util.*;
 import java.util.logging.*;
@@ -31,8 +33,6 @@ import com.mongodb.util.*;
 public class DBApiLayer extends DB {
 
     static final boolean D = Boolean.getBoolean( "DEBUG.DB" );
-    /** The maximum number of cursors allowed */
-    static final int NUM_CURSORS_BEFORE_KILL = 100;
 
     static final boolean SHOW = Boolean.getBoolean( "DB.SHOW" );
 
@@ -42,7 +42,7 @@ public class DBApiLayer extends DB {
         _root = root;
         _rootPlusDot = _root + ".";
 
-        _connector = connector;
+        _connector = InternalConnector.Adapter.wrap( connector );
     }
 
     public void requestStart(){
@@ -145,6 +145,87 @@ public class DBApiLayer extends DB {
         protected void insert(DBObject[] arr, boolean shouldApply )
             throws MongoException {
 
+            _prepareInsert( arr , shouldApply );
+            
+            InsertMessages msgs = new InsertMessages( arr );
+            try {
+                _connector.say( _db , msgs , getWriteConcern() );
+            }
+            finally {
+                msgs.done();
+                _invalidate( arr );
+            }
+        }
+
+        /**
+         * encodes arr into as many messages as it takes, one at a time.
+         * each message's encoder is given back when the next is asked for
+         */
+        class InsertMessages implements Iterator<DBMessage> {
+            InsertMessages( DBObject[] arr ){
+                _arr = arr;
+            }
+
+            public boolean hasNext(){
+                return _cur < _arr.length;
+            }
+
+            public DBMessage next(){
+                if ( ! hasNext() )
+                    throw new NoSuchElementException();
+                done();
+                _last = new DBMessage( 2002 );
+                _cur = _fillInsert( _last , _arr , _cur );
+                return _last;
+            }
+
+            public void remove(){
+                throw new UnsupportedOperationException();
+            }
+
+            void done(){
+                if ( _last == null )
+                    return;
+                _last._encoder.done();
+                _last = null;
+            }
+
+            final DBObject[] _arr;
+            int _cur = 0;
+            DBMessage _last;
+        }
+
+        public DBFuture<DBObject> insertAsync( DBObject[] arr )
+            throws MongoException {
+
+            _prepareInsert( arr , true );
+
+            List<DBFuture<DBObject>> all = new ArrayList<DBFuture<DBObject>>();
+            int cur = 0;
+            while ( cur < arr.length ){
+                DBMessage m = new DBMessage( 2002 );
+                try {
+                    cur = _fillInsert( m , arr , cur );
+                }
+                catch ( RuntimeException e ){
+                    m._encoder.done();
+                    throw e;
+                }
+                all.add( _sayAsync( m ) );
+            }
+            _invalidate( arr );
+
+            if ( all.size() == 1 )
+                return all.get( 0 );
+
+            return DBFuture.all( all ).then( new DBFuture.Transform<List<DBObject>,DBObject>(){
+                    public DBObject apply( List<DBObject> l ){
+                        return l.get( l.size() - 1 );
+                    }
+                } );
+        }
+
+        private void _prepareInsert( DBObject[] arr , boolean shouldApply ){
             if ( SHOW ) {
                 for (DBObject o : arr) {
                     System.out.println( "save:  " + _fullNameSpace + " " + JSON.serialize( o ) );
@@ -152,47 +233,68 @@ public class DBApiLayer extends DB {
             }
             
             if ( shouldApply ){
+                ObjectId.Block ids = null;
                 for ( int i=0; i<arr.length; i++ ){
                     DBObject o=arr[i];
+                    if ( arr.length > 1 && o.get( "_id" ) == null ){
+                        if ( ids == null )
+                            ids = ObjectId.reserve( arr.length - i );
+                        o.put( "_id" , ids.next() );
+                    }
                     apply( o );
                     Object id = o.get( "_id" );
                     if ( id instanceof ObjectId )
                         ((ObjectId)id)._new = false;
                 }
             }
+        }
+
+        /**
+         * encodes as many objects from arr, starting at cur, as fit in m
+         * @return where the next message should start
+         */
+        private int _fillInsert( DBMessage m , DBObject[] arr , int cur ){
+            ByteEncoder encoder = m._encoder;
             
-            int cur = 0;
-            while ( cur < arr.length ){
-                DBMessage m = new DBMessage( 2002 );
-                ByteEncoder encoder = m._encoder;
-                
-                encoder._buf.putInt( 0 ); // reserved
-                encoder._put( _fullNameSpace );
-                
-                int n=0;
-                for ( ; cur<arr.length; cur++ ){
-                    DBObject o = arr[cur];
-                    int pos = encoder._buf.position();
-                    try {
-                        encoder.putObject( null , o );
-                        n++;
-                    }
-                    catch ( BufferOverflowException e ){
-                        if ( n == 0 )
-                            throw encoder.getTooLargeException();
-                        encoder._buf.position( pos );
-                        break;
-                    }
-                }
-                
+            encoder._buf.putInt( 0 ); // reserved
+            encoder._put( _fullNameSpace );
+            
+            int n=0;
+            for ( ; cur<arr.length; cur++ ){
+                DBObject o = arr[cur];
+                int pos = encoder._buf.position();
                 try {
-                    _connector.say( _db , m , getWriteConcern() );
+                    encoder.putObject( null , o );
+                    n++;
                 }
-                finally {
-                    encoder.done();
+                catch ( BufferOverflowException e ){
+                    if ( n == 0 )
+                        throw encoder.getTooLargeException();
+                    encoder._buf.position( pos );
+                    break;
                 }
             }
+            return cur;
+        }
 
+        /**
+         * sends m without waiting, and gives its encoder back once the connector is done with it
+         */
+        private DBFuture<DBObject> _sayAsync( final DBMessage m ){
+            DBFuture<DBObject> f;
+            try {
+                f = _connector.sayAsync( _db , m , getWriteConcern() );
+            }
+            catch ( RuntimeException e ){
+                m._encoder.done();
+                throw e;
+            }
+            f.addCallback( new DBFuture.Callback<DBObject>(){
+                    public void done( DBObject res , MongoException error ){
+                        m._encoder.done();
+                    }
+                } );
+            return f;
         }
         
         public void remove( DBObject o )
@@ -221,17 +323,18 @@ public class DBApiLayer extends DB {
             }
             finally {
                 encoder.done();
+                _invalidate( o );
             }
         }
 
+        /**
+         * retries kills that failed when the cursors were closed or reaped
+         */
         void _cleanCursors()
             throws MongoException {
             if ( _deadCursorIds.size() == 0 )
                 return;
 
-            if ( _deadCursorIds.size() % 20 != 0 && _deadCursorIds.size() < NUM_CURSORS_BEFORE_KILL )
-                return;
-
             List<Long> l = _deadCursorIds;
             _deadCursorIds = new Vector<Long>();
 
@@ -246,100 +349,182 @@ public class DBApiLayer extends DB {
             }
         }
 
-        void killCursors( List<Long> all )
+        public Iterator<DBObject> find( DBObject ref , DBObject fields , int numToSkip , int batchSize , int options , boolean lazy )
             throws MongoException {
-            if ( all == null || all.size() == 0 )
-                return;
+            
+            if ( ref == null )
+                ref = new BasicDBObject();
+            
+            if ( SHOW ) System.out.println( "find: " + _fullNameSpace + " " + JSON.serialize( ref ) );
 
-            DBMessage m = new DBMessage( 2007 );
-            ByteEncoder encoder = m._encoder;
-            encoder._buf.putInt( 0 ); // reserved
+            _cleanCursors();
             
-            encoder._buf.putInt( all.size() );
+            DBMessage query = _findMessage( ref , fields , numToSkip , batchSize , options );
+            ByteEncoder encoder = query._encoder;
 
-            for (Long l : all) {
-                encoder._buf.putLong(l);
-            }
+            ByteDecoder decoder = null;
 
             try {
-                _connector.say( _db , m , WriteConcern.NONE );
+                DBPort.ReplyStream stream = _connector.stream( _db , query );
+                if ( stream != null )
+                    return _findResult( new SingleResult( _fullNameSpace , stream , this , lazy ) , batchSize , lazy , query._host );
+
+                decoder = ByteDecoder.get( DBApiLayer.this , this );
+                DBMessage response = _connector.call( _db , query , decoder , 2 );
+                return _findResult( new SingleResult( _fullNameSpace , decoder , lazy ) , batchSize , lazy , query._host );
             }
             finally {
+                if ( decoder != null )
+                    decoder.done();
                 encoder.done();
             }
         }
 
-        public Iterator<DBObject> find( DBObject ref , DBObject fields , int numToSkip , int batchSize , int options )
+        public DBFuture<Iterator<DBObject>> findAsync( DBObject ref , DBObject fields , int numToSkip , final int batchSize , int options )
             throws MongoException {
             
             if ( ref == null )
                 ref = new BasicDBObject();
             
-            if ( SHOW ) System.out.println( "find: " + _fullNameSpace + " " + JSON.serialize( ref ) );
+            if ( SHOW ) System.out.println( "findAsync: " + _fullNameSpace + " " + JSON.serialize( ref ) );
 
             _cleanCursors();
             
-            DBMessage query = new DBMessage( 2004 );
-            ByteEncoder encoder = query._encoder;
-
-            encoder._buf.putInt( options ); // options
-            encoder._put( _fullNameSpace );
+            final DBMessage query = _findMessage( ref , fields , numToSkip , batchSize , options );
+            final ByteDecoder decoder = ByteDecoder.get( DBApiLayer.this , this );
 
-            encoder._buf.putInt( numToSkip );
-            encoder._buf.putInt( batchSize );
-            encoder.putObject( ref ); // ref
-            if ( fields != null )
-                encoder.putObject( fields ); // fields to return
+            DBFuture<DBMessage> reply;
+            try {
+                reply = _connector.callAsync( _db , query , decoder );
+            }
+            catch ( RuntimeException e ){
+                decoder.done();
+                query._encoder.done();
+                throw e;
+            }
+            
+            final DBFuture<Iterator<DBObject>> res = new DBFuture<Iterator<DBObject>>();
+            reply.addCallback( new DBFuture.Callback<DBMessage>(){
+                    public void done( DBMessage m , MongoException error ){
+                        try {
+                            if ( error != null )
+                                res.fail( error );
+                            else
+                                res.set( _findResult( new SingleResult( _fullNameSpace , decoder , false ) , batchSize , false , query._host ) );
+                        }
+                        catch ( RuntimeException e ){
+                            res.fail( e );
+                        }
+                        finally {
+                            decoder.done();
+                            query._encoder.done();
+                        }
+                    }
+                } );
+            return res;
+        }
 
-            ByteDecoder decoder = ByteDecoder.get( DBApiLayer.this , this );
+        private DBMessage _findMessage( DBObject ref , DBObject fields , int numToSkip , int batchSize , int options ){
+            DBMessage query = new DBMessage( 2004 );
+            ByteEncoder encoder = query._encoder;
 
             try {
-                DBMessage response = _connector.call( _db , query , decoder , 2 );
+                encoder._buf.putInt( options ); // options
+                encoder._put( _fullNameSpace );
+                
+                encoder._buf.putInt( numToSkip );
+                encoder._buf.putInt( batchSize );
+                encoder.putObject( ref ); // ref
+                if ( fields != null )
+                    encoder.putObject( fields ); // fields to return
+            }
+            catch ( RuntimeException e ){
+                encoder.done();
+                throw e;
+            }
+            return query;
+        }
+
+        /**
+         * @param res the first batch of a query
+         * @param host where the query went, null for the master
+         * @return null if nothing matched
+         */
+        private Iterator<DBObject> _findResult( SingleResult res , int batchSize , boolean lazy , InetSocketAddress host ){
+            if ( res.size() == 0 )
+                return null;
+            
+            if ( res.size() == 1 ){
+                Object err = res.first().get( "$err" );
+                if ( err != null )
+                    throw new RuntimeException( "db error [" + err + "]" );
+            }
+            
+            return new Result( this , res , batchSize , lazy , host );
+        }
 
-                SingleResult res = new SingleResult( _fullNameSpace , decoder);
+        public void update( DBObject query , DBObject o , boolean upsert , boolean multi )
+            throws MongoException {
 
-                if ( res._lst.size() == 0 )
-                    return null;
+            if ( SHOW ) System.out.println( "update: " + _fullNameSpace + " " + JSON.serialize( query ) );
 
-                if ( res._lst.size() == 1 ){
-                    Object err = res._lst.get(0).get( "$err" );
-                    if ( err != null )
-                        throw new RuntimeException( "db error [" + err + "]" );
-                }
+            DBMessage m = _updateMessage( query , o , upsert , multi );
 
-                return new Result( this , res , batchSize );
+            try {
+                _connector.say( _db , m , getWriteConcern() );
             }
             finally {
-                decoder.done();
-                encoder.done();
+                m._encoder.done();
+                _invalidate( query );
             }
+
         }
 
-        public void update( DBObject query , DBObject o , boolean upsert , boolean multi )
+        public DBFuture<DBObject> updateAsync( DBObject query , DBObject o , boolean upsert , boolean multi )
             throws MongoException {
 
-            if ( SHOW ) System.out.println( "update: " + _fullNameSpace + " " + JSON.serialize( query ) );
+            if ( SHOW ) System.out.println( "updateAsync: " + _fullNameSpace + " " + JSON.serialize( query ) );
+
+            DBFuture<DBObject> f = _sayAsync( _updateMessage( query , o , upsert , multi ) );
+            if ( getCache() == null )
+                return f;
+
+            // the cache has to be cleared before whoever waits on the update can look again
+            final DBObject q = query;
+            final DBFuture<DBObject> after = new DBFuture<DBObject>();
+            f.addCallback( new DBFuture.Callback<DBObject>(){
+                    public void done( DBObject res , MongoException error ){
+                        _invalidate( q );
+                        if ( error != null )
+                            after.fail( error );
+                        else
+                            after.set( res );
+                    }
+                } );
+            return after;
+        }
 
+        private DBMessage _updateMessage( DBObject query , DBObject o , boolean upsert , boolean multi ){
             DBMessage m = new DBMessage( 2001 );
             ByteEncoder encoder = m._encoder;
-            encoder._buf.putInt( 0 ); // reserved
-            encoder._put( _fullNameSpace );
-
-            int flags = 0;
-            if ( upsert ) flags |= 1;
-            if ( multi ) flags |= 2;
-            encoder._buf.putInt( flags );
-
-            encoder.putObject( query );
-            encoder.putObject( o );
 
             try {
-                _connector.say( _db , m , getWriteConcern() );
+                encoder._buf.putInt( 0 ); // reserved
+                encoder._put( _fullNameSpace );
+                
+                int flags = 0;
+                if ( upsert ) flags |= 1;
+                if ( multi ) flags |= 2;
+                encoder._buf.putInt( flags );
+                
+                encoder.putObject( query );
+                encoder.putObject( o );
             }
-            finally {
+            catch ( RuntimeException e ){
                 encoder.done();
+                throw e;
             }
-
+            return m;
         }
 
         protected void createIndex( final DBObject keys, final DBObject options )
@@ -356,12 +541,68 @@ public class DBApiLayer extends DB {
         final String _fullNameSpace;
     }
 
+    void killCursors( List<Long> all )
+        throws MongoException {
+        killCursors( null , all );
+    }
+
+    /**
+     * @param host where the cursors are, null for the master
+     */
+    void killCursors( InetSocketAddress host , List<Long> all )
+        throws MongoException {
+        if ( all == null || all.size() == 0 )
+            return;
+
+        DBMessage m = new DBMessage( 2007 );
+        m._host = host;
+        ByteEncoder encoder = m._encoder;
+        encoder._buf.putInt( 0 ); // reserved
+        
+        encoder._buf.putInt( all.size() );
+
+        for (Long l : all) {
+            encoder._buf.putLong(l);
+        }
+
+        try {
+            _connector.say( this , m , WriteConcern.NONE );
+        }
+        finally {
+            encoder.done();
+        }
+    }
+
+    /**
+     * kills cursors now, and if that fails leaves them for the next find to try again.
+     * cursors on a secondary aren't tried again, it will time them out
+     */
+    void _killCursors( InetSocketAddress host , List<Long> all ){
+        if ( _connector.isClosed() )
+            return; // nothing left to send them down, the server will time them out
+        try {
+            killCursors( host , all );
+        }
+        catch ( Throwable t ){
+            Bytes.LOGGER.log( Level.WARNING , "can't kill cursors" , t );
+            if ( host == null )
+                _deadCursorIds.addAll( all );
+        }
+    }
+
     static class QueryHeader {
 
         QueryHeader( ByteBuffer buf ){
             this( buf , buf.position() );
         }
 
+        QueryHeader( QueryHeader h ){
+            _reserved = h._reserved;
+            _cursor = h._cursor;
+            _startingFrom = h._startingFrom;
+            _num = h._num;
+        }
+
         QueryHeader( ByteBuffer buf , int start ){
             _reserved = buf.getInt( start );
             _cursor = buf.getLong( start + 4 );
@@ -385,12 +626,13 @@ public class DBApiLayer extends DB {
 
     class SingleResult extends QueryHeader {
 
-        SingleResult( String fullNameSpace , ByteDecoder decoder){
+        SingleResult( String fullNameSpace , ByteDecoder decoder , boolean lazy ){
             super( decoder._buf );
 
             _bytes = decoder.remaining();
             _fullNameSpace = fullNameSpace;
             _shortNameSpace = _removeRoot( _fullNameSpace );
+            _stream = null;
             skipPastHeader( decoder._buf );
 
             if ( _num == 0 )
@@ -400,7 +642,21 @@ public class DBApiLayer extends DB {
             else
                 _lst = new ArrayList<DBObject>( _num );
 
-            if ( _num > 0 ){
+            if ( _num > 0 && lazy ){
+                // the decoder goes back to the pool, so the objects need their own copy of the bytes
+                byte[] copy = new byte[ decoder._buf.remaining() ];
+                decoder._buf.get( copy );
+                ByteBuffer buf = ByteBuffer.wrap( copy );
+                buf.order( Bytes.ORDER );
+
+                int pos = 0;
+                while ( pos < copy.length && _lst.size() < _num ){
+                    RawDBObject o = new RawDBObject( buf , pos , DBApiLayer.this );
+                    _lst.add( o );
+                    pos += o._end;
+                }
+            }
+            else if ( _num > 0 ){
                 int num = 0;
 
                 while( decoder.more() && num < _num ){
@@ -418,10 +674,46 @@ public class DBApiLayer extends DB {
             }
         }
 
+        /**
+         * leaves the documents in stream to be decoded as they're asked for
+         */
+        SingleResult( String fullNameSpace , DBPort.ReplyStream stream , MyCollection coll , boolean lazy ){
+            super( stream._header );
+
+            _bytes = stream._bytes;
+            _fullNameSpace = fullNameSpace;
+            _shortNameSpace = _removeRoot( _fullNameSpace );
+            _lst = null;
+            _stream = _num == 0 ? null : new StreamedObjects( stream , coll , lazy );
+        }
+
         boolean hasGetMore(){
             return _num > 0 && _cursor > 0;
         }
 
+        /**
+         * @return how many objects are in this batch
+         */
+        int size(){
+            if ( _lst != null )
+                return _lst.size();
+            return _num;
+        }
+
+        DBObject first(){
+            if ( _lst != null )
+                return _lst.get( 0 );
+            return _stream.peek();
+        }
+
+        Iterator<DBObject> iterator(){
+            if ( _lst != null )
+                return _lst.iterator();
+            if ( _stream == null )
+                return EMPTY.iterator();
+            return _stream;
+        }
+
         public String toString(){
             return "reserved:" + _reserved + " _cursor:" + _cursor + " _startingFrom:" + _startingFrom + " _num:" + _num ;
         }
@@ -431,29 +723,106 @@ public class DBApiLayer extends DB {
         final String _shortNameSpace;
 
         final List<DBObject> _lst;
+        final StreamedObjects _stream;
+    }
+
+    /**
+     * decodes the objects in a reply one at a time, as they come off the socket
+     */
+    class StreamedObjects implements Iterator<DBObject> {
+
+        StreamedObjects( DBPort.ReplyStream stream , MyCollection coll , boolean lazy ){
+            _stream = stream;
+            _collection = coll;
+            _lazy = lazy;
+        }
+
+        public boolean hasNext(){
+            return _next != null || _stream.more();
+        }
+
+        public DBObject next(){
+            DBObject o = peek();
+            _next = null;
+            return o;
+        }
+
+        DBObject peek(){
+            if ( _next != null )
+                return _next;
+            
+            ByteBuffer doc;
+            try {
+                doc = _stream.next();
+            }
+            catch ( java.io.IOException ioe ){
+                throw new MongoException.Network( "can't read reply" , ioe );
+            }
+            if ( doc == null )
+                throw new NoSuchElementException( "no more" );
+
+            if ( _lazy ){
+                // the stream's buffer gets reused, so each object needs its own copy of the bytes
+                byte[] copy = new byte[ doc.remaining() ];
+                doc.get( copy );
+                ByteBuffer buf = ByteBuffer.wrap( copy );
+                buf.order( Bytes.ORDER );
+                _next = new RawDBObject( buf , 0 , DBApiLayer.this );
+            }
+            else {
+                if ( _decoder == null ){
+                    _decoder = new ByteDecoder( doc );
+                    _decoder._base = DBApiLayer.this;
+                    _decoder._collection = _collection;
+                }
+                else {
+                    _decoder.reset( doc );
+                }
+                _next = _decoder.readObject();
+            }
+            return _next;
+        }
+
+        public void remove(){
+            throw new UnsupportedOperationException();
+        }
+
+        final DBPort.ReplyStream _stream;
+        final MyCollection _collection;
+        final boolean _lazy;
+
+        private ByteDecoder _decoder;
+        private DBObject _next;
     }
 
     class Result implements Iterator<DBObject> {
 
-        Result( MyCollection coll , SingleResult res , int numToReturn ){
+        Result( MyCollection coll , SingleResult res , int numToReturn , boolean lazy , InetSocketAddress host ){
+            _host = host;
             init( res );
             _collection = coll;
             _numToReturn = numToReturn;
+            _lazy = lazy;
         }
 
         private void init( SingleResult res ){
             _totalBytes += res._bytes;
             _curResult = res;
-            _cur = res._lst.iterator();
-            _sizes.add( res._lst.size() );
+            _cur = res.iterator();
+            _sizes.add( res.size() );
+
+            if ( res._cursor > 0 && _ref == null )
+                _ref = new CursorRef( this , res._cursor );
+            else if ( res._cursor <= 0 && _ref != null )
+                _forget();
         }
 
         public DBObject next(){
             if ( _cur.hasNext() )
                 return _cur.next();
 
-            if ( ! _curResult.hasGetMore() )
-                throw new RuntimeException( "no more" );
+            if ( _closed || ! _curResult.hasGetMore() )
+                throw new NoSuchElementException( "no more" );
 
             _advance();
             return next();
@@ -463,7 +832,7 @@ public class DBApiLayer extends DB {
             if ( _cur.hasNext() )
                 return true;
 
-            if ( ! _curResult.hasGetMore() )
+            if ( _closed || ! _curResult.hasGetMore() )
                 return false;
 
             _advance();
@@ -475,21 +844,83 @@ public class DBApiLayer extends DB {
             if ( _curResult._cursor <= 0 )
                 throw new RuntimeException( "can't advance a cursor <= 0" );
             
-            DBMessage m = new DBMessage( 2005 );
-            ByteEncoder encoder = m._encoder;
+            if ( _next != null ){
+                _advanceToNext();
+                return;
+            }
 
-            encoder._buf.putInt( 0 ); // reserved
-            encoder._put( _curResult._fullNameSpace );
-            encoder._buf.putInt( _numToReturn ); // num to return
-            encoder._buf.putLong( _curResult._cursor );
-            
+            DBMessage m = _getMoreMessage();
+            ByteDecoder decoder = null;
+
+            try {
+                DBPort.ReplyStream stream = _connector.stream( DBApiLayer.this , m );
+                if ( stream != null ){
+                    _numGetMores++;
+                    init( new SingleResult( _curResult._fullNameSpace , stream , _collection , _lazy ) );
+                }
+                else {
+                    decoder = ByteDecoder.get( DBApiLayer.this , _collection );
+                    _connector.call( DBApiLayer.this , m , decoder );
+                    _numGetMores++;
+
+                    SingleResult res = new SingleResult( _curResult._fullNameSpace , decoder , _lazy );
+                    init( res );
+                }
+            }
+            catch ( MongoException me ){
+                throw new MongoInternalException( "can't do getmore" , me );
+            }
+            finally {
+                if ( decoder != null )
+                    decoder.done();
+                m._encoder.done();
+            }
+
+            _prefetch();
+        }
+
+        /**
+         * from now on, ask for the next batch as soon as we get one, so it's on its way while this one is used.
+         * never more than one batch ahead
+         */
+        void readAhead(){
+            if ( _readAhead )
+                return;
+            _readAhead = true;
+            _prefetch();
+        }
+
+        private void _prefetch(){
+            if ( ! _readAhead || _next != null || ! _curResult.hasGetMore() )
+                return;
+
+            DBMessage m = _getMoreMessage();
             ByteDecoder decoder = ByteDecoder.get( DBApiLayer.this , _collection );
+            try {
+                _next = _connector.callAsync( DBApiLayer.this , m , decoder );
+                _nextMessage = m;
+                _nextDecoder = decoder;
+            }
+            catch ( RuntimeException e ){
+                // _advance will do it the normal way and report the problem
+                decoder.done();
+                m._encoder.done();
+            }
+        }
+
+        private void _advanceToNext(){
+            DBFuture<DBMessage> next = _next;
+            DBMessage m = _nextMessage;
+            ByteDecoder decoder = _nextDecoder;
+            _next = null;
+            _nextMessage = null;
+            _nextDecoder = null;
 
             try {
-                _connector.call( DBApiLayer.this , m , decoder );
+                next.getResult();
                 _numGetMores++;
 
-                SingleResult res = new SingleResult( _curResult._fullNameSpace , decoder);
+                SingleResult res = new SingleResult( _curResult._fullNameSpace , decoder , _lazy );
                 init( res );
             }
             catch ( MongoException me ){
@@ -497,8 +928,22 @@ public class DBApiLayer extends DB {
             }
             finally {
                 decoder.done();
-                encoder.done();
+                m._encoder.done();
             }
+
+            _prefetch();
+        }
+
+        private DBMessage _getMoreMessage(){
+            DBMessage m = new DBMessage( 2005 );
+            ByteEncoder encoder = m._encoder;
+
+            encoder._buf.putInt( 0 ); // reserved
+            encoder._put( _curResult._fullNameSpace );
+            encoder._buf.putInt( _numToReturn ); // num to return
+            encoder._buf.putLong( _curResult._cursor );
+            m._host = _host;
+            return m;
         }
 
         public void remove(){
@@ -509,10 +954,39 @@ public class DBApiLayer extends DB {
             return "DBCursor";
         }
 
-        protected void finalize() throws Throwable {
-            if ( _curResult != null && _curResult._cursor > 0 )
-                _deadCursorIds.add( _curResult._cursor );
-            super.finalize();
+        /**
+         * kills the server cursor now if there is one left.  what's already fetched can still be read
+         */
+        void close(){
+            if ( _closed )
+                return;
+            _closed = true;
+
+            if ( _next != null ){
+                final DBMessage m = _nextMessage;
+                final ByteDecoder decoder = _nextDecoder;
+                _next.addCallback( new DBFuture.Callback<DBMessage>(){
+                        public void done( DBMessage reply , MongoException error ){
+                            decoder.done();
+                            m._encoder.done();
+                        }
+                    } );
+                _next = null;
+                _nextMessage = null;
+                _nextDecoder = null;
+            }
+
+            if ( _ref == null )
+                return;
+            long id = _ref._cursorId;
+            _forget();
+            _killCursors( _host , Collections.singletonList( id ) );
+        }
+
+        private void _forget(){
+            _liveCursors.remove( _ref );
+            _ref.clear();
+            _ref = null;
         }
 
         public long totalBytes(){
@@ -531,15 +1005,97 @@ public class DBApiLayer extends DB {
         Iterator<DBObject> _cur;
         final MyCollection _collection;
         final int _numToReturn;
+        final boolean _lazy;
+        /** where the cursor is, null for the master */
+        final InetSocketAddress _host;
+
+        private boolean _readAhead = false;
+        private boolean _closed = false;
+        private CursorRef _ref;
+        private DBFuture<DBMessage> _next;
+        private DBMessage _nextMessage;
+        private ByteDecoder _nextDecoder;
         
         private long _totalBytes = 0;
         private int _numGetMores = 0;
         private List<Integer> _sizes = new ArrayList<Integer>();
     }  // class Result
 
+    /**
+     * lets the reaper kill a Result's server cursor once the Result is garbage,
+     * without a finalizer.  dropped as soon as the cursor is exhausted or closed
+     */
+    class CursorRef extends WeakReference<Result> {
+        CursorRef( Result r , long cursorId ){
+            super( r , _deadCursors );
+            _cursorId = cursorId;
+            _host = r._host;
+            _liveCursors.add( this );
+        }
+
+        DBApiLayer layer(){
+            return DBApiLayer.this;
+        }
+
+        final long _cursorId;
+        final InetSocketAddress _host;
+    }
+
+    /**
+     * one thread for all dbs, waiting for abandoned cursors and killing them in batches
+     */
+    static class CursorReaper extends Thread {
+        CursorReaper(){
+            super( "DBApiLayer-CursorReaper" );
+            setDaemon( true );
+        }
+
+        public void run(){
+            while ( true ){
+                try {
+                    Map<DBApiLayer,Map<InetSocketAddress,List<Long>>> dead = new HashMap<DBApiLayer,Map<InetSocketAddress,List<Long>>>();
+                    Reference<? extends Result> r = _deadCursors.remove();
+                    while ( r != null ){
+                        if ( _liveCursors.remove( r ) ){
+                            CursorRef ref = (CursorRef)r;
+                            Map<InetSocketAddress,List<Long>> hosts = dead.get( ref.layer() );
+                            if ( hosts == null ){
+                                hosts = new HashMap<InetSocketAddress,List<Long>>();
+                                dead.put( ref.layer() , hosts );
+                            }
+                            List<Long> l = hosts.get( ref._host );
+                            if ( l == null ){
+                                l = new ArrayList<Long>();
+                                hosts.put( ref._host , l );
+                            }
+                            l.add( ref._cursorId );
+                        }
+                        r = _deadCursors.poll();
+                    }
+
+                    for ( Map.Entry<DBApiLayer,Map<InetSocketAddress,List<Long>>> e : dead.entrySet() )
+                        for ( Map.Entry<InetSocketAddress,List<Long>> h : e.getValue().entrySet() )
+                            e.getKey()._killCursors( h.getKey() , h.getValue() );
+                }
+                catch ( InterruptedException ie ){
+                    // keep going
+                }
+                catch ( Throwable t ){
+                    Bytes.LOGGER.log( Level.WARNING , "cursor reaper" , t );
+                }
+            }
+        }
+    }
+
+    static final ReferenceQueue<Result> _deadCursors = new ReferenceQueue<Result>();
+    static final Set<CursorRef> _liveCursors = Collections.synchronizedSet( new HashSet<CursorRef>() );
+    static {
+        new CursorReaper().start();
+    }
+
     final String _root;
     final String _rootPlusDot;
-    final DBConnector _connector;
+    final InternalConnector _connector;
     final Map<String,MyCollection> _collections = Collections.synchronizedMap( new HashMap<String,MyCollection>() );
     final Map<String,DBApiLayer> _sisters = Collections.synchronizedMap( new HashMap<String,DBApiLayer>() );
     List<Long> _deadCursorIds = new Vector<Long>();
@@ -0,0 +1,164 @@
+// DBCache.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.util.*;
+
+/**
+ * documents a collection has found by _id, kept so findOne( id ) doesn't have to go back to the database.
+ * bounded by size, least recently used going first, and by how long an entry may live.
+ * writes through the same DBCollection drop what they touch, but nothing else does,
+ * so this is only for data that other clients change rarely, or where being ttl ms behind is fine.
+ * documents handed out are shared between callers, and shouldn't be modified.
+ */
+public class DBCache {
+
+    DBCache( int maxSize , long ttl ){
+        if ( maxSize <= 0 )
+            throw new IllegalArgumentException( "maxSize has to be positive" );
+        _maxSize = maxSize;
+        _ttl = ttl;
+    }
+
+    /**
+     * @return the cached document, or null if there isn't a live one
+     */
+    synchronized DBObject get( Object id ){
+        CacheEntry e = _map.get( id );
+        if ( e == null ){
+            _misses++;
+            return null;
+        }
+        if ( _ttl > 0 && System.currentTimeMillis() - e._time > _ttl ){
+            _map.remove( id );
+            _expirations++;
+            _misses++;
+            return null;
+        }
+        _hits++;
+        return e._doc;
+    }
+
+    /**
+     * which invalidation a lookup started after, so put() can tell whether a write happened while it was out
+     */
+    synchronized long generation(){
+        return _generation;
+    }
+
+    /**
+     * caches doc, unless something was invalidated since generation was taken,
+     * since then doc may be from before a write that has already dropped it
+     */
+    synchronized void put( Object id , DBObject doc , long generation ){
+        if ( doc == null || generation != _generation )
+            return;
+        _map.put( id , new CacheEntry( doc ) );
+    }
+
+    /**
+     * called after a write that touched only this _id
+     */
+    synchronized void invalidate( Object id ){
+        _generation++;
+        if ( _map.remove( id ) != null )
+            _invalidations++;
+    }
+
+    /**
+     * called after a write whose documents can't be told from its query
+     */
+    public synchronized void clear(){
+        _generation++;
+        _invalidations += _map.size();
+        _map.clear();
+    }
+
+    /** @return how many findOne( id ) calls were answered from the cache */
+    public synchronized long getHits(){
+        return _hits;
+    }
+
+    /** @return how many findOne( id ) calls had to ask the database */
+    public synchronized long getMisses(){
+        return _misses;
+    }
+
+    /** @return how many entries were dropped to make room */
+    public synchronized long getEvictions(){
+        return _evictions;
+    }
+
+    /** @return how many entries were dropped for being older than the ttl */
+    public synchronized long getExpirations(){
+        return _expirations;
+    }
+
+    /** @return how many entries were dropped by writes */
+    public synchronized long getInvalidations(){
+        return _invalidations;
+    }
+
+    public synchronized int size(){
+        return _map.size();
+    }
+
+    public int getMaxSize(){
+        return _maxSize;
+    }
+
+    /** @return how long an entry lives, in ms.  0 means until evicted or invalidated */
+    public long getTTL(){
+        return _ttl;
+    }
+
+    public synchronized String toString(){
+        return "DBCache size:" + _map.size() + "/" + _maxSize + " hits:" + _hits + " misses:" + _misses +
+            " evictions:" + _evictions + " expirations:" + _expirations + " invalidations:" + _invalidations;
+    }
+
+    static class CacheEntry {
+        CacheEntry( DBObject doc ){
+            _doc = doc;
+            _time = System.currentTimeMillis();
+        }
+
+        final DBObject _doc;
+        final long _time;
+    }
+
+    final int _maxSize;
+    final long _ttl;
+
+    private final LinkedHashMap<Object,CacheEntry> _map = new LinkedHashMap<Object,CacheEntry>( 16 , .75f , true ){
+        protected boolean removeEldestEntry( Map.Entry<Object,CacheEntry> eldest ){
+            if ( size() <= _maxSize )
+                return false;
+            _evictions++;
+            return true;
+        }
+    };
+
+    private long _generation = 0;
+    private long _hits = 0;
+    private long _misses = 0;
+    private long _evictions = 0;
+    private long _expirations = 0;
+    private long _invalidations = 0;
+}
@@ -58,6 +58,34 @@ public abstract class DBCollection {
      */
     public abstract void insert(List<DBObject> list) throws MongoException;
 
+    /**
+     * Saves an array of documents without waiting for the database.
+     * Large arrays are split into several messages, which are all sent before this returns.
+     * @param arr array of documents to save
+     * @return a future that completes once every message has been sent,
+     *         with the getlasterror result if the write concern is STRICT
+     * @dochub insert
+     */
+    public abstract DBFuture<DBObject> insertAsync(DBObject[] arr) throws MongoException;
+
+    /**
+     * @see #insertAsync(DBObject[])
+     */
+    public DBFuture<DBObject> insertAsync(DBObject doc) throws MongoException {
+        return insertAsync( new DBObject[]{ doc } );
+    }
+
+    /**
+     * Sets up a bulk load of every object from an iterator, which starts when execute is called on the result.
+     * Batches are encoded on several threads and several are sent at once, so this is much faster than insert for big loads.
+     * @param objects the documents to save, read on the calling thread
+     * @return the load, to configure and run
+     * @dochub insert
+     */
+    public BulkInsert bulkInsert( Iterator<DBObject> objects ){
+        return new BulkInsert( this , objects );
+    }
+
     /**
      * Performs an update operation.
      * @param q search query for old object to update
@@ -69,6 +97,21 @@ public abstract class DBCollection {
      */
     public abstract void update( DBObject q , DBObject o , boolean upsert , boolean multi ) throws MongoException ;
 
+    /**
+     * Performs an update operation without waiting for the database.
+     * @return a future that completes once the update has been sent,
+     *         with the getlasterror result if the write concern is STRICT
+     * @dochub update
+     */
+    public abstract DBFuture<DBObject> updateAsync( DBObject q , DBObject o , boolean upsert , boolean multi ) throws MongoException ;
+
+    /**
+     * @dochub update
+     */
+    public DBFuture<DBObject> updateAsync( DBObject q , DBObject o ) throws MongoException {
+        return updateAsync( q , o , false , false );
+    }
+
     /**
      * @dochub update
      */
@@ -103,7 +146,36 @@ public abstract class DBCollection {
      * @return the objects, if found
      * @dochub find
      */
-    public abstract Iterator<DBObject> find( DBObject ref , DBObject fields , int numToSkip , int batchSize , int options ) throws MongoException ;
+    public Iterator<DBObject> find( DBObject ref , DBObject fields , int numToSkip , int batchSize , int options ) 
+        throws MongoException {
+        return find( ref , fields , numToSkip , batchSize , options , false );
+    }
+
+    /** Finds an object.
+     * @param ref query used to search
+     * @param fields the fields of matching objects to return
+     * @param numToSkip will not return the first <tt>numToSkip</tt> matches
+     * @param batchSize see find
+     * @param options - see Bytes QUERYOPTION_*
+     * @param lazy if true, objects are read only and fields are only decoded when asked for.
+     *             each batch's bytes are kept until all of its objects are gone
+     * @return the objects, if found
+     * @dochub find
+     */
+    public abstract Iterator<DBObject> find( DBObject ref , DBObject fields , int numToSkip , int batchSize , int options , boolean lazy ) throws MongoException ;
+
+    /** Finds objects without waiting for the database.
+     * The future completes with the same iterator find would return, holding the first batch.
+     * Getting later batches from it blocks, so don't iterate past the first batch in a callback.
+     * @param ref query used to search
+     * @param fields the fields of matching objects to return
+     * @param numToSkip will not return the first <tt>numToSkip</tt> matches
+     * @param batchSize see find
+     * @param options - see Bytes QUERYOPTION_*
+     * @return a future for the objects, which completes with null if nothing matched
+     * @dochub find
+     */
+    public abstract DBFuture<Iterator<DBObject>> findAsync( DBObject ref , DBObject fields , int numToSkip , int batchSize , int options ) throws MongoException ;
 
     /** Finds an object.
      * @param ref query used to search
@@ -115,7 +187,7 @@ public abstract class DBCollection {
      */
     public Iterator<DBObject> find( DBObject ref , DBObject fields , int numToSkip , int batchSize ) 
         throws MongoException {
-        return find( ref , fields , numToSkip , batchSize , 0 );
+        return find( ref , fields , numToSkip , batchSize , getOptions() );
     }
 
     protected abstract void createIndex( DBObject keys , DBObject options ) throws MongoException ;
@@ -124,9 +196,10 @@ public abstract class DBCollection {
     // ------
 
     /**
-     * Finds an object by its id.  
-     * This compares the passed in value to the _id field of the document
-     * 
+     * Finds an object by its id.
+     * This compares the passed in value to the _id field of the document.
+     * If {@link #setCache} was called, the cache is looked in first.
+     *
      * @param obj any valid object
      * @return the object, if found, otherwise <code>null</code>
      */
@@ -145,8 +218,86 @@ public abstract class DBCollection {
      * @dochub find
      */
     public final DBObject findOne( Object obj, DBObject fields ) {
-        Iterator<DBObject> iterator = find(new BasicDBObject("_id", obj), fields, 0, -1, 0);
-        return (iterator != null ? iterator.next() : null);
+        final DBCache cache = _cache;
+        if ( cache == null || fields != null ){
+            Iterator<DBObject> iterator = find(new BasicDBObject("_id", obj), fields, 0, -1, getOptions());
+            return (iterator != null ? iterator.next() : null);
+        }
+
+        DBObject found = cache.get( obj );
+        if ( found != null )
+            return found;
+
+        final long generation = cache.generation();
+        Iterator<DBObject> iterator = find( new BasicDBObject( "_id" , obj ) , null , 0 , -1 , getOptions() );
+        if ( iterator == null || ! iterator.hasNext() )
+            return null;
+        found = iterator.next();
+        cache.put( obj , found , generation );
+        return found;
+    }
+
+    /**
+     * Keeps documents found with {@link #findOne(Object)} so asking for the same _id again doesn't go to the database.
+     * Inserts, updates, removes and saves through this collection drop what they change, but writes from
+     * anywhere else aren't seen until the entry expires, so this is meant for data that rarely changes.
+     * Documents returned from the cache are shared, and shouldn't be modified.
+     *
+     * @param maxSize how many documents to keep, least recently used going first.  0 turns the cache off
+     * @param ttl how long a document is kept, in ms.  0 means until it's evicted or written
+     */
+    public void setCache( int maxSize , long ttl ){
+        _cache = maxSize > 0 ? new DBCache( maxSize , ttl ) : null;
+    }
+
+    /**
+     * @return the cache, with its hit and miss counts, or null if {@link #setCache} hasn't turned it on
+     */
+    public DBCache getCache(){
+        return _cache;
+    }
+
+    /**
+     * Gets a loader that finds documents by _id for many threads with one $in query, instead of a round trip each.
+     * Lookups are answered from the cache first, if {@link #setCache} turned it on, and what's found goes into it.
+     *
+     * @param window how long the first thread in a batch waits for others to join, in ms
+     * @param maxBatch the most ids one query asks for.  a full batch goes without waiting out the window
+     * @return a new loader, to be shared by the threads doing lookups
+     */
+    public DBLoader loader( long window , int maxBatch ){
+        return new DBLoader( this , window , maxBatch );
+    }
+
+    /**
+     * called after a write with query q, so the cache doesn't keep what it may have changed
+     */
+    void _invalidate( DBObject q ){
+        final DBCache cache = _cache;
+        if ( cache == null )
+            return;
+        Object id = q == null ? null : q.get( "_id" );
+        if ( id != null && q.keySet().size() == 1 && ! ( id instanceof DBObject ) )
+            cache.invalidate( id );
+        else
+            cache.clear();
+    }
+
+    /**
+     * called after inserting arr.  an insert can't change a document that's there already,
+     * but a failed one shouldn't leave the cache believing the local copy either
+     */
+    void _invalidate( DBObject[] arr ){
+        final DBCache cache = _cache;
+        if ( cache == null )
+            return;
+        for ( DBObject o : arr ){
+            Object id = o.get( "_id" );
+            if ( id == null )
+                cache.clear();
+            else
+                cache.invalidate( id );
+        }
     }
 
     // --- START INDEX CODE ---
@@ -327,12 +478,22 @@ public abstract class DBCollection {
      * @dochub find
      */
     public final DBObject findOne( DBObject o, DBObject fields ) {
-        Iterator<DBObject> i = find( o , fields , 0 , -1 , 0 );
+        Iterator<DBObject> i = find( o , fields , 0 , -1 , getOptions() );
         if ( i == null || ! i.hasNext() )
             return null;
         return i.next();
     }
 
+    /** 
+     * Returns a single object from this collection matching the query, without waiting for the database.
+     * @param o the query object
+     * @return a future for the object found, which completes with <code>null</code> if no such object exists
+     */
+    public final DBFuture<DBObject> findOneAsync( DBObject o )
+        throws MongoException {
+        return findAsync( o , null , 0 , -1 , getOptions() ).then( _first );
+    }
+
     /** Adds the "private" fields _id to an object.
      * @param o <code>DBObject</code> to which to add fields
      * @return the modified parameter object
@@ -418,6 +579,7 @@ public abstract class DBCollection {
      */
     public void drop()
         throws MongoException {
+        _invalidate( (DBObject)null );
         BasicDBObject res = (BasicDBObject)_db.command( BasicDBObjectBuilder.start().add( "drop" , getName() ).get() );
         if ( res.getInt( "ok" , 0 ) != 1 ){
             if ( res.getString( "errmsg" ).equals( "ns not found" ) )
@@ -781,6 +943,33 @@ public abstract class DBCollection {
             return _concern;
         return _db.getWriteConcern();
     }
+
+    /**
+     * Adds a query option, used by every query on this collection unless a cursor says otherwise.
+     * With Bytes.QUERYOPTION_SLAVEOK, queries go to the closest secondary.
+     * See Bytes.QUERYOPTION_* for the list.
+     *
+     * @param option the option to add
+     */
+    public void addOption( int option ){
+        _options |= option;
+    }
+
+    /**
+     * Sets the query options for this collection, replacing any already there.
+     *
+     * @param options the options, or'd together
+     */
+    public void setOptions( int options ){
+        _options = options;
+    }
+
+    /**
+     * Gets the query options for this collection.
+     */
+    public int getOptions(){
+        return _options;
+    }
     
     final DB _db;
 
@@ -789,10 +978,12 @@ public abstract class DBCollection {
 
     protected List<DBObject> _hintFields;
     private DB.WriteConcern _concern = null;
+    private int _options = 0;
 
     protected Class _objectClass = null;
     private Map<String,Class> _internalClass = Collections.synchronizedMap( new HashMap<String,Class>() );
     private ReflectionDBObject.JavaWrapper _wrapper = null;
+    private volatile DBCache _cache = null;
 
     private boolean _anyUpdateSave = false;
 
@@ -801,4 +992,12 @@ public abstract class DBCollection {
 
     private final static DBObject _upsertOptions = BasicDBObjectBuilder.start().add( "upsert" , true ).get();
 
+    private final static DBFuture.Transform<Iterator<DBObject>,DBObject> _first = new DBFuture.Transform<Iterator<DBObject>,DBObject>(){
+        public DBObject apply( Iterator<DBObject> i ){
+            if ( i == null || ! i.hasNext() )
+                return null;
+            return i.next();
+        }
+    };
+
 }
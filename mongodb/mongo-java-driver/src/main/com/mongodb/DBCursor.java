@@ -18,6 +18,7 @@
 
 package com.mongodb;
 
+import java.io.Closeable;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
@@ -49,9 +50,12 @@ import java.util.Collections;
  * List<DBObject> obj = collection.find( query ).skip( 1000 ).limit( 100 ).toArray();
  * </pre></blockquote>
  *
+ * <p>If you stop before the end, call <code>close()</code> so the database can free the cursor right away.
+ * Otherwise it is freed some time after the <code>DBCursor</code> is garbage collected.
+ *
  * @dochub cursors
  */
-public class DBCursor implements Iterator<DBObject> , Iterable<DBObject> {
+public class DBCursor implements Iterator<DBObject> , Iterable<DBObject> , Closeable {
 
     /**
      * Initializes a new database cursor
@@ -63,6 +67,8 @@ public class DBCursor implements Iterator<DBObject> , Iterable<DBObject> {
         _collection = collection;
         _query = q == null ? new BasicDBObject() : q;
         _keysWanted = k;
+        if ( _collection != null )
+            _options = _collection.getOptions();
     }
 
     /** Types of cursors: iterator or array. */
@@ -82,6 +88,8 @@ public class DBCursor implements Iterator<DBObject> , Iterable<DBObject> {
         c._numWanted = _numWanted;
         c._skip = _skip;
         c._options = _options;
+        c._lazy = _lazy;
+        c._readAhead = _readAhead;
         return c;
     }
 
@@ -139,6 +147,35 @@ public class DBCursor implements Iterator<DBObject> , Iterable<DBObject> {
     }
 
 
+    /**
+     * Returns read only objects that decode each field the first time it's asked for,
+     * rather than decoding whole objects up front.
+     * Worth it for wide objects when only a few fields get used.
+     * Ignores the collection's object class.
+     * @return same DBCursor for chaining operations
+     */
+    public DBCursor lazy(){
+        if ( _it != null )
+            throw new IllegalStateException( "can't make lazy after executing the query" );
+
+        _lazy = true;
+        return this;
+    }
+
+    /**
+     * Asks for each batch as soon as the one before it arrives, rather than when it runs out,
+     * so the network and the application work at the same time.
+     * Holds at most one batch more than usual.
+     * @return same DBCursor for chaining operations
+     */
+    public DBCursor readAhead(){
+        if ( _it != null )
+            throw new IllegalStateException( "can't read ahead after executing the query" );
+
+        _readAhead = true;
+        return this;
+    }
+
     /**
      *  Informs the database of an indexed field of the collection in order to improve performance.
      * @param indexName the name of an index
@@ -220,6 +257,15 @@ public class DBCursor implements Iterator<DBObject> , Iterable<DBObject> {
         return this;
     }
 
+    /**
+     * Lets the query go to a secondary, whichever of the closest ones is picked.
+     * The whole cursor then reads from that secondary.
+     * @return same DBCursor for chaining operations
+     */
+    public DBCursor slaveOk(){
+        return addOption( Bytes.QUERYOPTION_SLAVEOK );
+    }
+
     // ----  internal stuff ------
 
     private void _check()
@@ -250,7 +296,9 @@ public class DBCursor implements Iterator<DBObject> , Iterable<DBObject> {
                 else
                     bs = Math.min( bs , _batchSize );
             }
-            _it = _collection.find( foo , _keysWanted , _skip , bs , _options );
+            _it = _collection.find( foo , _keysWanted , _skip , bs , _options , _lazy );
+            if ( _readAhead && _it instanceof DBApiLayer.Result )
+                ((DBApiLayer.Result)_it).readAhead();
         }
 
         if ( _it == null ){
@@ -426,6 +474,15 @@ public class DBCursor implements Iterator<DBObject> , Iterable<DBObject> {
         return _cur;
     }
 
+    /**
+     * Kills the cursor on the database, if it's still open there.
+     * Objects already fetched can still be read, but no more will be.
+     */
+    public void close(){
+        if ( _it instanceof DBApiLayer.Result )
+            ((DBApiLayer.Result)_it).close();
+    }
+
     /**
      * Unimplemented.
      */
@@ -518,6 +575,8 @@ public class DBCursor implements Iterator<DBObject> , Iterable<DBObject> {
     private int _skip = 0;
     private boolean _snapshot = false;
     private int _options = 0;
+    private boolean _lazy = false;
+    private boolean _readAhead = false;
     
     // ----  result info ----
     private Iterator<DBObject> _it = null;
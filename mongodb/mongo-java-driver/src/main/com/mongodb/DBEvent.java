@@ -0,0 +1,109 @@
+// DBEvent.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+/**
+ * one message going to the database, as seen by a DBListener
+ */
+public class DBEvent {
+
+    DBEvent( DBMessage m ){
+        _operation = m._operation;
+        _ns = m.ns();
+        _requestId = m._id;
+        _size = m.size();
+        _start = System.nanoTime();
+    }
+
+    void finish( int numReturned , RuntimeException error ){
+        _nanos = System.nanoTime() - _start;
+        _numReturned = numReturned;
+        _error = error;
+    }
+
+    /**
+     * @return the opcode: 2001 update, 2002 insert, 2004 query, 2005 getmore, 2006 delete, 2007 killcursors
+     */
+    public int getOperation(){
+        return _operation;
+    }
+
+    /**
+     * @return the full name of the collection, or null for a killcursors
+     */
+    public String getNamespace(){
+        return _ns;
+    }
+
+    public int getRequestId(){
+        return _requestId;
+    }
+
+    /**
+     * @return how many bytes the message is
+     */
+    public int getSize(){
+        return _size;
+    }
+
+    /**
+     * @return how long it took, retries included.  0 until finished
+     */
+    public long getNanos(){
+        return _nanos;
+    }
+
+    /**
+     * @return how many documents came back, 0 if there's no reply
+     */
+    public int getNumReturned(){
+        return _numReturned;
+    }
+
+    /**
+     * @return what went wrong, or null
+     */
+    public RuntimeException getError(){
+        return _error;
+    }
+
+    public String toString(){
+        StringBuilder buf = new StringBuilder();
+        buf.append( "op:" ).append( _operation );
+        if ( _ns != null )
+            buf.append( " ns:" ).append( _ns );
+        buf.append( " id:" ).append( _requestId );
+        buf.append( " size:" ).append( _size );
+        buf.append( " took:" ).append( _nanos / 1000000 ).append( "ms" );
+        buf.append( " returned:" ).append( _numReturned );
+        if ( _error != null )
+            buf.append( " error:" ).append( _error );
+        return buf.toString();
+    }
+
+    final int _operation;
+    final String _ns;
+    final int _requestId;
+    final int _size;
+    final long _start;
+
+    private long _nanos = 0;
+    private int _numReturned = 0;
+    private RuntimeException _error;
+}
@@ -0,0 +1,303 @@
+// DBFuture.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * the result of an asynchronous operation.
+ * when the connection is pipelined or non blocking, the future is completed on the driver's i/o thread,
+ * so callbacks and transforms run there too and must not block.
+ * to follow one operation with another use thenAsync, which never blocks
+ * <pre>
+ *   coll.findOneAsync( q ).thenAsync( new DBFuture.Transform&lt;DBObject,DBFuture&lt;DBObject&gt;&gt;(){
+ *       public DBFuture&lt;DBObject&gt; apply( DBObject o ){
+ *           return other.insertAsync( o );
+ *       }
+ *   } );
+ * </pre>
+ */
+public class DBFuture<T> implements Future<T> {
+
+    /**
+     * called once when the future completes.  exactly one of result and error is meaningful
+     */
+    public static interface Callback<T> {
+        public void done( T result , MongoException error );
+    }
+
+    public static interface Transform<T,R> {
+        public R apply( T t );
+    }
+
+    public DBFuture(){
+    }
+
+    /**
+     * @return a future that is already done
+     */
+    public static <T> DBFuture<T> done( T result ){
+        DBFuture<T> f = new DBFuture<T>();
+        f.set( result );
+        return f;
+    }
+
+    /**
+     * @return a future that completes when all of these have, with their results in order.
+     *         fails with the first error
+     */
+    public static <T> DBFuture<List<T>> all( final List<DBFuture<T>> futures ){
+        final DBFuture<List<T>> res = new DBFuture<List<T>>();
+        if ( futures.size() == 0 ){
+            res.set( new ArrayList<T>() );
+            return res;
+        }
+
+        final Object[] results = new Object[ futures.size() ];
+        final int[] left = new int[]{ futures.size() };
+
+        for ( int i=0; i<futures.size(); i++ ){
+            final int idx = i;
+            futures.get( i ).addCallback( new Callback<T>(){
+                    public void done( T result , MongoException error ){
+                        if ( error != null ){
+                            res.fail( error );
+                            return;
+                        }
+                        synchronized ( results ){
+                            results[idx] = result;
+                            if ( --left[0] > 0 )
+                                return;
+                        }
+                        List<T> l = new ArrayList<T>( results.length );
+                        for ( Object o : results )
+                            l.add( (T)o );
+                        res.set( l );
+                    }
+                } );
+        }
+        return res;
+    }
+
+    /**
+     * runs cb when this completes.  if it already has, cb runs now on this thread
+     */
+    public void addCallback( Callback<T> cb ){
+        synchronized ( this ){
+            if ( ! _done ){
+                if ( _callbacks == null )
+                    _callbacks = new LinkedList<Callback<T>>();
+                _callbacks.add( cb );
+                return;
+            }
+        }
+        _run( cb );
+    }
+
+    /**
+     * @return a future for the result of applying t to this one's result.
+     *         errors, including ones thrown by t, are passed through
+     */
+    public <R> DBFuture<R> then( final Transform<T,R> t ){
+        final DBFuture<R> res = new DBFuture<R>();
+        addCallback( new Callback<T>(){
+                public void done( T result , MongoException error ){
+                    if ( error != null ){
+                        res.fail( error );
+                        return;
+                    }
+                    R r;
+                    try {
+                        r = t.apply( result );
+                    }
+                    catch ( RuntimeException e ){
+                        res.fail( e );
+                        return;
+                    }
+                    res.set( r );
+                }
+            } );
+        return res;
+    }
+
+    /**
+     * for chaining one async operation onto another.
+     * @return a future that completes with the future returned by t
+     */
+    public <R> DBFuture<R> thenAsync( final Transform<T,DBFuture<R>> t ){
+        final DBFuture<R> res = new DBFuture<R>();
+        addCallback( new Callback<T>(){
+                public void done( T result , MongoException error ){
+                    if ( error != null ){
+                        res.fail( error );
+                        return;
+                    }
+                    DBFuture<R> next;
+                    try {
+                        next = t.apply( result );
+                    }
+                    catch ( RuntimeException e ){
+                        res.fail( e );
+                        return;
+                    }
+                    if ( next == null ){
+                        res.set( null );
+                        return;
+                    }
+                    next.addCallback( new Callback<R>(){
+                            public void done( R r , MongoException e ){
+                                if ( e != null )
+                                    res.fail( e );
+                                else
+                                    res.set( r );
+                            }
+                        } );
+                }
+            } );
+        return res;
+    }
+
+    /**
+     * operations already on the wire can't be taken back
+     */
+    public boolean cancel( boolean mayInterruptIfRunning ){
+        return false;
+    }
+
+    public boolean isCancelled(){
+        return false;
+    }
+
+    public synchronized boolean isDone(){
+        return _done;
+    }
+
+    public T get()
+        throws InterruptedException , ExecutionException {
+        synchronized ( this ){
+            while ( ! _done )
+                wait();
+        }
+        return _get();
+    }
+
+    public T get( long timeout , TimeUnit unit )
+        throws InterruptedException , ExecutionException , TimeoutException {
+        final long end = System.currentTimeMillis() + unit.toMillis( timeout );
+        synchronized ( this ){
+            while ( ! _done ){
+                long wait = end - System.currentTimeMillis();
+                if ( wait <= 0 )
+                    throw new TimeoutException();
+                wait( wait );
+            }
+        }
+        return _get();
+    }
+
+    /**
+     * waits for the result, throwing the operation's MongoException as is
+     */
+    public T getResult()
+        throws MongoException {
+        boolean interrupted = false;
+        synchronized ( this ){
+            while ( ! _done ){
+                try {
+                    wait();
+                }
+                catch ( InterruptedException ie ){
+                    interrupted = true;
+                }
+            }
+        }
+        if ( interrupted )
+            Thread.currentThread().interrupt();
+        if ( _error != null )
+            throw _error;
+        return _result;
+    }
+
+    private T _get()
+        throws ExecutionException {
+        if ( _error != null )
+            throw new ExecutionException( _error );
+        return _result;
+    }
+
+    /**
+     * @return false if already done
+     */
+    boolean set( T result ){
+        return _finish( result , null );
+    }
+
+    boolean fail( Throwable t ){
+        MongoException e;
+        if ( t instanceof MongoException )
+            e = (MongoException)t;
+        else if ( t instanceof java.io.IOException )
+            e = new MongoException.Network( t.toString() , (java.io.IOException)t );
+        else
+            e = new MongoException( t.toString() , t );
+        return _finish( null , e );
+    }
+
+    private boolean _finish( T result , MongoException error ){
+        List<Callback<T>> todo;
+        synchronized ( this ){
+            if ( _done )
+                return false;
+            _result = result;
+            _error = error;
+            _done = true;
+            notifyAll();
+            todo = _callbacks;
+            _callbacks = null;
+        }
+
+        if ( todo != null )
+            for ( Callback<T> cb : todo )
+                _run( cb );
+        return true;
+    }
+
+    private void _run( Callback<T> cb ){
+        try {
+            cb.done( _result , _error );
+        }
+        catch ( RuntimeException e ){
+            Bytes.LOGGER.log( java.util.logging.Level.WARNING , "DBFuture callback threw" , e );
+        }
+    }
+
+    public String toString(){
+        if ( ! isDone() )
+            return "DBFuture: pending";
+        if ( _error != null )
+            return "DBFuture: error " + _error;
+        return "DBFuture: " + _result;
+    }
+
+    private boolean _done = false;
+    private T _result;
+    private MongoException _error;
+    private List<Callback<T>> _callbacks;
+}
@@ -0,0 +1,38 @@
+// DBListener.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+/**
+ * told about every message a Mongo sends, for tracing and logging.
+ * add one with Mongo.addListener.
+ * both methods are called on the thread doing the operation, or for async ones whichever thread completes it,
+ * so they should be quick.  anything they throw is logged and otherwise ignored
+ */
+public interface DBListener {
+
+    /**
+     * a message is about to be sent.  only what describes the message is filled in
+     */
+    public void started( DBEvent e );
+
+    /**
+     * the message was sent, and its reply has come back if it has one, or it failed
+     */
+    public void finished( DBEvent e );
+}
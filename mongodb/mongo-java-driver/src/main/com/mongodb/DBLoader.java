@@ -0,0 +1,170 @@
+// DBLoader.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * finds documents by _id for many threads at once, with one $in query per batch instead of a round trip each.
+ * the first thread to ask starts a batch and waits up to window ms for others to join it, or until it has maxBatch ids,
+ * then sends the query on its own thread and hands every waiting thread its document.
+ * get one from DBCollection.loader, and share it between the threads doing lookups
+ */
+public class DBLoader {
+
+    DBLoader( DBCollection collection , long window , int maxBatch ){
+        if ( maxBatch <= 0 )
+            throw new IllegalArgumentException( "maxBatch has to be positive" );
+        _collection = collection;
+        _window = window;
+        _maxBatch = maxBatch;
+    }
+
+    /**
+     * finds the document with this _id, along with whatever other threads are asking for.
+     * ids are matched to documents with equals, so ask with the type the database hands back, Integer rather than Long and so on
+     * @return the document, or null if there isn't one
+     */
+    public DBObject load( Object id )
+        throws MongoException {
+        _loads.incrementAndGet();
+
+        final DBCache cache = _collection.getCache();
+        if ( cache != null ){
+            DBObject o = cache.get( id );
+            if ( o != null )
+                return o;
+        }
+
+        Batch b;
+        DBFuture<DBObject> f;
+        boolean lead = false;
+        synchronized ( this ){
+            if ( _batch == null ){
+                _batch = new Batch();
+                lead = true;
+            }
+            b = _batch;
+            f = b.add( id );
+            if ( b._waiting.size() >= _maxBatch ){
+                _batch = null;
+                notifyAll();
+            }
+        }
+
+        if ( lead )
+            _lead( b );
+        return f.getResult();
+    }
+
+    /**
+     * waits for b to fill up or for the window to end, then sends it
+     */
+    private void _lead( Batch b ){
+        boolean interrupted = false;
+        synchronized ( this ){
+            final long end = System.currentTimeMillis() + _window;
+            while ( _batch == b ){
+                long wait = end - System.currentTimeMillis();
+                if ( wait <= 0 ){
+                    _batch = null;
+                    break;
+                }
+                try {
+                    wait( wait );
+                }
+                catch ( InterruptedException ie ){
+                    interrupted = true;
+                }
+            }
+        }
+        if ( interrupted )
+            Thread.currentThread().interrupt();
+        b.run();
+    }
+
+    /** @return how many ids have been asked for */
+    public long getLoads(){
+        return _loads.get();
+    }
+
+    /** @return how many queries were sent for them */
+    public long getQueries(){
+        return _queries.get();
+    }
+
+    public String toString(){
+        return "DBLoader " + _collection.getFullName() + " loads:" + _loads + " queries:" + _queries;
+    }
+
+    /**
+     * the ids one query will ask for, and who's waiting for each
+     */
+    class Batch {
+
+        DBFuture<DBObject> add( Object id ){
+            DBFuture<DBObject> f = _waiting.get( id );
+            if ( f == null ){
+                f = new DBFuture<DBObject>();
+                _waiting.put( id , f );
+            }
+            return f;
+        }
+
+        void run(){
+            _queries.incrementAndGet();
+
+            final DBCache cache = _collection.getCache();
+            final long generation = cache == null ? 0 : cache.generation();
+            try {
+                DBObject q = QueryBuilder.start( "_id" ).in( new ArrayList<Object>( _waiting.keySet() ) ).get();
+                Iterator<DBObject> i = _collection.find( q , null , 0 , 0 , _collection.getOptions() );
+
+                Map<Object,DBObject> found = new HashMap<Object,DBObject>();
+                while ( i != null && i.hasNext() ){
+                    DBObject o = i.next();
+                    found.put( o.get( "_id" ) , o );
+                }
+
+                for ( Map.Entry<Object,DBFuture<DBObject>> e : _waiting.entrySet() ){
+                    DBObject o = found.get( e.getKey() );
+                    if ( cache != null )
+                        cache.put( e.getKey() , o , generation );
+                    e.getValue().set( o );
+                }
+            }
+            catch ( RuntimeException e ){
+                for ( DBFuture<DBObject> f : _waiting.values() )
+                    f.fail( e );
+            }
+        }
+
+        final Map<Object,DBFuture<DBObject>> _waiting = new LinkedHashMap<Object,DBFuture<DBObject>>();
+    }
+
+    final DBCollection _collection;
+    final long _window;
+    final int _maxBatch;
+
+    private Batch _batch;
+
+    private final AtomicLong _loads = new AtomicLong();
+    private final AtomicLong _queries = new AtomicLong();
+}
@@ -18,6 +18,7 @@
 
 package com.mongodb;
 
+import java.net.*;
 import java.nio.*;
 import java.util.concurrent.atomic.*;
 
@@ -81,6 +82,15 @@ public class DBMessage {
     }
 
     ByteBuffer prepare(){
+        if ( _state == State.BUILDING ){
+            // the encoder may have swapped in a bigger buffer while the body was written
+            _buf = _encoder._buf;
+        }
+        if ( _state == State.SENDING ){
+            // being sent again after a retry
+            _buf.position( 0 );
+            return _buf;
+        }
         if ( _state != State.BUILDING )
             throw new IllegalStateException();
         if ( _buf.position() <= HEADER_LENGTH )
@@ -103,6 +113,61 @@ public class DBMessage {
     }
 
 
+    /**
+     * @return true if this is a query that's ok to send to a slave
+     */
+    boolean slaveOk(){
+        return _operation == 2004 && _encoder != null &&
+            ( _encoder._buf.getInt( HEADER_LENGTH ) & Bytes.QUERYOPTION_SLAVEOK ) != 0;
+    }
+
+    /**
+     * @return the namespace an insert, update, delete, query or getmore is for, null for anything else
+     */
+    String ns(){
+        switch ( _operation ){
+        case 2001: case 2002: case 2004: case 2005: case 2006:
+            break;
+        default:
+            return null;
+        }
+
+        final ByteBuffer buf = _encoder == null ? _buf : _encoder._buf;
+        final int start = HEADER_LENGTH + 4;
+        int end = start;
+        while ( buf.get( end ) != 0 )
+            end++;
+
+        byte[] b = new byte[ end - start ];
+        for ( int i=0; i<b.length; i++ )
+            b[i] = buf.get( start + i );
+        try {
+            return new String( b , "UTF-8" );
+        }
+        catch ( java.io.UnsupportedEncodingException uee ){
+            throw new MongoInternalException( "impossible" , uee );
+        }
+    }
+
+    /**
+     * @return how many cursors a killcursors is for, 0 for anything else
+     */
+    int numCursors(){
+        if ( _operation != 2007 )
+            return 0;
+        final ByteBuffer buf = _encoder == null ? _buf : _encoder._buf;
+        return buf.getInt( HEADER_LENGTH + 4 );
+    }
+
+    /**
+     * @return the length on the wire, so far if it's still being built
+     */
+    int size(){
+        if ( _state == State.BUILDING )
+            return _encoder._buf.position();
+        return _len;
+    }
+
     public String toString(){
         return "DBMessage len: " + _len + " id: " + _id +
             " responseTo: " + _responseTo + " operation: "  + _operation;
@@ -116,5 +181,11 @@ public class DBMessage {
     final int _operation;
 
     final ByteEncoder _encoder;
-    final ByteBuffer _buf;
+    private ByteBuffer _buf;
+
+    /** 
+     * where to send this, if not to the master.
+     * the connector fills it in when it sends a slaveOk query to a secondary
+     */
+    InetSocketAddress _host;
 }
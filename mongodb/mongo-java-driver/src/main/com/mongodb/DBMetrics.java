@@ -0,0 +1,379 @@
+// DBMetrics.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.lang.management.*;
+import java.lang.ref.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+import javax.management.*;
+
+import com.mongodb.util.*;
+
+/**
+ * counters for everything one Mongo sends, per host and per collection.
+ * only kept when MongoOptions.metrics is on, and then recording an operation is a handful of atomic adds.
+ * snapshot() has all of it, and the same is registered over JMX as com.mongodb:type=DBMetrics
+ */
+public class DBMetrics implements DBMetricsMBean {
+
+    static final String[] OP_NAMES = { "update" , "insert" , "query" , "getmore" , "delete" , "killcursors" , "other" };
+
+    /** upper bounds of the latency histogram's buckets, in ms.  there's one more for everything slower */
+    static final long[] BUCKETS = { 1 , 2 , 5 , 10 , 20 , 50 , 100 , 200 , 500 , 1000 , 2000 , 5000 };
+
+    static int _opIndex( int op ){
+        switch ( op ){
+        case 2001: return 0;
+        case 2002: return 1;
+        case 2004: return 2;
+        case 2005: return 3;
+        case 2006: return 4;
+        case 2007: return 5;
+        default: return 6;
+        }
+    }
+
+    static int _bucket( long nanos ){
+        final long ms = nanos / 1000000;
+        for ( int i=0; i<BUCKETS.length; i++ )
+            if ( ms < BUCKETS[i] )
+                return i;
+        return BUCKETS.length;
+    }
+
+    /**
+     * what's needed about some messages, taken just before they're written, until their reply comes back
+     */
+    static class Sent {
+        Sent( DBMessage[] msgs ){
+            _start = System.nanoTime();
+            _op = msgs[0]._operation;
+            _ns = msgs[0].ns();
+            _killed = msgs[0].numCursors();
+            int out = 0;
+            for ( int i=0; i<msgs.length; i++ )
+                out += msgs[i].size();
+            _bytesOut = out;
+        }
+
+        final long _start;
+        final int _op;
+        final String _ns;
+        final int _killed;
+        final int _bytesOut;
+    }
+
+    /**
+     * the counters for one host or one collection
+     */
+    static class Counters {
+
+        void record( Sent s , long nanos , int bytesIn , long cursor ){
+            final int op = _opIndex( s._op );
+            _ops.incrementAndGet( op );
+            _nanos.addAndGet( op , nanos );
+            _histogram.incrementAndGet( ( op * ( BUCKETS.length + 1 ) ) + _bucket( nanos ) );
+            _bytesOut.addAndGet( s._bytesOut );
+            if ( bytesIn > 0 )
+                _bytesIn.addAndGet( bytesIn );
+            if ( s._op == 2004 && cursor != 0 )
+                _cursorsOpened.incrementAndGet();
+            if ( s._killed > 0 )
+                _cursorsKilled.addAndGet( s._killed );
+        }
+
+        long ops(){
+            long n = 0;
+            for ( int i=0; i<_ops.length(); i++ )
+                n += _ops.get( i );
+            return n;
+        }
+
+        DBObject toDBObject(){
+            BasicDBObject ops = new BasicDBObject();
+            for ( int i=0; i<OP_NAMES.length; i++ ){
+                final long n = _ops.get( i );
+                if ( n == 0 )
+                    continue;
+
+                BasicDBObject histogram = new BasicDBObject();
+                for ( int b=0; b<=BUCKETS.length; b++ ){
+                    final long c = _histogram.get( ( i * ( BUCKETS.length + 1 ) ) + b );
+                    if ( c > 0 )
+                        histogram.put( b < BUCKETS.length ? "<" + BUCKETS[b] + "ms" : ">=" + BUCKETS[ BUCKETS.length - 1 ] + "ms" , c );
+                }
+
+                ops.put( OP_NAMES[i] , BasicDBObjectBuilder.start()
+                         .add( "count" , n )
+                         .add( "totalMs" , _nanos.get( i ) / 1000000 )
+                         .add( "histogram" , histogram )
+                         .get() );
+            }
+
+            DBObject o = BasicDBObjectBuilder.start()
+                .add( "ops" , ops )
+                .add( "bytesIn" , _bytesIn.get() )
+                .add( "bytesOut" , _bytesOut.get() )
+                .add( "cursorsOpened" , _cursorsOpened.get() )
+                .add( "cursorsKilled" , _cursorsKilled.get() )
+                .get();
+            if ( _poolGets.get() > 0 || _poolTimeouts.get() > 0 ){
+                o.put( "poolGets" , _poolGets.get() );
+                o.put( "poolWaitMs" , _poolWaitNanos.get() / 1000000 );
+                o.put( "poolTimeouts" , _poolTimeouts.get() );
+            }
+            return o;
+        }
+
+        final AtomicLongArray _ops = new AtomicLongArray( OP_NAMES.length );
+        final AtomicLongArray _nanos = new AtomicLongArray( OP_NAMES.length );
+        final AtomicLongArray _histogram = new AtomicLongArray( OP_NAMES.length * ( BUCKETS.length + 1 ) );
+        final AtomicLong _bytesIn = new AtomicLong();
+        final AtomicLong _bytesOut = new AtomicLong();
+        final AtomicLong _cursorsOpened = new AtomicLong();
+        final AtomicLong _cursorsKilled = new AtomicLong();
+
+        // only for hosts
+        final AtomicLong _poolGets = new AtomicLong();
+        final AtomicLong _poolWaitNanos = new AtomicLong();
+        final AtomicLong _poolTimeouts = new AtomicLong();
+    }
+
+    // ---- recording
+
+    /**
+     * @param s from when the messages were written
+     * @param bytesIn length of the reply, 0 if there isn't one
+     * @param cursor the cursor id in the reply, 0 if none
+     */
+    void record( InetSocketAddress host , Sent s , int bytesIn , long cursor ){
+        final long nanos = System.nanoTime() - s._start;
+        host( host ).record( s , nanos , bytesIn , cursor );
+        if ( s._ns != null )
+            collection( s._ns ).record( s , nanos , bytesIn , cursor );
+    }
+
+    /**
+     * @param nanos how long it took to get a connection from the pool, or to give up
+     * @param timedOut if there was no connection to be had
+     */
+    void poolWait( InetSocketAddress host , long nanos , boolean timedOut ){
+        Counters c = host( host );
+        c._poolGets.incrementAndGet();
+        c._poolWaitNanos.addAndGet( nanos );
+        if ( timedOut )
+            c._poolTimeouts.incrementAndGet();
+    }
+
+    void addPool( DBPortPool pool ){
+        synchronized ( _pools ){
+            _pools.add( new WeakReference<DBPortPool>( pool ) );
+        }
+    }
+
+    Counters host( InetSocketAddress addr ){
+        return _get( _hosts , addr );
+    }
+
+    Counters collection( String ns ){
+        return _get( _collections , ns );
+    }
+
+    private static <K> Counters _get( ConcurrentMap<K,Counters> m , K key ){
+        Counters c = m.get( key );
+        if ( c != null )
+            return c;
+        c = new Counters();
+        Counters old = m.putIfAbsent( key , c );
+        return old == null ? c : old;
+    }
+
+    // ---- reading
+
+    /**
+     * @return everything recorded so far, as
+     *   { hosts : { host:port : counters } , collections : { ns : counters } , encoders : {...} , decoders : {...} }.
+     *   hosts also have their pool's current size
+     */
+    public DBObject snapshot(){
+        BasicDBObject hosts = new BasicDBObject();
+        for ( Map.Entry<InetSocketAddress,Counters> e : _hosts.entrySet() )
+            hosts.put( _name( e.getKey() ) , e.getValue().toDBObject() );
+
+        synchronized ( _pools ){
+            for ( Iterator<WeakReference<DBPortPool>> i = _pools.iterator(); i.hasNext(); ){
+                DBPortPool p = i.next().get();
+                if ( p == null ){
+                    i.remove();
+                    continue;
+                }
+                String key = _name( p._addr );
+                DBObject h = (DBObject)hosts.get( key );
+                if ( h == null ){
+                    h = new BasicDBObject();
+                    hosts.put( key , h );
+                }
+                h.put( "pool" , BasicDBObjectBuilder.start()
+                       .add( "total" , p.total() )
+                       .add( "inUse" , p.inUse() )
+                       .add( "idle" , p.idle() )
+                       .add( "waiting" , p.waiting() )
+                       .add( "everCreated" , p.everCreated() )
+                       .get() );
+            }
+        }
+
+        BasicDBObject collections = new BasicDBObject();
+        for ( Map.Entry<String,Counters> e : new TreeMap<String,Counters>( _collections ).entrySet() )
+            collections.put( e.getKey() , e.getValue().toDBObject() );
+
+        return BasicDBObjectBuilder.start()
+            .add( "hosts" , hosts )
+            .add( "collections" , collections )
+            .add( "encoders" , _pool( ByteEncoder._pool ) )
+            .add( "decoders" , _pool( ByteDecoder._pool ) )
+            .get();
+    }
+
+    private static String _name( InetSocketAddress addr ){
+        return addr.getHostName() + ":" + addr.getPort();
+    }
+
+    private static DBObject _pool( SimplePool p ){
+        return BasicDBObjectBuilder.start()
+            .add( "total" , p.total() )
+            .add( "inUse" , p.inUse() )
+            .add( "exhausted" , p.exhausted() )
+            .get();
+    }
+
+    public long getOperations(){
+        long n = 0;
+        for ( Counters c : _hosts.values() )
+            n += c.ops();
+        return n;
+    }
+
+    public long getBytesIn(){
+        long n = 0;
+        for ( Counters c : _hosts.values() )
+            n += c._bytesIn.get();
+        return n;
+    }
+
+    public long getBytesOut(){
+        long n = 0;
+        for ( Counters c : _hosts.values() )
+            n += c._bytesOut.get();
+        return n;
+    }
+
+    public long getCursorsOpened(){
+        long n = 0;
+        for ( Counters c : _hosts.values() )
+            n += c._cursorsOpened.get();
+        return n;
+    }
+
+    public long getCursorsKilled(){
+        long n = 0;
+        for ( Counters c : _hosts.values() )
+            n += c._cursorsKilled.get();
+        return n;
+    }
+
+    public long getPoolWaitTime(){
+        long n = 0;
+        for ( Counters c : _hosts.values() )
+            n += c._poolWaitNanos.get();
+        return n / 1000000;
+    }
+
+    public long getPoolTimeouts(){
+        long n = 0;
+        for ( Counters c : _hosts.values() )
+            n += c._poolTimeouts.get();
+        return n;
+    }
+
+    public int getEncoderPoolExhausted(){
+        return ByteEncoder._pool.exhausted();
+    }
+
+    public int getDecoderPoolExhausted(){
+        return ByteDecoder._pool.exhausted();
+    }
+
+    public String getSnapshot(){
+        return JSON.serialize( snapshot() );
+    }
+
+    // ---- jmx
+
+    /**
+     * registers this with the platform MBean server, which holds on to it until unregister().
+     * failing to is logged, not thrown
+     * @param name what the Mongo is connected to
+     */
+    void register( String name ){
+        try {
+            ObjectName on = new ObjectName( "com.mongodb:type=DBMetrics,name=" + ObjectName.quote( name ) + ",id=" + ID.incrementAndGet() );
+            ManagementFactory.getPlatformMBeanServer().registerMBean( this , on );
+            _objectName = on;
+        }
+        catch ( Exception e ){
+            Bytes.LOGGER.log( Level.WARNING , "can't register metrics for " + name , e );
+        }
+    }
+
+    /**
+     * takes this back off the MBean server, so it can be collected.  called by Mongo.close()
+     */
+    void unregister(){
+        ObjectName on = _objectName;
+        if ( on == null )
+            return;
+        _objectName = null;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean( on );
+        }
+        catch ( Exception e ){
+            Bytes.LOGGER.log( Level.WARNING , "can't unregister metrics " + on , e );
+        }
+    }
+
+    /**
+     * @return the name this is registered under over JMX, or null if it isn't
+     */
+    public ObjectName getObjectName(){
+        return _objectName;
+    }
+
+    static final AtomicInteger ID = new AtomicInteger();
+
+    private final ConcurrentMap<InetSocketAddress,Counters> _hosts = new ConcurrentHashMap<InetSocketAddress,Counters>();
+    private final ConcurrentMap<String,Counters> _collections = new ConcurrentHashMap<String,Counters>();
+    private final List<WeakReference<DBPortPool>> _pools = new ArrayList<WeakReference<DBPortPool>>();
+    private volatile ObjectName _objectName;
+}
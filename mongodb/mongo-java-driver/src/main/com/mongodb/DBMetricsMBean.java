@@ -0,0 +1,43 @@
+// DBMetricsMBean.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+/**
+ * what DBMetrics shows over JMX.  the totals are summed over every host,
+ * and Snapshot has the per host and per collection breakdown as JSON
+ */
+public interface DBMetricsMBean {
+
+    public long getOperations();
+    public long getBytesIn();
+    public long getBytesOut();
+
+    public long getCursorsOpened();
+    public long getCursorsKilled();
+
+    /** total time spent waiting for a connection, in ms */
+    public long getPoolWaitTime();
+    /** how many times there was no connection to be had */
+    public long getPoolTimeouts();
+
+    public int getEncoderPoolExhausted();
+    public int getDecoderPoolExhausted();
+
+    public String getSnapshot();
+}
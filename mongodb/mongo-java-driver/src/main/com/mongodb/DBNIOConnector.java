@@ -0,0 +1,761 @@
+// DBNIOConnector.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * connector that does all socket i/o from a few selector threads instead of the calling threads.
+ * callers still block for their reply, but nothing is parked in a socket read,
+ * so thousands of calls can be outstanding over connectionsPerHost sockets.
+ * host selection and failover are the same as DBTCPConnector.
+ * turned on with MongoOptions.nonBlocking
+ */
+class DBNIOConnector extends DBTCPConnector {
+
+    static Logger _nioLogger = Logger.getLogger( _logger.getName() + ".nio" );
+
+    public DBNIOConnector( Mongo m , ServerAddress addr )
+        throws MongoException {
+        super( m , addr );
+        _loops = _startLoops( m._options );
+    }
+
+    public DBNIOConnector( Mongo m , List<ServerAddress> all )
+        throws MongoException {
+        super( m , all );
+        _loops = _startLoops( m._options );
+    }
+
+    private static Loop[] _startLoops( MongoOptions options ){
+        Loop[] loops = new Loop[ Math.max( 1 , options.ioThreads ) ];
+        for ( int i=0; i<loops.length; i++ )
+            loops[i] = new Loop( i );
+        return loops;
+    }
+
+    /**
+     * every thread always uses the same connection to a host, so its operations stay ordered.
+     * that makes every thread implicitly in a request, so these are no-ops
+     */
+    public void requestStart(){
+    }
+
+    public void requestDone(){
+    }
+
+    public void requestEnsureConnection(){
+    }
+
+    /**
+     * connections are opened by the selector threads, not taken from a pool
+     */
+    void _warmUp(){
+    }
+
+    public void say( DB db , DBMessage m , DB.WriteConcern concern )
+        throws MongoException {
+        say( db , Collections.singletonList( m ).iterator() , concern );
+    }
+
+    public DBObject say( DB db , Iterator<DBMessage> msgs , DB.WriteConcern concern )
+        throws MongoException {
+        Conn conn = _conn();
+        conn.checkAuth( db );
+
+        DBObject e = null;
+        try {
+            while ( msgs.hasNext() ){
+                DBMessage m = msgs.next();
+                if ( concern == DB.WriteConcern.STRICT && ! msgs.hasNext() ){
+                    e = _sayAndCheck( db , conn , m );
+                }
+                else {
+                    Out out = conn.send( m , null );
+                    out.awaitWritten( conn , _mongo._options.socketTimeout );
+                }
+            }
+        }
+        catch ( IOException ioe ){
+            _error( ioe );
+            if ( concern == DB.WriteConcern.NONE )
+                return null;
+            throw new MongoException.Network( "can't say something" , ioe );
+        }
+
+        if ( e != null )
+            _throwIfError( e );
+        return e;
+    }
+
+    /**
+     * queues m and a getlasterror behind it, so the loop writes them together, and waits for the one reply
+     */
+    private DBObject _sayAndCheck( DB db , Conn conn , DBMessage m )
+        throws IOException {
+        DBMessage q = _lastErrorQuery();
+        ByteDecoder decoder = ByteDecoder.get( db , null );
+        try {
+            DBPort.PendingReply reply = new DBPort.PendingReply( q._id , decoder );
+            conn.send( m , null );
+            conn.send( q , reply );
+            try {
+                reply.await( _mongo._options.socketTimeout );
+            }
+            finally {
+                conn._pending.remove( q._id );
+            }
+            return _lastError( decoder );
+        }
+        finally {
+            decoder.done();
+            q._encoder.done();
+        }
+    }
+
+    public DBMessage call( DB db , DBMessage m , ByteDecoder decoder , int retries )
+        throws MongoException {
+        Conn conn = _conn();
+        conn.checkAuth( db );
+
+        try {
+            if ( decoder._buf.position() != 0 )
+                throw new IllegalArgumentException();
+
+            DBPort.PendingReply reply = new DBPort.PendingReply( m._id , decoder );
+            conn.send( m , reply );
+            DBMessage res;
+            try {
+                res = reply.await( _mongo._options.socketTimeout );
+            }
+            finally {
+                conn._pending.remove( m._id );
+            }
+
+            // the decoder may have grown, so don't hang on to its old buffer
+            String err = _getError( decoder._buf );
+            if ( err != null && "not master".equals( err ) ){
+                _pickCurrent();
+                if ( retries <= 0 )
+                    throw new MongoException( "not talking to master and retries used up" );
+                decoder._buf.position( 0 );
+                return call( db , m , decoder , retries - 1 );
+            }
+
+            return res;
+        }
+        catch ( IOException ioe ){
+            if ( _error( ioe ) && retries > 0 ){
+                decoder._buf.position( 0 );
+                return call( db , m , decoder , retries - 1 );
+            }
+            throw new MongoException.Network( "can't call something" , ioe );
+        }
+    }
+
+    /**
+     * replies are read by the connection's loop thread, so there's nothing to stream
+     */
+    public DBPort.ReplyStream stream( DB db , DBMessage m ){
+        return null;
+    }
+
+    /**
+     * the reply is read and the future completed on the connection's loop thread
+     */
+    public DBFuture<DBMessage> callAsync( DB db , DBMessage m , ByteDecoder decoder )
+        throws MongoException {
+        Conn conn = _conn();
+        conn.checkAuth( db );
+
+        DBFuture<DBMessage> raw = new DBFuture<DBMessage>();
+        try {
+            conn.send( m , new DBPort.PendingReply( m._id , decoder , raw ) );
+        }
+        catch ( IOException ioe ){
+            _error( ioe );
+            raw.fail( new MongoException.Network( "can't call something" , ioe ) );
+        }
+        return _checkReply( raw , decoder , null );
+    }
+
+    public DBFuture<DBObject> sayAsync( DB db , DBMessage m , DB.WriteConcern concern )
+        throws MongoException {
+        Conn conn = _conn();
+        conn.checkAuth( db );
+
+        final DBFuture<DBObject> written = new DBFuture<DBObject>();
+        try {
+            if ( concern != DB.WriteConcern.STRICT ){
+                conn.send( m , null , written );
+                if ( concern != DB.WriteConcern.NONE )
+                    return written;
+                
+                // errors are ignored, but the caller still has to know when the buffer is free
+                final DBFuture<DBObject> res = new DBFuture<DBObject>();
+                written.addCallback( new DBFuture.Callback<DBObject>(){
+                        public void done( DBObject o , MongoException error ){
+                            res.set( null );
+                        }
+                    } );
+                return res;
+            }
+            
+            // same connection, so getlasterror is answered after the write
+            conn.send( m , null );
+            DBMessage q = _lastErrorQuery();
+            ByteDecoder decoder = ByteDecoder.get( db , null );
+            DBFuture<DBMessage> raw = new DBFuture<DBMessage>();
+            try {
+                conn.send( q , new DBPort.PendingReply( q._id , decoder , raw ) );
+            }
+            catch ( IOException ioe ){
+                raw.fail( ioe );
+            }
+            return _lastErrorReply( raw , q , decoder );
+        }
+        catch ( IOException ioe ){
+            _error( ioe );
+            if ( concern == DB.WriteConcern.NONE )
+                return DBFuture.done( null );
+            written.fail( new MongoException.Network( "can't say something" , ioe ) );
+            return written;
+        }
+    }
+
+    private Conn _conn(){
+        InetSocketAddress addr = getAddress().getSocketAddress();
+        Conn[] all = _conns.get( addr );
+        if ( all == null ){
+            synchronized ( _conns ){
+                all = _conns.get( addr );
+                if ( all == null ){
+                    all = new Conn[ Math.max( 1 , _mongo._options.connectionsPerHost ) ];
+                    for ( int i=0; i<all.length; i++ )
+                        all[i] = new Conn( addr , _loops[ i % _loops.length ] );
+                    _conns.put( addr , all );
+                }
+            }
+        }
+        return all[ (int)( Thread.currentThread().getId() % all.length ) ];
+    }
+
+    void close(){
+        super.close();
+        for ( Loop l : _loops )
+            l.shutdown();
+    }
+
+    public String debugString(){
+        return "NIO " + super.debugString();
+    }
+
+    /**
+     * a message waiting to be written, and optionally the caller waiting for its reply
+     */
+    static class Out {
+        Out( ByteBuffer buf , DBPort.PendingReply reply , DBFuture<DBObject> onWritten ){
+            _buf = buf;
+            _reply = reply;
+            _onWritten = onWritten;
+        }
+
+        void written(){
+            synchronized ( this ){
+                _written = true;
+                notifyAll();
+            }
+            if ( _onWritten != null )
+                _onWritten.set( null );
+        }
+
+        void failed( IOException ioe ){
+            synchronized ( this ){
+                _error = ioe;
+                notifyAll();
+            }
+            if ( _reply != null )
+                _reply.failed( ioe );
+            if ( _onWritten != null )
+                _onWritten.fail( new MongoException.Network( "can't say something" , ioe ) );
+        }
+
+        /**
+         * the buffer belongs to the caller's encoder, so we can't give it back until the loop has either
+         * written it or failed it.  past timeout ms the loop is told to close conn, which fails this.
+         * an interrupt doesn't stop the wait, but is still set when this returns
+         * @param timeout 0 for none
+         */
+        void awaitWritten( Conn conn , long timeout )
+            throws IOException {
+            boolean interrupted = false;
+            try {
+                synchronized ( this ){
+                    long end = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+                    while ( ! _written && _error == null ){
+                        long wait = 0;
+                        if ( end > 0 ){
+                            wait = end - System.currentTimeMillis();
+                            if ( wait <= 0 ){
+                                conn._loop.close( conn , new SocketTimeoutException( "write to " + conn._addr + " timed out" ) );
+                                end = 0;
+                                continue;
+                            }
+                        }
+                        try {
+                            wait( wait );
+                        }
+                        catch ( InterruptedException ie ){
+                            interrupted = true;
+                        }
+                    }
+                }
+            }
+            finally {
+                if ( interrupted )
+                    Thread.currentThread().interrupt();
+            }
+            if ( _error != null )
+                throw _error;
+        }
+
+        final ByteBuffer _buf;
+        final DBPort.PendingReply _reply;
+        final DBFuture<DBObject> _onWritten;
+        private boolean _written = false;
+        private IOException _error;
+    }
+
+    /**
+     * one non-blocking socket.  all reads, writes and closes happen on its Loop's thread.
+     * callers only ever see errors the loop has already handled, or their own timeouts
+     */
+    class Conn {
+
+        Conn( InetSocketAddress addr , Loop loop ){
+            _addr = addr;
+            _loop = loop;
+            _header.order( Bytes.ORDER );
+        }
+
+        Out send( DBMessage m , DBPort.PendingReply reply )
+            throws IOException {
+            return send( m , reply , null );
+        }
+
+        /**
+         * @param onWritten if not null, completed on the loop thread once all of m is on the wire
+         */
+        Out send( DBMessage m , DBPort.PendingReply reply , DBFuture<DBObject> onWritten )
+            throws IOException {
+            Out out;
+            // under the lock close takes, so a close either comes first and this reconnects,
+            // or comes after and fails out.  out can't be left queued on a conn with no channel
+            synchronized ( this ){
+                _ensureOpen();
+                out = new Out( m.prepare() , reply , onWritten );
+                if ( reply != null )
+                    _pending.put( m._id , reply );
+                _outQueue.add( out );
+            }
+            _loop.wantWrite( this );
+            if ( _loop._done ) // it stopped after we checked, and may never have seen this
+                close( new IOException( "connector is closed" ) );
+            return out;
+        }
+
+        private synchronized void _ensureOpen()
+            throws IOException {
+            if ( _loop._done )
+                throw new IOException( "connector is closed" );
+            if ( _channel != null )
+                return;
+
+            SocketChannel c = SocketChannel.open();
+            try {
+                c.socket().connect( _addr , _mongo._options.connectTimeout );
+                c.socket().setTcpNoDelay( ! DBPort.USE_NAGLE );
+                c.configureBlocking( false );
+            }
+            catch ( IOException ioe ){
+                try {
+                    c.close();
+                }
+                catch ( IOException e ){
+                    // don't care
+                }
+                throw new IOException( "couldn't connect to [" + _addr + "] bc:" + ioe );
+            }
+            _channel = c;
+            _loop.register( this );
+        }
+
+        /**
+         * called on the loop thread when the socket can take more bytes
+         * @return true if everything queued has been written
+         */
+        boolean doWrite()
+            throws IOException {
+            while ( true ){
+                Out out = _outQueue.peek();
+                if ( out == null )
+                    return true;
+                _channel.write( out._buf );
+                if ( out._buf.remaining() > 0 )
+                    return false;
+                _outQueue.poll();
+                out.written();
+            }
+        }
+
+        /**
+         * called on the loop thread when there are bytes to read.
+         * reads as much as is there, finishing replies as they complete
+         */
+        void doRead()
+            throws IOException {
+            while ( true ){
+
+                if ( _skip > 0 ){
+                    _scratch.clear();
+                    if ( _skip < _scratch.capacity() )
+                        _scratch.limit( _skip );
+                    int x = _channel.read( _scratch );
+                    if ( x < 0 )
+                        throw new IOException( "connection to server closed unexpectedly" );
+                    if ( x == 0 )
+                        return;
+                    _skip -= x;
+                    continue;
+                }
+
+                if ( _body == null ){
+                    int x = _channel.read( _header );
+                    if ( x < 0 )
+                        throw new IOException( "connection to server closed unexpectedly" );
+                    if ( _header.remaining() > 0 )
+                        return;
+
+                    final int len = _header.getInt( 0 );
+                    final int responseTo = _header.getInt( 8 );
+                    if ( len <= DBMessage.HEADER_LENGTH )
+                        throw new IOException( "db sent invalid length: " + len );
+
+                    DBPort.PendingReply p = _pending.remove( responseTo );
+                    if ( p == null || ! p.claim() ){
+                        _header.clear();
+                        _skip = len - DBMessage.HEADER_LENGTH;
+                        continue;
+                    }
+
+                    if ( ! p._decoder._ensureCapacity( len ) ){
+                        _header.clear();
+                        _skip = len - DBMessage.HEADER_LENGTH;
+                        p.failed( new IOException( "db message size is too big (" + len + ") " +
+                                                   "max is (" + ByteDecoder.MAX_BUFFER_SIZE + ")" ) );
+                        continue;
+                    }
+                    ByteBuffer response = p._decoder._buf;
+
+                    response.limit( len );
+                    _header.flip();
+                    response.put( _header );
+                    _header.clear();
+                    _body = response;
+                    _bodyFor = p;
+                }
+
+                int x = _channel.read( _body );
+                if ( x < 0 )
+                    throw new IOException( "connection to server closed unexpectedly" );
+                if ( _body.remaining() > 0 )
+                    return;
+
+                _body.flip();
+                DBPort.PendingReply p = _bodyFor;
+                DBMessage m = new DBMessage( _body );
+                _body = null;
+                _bodyFor = null;
+                p.done( m );
+            }
+        }
+
+        /**
+         * fails everything outstanding on this socket.  the next send reconnects.
+         * only called on the loop thread, or once the loop has stopped
+         */
+        void close( IOException ioe ){
+            List<Out> outs = new ArrayList<Out>();
+            List<DBPort.PendingReply> all;
+            synchronized ( this ){
+                if ( _channel == null && _outQueue.isEmpty() && _pending.isEmpty() )
+                    return;
+                if ( _channel != null ){
+                    try {
+                        _channel.close();
+                    }
+                    catch ( IOException e ){
+                        // don't care
+                    }
+                    _channel = null;
+                    _nioLogger.log( Level.INFO , "closing connection to " + _addr , ioe );
+                }
+
+                // taken with the channel, so nothing sent after can be caught up in this
+                Out out;
+                while ( ( out = _outQueue.poll() ) != null )
+                    outs.add( out );
+                all = new ArrayList<DBPort.PendingReply>( _pending.values() );
+                _pending.clear();
+            }
+
+            // failed outside the lock, since they call back into whoever was waiting
+            for ( Out out : outs )
+                out.failed( ioe );
+            for ( DBPort.PendingReply p : all )
+                p.failed( ioe );
+
+            if ( _bodyFor != null )
+                _bodyFor.failed( ioe );
+            _body = null;
+            _bodyFor = null;
+            _skip = 0;
+            _header.clear();
+        }
+
+        void checkAuth( DB db ){
+            if ( db._username == null )
+                return;
+            if ( _authed.containsKey( db ) )
+                return;
+
+            synchronized ( _authed ){
+                if ( _authed.containsKey( db ) )
+                    return;
+                if ( _inauth )
+                    return;
+
+                _inauth = true;
+                try {
+                    if ( db.reauth() ){
+                        _authed.put( db , true );
+                        return;
+                    }
+                }
+                finally {
+                    _inauth = false;
+                }
+            }
+
+            throw new MongoInternalException( "can't reauth!" );
+        }
+
+        final InetSocketAddress _addr;
+        final Loop _loop;
+        final Queue<Out> _outQueue = new ConcurrentLinkedQueue<Out>();
+        final Map<Integer,DBPort.PendingReply> _pending = new ConcurrentHashMap<Integer,DBPort.PendingReply>();
+
+        volatile SocketChannel _channel;
+        volatile IOException _closeWith;
+
+        // only touched by the loop thread
+        private final ByteBuffer _header = ByteBuffer.allocate( DBMessage.HEADER_LENGTH );
+        private final ByteBuffer _scratch = ByteBuffer.allocate( 8192 );
+        private ByteBuffer _body;
+        private DBPort.PendingReply _bodyFor;
+        private int _skip = 0;
+
+        private boolean _inauth = false;
+        private final Map<DB,Boolean> _authed = Collections.synchronizedMap( new WeakHashMap<DB,Boolean>() );
+    }
+
+    /**
+     * a selector and the thread that runs it
+     */
+    static class Loop extends Thread {
+
+        Loop( int num ){
+            super( "DBNIOConnector-Loop-" + num );
+            setDaemon( true );
+            try {
+                _selector = Selector.open();
+            }
+            catch ( IOException ioe ){
+                throw new MongoInternalException( "can't open selector" , ioe );
+            }
+            start();
+        }
+
+        void register( Conn c ){
+            _toRegister.add( c );
+            _selector.wakeup();
+        }
+
+        void wantWrite( Conn c ){
+            _toWrite.add( c );
+            _selector.wakeup();
+        }
+
+        /**
+         * has the loop close c, from any thread
+         */
+        void close( Conn c , IOException ioe ){
+            c._closeWith = ioe;
+            _toClose.add( c );
+            _selector.wakeup();
+            if ( _done )
+                c.close( ioe );
+        }
+
+        /**
+         * fails everything on this loop's connections and stops the thread
+         */
+        void shutdown(){
+            _closing = true;
+            _selector.wakeup();
+        }
+
+        public void run(){
+            while ( ! _closing ){
+                try {
+                    _selector.select();
+                    _setup();
+
+                    Iterator<SelectionKey> i = _selector.selectedKeys().iterator();
+                    while ( i.hasNext() ){
+                        SelectionKey key = i.next();
+                        i.remove();
+                        _handle( key );
+                    }
+                }
+                catch ( Exception e ){
+                    _nioLogger.log( Level.SEVERE , "error in selector loop" , e );
+                }
+            }
+            _closeAll();
+        }
+
+        /**
+         * _done goes up first, so a send that queues after this has looked fails its own conn
+         */
+        private void _closeAll(){
+            _done = true;
+            IOException ioe = new IOException( "connector is closed" );
+            for ( SelectionKey key : new ArrayList<SelectionKey>( _selector.keys() ) )
+                ((Conn)key.attachment()).close( ioe );
+            Conn c;
+            while ( ( c = _toRegister.poll() ) != null )
+                c.close( ioe );
+            while ( ( c = _toWrite.poll() ) != null )
+                c.close( ioe );
+            while ( ( c = _toClose.poll() ) != null )
+                c.close( ioe );
+            try {
+                _selector.close();
+            }
+            catch ( IOException e ){
+                // don't care
+            }
+        }
+
+        private void _setup(){
+            Conn c;
+            while ( ( c = _toClose.poll() ) != null )
+                c.close( c._closeWith );
+
+            while ( ( c = _toRegister.poll() ) != null ){
+                SocketChannel channel = c._channel;
+                if ( channel == null )
+                    continue;
+                try {
+                    channel.register( _selector , SelectionKey.OP_READ , c );
+                }
+                catch ( ClosedChannelException cce ){
+                    c.close( cce );
+                }
+            }
+
+            while ( ( c = _toWrite.poll() ) != null ){
+                SocketChannel channel = c._channel;
+                if ( channel == null ){
+                    // send won't queue on a conn without one, but if anything is there it mustn't sit forever
+                    if ( ! c._outQueue.isEmpty() )
+                        c.close( new IOException( "connection to " + c._addr + " was closed" ) );
+                    continue;
+                }
+                SelectionKey key = channel.keyFor( _selector );
+                if ( key == null ){
+                    // not registered yet, try again next time round
+                    _toWrite.add( c );
+                    _selector.wakeup();
+                    break;
+                }
+                try {
+                    if ( c.doWrite() ){
+                        key.interestOps( SelectionKey.OP_READ );
+                    }
+                    else {
+                        key.interestOps( SelectionKey.OP_READ | SelectionKey.OP_WRITE );
+                    }
+                }
+                catch ( IOException ioe ){
+                    c.close( ioe );
+                }
+                catch ( CancelledKeyException cke ){
+                    c.close( new IOException( "connection closed" ) );
+                }
+            }
+        }
+
+        private void _handle( SelectionKey key ){
+            Conn c = (Conn)key.attachment();
+            try {
+                if ( key.isReadable() )
+                    c.doRead();
+                if ( key.isValid() && key.isWritable() ){
+                    if ( c.doWrite() )
+                        key.interestOps( SelectionKey.OP_READ );
+                }
+            }
+            catch ( IOException ioe ){
+                key.cancel();
+                c.close( ioe );
+            }
+            catch ( CancelledKeyException cke ){
+                c.close( new IOException( "connection closed" ) );
+            }
+        }
+
+        final Selector _selector;
+        final Queue<Conn> _toRegister = new ConcurrentLinkedQueue<Conn>();
+        final Queue<Conn> _toWrite = new ConcurrentLinkedQueue<Conn>();
+        final Queue<Conn> _toClose = new ConcurrentLinkedQueue<Conn>();
+        private volatile boolean _closing = false;
+        volatile boolean _done = false;
+    }
+
+    final Loop[] _loops;
+    final Map<InetSocketAddress,Conn[]> _conns = new ConcurrentHashMap<InetSocketAddress,Conn[]>();
+}
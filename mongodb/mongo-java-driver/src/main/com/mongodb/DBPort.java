@@ -33,6 +33,7 @@ public class DBPort {
     static final boolean USE_NAGLE = false;
     
     static final long CONN_RETRY_TIME_MS = 15000;
+    static final int STREAM_BUFFER_SIZE = 1024 * 16;
 
     public DBPort( InetSocketAddress addr )
         throws IOException {
@@ -46,6 +47,7 @@ public class DBPort {
         _pool = pool;
 
         _hashCode = _addr.hashCode();
+        _compressor = options.compression ? new Compressor( options.compressionThreshold , options.compressionLevel ) : null;
 
         _logger = Logger.getLogger( _rootLogger.getName() + "." + addr.toString() );
     }
@@ -55,31 +57,92 @@ public class DBPort {
      */
     DBMessage call( DBMessage msg , ByteDecoder decoder )
         throws IOException {
+        if ( _options.pipelined )
+            return pipe( msg , decoder );
         return go( msg , decoder );
     }
     
     void say( DBMessage msg )
         throws IOException {
-        go( msg , null );
+        if ( _options.pipelined )
+            pipe( new DBMessage[]{ msg } , null );
+        else
+            go( new DBMessage[]{ msg } , null );
     }
 
-    private synchronized DBMessage go( DBMessage msg , ByteDecoder decoder )
+    /**
+     * sends write and query in one go, then waits for query's reply.
+     * for getlasterror, so checking a write costs one round trip
+     */
+    DBMessage sayAndCall( DBMessage write , DBMessage query , ByteDecoder decoder )
+        throws IOException {
+        DBMessage[] msgs = new DBMessage[]{ write , query };
+        if ( _options.pipelined )
+            return pipe( msgs , decoder );
+        return go( msgs , decoder );
+    }
+
+    private DBMessage go( DBMessage msg , ByteDecoder decoder )
+        throws IOException {
+        return go( new DBMessage[]{ msg } , decoder );
+    }
+
+    /**
+     * sends a query or getmore and returns once the reply's header is in,
+     * leaving the documents on the socket to be read one at a time.
+     * only for ports that aren't pipelined
+     */
+    synchronized ReplyStream stream( DBMessage msg )
         throws IOException {
+        if ( _options.pipelined )
+            throw new IllegalStateException( "can't stream from a pipelined port" );
         
+        _finishStream();
+
         if ( _sock == null )
             _open();
         
-        {
-            ByteBuffer out = msg.prepare();
-            while ( out.remaining() > 0 )
-                _sock.write( out );
-        }            
+        final DBMessage[] msgs = new DBMessage[]{ msg };
+        final DBMetrics metrics = _metrics();
+        final DBMetrics.Sent sent = metrics == null ? null : new DBMetrics.Sent( msgs );
+
+        _write( msgs );
         
         if ( _pool != null )
             _pool._everWorked = true;
 
-        if ( decoder == null )
+        ReplyStream s = new ReplyStream();
+        if ( metrics != null )
+            metrics.record( _addr , sent , s._bytes + DBMessage.HEADER_LENGTH + 20 , s._header._cursor );
+        if ( s.more() )
+            _stream = s;
+        return s;
+    }
+
+    /**
+     * writes msgs with one gathering write, then reads the reply to the last one if there's a decoder
+     */
+    private synchronized DBMessage go( DBMessage[] msgs , ByteDecoder decoder )
+        throws IOException {
+        
+        _finishStream();
+
+        if ( _sock == null )
+            _open();
+        
+        final DBMetrics metrics = _metrics();
+        final DBMetrics.Sent sent = metrics == null ? null : new DBMetrics.Sent( msgs );
+
+        _write( msgs );
+        
+        if ( _pool != null )
+            _pool._everWorked = true;
+
+        if ( decoder == null ){
+            if ( metrics != null )
+                metrics.record( _addr , sent , 0 , 0 );
             return null;
+        }
 
         ByteBuffer response = decoder._buf;
         
@@ -94,21 +157,204 @@ public class DBPort {
         if ( len <= DBMessage.HEADER_LENGTH )
             throw new IllegalArgumentException( "db sent invalid length: " + len );
 
-        if ( len > response.capacity() )
-            throw new IllegalArgumentException( "db message size is too big (" + len + ") " +
-                                                "max is (" + response.capacity() + ")" );
+        final int wireLen = len;
+        if ( _compressor != null && Compressor.isCompressed( response ) ){
+            len = _readCompressed( decoder , read );
+            response = decoder._buf;
+        }
+        else {
+            if ( ! decoder._ensureCapacity( len ) )
+                throw new IllegalArgumentException( "db message size is too big (" + len + ") " +
+                                                    "max is (" + ByteDecoder.MAX_BUFFER_SIZE + ")" );
+            response = decoder._buf;
         
-        response.limit( len );
-        while ( read < len )
-            read += _read( response );
+            response.limit( len );
+            while ( read < len )
+                read += _read( response );
         
-        if ( read != len )
-            throw new RuntimeException( "something is wrong" );
+            if ( read != len )
+                throw new RuntimeException( "something is wrong" );
+        }
+
+        if ( metrics != null )
+            metrics.record( _addr , sent , wireLen , _cursorId( response , len ) );
 
         response.flip();
         return new DBMessage( response );
     }
 
+    /**
+     * pipelined version of go.
+     * any number of threads can be in here at once.  writes are serialized on _writeLock,
+     * and the reader thread matches replies to callers by _responseTo
+     */
+    private DBMessage pipe( DBMessage msg , ByteDecoder decoder )
+        throws IOException {
+        return pipe( new DBMessage[]{ msg } , decoder );
+    }
+
+    private DBMessage pipe( DBMessage[] msgs , ByteDecoder decoder )
+        throws IOException {
+        
+        final int id = msgs[ msgs.length - 1 ]._id;
+        PendingReply pending = null;
+        if ( decoder != null )
+            pending = new PendingReply( id , decoder );
+
+        _pipeWrite( msgs , pending );
+        
+        if ( pending == null )
+            return null;
+
+        try {
+            return pending.await( _options.socketTimeout );
+        }
+        catch ( IOException ioe ){
+            _pending.remove( id );
+            throw ioe;
+        }
+    }
+
+    /**
+     * writes msg and returns without waiting for the reply.
+     * the reader thread completes future, so anything chained onto it runs there.
+     * only for pipelined ports
+     */
+    void pipeAsync( DBMessage msg , ByteDecoder decoder , DBFuture<DBMessage> future )
+        throws IOException {
+        if ( ! _options.pipelined )
+            throw new IllegalStateException( "pipeAsync needs a pipelined port" );
+        _pipeWrite( new DBMessage[]{ msg } , new PendingReply( msg._id , decoder , future ) );
+    }
+
+    /**
+     * pipeAsync for a write followed by its getlasterror, sent together
+     */
+    void pipeAsync( DBMessage write , DBMessage query , ByteDecoder decoder , DBFuture<DBMessage> future )
+        throws IOException {
+        if ( ! _options.pipelined )
+            throw new IllegalStateException( "pipeAsync needs a pipelined port" );
+        _pipeWrite( new DBMessage[]{ write , query } , new PendingReply( query._id , decoder , future ) );
+    }
+
+    /**
+     * @param pending for the reply to the last of msgs, or null
+     */
+    private void _pipeWrite( DBMessage[] msgs , PendingReply pending )
+        throws IOException {
+        
+        if ( pending != null && pending._decoder._buf.position() != 0 )
+            throw new IllegalArgumentException();
+
+        final DBMetrics metrics = _metrics();
+        final DBMetrics.Sent sent = metrics == null ? null : new DBMetrics.Sent( msgs );
+        if ( pending != null )
+            pending._sent = sent;
+
+        synchronized ( _writeLock ){
+            ensureOpen();
+            final SocketChannel sock = _sock;
+            
+            if ( pending != null ){
+                pending._sock = sock;
+                _pending.put( pending._id , pending );
+            }
+            
+            try {
+                _write( msgs );
+            }
+            catch ( IOException ioe ){
+                if ( pending != null )
+                    _pending.remove( pending._id );
+                _closePipe( sock , ioe );
+                throw ioe;
+            }
+        }
+        
+        if ( _pool != null )
+            _pool._everWorked = true;
+
+        if ( metrics != null && pending == null )
+            metrics.record( _addr , sent , 0 , 0 );
+    }
+
+    /**
+     * reads the rest of a compressed reply whose first read bytes are in decoder, and inflates it into decoder
+     * @return the length of the reply uncompressed
+     */
+    private int _readCompressed( ByteDecoder decoder , int read )
+        throws IOException {
+        ByteBuffer response = decoder._buf;
+        final int wireLen = response.getInt( 0 );
+        Compressor.checkLength( wireLen );
+        if ( read > wireLen )
+            throw new IOException( "db sent more than one reply" );
+
+        byte[] msg = new byte[ wireLen ];
+        System.arraycopy( response.array() , response.arrayOffset() , msg , 0 , read );
+        while ( read < wireLen ){
+            int x = _in.read( msg , read , wireLen - read );
+            if ( x < 0 )
+                throw new IOException( "connection to server closed unexpectedly" );
+            read += x;
+        }
+
+        final int len = Compressor.uncompressedLength( msg );
+        if ( ! decoder._ensureCapacity( len ) )
+            throw new IllegalArgumentException( "db message size is too big (" + len + ") " +
+                                                "max is (" + ByteDecoder.MAX_BUFFER_SIZE + ")" );
+        response = decoder._buf;
+        response.limit( len );
+        _compressor.inflate( msg , response );
+        return len;
+    }
+
+    private DBMetrics _metrics(){
+        return _pool == null ? null : _pool._metrics;
+    }
+
+    /**
+     * @return the cursor id in a reply of len bytes
+     */
+    private static long _cursorId( ByteBuffer reply , int len ){
+        if ( len < DBMessage.HEADER_LENGTH + 12 )
+            return 0;
+        return reply.getLong( DBMessage.HEADER_LENGTH + 4 );
+    }
+
+    private void _write( DBMessage[] msgs )
+        throws IOException {
+        if ( msgs.length == 1 ){
+            ByteBuffer out = msgs[0].prepare();
+            if ( _compressor != null )
+                out = _compressor.compress( out );
+            while ( out.remaining() > 0 )
+                _sock.write( out );
+            return;
+        }
+
+        ByteBuffer[] out = new ByteBuffer[ msgs.length ];
+        for ( int i=0; i<msgs.length; i++ ){
+            out[i] = msgs[i].prepare();
+            if ( _compressor != null )
+                out[i] = _compressor.compress( out[i] );
+        }
+        while ( out[ out.length - 1 ].remaining() > 0 )
+            _sock.write( out );
+    }
+
+    /**
+     * if a stream's reply is still on the socket, moves the rest of it into the stream
+     * so the socket is free for the next message
+     */
+    private void _finishStream()
+        throws IOException {
+        ReplyStream s = _stream;
+        _stream = null;
+        if ( s != null )
+            s._drain();
+    }
+
     public synchronized void ensureOpen()
         throws IOException {
         
@@ -134,8 +380,16 @@ public class DBPort {
                 _socket.connect( _addr , _options.connectTimeout );
                 
                 _socket.setTcpNoDelay( ! USE_NAGLE );
-                _socket.setSoTimeout( _options.socketTimeout );
                 _in = _socket.getInputStream();
+                
+                if ( _options.pipelined ){
+                    // the reader thread is always waiting, so timeouts are per reply
+                    _reader = new Reader( _sock , _in );
+                    _reader.start();
+                }
+                else {
+                    _socket.setSoTimeout( _options.socketTimeout );
+                }
                 return;
             }
             catch ( IOException ioe ){
@@ -191,27 +445,558 @@ public class DBPort {
 
     }
 
+    /**
+     * @return false once the socket is closed, until the port is used again
+     */
+    synchronized boolean isOpen(){
+        return _sock != null;
+    }
+
+    /**
+     * @return true if a streamed reply still has documents on the socket.
+     *         doesn't take the port's lock, which a reader holds while it waits on the socket
+     */
+    boolean isStreaming(){
+        return _stream != null;
+    }
+
+    /**
+     * closes the socket.  the port can still be used, and will reconnect
+     */
+    void close(){
+        if ( ! _options.pipelined ){
+            synchronized ( this ){
+                _closeSocket();
+            }
+            return;
+        }
+
+        SocketChannel sock;
+        synchronized ( this ){
+            sock = _sock;
+        }
+        if ( sock != null )
+            _closePipe( sock , new IOException( "connection to " + _addr + " was closed" ) );
+    }
+
+    /**
+     * drops the socket after a failed read, so the next call reconnects
+     */
+    private void _closeSocket(){
+        if ( _sock != null ){
+            try {
+                _sock.close();
+            }
+            catch ( Exception e ){
+                // don't care
+            }
+        }
+        _in = null;
+        _socket = null;
+        _sock = null;
+        _stream = null;
+        if ( _compressor != null )
+            _compressor.end();
+        // a new socket hasn't been authenticated
+        _authed.clear();
+    }
+
+    /**
+     * fails everyone waiting on a reply sent down sock, and drops sock if it's still the port's,
+     * so the next call reconnects.  replies already waiting on a socket opened since are left alone
+     */
+    private void _closePipe( SocketChannel sock , IOException ioe ){
+        List<PendingReply> failed = new ArrayList<PendingReply>();
+        synchronized ( _writeLock ){
+            synchronized ( this ){
+                if ( _sock == sock ){
+                    _closeSocket();
+                    _reader = null;
+                }
+            }
+
+            for ( Iterator<PendingReply> i = _pending.values().iterator(); i.hasNext(); ){
+                PendingReply p = i.next();
+                if ( p._sock == sock ){
+                    i.remove();
+                    failed.add( p );
+                }
+            }
+        }
+
+        for ( PendingReply p : failed )
+            p.failed( ioe );
+    }
+    
+    /**
+     * number of requests written to this port that are still waiting for a reply
+     */
+    int numPending(){
+        return _pending.size();
+    }
+
+    /**
+     * a caller waiting for the reply to message _id
+     * the reader thread fills the caller's decoder directly
+     */
+    static class PendingReply {
+        
+        PendingReply( int id , ByteDecoder decoder ){
+            this( id , decoder , null );
+        }
+
+        /**
+         * @param future if not null, is completed with the reply by whichever thread reads it
+         */
+        PendingReply( int id , ByteDecoder decoder , DBFuture<DBMessage> future ){
+            _id = id;
+            _decoder = decoder;
+            _future = future;
+        }
+
+        /**
+         * called by the reader thread before it touches the decoder
+         * @return false if the caller already gave up
+         */
+        synchronized boolean claim(){
+            if ( _abandoned )
+                return false;
+            _claimed = true;
+            return true;
+        }
+
+        void done( DBMessage m ){
+            synchronized ( this ){
+                _reply = m;
+                _finished = true;
+                notifyAll();
+            }
+            if ( _future != null )
+                _future.set( m );
+        }
+
+        void failed( IOException ioe ){
+            synchronized ( this ){
+                if ( _finished )
+                    return;
+                _error = ioe;
+                _finished = true;
+                notifyAll();
+            }
+            if ( _future != null )
+                _future.fail( ioe );
+        }
+
+        synchronized DBMessage await( long timeout )
+            throws IOException {
+
+            final long end = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+            
+            while ( ! _finished ){
+                long wait = 0;
+                if ( end > 0 && ! _claimed ){
+                    wait = end - System.currentTimeMillis();
+                    if ( wait <= 0 ){
+                        _abandoned = true;
+                        throw new SocketTimeoutException( "no reply for request " + _id + " after " + timeout + "ms" );
+                    }
+                }
+                
+                try {
+                    wait( wait );
+                }
+                catch ( InterruptedException ie ){
+                    if ( ! _claimed ){
+                        _abandoned = true;
+                        throw new InterruptedIOException( "interrupted waiting for reply to " + _id );
+                    }
+                }
+            }
+
+            if ( _error != null )
+                throw _error;
+            return _reply;
+        }
+
+        final int _id;
+        final ByteDecoder _decoder;
+        final DBFuture<DBMessage> _future;
+        /** set before it's sent, if the port's pool is keeping metrics */
+        DBMetrics.Sent _sent;
+        /** the socket it was sent down, set under _writeLock */
+        SocketChannel _sock;
+
+        private boolean _claimed = false;
+        private boolean _abandoned = false;
+        private boolean _finished = false;
+        private DBMessage _reply;
+        private IOException _error;
+    }
+
+    /**
+     * a reply whose documents are read off the socket as they're asked for,
+     * so the first one can be used before the last one has arrived,
+     * and the reply never has to fit in one buffer.
+     * the port goes back to the pool as soon as the header is read.
+     * if anything else is sent down it before the reply is all read,
+     * whatever is left is read into the stream first
+     */
+    class ReplyStream {
+        
+        ReplyStream()
+            throws IOException {
+            _buf = ByteBuffer.wrap( new byte[ STREAM_BUFFER_SIZE ] );
+            _buf.order( Bytes.ORDER );
+            _sockIn = _in;
+            _myIn = _compressor == null ? _in : _compressor.replyStream( _in );
+            // a compressed reply has all been read off the socket to inflate it
+            _onWire = ! ( _myIn instanceof ByteArrayInputStream );
+
+            final int headers = DBMessage.HEADER_LENGTH + 20;
+            _onSocket = headers;
+            _fill( headers );
+
+            final int len = _buf.getInt( 0 );
+            if ( len < headers )
+                throw new IOException( "db sent invalid length: " + len );
+
+            _header = new DBApiLayer.QueryHeader( _buf , DBMessage.HEADER_LENGTH );
+            _bytes = len - headers;
+            _onSocket = _bytes;
+            _pos = headers;
+            _docsLeft = _header._num;
+        }
+
+        /**
+         * @return true if there are documents that haven't been read
+         */
+        boolean more(){
+            return _docsLeft > 0;
+        }
+
+        /**
+         * reads the next document without moving past it
+         * @return _buf with its position at the start of the document and its limit at the end,
+         *         good until the next call.  null if there are no more
+         */
+        ByteBuffer peek()
+            throws IOException {
+            synchronized ( DBPort.this ){
+                if ( _error != null )
+                    throw _error;
+                if ( _docsLeft <= 0 )
+                    return null;
+
+                try {
+                    _fill( 4 );
+                    _buf.clear(); // the last document's limit
+                    final int len = _buf.getInt( _pos );
+                    if ( len < 5 || len > _available() + _onSocket )
+                        throw new IOException( "invalid document length in reply: " + len );
+                    _fill( len );
+
+                    _buf.limit( _pos + len );
+                    _buf.position( _pos );
+                    return _buf;
+                }
+                catch ( IOException ioe ){
+                    _failed( ioe );
+                    throw ioe;
+                }
+            }
+        }
+
+        /**
+         * reads the next document and moves past it
+         * @see #peek
+         */
+        ByteBuffer next()
+            throws IOException {
+            synchronized ( DBPort.this ){
+                ByteBuffer doc = peek();
+                if ( doc == null )
+                    return null;
+
+                _pos = doc.limit();
+                _docsLeft--;
+
+                if ( _docsLeft == 0 && _stream == this ){
+                    // anything after the last document is junk, but it's still on the socket
+                    _stream = null;
+                    try {
+                        _drain();
+                    }
+                    catch ( IOException ioe ){
+                        _failed( ioe );
+                    }
+                }
+                return doc;
+            }
+        }
+
+        /**
+         * reads whatever is still on the socket into _buf
+         */
+        void _drain()
+            throws IOException {
+            try {
+                _fill( _available() + _onSocket );
+            }
+            catch ( IOException ioe ){
+                _failed( ioe );
+                throw ioe;
+            }
+        }
+
+        private int _available(){
+            return _filled - _pos;
+        }
+
+        /**
+         * makes sure at least need bytes from _pos on are in _buf, reading from the socket if they aren't
+         */
+        private void _fill( int need )
+            throws IOException {
+            if ( _available() >= need )
+                return;
+            
+            if ( _buf.capacity() - _pos < need ){
+                byte[] dest = _buf.array();
+                if ( dest.length < need ){
+                    int size = dest.length;
+                    while ( size < need )
+                        size *= 2;
+                    dest = new byte[ size ];
+                }
+                System.arraycopy( _buf.array() , _pos , dest , 0 , _available() );
+                _filled = _available();
+                _pos = 0;
+                if ( dest != _buf.array() ){
+                    _buf = ByteBuffer.wrap( dest );
+                    _buf.order( Bytes.ORDER );
+                }
+            }
+
+            final byte[] b = _buf.array();
+            while ( _available() < need ){
+                if ( _onSocket <= 0 )
+                    throw new IOException( "reply ended early" );
+                int x = _myIn.read( b , _filled , Math.min( b.length - _filled , _onSocket ) );
+                if ( x < 0 )
+                    throw new IOException( "connection to server closed unexpectedly" );
+                _filled += x;
+                _onSocket -= x;
+            }
+        }
+
+        private void _failed( IOException ioe ){
+            _error = ioe;
+            _docsLeft = 0;
+            if ( _onSocket > 0 && _onWire && _sockIn == _in )
+                _closeSocket();
+        }
+
+        final DBApiLayer.QueryHeader _header;
+        /** size of the reply after the headers */
+        final int _bytes;
+
+        private final InputStream _sockIn;
+        private final InputStream _myIn;
+        private final boolean _onWire;
+        private ByteBuffer _buf;
+        private int _pos;
+        private int _filled = 0;
+        private int _onSocket;
+        private int _docsLeft;
+        private IOException _error;
+    }
+
+    /**
+     * reads every reply off a pipelined socket and hands it to whoever asked for it
+     */
+    class Reader extends Thread {
+        
+        Reader( SocketChannel sock , InputStream in ){
+            super( "DBPort-Reader-" + _addr );
+            setDaemon( true );
+            _mySock = sock;
+            _myIn = in;
+        }
+        
+        public void run(){
+            final ByteBuffer header = ByteBuffer.allocate( DBMessage.HEADER_LENGTH );
+            header.order( Bytes.ORDER );
+            
+            // taken out of _pending but not done yet, so nothing else would fail it
+            PendingReply inFlight = null;
+            try {
+                while ( true ){
+                    header.clear();
+                    _readFully( header , DBMessage.HEADER_LENGTH );
+
+                    final int len = header.getInt( 0 );
+                    final int responseTo = header.getInt( 8 );
+                    if ( len <= DBMessage.HEADER_LENGTH )
+                        throw new IOException( "db sent invalid length: " + len );
+
+                    PendingReply p = _pending.remove( responseTo );
+                    if ( p == null || ! p.claim() ){
+                        _skip( len - DBMessage.HEADER_LENGTH );
+                        continue;
+                    }
+                    inFlight = p;
+
+                    if ( _compressor != null && Compressor.isCompressed( header ) ){
+                        _inflate( p , header.array() , len );
+                        inFlight = null;
+                        continue;
+                    }
+                    
+                    if ( ! p._decoder._ensureCapacity( len ) ){
+                        _skip( len - DBMessage.HEADER_LENGTH );
+                        p.failed( new IOException( "db message size is too big (" + len + ") " +
+                                                   "max is (" + ByteDecoder.MAX_BUFFER_SIZE + ")" ) );
+                        inFlight = null;
+                        continue;
+                    }
+                    ByteBuffer response = p._decoder._buf;
+                    
+                    response.limit( len );
+                    header.flip();
+                    response.put( header );
+                    _readFully( response , len );
+                    if ( p._sent != null )
+                        _pool._metrics.record( _addr , p._sent , len , _cursorId( response , len ) );
+                    response.flip();
+                    inFlight = null;
+                    p.done( new DBMessage( response ) );
+                }
+            }
+            catch ( Throwable t ){
+                IOException ioe;
+                if ( t instanceof IOException ){
+                    ioe = (IOException)t;
+                }
+                else {
+                    ioe = new IOException( "pipelined reader for " + _addr + " failed: " + t );
+                    ioe.initCause( t );
+                }
+
+                if ( _sock == _mySock )
+                    _logger.log( Level.INFO , "pipelined reader for " + _addr + " died" , t );
+                if ( inFlight != null )
+                    inFlight.failed( ioe );
+                _closePipe( _mySock , ioe );
+            }
+        }
+
+        /**
+         * reads the rest of a compressed reply and hands it to p uncompressed
+         */
+        private void _inflate( PendingReply p , byte[] header , int len )
+            throws IOException {
+            byte[] msg = Compressor.readRest( header , _myIn );
+            final int full = Compressor.uncompressedLength( msg );
+            if ( ! p._decoder._ensureCapacity( full ) ){
+                p.failed( new IOException( "db message size is too big (" + full + ") " +
+                                           "max is (" + ByteDecoder.MAX_BUFFER_SIZE + ")" ) );
+                return;
+            }
+            ByteBuffer response = p._decoder._buf;
+            response.limit( full );
+            _compressor.inflate( msg , response );
+            if ( p._sent != null )
+                _pool._metrics.record( _addr , p._sent , len , _cursorId( response , full ) );
+            response.flip();
+            p.done( new DBMessage( response ) );
+        }
+
+        private void _readFully( ByteBuffer buf , int len )
+            throws IOException {
+            while ( buf.position() < len ){
+                int x = _myIn.read( buf.array() , buf.arrayOffset() + buf.position() , len - buf.position() );
+                if ( x < 0 )
+                    throw new IOException( "connection to server closed unexpectedly" );
+                buf.position( buf.position() + x );
+            }
+        }
+
+        private void _skip( int len )
+            throws IOException {
+            byte[] junk = new byte[ Math.min( len , 8192 ) ];
+            while ( len > 0 ){
+                int x = _myIn.read( junk , 0 , Math.min( len , junk.length ) );
+                if ( x < 0 )
+                    throw new IOException( "connection to server closed unexpectedly" );
+                len -= x;
+            }
+        }
+
+        final SocketChannel _mySock;
+        final InputStream _myIn;
+    }
+
+    /**
+     * auth is per socket, so it's done down this port, not through the connector,
+     * which could send it anywhere.  it's done again after the port reconnects
+     */
     void checkAuth( DB db ){
         if ( db._username == null )
             return;
         if ( _authed.containsKey( db ) )
             return;
         
-        if ( _inauth )
-            return;
-        
-        _inauth = true;
-        try {
-            if ( db.reauth() ){
+        // a pipelined port is shared, so only one thread gets to do the auth
+        synchronized ( _authLock ){
+            if ( _authed.containsKey( db ) )
+                return;
+
+            if ( _auth( db ) ){
                 _authed.put( db , true );
                 return;
             }
         }
+
+        throw new MongoInternalException( "can't reauth!" );
+    }
+
+    private boolean _auth( DB db ){
+        if ( db._authhash == null )
+            throw new IllegalStateException( "no auth info!" );
+
+        ByteDecoder decoder = ByteDecoder.get( db , null );
+        try {
+            DBObject res = _command( db , new BasicDBObject( "getnonce" , 1 ) , decoder );
+            if ( ! _ok( res ) )
+                throw new MongoException( "Error - unable to get nonce value for authentication." );
+
+            decoder.reset();
+            res = _command( db , DB._authCommand( db._username , db._authhash , (String)res.get( "nonce" ) ) , decoder );
+            return _ok( res );
+        }
+        catch ( IOException ioe ){
+            throw new MongoException.Network( "can't authenticate to " + _addr , ioe );
+        }
         finally {
-            _inauth = false;
+            decoder.done();
         }
+    }
 
-        throw new MongoInternalException( "can't reauth!" );
+    private DBObject _command( DB db , DBObject cmd , ByteDecoder decoder )
+        throws IOException {
+        DBMessage m = DBTCPConnector._commandQuery( db.getName() , cmd );
+        try {
+            call( m , decoder );
+            return DBTCPConnector._onlyResult( decoder , cmd.keySet().iterator().next() );
+        }
+        finally {
+            m._encoder.done();
+        }
+    }
+
+    private static boolean _ok( DBObject res ){
+        Object ok = res.get( "ok" );
+        return ok instanceof Number && ((Number)ok).intValue() == 1;
     }
 
     private int _read( ByteBuffer buf )
@@ -234,7 +1019,19 @@ public class DBPort {
     private Socket _socket;
     private InputStream _in;
 
-    private boolean _inauth = false;
+    /** when this was created or last given back to its pool */
+    volatile long _lastUsed = System.currentTimeMillis();
+    /** when the pool's keeper last sent this a keep-alive ismaster */
+    volatile long _lastChecked = 0;
+
+    /** null unless MongoOptions.compression is on */
+    private final Compressor _compressor;
+    private volatile ReplyStream _stream;
+    private Reader _reader;
+    private final Object _writeLock = new Object();
+    private final Object _authLock = new Object();
+    private final Map<Integer,PendingReply> _pending = new java.util.concurrent.ConcurrentHashMap<Integer,PendingReply>();
+
     private Map<DB,Boolean> _authed = Collections.synchronizedMap( new WeakHashMap<DB,Boolean>() );
 
     private static Logger _rootLogger = Logger.getLogger( "com.mongodb.port" );
@@ -21,6 +21,7 @@ package com.mongodb;
 import com.mongodb.util.*;
 
 import java.io.*;
+import java.lang.ref.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
@@ -33,7 +34,12 @@ class DBPortPool extends SimplePool<DBPort> {
     static class Holder {
         
         Holder( MongoOptions options ){
+            this( options , null );
+        }
+
+        Holder( MongoOptions options , DBMetrics metrics ){
             _options = options;
+            _metrics = metrics;
         }
         
         DBPortPool get( InetSocketAddress addr ){
@@ -48,16 +54,114 @@ class DBPortPool extends SimplePool<DBPort> {
                 if (p != null) {
                     return p;
                 }
+
+                if ( _closed )
+                    throw new MongoException( "can't connect to " + addr + ", the Mongo has been closed" );
                 
-                p = new DBPortPool( addr , _options );
+                p = new DBPortPool( addr , _options , _metrics );
                 _pools.put( addr , p);
+
+                if ( _keeper == null && Keeper.needed( _options ) ){
+                    _keeper = new Keeper( this );
+                    _keeper.start();
+                }
             }
             
             return p;
         }
         
+        /**
+         * stops the keeper and closes every pool.  anything still waiting on one of their connections fails
+         */
+        void close(){
+            List<DBPortPool> pools;
+            Keeper keeper;
+            synchronized ( _pools ){
+                _closed = true;
+                pools = new ArrayList<DBPortPool>( _pools.values() );
+                _pools.clear();
+                keeper = _keeper;
+                _keeper = null;
+            }
+            if ( keeper != null )
+                keeper.shutdown();
+            for ( DBPortPool p : pools )
+                p.close();
+        }
+
         final MongoOptions _options;
+        final DBMetrics _metrics;
         final Map<InetSocketAddress,DBPortPool> _pools = Collections.synchronizedMap( new HashMap<InetSocketAddress,DBPortPool>() );
+        private Keeper _keeper;
+        private boolean _closed = false;
+    }
+
+    /**
+     * looks after every pool in a holder in the background: closes connections that have been idle too long,
+     * sends keep-alives, and opens new ones to keep minIdleConnectionsPerHost ready.
+     * holds the holder weakly, and stops once it's gone
+     */
+    static class Keeper extends Thread {
+
+        static boolean needed( MongoOptions options ){
+            if ( options.nonBlocking )
+                return false;
+            return options.minIdleConnectionsPerHost > 0 || options.maxIdleTime > 0 || options.keepAliveInterval > 0;
+        }
+
+        /**
+         * often enough that nothing stays idle much past its limit
+         */
+        static long interval( MongoOptions options ){
+            long i = 1000;
+            if ( options.maxIdleTime > 0 )
+                i = Math.min( i , options.maxIdleTime / 2 );
+            if ( options.keepAliveInterval > 0 )
+                i = Math.min( i , options.keepAliveInterval / 2 );
+            return Math.max( 10 , i );
+        }
+
+        Keeper( Holder holder ){
+            super( "DBPortPool-Keeper" );
+            setDaemon( true );
+            _holder = new WeakReference<Holder>( holder );
+            _interval = interval( holder._options );
+        }
+
+        void shutdown(){
+            _closed = true;
+            interrupt();
+        }
+
+        public void run(){
+            while ( ! _closed ){
+                List<DBPortPool> pools = null;
+
+                Holder h = _holder.get();
+                if ( h == null )
+                    break;
+                synchronized ( h._pools ){
+                    pools = new ArrayList<DBPortPool>( h._pools.values() );
+                }
+                h = null;
+
+                for ( DBPortPool p : pools ){
+                    try {
+                        p.maintain();
+                    }
+                    catch ( Exception e ){
+                        Bytes.LOGGER.log( Level.WARNING , "problem maintaining " + p._addr , e );
+                    }
+                }
+                pools = null;
+
+                ThreadUtil.sleep( _interval );
+            }
+        }
+
+        final WeakReference<Holder> _holder;
+        final long _interval;
+        private volatile boolean _closed = false;
     }
 
     // ----
@@ -71,10 +175,21 @@ class DBPortPool extends SimplePool<DBPort> {
     // ----
     
     DBPortPool( InetSocketAddress addr , MongoOptions options ){
+        this( addr , options , null );
+    }
+
+    /**
+     * @param metrics where to count waits and everything the pool's ports send, null to not
+     */
+    DBPortPool( InetSocketAddress addr , MongoOptions options , DBMetrics metrics ){
         super( "DBPortPool-" + addr.toString() , options.connectionsPerHost , options.connectionsPerHost );
         _options = options;
+        _metrics = metrics;
         _addr = addr;
+        if ( _metrics != null )
+            _metrics.addPool( this );
 	_waitingSem = new Semaphore( _options.connectionsPerHost * _options.threadsAllowedToBlockForConnectionMultiplier );
+        _shared = new DBPort[ _options.pipelined ? Math.max( 1 , _options.connectionsPerHost ) : 0 ];
     }
 
     protected long memSize( DBPort p ){
@@ -82,10 +197,19 @@ class DBPortPool extends SimplePool<DBPort> {
     }
     
     public DBPort get(){
+        if ( _closed )
+            throw new MongoException( "can't connect to " + _addr + ", the Mongo has been closed" );
+        if ( _options.pipelined )
+            return _getShared();
+
 	DBPort port = null;
+        final long start = _metrics == null ? 0 : System.nanoTime();
 	
-	if ( ! _waitingSem.tryAcquire() )
+	if ( ! _waitingSem.tryAcquire() ){
+            if ( _metrics != null )
+                _metrics.poolWait( _addr , System.nanoTime() - start , true );
 	    throw new NoMoreConnection();
+        }
 
 	try {
 	    port = get( _maxWaitTime );
@@ -94,12 +218,227 @@ class DBPortPool extends SimplePool<DBPort> {
 	    _waitingSem.release();
 	}
 
+        if ( _metrics != null )
+            _metrics.poolWait( _addr , System.nanoTime() - start , port == null );
+
 	if ( port == null )
 	    throw new NoMoreConnection();
 	
 	return port;
     }
 
+    /**
+     * in pipelined mode ports are never checked out.
+     * everyone shares connectionsPerHost ports, and gets the one with the fewest replies outstanding
+     */
+    private DBPort _getShared(){
+        synchronized ( _shared ){
+            DBPort best = null;
+            for ( int i=0; i<_shared.length; i++ ){
+                DBPort p = _shared[i];
+                if ( p == null ){
+                    p = createNew();
+                    _shared[i] = p;
+                    return p;
+                }
+                if ( best == null || p.numPending() < best.numPending() )
+                    best = p;
+            }
+            best._lastUsed = System.currentTimeMillis();
+            return best;
+        }
+    }
+
+    public void done( DBPort p ){
+        if ( _options.pipelined )
+            return;
+        if ( _closed ){
+            p.close();
+            return;
+        }
+        p._lastUsed = System.currentTimeMillis();
+        if ( p._pool != this && p._pool != null ){
+            // the connector switched hosts while this was checked out
+            p._pool.done( p );
+            return;
+        }
+        super.done( p );
+    }
+
+    /**
+     * opens connections until minIdleConnectionsPerHost are sitting in the pool.
+     * gives up at the first one that can't connect, since the rest won't either
+     */
+    void warm(){
+        final int min = Math.min( _options.minIdleConnectionsPerHost , _options.connectionsPerHost );
+        if ( min <= 0 )
+            return;
+
+        if ( _options.pipelined ){
+            for ( int i=0; i<min && i<_shared.length; i++ ){
+                DBPort p;
+                synchronized ( _shared ){
+                    if ( _shared[i] == null )
+                        _shared[i] = createNew();
+                    p = _shared[i];
+                }
+                if ( ! _open( p ) )
+                    return;
+            }
+            return;
+        }
+
+        for ( DBPort p : prefill( min ) )
+            if ( ! _open( p ) )
+                return;
+    }
+
+    private boolean _open( DBPort p ){
+        try {
+            p.ensureOpen();
+            return true;
+        }
+        catch ( IOException ioe ){
+            Bytes.LOGGER.log( Level.INFO , "can't open idle connection to " + _addr , ioe );
+            return false;
+        }
+    }
+
+    /**
+     * what the keeper does to each pool, every pass
+     */
+    void maintain(){
+        if ( ! _options.pipelined ){
+            final long now = System.currentTimeMillis();
+            List<DBPort> idle = takeIdle();
+
+            // only close as many as can go without dropping below the minimum
+            int canClose = idle.size() - Math.max( 0 , _options.minIdleConnectionsPerHost - idle() );
+
+            for ( DBPort p : idle ){
+                if ( _options.maxIdleTime > 0 && now - p._lastUsed >= _options.maxIdleTime && canClose > 0 ){
+                    canClose--;
+                    p.close();
+                    remove( p );
+                    continue;
+                }
+
+                if ( _keepAliveDue( p , now ) && ! _keepAlive( p ) ){
+                    p.close();
+                    remove( p );
+                    continue;
+                }
+
+                // not through done(), so it still counts as idle
+                super.done( p );
+            }
+        }
+        else {
+            _maintainShared();
+        }
+
+        warm();
+    }
+
+    /**
+     * a shared port is idle when nothing is outstanding on it.
+     * it's closed in place rather than taken out of its slot, so it reconnects if it's picked again,
+     * and a caller that got it just before can't end up with a socket nobody will close.
+     * the first minIdleConnectionsPerHost slots are the ones warm() keeps open, so idle ones past those are closed
+     */
+    private void _maintainShared(){
+        final long now = System.currentTimeMillis();
+        DBPort[] all;
+        synchronized ( _shared ){
+            all = _shared.clone();
+        }
+
+        for ( int i=0; i<all.length; i++ ){
+            DBPort p = all[i];
+            if ( p == null || ! p.isOpen() || p.numPending() > 0 )
+                continue;
+
+            if ( _options.maxIdleTime > 0 && now - p._lastUsed >= _options.maxIdleTime && i >= _options.minIdleConnectionsPerHost ){
+                p.close();
+                continue;
+            }
+
+            if ( _keepAliveDue( p , now ) && ! _keepAlive( p ) )
+                p.close();
+        }
+    }
+
+    /**
+     * a port can be back in the pool while a streamed reply is still being read off it,
+     * and closing it then would cut the cursor off, so it isn't looked at until that's done
+     */
+    protected boolean isIdle( DBPort p ){
+        if ( p.isStreaming() )
+            return false;
+        final long now = System.currentTimeMillis();
+        if ( _options.maxIdleTime > 0 && now - p._lastUsed >= _options.maxIdleTime )
+            return true;
+        return _keepAliveDue( p , now );
+    }
+
+    private boolean _keepAliveDue( DBPort p , long now ){
+        return _options.keepAliveInterval > 0 && now - Math.max( p._lastUsed , p._lastChecked ) >= _options.keepAliveInterval;
+    }
+
+    /**
+     * @return false if p didn't answer ismaster
+     */
+    private boolean _keepAlive( DBPort p ){
+        ByteDecoder decoder = ByteDecoder.get( null , null );
+        DBMessage m = DBTCPConnector._isMasterQuery();
+        try {
+            p.call( m , decoder );
+            DBTCPConnector._onlyResult( decoder , "ismaster" );
+            p._lastChecked = System.currentTimeMillis();
+            return true;
+        }
+        catch ( Exception e ){
+            Bytes.LOGGER.log( Level.INFO , "idle connection to " + _addr + " failed keep-alive" , e );
+            return false;
+        }
+        finally {
+            decoder.done();
+            m._encoder.done();
+        }
+    }
+
+    /**
+     * shared ports are closed, failing whatever they were waiting on, rather than just dropped,
+     * since each one's reader thread would keep it, and its socket, around for good
+     */
+    protected void clear(){
+        List<DBPort> shared = new ArrayList<DBPort>();
+        synchronized ( _shared ){
+            for ( int i=0; i<_shared.length; i++ ){
+                if ( _shared[i] != null )
+                    shared.add( _shared[i] );
+                _shared[i] = null;
+            }
+        }
+        for ( DBPort p : shared )
+            p.close();
+        super.clear();
+    }
+
+    /**
+     * closes every connection, checked out or not, and refuses to open more.
+     * calls using them now fail
+     */
+    void close(){
+        _closed = true;
+        List<DBPort> all = new ArrayList<DBPort>();
+        for ( Iterator<DBPort> i = getAll(); i.hasNext(); )
+            all.add( i.next() );
+        clear();
+        for ( DBPort p : all )
+            p.close();
+    }
+
     void gotError( Exception e ){
         if ( e instanceof java.nio.channels.ClosedByInterruptException || 
              e instanceof InterruptedException ){
@@ -119,6 +458,13 @@ class DBPortPool extends SimplePool<DBPort> {
     public boolean ok( DBPort t ){
         return _addr.equals( t._addr );
     }
+
+    /**
+     * a port the pool won't hand out again is closed now, rather than leaving its socket and zlib streams for finalization
+     */
+    protected void dropped( DBPort p ){
+        p.close();
+    }
     
     protected DBPort createNew()
         throws MongoInternalException{
@@ -131,7 +477,10 @@ class DBPortPool extends SimplePool<DBPort> {
     }
 
     final MongoOptions _options;
+    final DBMetrics _metrics;
     final private Semaphore _waitingSem;
     final InetSocketAddress _addr;
+    final private DBPort[] _shared;
     boolean _everWorked = false;
+    private volatile boolean _closed = false;
 }
@@ -18,6 +18,8 @@
 
 package com.mongodb;
 
+import java.util.*;
+
 /**
  * Base class for DBRefs.
  */
@@ -54,6 +56,24 @@ public class DBRefBase {
         return _pointedTo;
     }
 
+    /**
+     * follows every ref in refs with one query per collection, rather than one each.
+     * use a {@link DBRefResolver} directly to also reuse what's been fetched across calls
+     * @param refs the refs, typically a BasicDBList from a document.  anything that isn't a DBRefBase is skipped
+     * @return the documents, in the same order as refs, with null for whatever wasn't a ref or wasn't found
+     */
+    public static List<DBObject> fetch( Collection<?> refs ){
+        return new DBRefResolver().fetch( refs );
+    }
+
+    /**
+     * what fetch() should return from now on, found some other way
+     */
+    void _loaded( DBObject o ){
+        _pointedTo = o;
+        _loadedPointedTo = true;
+    }
+
     public String toString(){
         return "{ \"$ref\" : \"" + _ns + "\", \"$id\" : \"" + _id + "\" }";
     }
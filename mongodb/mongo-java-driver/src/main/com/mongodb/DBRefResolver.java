@@ -0,0 +1,135 @@
+// DBRefResolver.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.util.*;
+
+/**
+ * follows many DBRefs with one $in query per collection, instead of a findOne each.
+ * everything found, and everything looked for and not found, is remembered, so make one per request or unit of work
+ * and throw it away after, since it never sees later writes.  not thread safe
+ */
+public class DBRefResolver {
+
+    /** the most ids one query asks for */
+    static final int MAX_IN = 1000;
+
+    public DBRefResolver(){
+    }
+
+    /**
+     * follows one ref, from what's already been fetched if it can
+     * @return the document, or null if there isn't one
+     */
+    public DBObject fetch( DBRefBase ref ){
+        return fetch( Collections.singletonList( ref ) ).get( 0 );
+    }
+
+    /**
+     * follows every ref in refs, with one query for each collection they point into.
+     * each ref also remembers its document, so its own fetch() won't go to the database
+     * @param refs typically a BasicDBList of DBRefs from a document.  anything in it that isn't a DBRefBase is skipped
+     * @return the documents, in the same order as refs, with null for whatever wasn't a ref or wasn't found
+     */
+    public List<DBObject> fetch( Collection<?> refs ){
+        Map<String,Set<Object>> missing = new HashMap<String,Set<Object>>();
+        Map<String,DBCollection> collections = new HashMap<String,DBCollection>();
+        for ( Object o : refs ){
+            if ( ! ( o instanceof DBRefBase ) )
+                continue;
+            DBRefBase ref = (DBRefBase)o;
+            DBCollection c = _collection( ref );
+            if ( _known( c.getFullName() ).containsKey( ref._id ) )
+                continue;
+
+            Set<Object> ids = missing.get( c.getFullName() );
+            if ( ids == null ){
+                ids = new LinkedHashSet<Object>();
+                missing.put( c.getFullName() , ids );
+                collections.put( c.getFullName() , c );
+            }
+            ids.add( ref._id );
+        }
+
+        for ( Map.Entry<String,Set<Object>> e : missing.entrySet() )
+            _load( collections.get( e.getKey() ) , e.getValue() );
+
+        List<DBObject> res = new ArrayList<DBObject>( refs.size() );
+        for ( Object o : refs ){
+            if ( ! ( o instanceof DBRefBase ) ){
+                res.add( null );
+                continue;
+            }
+            DBRefBase ref = (DBRefBase)o;
+            DBObject found = _known( _collection( ref ).getFullName() ).get( ref._id );
+            ref._loaded( found );
+            res.add( found );
+        }
+        return res;
+    }
+
+    /**
+     * forgets everything fetched so far
+     */
+    public void clear(){
+        _known.clear();
+    }
+
+    /** @return how many queries have been sent */
+    public int getQueries(){
+        return _queries;
+    }
+
+    private void _load( DBCollection c , Set<Object> ids ){
+        Map<Object,DBObject> known = _known( c.getFullName() );
+        List<Object> all = new ArrayList<Object>( ids );
+        for ( int start=0; start<all.size(); start+=MAX_IN ){
+            List<Object> some = all.subList( start , Math.min( all.size() , start + MAX_IN ) );
+            _queries++;
+
+            Iterator<DBObject> i = c.find( QueryBuilder.start( "_id" ).in( new ArrayList<Object>( some ) ).get() , null , 0 , 0 , c.getOptions() );
+            while ( i != null && i.hasNext() ){
+                DBObject o = i.next();
+                known.put( o.get( "_id" ) , o );
+            }
+            for ( Object id : some )
+                if ( ! known.containsKey( id ) )
+                    known.put( id , null );
+        }
+    }
+
+    private static DBCollection _collection( DBRefBase ref ){
+        if ( ref._db == null )
+            throw new RuntimeException( "no db" );
+        return ref._db.getCollectionFromString( ref._ns );
+    }
+
+    private Map<Object,DBObject> _known( String ns ){
+        Map<Object,DBObject> m = _known.get( ns );
+        if ( m == null ){
+            m = new HashMap<Object,DBObject>();
+            _known.put( ns , m );
+        }
+        return m;
+    }
+
+    /** full namespace -> _id -> document, or null if it was looked for and isn't there */
+    private final Map<String,Map<Object,DBObject>> _known = new HashMap<String,Map<Object,DBObject>>();
+    private int _queries = 0;
+}
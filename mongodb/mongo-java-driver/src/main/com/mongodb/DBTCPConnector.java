@@ -24,7 +24,9 @@ import java.nio.*;
 import java.util.*;
 import java.util.logging.*;
 
-class DBTCPConnector implements DBConnector {
+import com.mongodb.util.*;
+
+class DBTCPConnector implements InternalConnector {
 
     static Logger _logger = Logger.getLogger( Bytes.LOGGER.getName() + ".tcp" );
     static Logger _createLogger = Logger.getLogger( _logger.getName() + ".connect" );
@@ -32,7 +34,7 @@ class DBTCPConnector implements DBConnector {
     public DBTCPConnector( Mongo m , ServerAddress addr )
         throws MongoException {
         _mongo = m;
-        _portHolder = new DBPortPool.Holder( m._options );
+        _portHolder = new DBPortPool.Holder( m._options , m._metrics );
         _checkAddress( addr );
 
         _createLogger.info( addr.toString() );
@@ -56,7 +58,7 @@ class DBTCPConnector implements DBConnector {
     public DBTCPConnector( Mongo m , List<ServerAddress> all )
         throws MongoException {
         _mongo = m;
-        _portHolder = new DBPortPool.Holder( m._options );
+        _portHolder = new DBPortPool.Holder( m._options , m._metrics );
         _checkAddress( all );
 
         _allHosts = new ArrayList<ServerAddress>( all ); // make a copy so it can't be modified
@@ -64,6 +66,28 @@ class DBTCPConnector implements DBConnector {
         _createLogger.info( all  + " -> " + _curAddress );
     }
 
+    private void _startMonitor(){
+        if ( _allHosts == null || _mongo._options.monitorInterval <= 0 || _monitor != null )
+            return;
+        _monitor = new ServerMonitor( this , _allHosts , _mongo._options );
+        _monitor.start();
+    }
+
+    /**
+     * called by the monitor after each pass over the hosts
+     * @param master the host that says it's master, null if none does
+     */
+    void _masterChanged( ServerAddress master ){
+        if ( master == null || master.equals( _curAddress ) )
+            return;
+        _logger.info( "master is now [" + master + "], was [" + _curAddress + "]" );
+        _set( master );
+    }
+
+    ServerMonitor getMonitor(){
+        return _monitor;
+    }
+
     private static ServerAddress _checkAddress( ServerAddress addr ){
         if ( addr == null )
             throw new NullPointerException( "address can't be null" );
@@ -109,27 +133,69 @@ class DBTCPConnector implements DBConnector {
     }
 
     public void say( DB db , DBMessage m , DB.WriteConcern concern )
+        throws MongoException {
+        if ( m._host != null ){
+            _sayTo( db , m , concern );
+            return;
+        }
+        _say( db , m , concern );
+    }
+
+    /**
+     * for messages that have to go to a particular host, like killing a cursor on a secondary
+     */
+    private void _sayTo( DB db , DBMessage m , DB.WriteConcern concern )
+        throws MongoException {
+        DBPortPool pool = _portHolder.get( m._host );
+        DBPort port = pool.get();
+        port.checkAuth( db );
+
+        DBObject e = null;
+        try {
+            if ( concern == DB.WriteConcern.STRICT )
+                e = _sayAndCheck( db , port , m );
+            else
+                port.say( m );
+            pool.done( port );
+        }
+        catch ( IOException ioe ){
+            pool.gotError( ioe );
+            _hostError( m._host );
+            if ( concern == DB.WriteConcern.NONE )
+                return;
+            throw new MongoException.Network( "can't say something" , ioe );
+        }
+        catch ( RuntimeException re ){
+            pool.done( port );
+            throw re;
+        }
+
+        if ( e != null )
+            _throwIfError( e );
+    }
+
+    /**
+     * @return the getlasterror result if concern is STRICT, otherwise null
+     */
+    DBObject _say( DB db , DBMessage m , DB.WriteConcern concern )
+        throws MongoException {
+        return say( db , Collections.singletonList( m ).iterator() , concern );
+    }
+
+    public DBObject say( DB db , Iterator<DBMessage> msgs , DB.WriteConcern concern )
         throws MongoException {
         MyPort mp = _threadPort.get();
         DBPort port = mp.get( true );
         port.checkAuth( db );
 
+        DBObject e = null;
         try {
-            port.say( m );
-            if ( concern == DB.WriteConcern.STRICT ){
-                DBObject e = _mongo.getDB( "admin" ).getLastError();
-                Object foo = e.get( "err" );
-                if ( foo != null ){
-                    int code = -1;
-                    if ( e.get( "code" ) instanceof Number )
-                        code = ((Number)e.get("code")).intValue();
-                    String s = foo.toString();
-                    if ( code == 11000 || code == 11001 ||
-                         s.startsWith( "E11000" ) ||
-                         s.startsWith( "E11001" ) )
-                        throw new MongoException.DuplicateKey( code , s );
-                    throw new MongoException( code , s );
-                }
+            while ( msgs.hasNext() ){
+                DBMessage m = msgs.next();
+                if ( concern == DB.WriteConcern.STRICT && ! msgs.hasNext() )
+                    e = _sayAndCheck( db , port , m );
+                else
+                    port.say( m );
             }
             mp.done( port );
         }
@@ -137,9 +203,275 @@ class DBTCPConnector implements DBConnector {
             mp.error( ioe );
             _error( ioe );
             if ( concern == DB.WriteConcern.NONE )
-                return;
+                return null;
             throw new MongoException.Network( "can't say something" , ioe );
         }
+        catch ( RuntimeException re ){
+            mp.done( port );
+            throw re;
+        }
+
+        if ( e != null )
+            _throwIfError( e );
+        return e;
+    }
+
+    /**
+     * sends m with a getlasterror right behind it and reads the one reply
+     */
+    private DBObject _sayAndCheck( DB db , DBPort port , DBMessage m )
+        throws IOException {
+        DBMessage q = _lastErrorQuery();
+        ByteDecoder decoder = ByteDecoder.get( db , null );
+        try {
+            port.sayAndCall( m , q , decoder );
+            return _lastError( decoder );
+        }
+        finally {
+            decoder.done();
+            q._encoder.done();
+        }
+    }
+
+    /**
+     * @return the getlasterror document in the reply in decoder
+     */
+    static DBObject _lastError( ByteDecoder decoder ){
+        return _onlyResult( decoder , "getlasterror" );
+    }
+
+    /**
+     * @return the one document in the reply to a command
+     */
+    static DBObject _onlyResult( ByteDecoder decoder , String command ){
+        DBApiLayer.QueryHeader header = new DBApiLayer.QueryHeader( decoder._buf );
+        header.skipPastHeader( decoder._buf );
+        if ( header._num != 1 )
+            throw new MongoException( "no result for " + command );
+        return decoder.readObject();
+    }
+
+    static void _throwIfError( DBObject e )
+        throws MongoException {
+        Object foo = e.get( "err" );
+        if ( foo == null )
+            return;
+
+        int code = -1;
+        if ( e.get( "code" ) instanceof Number )
+            code = ((Number)e.get("code")).intValue();
+        String s = foo.toString();
+        if ( code == 11000 || code == 11001 ||
+             s.startsWith( "E11000" ) ||
+             s.startsWith( "E11001" ) )
+            throw new MongoException.DuplicateKey( code , s );
+        throw new MongoException( code , s );
+    }
+
+    /**
+     * on a pipelined port the reply is handed over by the port's reader thread.
+     * otherwise there's no i/o thread to finish the call, so it runs on one of ours
+     */
+    public DBFuture<DBMessage> callAsync( final DB db , final DBMessage m , final ByteDecoder decoder )
+        throws MongoException {
+        
+        if ( ! _mongo._options.pipelined ){
+            final DBFuture<DBMessage> f = new DBFuture<DBMessage>();
+            boolean queued = _async().offer( new Runnable(){
+                    public void run(){
+                        try {
+                            f.set( call( db , m , decoder ) );
+                        }
+                        catch ( RuntimeException e ){
+                            f.fail( e );
+                        }
+                    }
+                } );
+            if ( ! queued )
+                f.fail( new MongoException( "can't call something, the Mongo has been closed" ) );
+            return f;
+        }
+
+        DBPortPool pool = _routedPool( m );
+        if ( pool == null )
+            pool = _curPortPool;
+        DBPort port = pool.get();
+        port.checkAuth( db );
+        
+        DBFuture<DBMessage> raw = new DBFuture<DBMessage>();
+        try {
+            port.pipeAsync( m , decoder , raw );
+        }
+        catch ( IOException ioe ){
+            pool.gotError( ioe );
+            if ( m._host != null )
+                _hostError( m._host );
+            else
+                _error( ioe );
+            raw.fail( new MongoException.Network( "can't call something" , ioe ) );
+        }
+        return _checkReply( raw , decoder , m._host );
+    }
+
+    public DBFuture<DBObject> sayAsync( final DB db , final DBMessage m , final DB.WriteConcern concern )
+        throws MongoException {
+
+        if ( ! _mongo._options.pipelined ){
+            final DBFuture<DBObject> f = new DBFuture<DBObject>();
+            boolean queued = _async().offer( new Runnable(){
+                    public void run(){
+                        try {
+                            f.set( _say( db , m , concern ) );
+                        }
+                        catch ( RuntimeException e ){
+                            f.fail( e );
+                        }
+                    }
+                } );
+            if ( ! queued )
+                f.fail( new MongoException( "can't say something, the Mongo has been closed" ) );
+            return f;
+        }
+
+        DBPort port = _curPortPool.get();
+        port.checkAuth( db );
+
+        try {
+            if ( concern != DB.WriteConcern.STRICT ){
+                port.say( m );
+                return DBFuture.done( null );
+            }
+
+            // has to go down the same socket as the write, so they go together
+            DBMessage q = _lastErrorQuery();
+            ByteDecoder decoder = ByteDecoder.get( db , null );
+            DBFuture<DBMessage> raw = new DBFuture<DBMessage>();
+            try {
+                port.pipeAsync( m , q , decoder , raw );
+            }
+            catch ( IOException ioe ){
+                raw.fail( ioe );
+            }
+            return _lastErrorReply( raw , q , decoder );
+        }
+        catch ( IOException ioe ){
+            _curPortPool.gotError( ioe );
+            _error( ioe );
+            if ( concern == DB.WriteConcern.NONE )
+                return DBFuture.done( null );
+            DBFuture<DBObject> f = new DBFuture<DBObject>();
+            f.fail( new MongoException.Network( "can't say something" , ioe ) );
+            return f;
+        }
+    }
+
+    /**
+     * does what call does with a reply when it comes back asynchronously.
+     * there's no retry, "not master" just switches hosts and fails
+     */
+    DBFuture<DBMessage> _checkReply( DBFuture<DBMessage> raw , final ByteDecoder decoder , final InetSocketAddress host ){
+        final DBFuture<DBMessage> res = new DBFuture<DBMessage>();
+        raw.addCallback( new DBFuture.Callback<DBMessage>(){
+                public void done( DBMessage m , MongoException error ){
+                    if ( error != null ){
+                        try {
+                            if ( error instanceof MongoException.Network && host != null )
+                                _hostError( host );
+                            else if ( error instanceof MongoException.Network )
+                                _error( error );
+                        }
+                        catch ( MongoException e ){
+                            // still report the original error
+                        }
+                        res.fail( error );
+                        return;
+                    }
+                    String err = _getError( decoder._buf );
+                    if ( err != null && "not master".equals( err ) ){
+                        try {
+                            _pickCurrent();
+                        }
+                        catch ( MongoException e ){
+                            // nowhere better to go, fail below either way
+                        }
+                        res.fail( new MongoException( "not talking to master" ) );
+                        return;
+                    }
+                    res.set( m );
+                }
+            } );
+        return res;
+    }
+
+    static DBMessage _lastErrorQuery(){
+        return _commandQuery( _getLastError );
+    }
+
+    static DBMessage _isMasterQuery(){
+        return _commandQuery( _isMaster );
+    }
+
+    private static DBMessage _commandQuery( DBObject cmd ){
+        return _commandQuery( "admin" , cmd );
+    }
+
+    /**
+     * a command for db, for sending straight down one port
+     */
+    static DBMessage _commandQuery( String db , DBObject cmd ){
+        DBMessage m = new DBMessage( 2004 );
+        ByteEncoder encoder = m._encoder;
+        encoder._buf.putInt( 0 ); // options
+        encoder._put( db + ".$cmd" );
+        encoder._buf.putInt( 0 ); // skip
+        encoder._buf.putInt( -1 ); // num to return
+        encoder.putObject( cmd );
+        return m;
+    }
+
+    /**
+     * turns the reply to a _lastErrorQuery into the getlasterror document,
+     * failing if it reports an error.  gives back the query's encoder and the decoder either way
+     */
+    static DBFuture<DBObject> _lastErrorReply( DBFuture<DBMessage> reply , final DBMessage query , final ByteDecoder decoder ){
+        final DBFuture<DBObject> res = new DBFuture<DBObject>();
+        reply.addCallback( new DBFuture.Callback<DBMessage>(){
+                public void done( DBMessage m , MongoException error ){
+                    try {
+                        if ( error != null ){
+                            res.fail( error );
+                            return;
+                        }
+                        DBObject e = _lastError( decoder );
+                        _throwIfError( e );
+                        res.set( e );
+                    }
+                    catch ( RuntimeException e ){
+                        res.fail( e );
+                    }
+                    finally {
+                        decoder.done();
+                        query._encoder.done();
+                    }
+                }
+            } );
+        return res;
+    }
+
+    private synchronized ThreadPool<Runnable> _async(){
+        if ( _asyncPool == null ){
+            _asyncPool = new ThreadPool<Runnable>( "DBTCPConnector-async" , Math.max( 1 , _mongo._options.connectionsPerHost ) ){
+                    public void handle( Runnable r ){
+                        r.run();
+                    }
+                    public void handleError( Runnable r , Exception e ){
+                        _logger.log( Level.WARNING , "async operation failed" , e );
+                    }
+                };
+            if ( _closed )
+                _asyncPool.shutdown();
+        }
+        return _asyncPool;
     }
     
     public DBMessage call( DB db , DBMessage m , ByteDecoder decoder )
@@ -149,7 +481,10 @@ class DBTCPConnector implements DBConnector {
 
     public DBMessage call( DB db , DBMessage m , ByteDecoder decoder , int retries )
         throws MongoException {
-        ByteBuffer in = decoder._buf;
+        DBPortPool pool = _routedPool( m );
+        if ( pool != null )
+            return _callTo( db , pool , m , decoder , retries );
+
         MyPort mp = _threadPort.get();
         DBPort port = mp.get( false );
         port.checkAuth( db );
@@ -158,6 +493,8 @@ class DBTCPConnector implements DBConnector {
             DBMessage res = port.call( m , decoder );
             mp.done( port );
 
+            // the decoder may have grown, so don't hang on to its old buffer
+            ByteBuffer in = decoder._buf;
             String err = _getError( in );
 
             if ( err != null ){
@@ -176,13 +513,143 @@ class DBTCPConnector implements DBConnector {
         catch ( IOException ioe ){
             mp.error( ioe );
             if ( _error( ioe ) && retries > 0 ){
-                in.position( 0 );
+                decoder._buf.position( 0 );
                 return call( db , m , decoder , retries - 1 );
             }
             throw new MongoException.Network( "can't call something" , ioe );
         }
     }
 
+    public DBPort.ReplyStream stream( DB db , DBMessage m )
+        throws MongoException {
+        if ( ! _mongo._options.streamReplies || _mongo._options.pipelined )
+            return null;
+        return stream( db , m , 2 );
+    }
+
+    DBPort.ReplyStream stream( DB db , DBMessage m , int retries )
+        throws MongoException {
+        DBPortPool pool = _routedPool( m );
+        if ( pool != null )
+            return _streamFrom( db , pool , m , retries );
+
+        MyPort mp = _threadPort.get();
+        DBPort port = mp.get( false );
+        port.checkAuth( db );
+
+        try {
+            DBPort.ReplyStream s = port.stream( m );
+
+            // "not master" comes back as the only document, so only then is there anything to look at
+            String err = null;
+            if ( s._header._num == 1 ){
+                ByteBuffer doc = s.peek();
+                Object foo = new RawDBObject( doc , doc.position() ).get( "$err" );
+                if ( foo != null )
+                    err = foo.toString();
+            }
+            mp.done( port );
+
+            if ( "not master".equals( err ) ){
+                _pickCurrent();
+                if ( retries <= 0 )
+                    throw new MongoException( "not talking to master and retries used up" );
+                return stream( db , m , retries - 1 );
+            }
+
+            return s;
+        }
+        catch ( IOException ioe ){
+            mp.error( ioe );
+            if ( _error( ioe ) && retries > 0 )
+                return stream( db , m , retries - 1 );
+            throw new MongoException.Network( "can't call something" , ioe );
+        }
+    }
+
+    /**
+     * slaveOk queries go to one of the closest secondaries, and getmores and kills go wherever their cursor is.
+     * fills in m._host for a query it sends to a secondary
+     * @return the pool for m's host, or null if m goes to the master
+     */
+    DBPortPool _routedPool( DBMessage m ){
+        if ( m._host == null && _monitor != null && m.slaveOk() ){
+            ServerAddress s = _monitor.secondary( _mongo._options.latencyWindow );
+            if ( s != null )
+                m._host = s.getSocketAddress();
+        }
+        if ( m._host == null )
+            return null;
+        return _portHolder.get( m._host );
+    }
+
+    /**
+     * call for a message going somewhere other than the master.
+     * a query that fails is routed again, a getmore can only go to its own host
+     */
+    private DBMessage _callTo( DB db , DBPortPool pool , DBMessage m , ByteDecoder decoder , int retries )
+        throws MongoException {
+        DBPort port = pool.get();
+        port.checkAuth( db );
+
+        try {
+            DBMessage res = port.call( m , decoder );
+            pool.done( port );
+            return res;
+        }
+        catch ( IOException ioe ){
+            pool.gotError( ioe );
+            _hostError( m._host );
+            if ( m._operation == 2004 && retries > 0 ){
+                m._host = null;
+                decoder._buf.position( 0 );
+                return call( db , m , decoder , retries - 1 );
+            }
+            throw new MongoException.Network( "can't call something" , ioe );
+        }
+        catch ( RuntimeException re ){
+            pool.done( port );
+            throw re;
+        }
+    }
+
+    /**
+     * @see #_callTo
+     */
+    private DBPort.ReplyStream _streamFrom( DB db , DBPortPool pool , DBMessage m , int retries )
+        throws MongoException {
+        DBPort port = pool.get();
+        port.checkAuth( db );
+
+        try {
+            DBPort.ReplyStream s = port.stream( m );
+            pool.done( port );
+            return s;
+        }
+        catch ( IOException ioe ){
+            pool.gotError( ioe );
+            _hostError( m._host );
+            if ( m._operation == 2004 && retries > 0 ){
+                m._host = null;
+                return stream( db , m , retries - 1 );
+            }
+            throw new MongoException.Network( "can't call something" , ioe );
+        }
+        catch ( RuntimeException re ){
+            pool.done( port );
+            throw re;
+        }
+    }
+
+    /**
+     * a host other than the master failed.  it's the monitor's job to notice it's back
+     */
+    void _hostError( InetSocketAddress host ){
+        _logger.info( "error talking to [" + host + "]" );
+        if ( _monitor != null )
+            _monitor.gotError( host );
+    }
+
     public ServerAddress getAddress(){
         return _curAddress;
     }
@@ -193,6 +660,8 @@ class DBTCPConnector implements DBConnector {
 
     boolean _error( Throwable t )
         throws MongoException {
+        if ( _monitor != null )
+            _monitor.gotError( _curAddress );
         if ( _allHosts != null ){
             System.out.println( "paired mode, switching master b/c of: " + t );
             t.printStackTrace();
@@ -300,6 +769,18 @@ class DBTCPConnector implements DBConnector {
         if ( _curAddress != null )
             return;
 
+        _startMonitor();
+        if ( _monitor != null ){
+            long timeout = _mongo._options.connectTimeout > 0 ? _mongo._options.connectTimeout : ServerMonitor.DEFAULT_TIMEOUT;
+            if ( _monitor.waitForFirstSweep( timeout ) ){
+                ServerAddress best = _monitor.best( null );
+                if ( best != null ){
+                    _set( best );
+                    return;
+                }
+            }
+        }
+
         // we need to just get a server to query for ismaster
         _pickCurrent();
 
@@ -336,11 +817,30 @@ class DBTCPConnector implements DBConnector {
         }
     }
 
-    private void _pickCurrent()
+    /**
+     * opens minIdleConnectionsPerHost connections to the current host, so the first requests don't have to
+     */
+    void _warmUp(){
+        DBPortPool pool = _curPortPool;
+        if ( pool != null )
+            pool.warm();
+    }
+
+    void _pickCurrent()
         throws MongoException {
         if ( _allHosts == null )
             throw new MongoException( "got master/slave issue but not in master/slave mode on the client side" );
 
+        if ( _monitor != null && _monitor.waitForFirstSweep( 0 ) ){
+            ServerAddress a = _monitor.best( _curAddress );
+            if ( a == null )
+                throw new MongoException( "no other host is answering ismaster" );
+            if ( _curAddress != null )
+                _logger.info( "switching from [" + _curAddress + "] to [" + a + "]" );
+            _set( a );
+            return;
+        }
+
         synchronized ( _allHosts ){
             Collections.shuffle( _allHosts );
             for ( int i=0; i<_allHosts.size(); i++ ){
@@ -359,14 +859,35 @@ class DBTCPConnector implements DBConnector {
         throw new MongoException( "couldn't find a new host to swtich too" );
     }
 
-    private boolean _set( ServerAddress addr ){
+    private synchronized boolean _set( ServerAddress addr ){
         if ( _curAddress == addr )
             return false;
+        _curPortPool = _portHolder.get( addr.getSocketAddress() );
         _curAddress = addr;
-        _curPortPool = _portHolder.get( _curAddress.getSocketAddress() );
         return true;
     }
 
+    /**
+     * stops the monitor, the keeper and the async threads, and closes every connection.
+     * anything still outstanding fails
+     */
+    void close(){
+        ThreadPool<Runnable> async;
+        synchronized ( this ){
+            _closed = true;
+            async = _asyncPool;
+        }
+        if ( _monitor != null )
+            _monitor.shutdown();
+        if ( async != null )
+            async.shutdown();
+        _portHolder.close();
+    }
+
+    public synchronized boolean isClosed(){
+        return _closed;
+    }
+
     public String debugString(){
         StringBuilder buf = new StringBuilder( "DBTCPConnector: " );
         if ( _allHosts != null )
@@ -378,9 +899,12 @@ class DBTCPConnector implements DBConnector {
     }
 
     final Mongo _mongo;
-    private ServerAddress _curAddress;
-    private DBPortPool _curPortPool;
+    private volatile ServerAddress _curAddress;
+    private volatile DBPortPool _curPortPool;
+    private ServerMonitor _monitor;
     private DBPortPool.Holder _portHolder;
+    private ThreadPool<Runnable> _asyncPool;
+    private boolean _closed = false;
     private final List<ServerAddress> _allHosts;
 
     private final ThreadLocal<MyPort> _threadPort = new ThreadLocal<MyPort>(){
@@ -390,5 +914,6 @@ class DBTCPConnector implements DBConnector {
     };
 
     private final static DBObject _isMaster = BasicDBObjectBuilder.start().add( "ismaster" , 1 ).get();
+    private final static DBObject _getLastError = BasicDBObjectBuilder.start().add( "getlasterror" , 1 ).get();
 
 }
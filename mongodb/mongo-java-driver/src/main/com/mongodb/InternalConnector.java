@@ -0,0 +1,141 @@
+// InternalConnector.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.util.*;
+
+/**
+ * what the driver's own connectors can do beyond DBConnector: batches, streamed replies and async calls.
+ * a DBConnector from outside gets wrapped in an Adapter, which does them all the slow way
+ */
+interface InternalConnector extends DBConnector {
+
+    /**
+     * sends every message from msgs, in order, down one connection.
+     * with STRICT there's one getlasterror, sent in the same write as the last message, so the batch costs one round trip.
+     * msgs.next() isn't called until the message before has been written, so the iterator can reuse its buffers
+     * @return the getlasterror result if concern is STRICT, otherwise null
+     */
+    public DBObject say( DB db , Iterator<DBMessage> msgs , DB.WriteConcern concern ) throws MongoException;
+
+    /**
+     * sends m and returns once the reply's header is in, so its documents can be decoded as they arrive
+     * @return null if this connector isn't streaming replies, in which case use call
+     */
+    public DBPort.ReplyStream stream( DB db , DBMessage m ) throws MongoException;
+
+    /**
+     * sends m and returns without waiting for the reply.
+     * m's encoder and decoder both have to stay checked out until the future completes
+     */
+    public DBFuture<DBMessage> callAsync( DB db , DBMessage m , ByteDecoder decoder ) throws MongoException;
+
+    /**
+     * sends m and returns without waiting.
+     * the future completes once m has been written, or with the getlasterror result if concern is STRICT
+     */
+    public DBFuture<DBObject> sayAsync( DB db , DBMessage m , DB.WriteConcern concern ) throws MongoException;
+
+    /**
+     * @return true once the Mongo this belongs to has been closed
+     */
+    public boolean isClosed();
+
+    /**
+     * a plain DBConnector, doing everything one message at a time on the calling thread
+     */
+    static class Adapter implements InternalConnector {
+
+        static InternalConnector wrap( DBConnector c ){
+            if ( c instanceof InternalConnector )
+                return (InternalConnector)c;
+            return new Adapter( c );
+        }
+
+        Adapter( DBConnector connector ){
+            _connector = connector;
+        }
+
+        public void requestStart(){
+            _connector.requestStart();
+        }
+
+        public void requestDone(){
+            _connector.requestDone();
+        }
+
+        public void requestEnsureConnection(){
+            _connector.requestEnsureConnection();
+        }
+
+        public void say( DB db , DBMessage m , DB.WriteConcern concern ){
+            _connector.say( db , m , concern );
+        }
+
+        public DBMessage call( DB db , DBMessage m , ByteDecoder decoder ){
+            return _connector.call( db , m , decoder );
+        }
+
+        public DBMessage call( DB db , DBMessage m , ByteDecoder decoder , int retries ){
+            return _connector.call( db , m , decoder , retries );
+        }
+
+        /**
+         * each message gets its own getlasterror, if there is one, and its result isn't seen
+         */
+        public DBObject say( DB db , Iterator<DBMessage> msgs , DB.WriteConcern concern ){
+            while ( msgs.hasNext() )
+                _connector.say( db , msgs.next() , concern );
+            return null;
+        }
+
+        public DBPort.ReplyStream stream( DB db , DBMessage m ){
+            return null;
+        }
+
+        public DBFuture<DBMessage> callAsync( DB db , DBMessage m , ByteDecoder decoder ){
+            DBFuture<DBMessage> f = new DBFuture<DBMessage>();
+            try {
+                f.set( _connector.call( db , m , decoder ) );
+            }
+            catch ( RuntimeException e ){
+                f.fail( e );
+            }
+            return f;
+        }
+
+        public DBFuture<DBObject> sayAsync( DB db , DBMessage m , DB.WriteConcern concern ){
+            DBFuture<DBObject> f = new DBFuture<DBObject>();
+            try {
+                _connector.say( db , m , concern );
+                f.set( null );
+            }
+            catch ( RuntimeException e ){
+                f.fail( e );
+            }
+            return f;
+        }
+
+        public boolean isClosed(){
+            return false;
+        }
+
+        final DBConnector _connector;
+    }
+}
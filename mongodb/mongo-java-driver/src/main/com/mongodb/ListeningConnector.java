@@ -0,0 +1,252 @@
+// ListeningConnector.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * sits in front of the real connector and tells listeners about every message.
+ * with no listeners it just passes everything through
+ */
+class ListeningConnector implements InternalConnector {
+
+    static final Logger _logger = Logger.getLogger( Bytes.LOGGER.getName() + ".listener" );
+
+    /**
+     * @param streams if connector's stream ever returns anything
+     */
+    ListeningConnector( InternalConnector connector , boolean streams ){
+        _connector = connector;
+        _streams = streams;
+    }
+
+    void addListener( DBListener l ){
+        _listeners.add( l );
+    }
+
+    void removeListener( DBListener l ){
+        _listeners.remove( l );
+    }
+
+    public void requestStart(){
+        _connector.requestStart();
+    }
+
+    public void requestDone(){
+        _connector.requestDone();
+    }
+
+    public void requestEnsureConnection(){
+        _connector.requestEnsureConnection();
+    }
+
+    public void say( DB db , DBMessage m , DB.WriteConcern concern )
+        throws MongoException {
+        if ( _listeners.isEmpty() ){
+            _connector.say( db , m , concern );
+            return;
+        }
+
+        DBEvent e = _started( m );
+        try {
+            _connector.say( db , m , concern );
+        }
+        catch ( RuntimeException re ){
+            _finished( e , 0 , re );
+            throw re;
+        }
+        _finished( e , 0 , null );
+    }
+
+    /**
+     * each message's event starts when it's taken from msgs, and finishes when the next one is, since it's been written by then.
+     * the last one finishes once say returns, getlasterror included
+     */
+    public DBObject say( DB db , final Iterator<DBMessage> msgs , DB.WriteConcern concern )
+        throws MongoException {
+        if ( _listeners.isEmpty() )
+            return _connector.say( db , msgs , concern );
+
+        final DBEvent[] cur = new DBEvent[1];
+        Iterator<DBMessage> watched = new Iterator<DBMessage>(){
+            public boolean hasNext(){
+                return msgs.hasNext();
+            }
+
+            public DBMessage next(){
+                if ( cur[0] != null )
+                    _finished( cur[0] , 0 , null );
+                cur[0] = null;
+                DBMessage m = msgs.next();
+                cur[0] = _started( m );
+                return m;
+            }
+
+            public void remove(){
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        DBObject res;
+        try {
+            res = _connector.say( db , watched , concern );
+        }
+        catch ( RuntimeException re ){
+            if ( cur[0] != null )
+                _finished( cur[0] , 0 , re );
+            throw re;
+        }
+        if ( cur[0] != null )
+            _finished( cur[0] , 0 , null );
+        return res;
+    }
+
+    public DBMessage call( DB db , DBMessage m , ByteDecoder decoder )
+        throws MongoException {
+        return call( db , m , decoder , 2 );
+    }
+
+    public DBMessage call( DB db , DBMessage m , ByteDecoder decoder , int retries )
+        throws MongoException {
+        if ( _listeners.isEmpty() )
+            return _connector.call( db , m , decoder , retries );
+
+        DBEvent e = _started( m );
+        DBMessage res;
+        try {
+            res = _connector.call( db , m , decoder , retries );
+        }
+        catch ( RuntimeException re ){
+            _finished( e , 0 , re );
+            throw re;
+        }
+        _finished( e , _numReturned( decoder ) , null );
+        return res;
+    }
+
+    /**
+     * finishes once the header is in, which is all that's been read by then
+     */
+    public DBPort.ReplyStream stream( DB db , DBMessage m )
+        throws MongoException {
+        // when it isn't streaming, call is used instead and gets its own event
+        if ( _listeners.isEmpty() || ! _streams )
+            return _connector.stream( db , m );
+
+        DBEvent e = _started( m );
+        DBPort.ReplyStream s;
+        try {
+            s = _connector.stream( db , m );
+        }
+        catch ( RuntimeException re ){
+            _finished( e , 0 , re );
+            throw re;
+        }
+        _finished( e , s == null ? 0 : s._header._num , null );
+        return s;
+    }
+
+    public DBFuture<DBMessage> callAsync( DB db , DBMessage m , final ByteDecoder decoder )
+        throws MongoException {
+        if ( _listeners.isEmpty() )
+            return _connector.callAsync( db , m , decoder );
+
+        final DBEvent e = _started( m );
+        DBFuture<DBMessage> f;
+        try {
+            f = _connector.callAsync( db , m , decoder );
+        }
+        catch ( RuntimeException re ){
+            _finished( e , 0 , re );
+            throw re;
+        }
+        f.addCallback( new DBFuture.Callback<DBMessage>(){
+                public void done( DBMessage res , MongoException error ){
+                    _finished( e , error == null ? _numReturned( decoder ) : 0 , error );
+                }
+            } );
+        return f;
+    }
+
+    public boolean isClosed(){
+        return _connector.isClosed();
+    }
+
+    public DBFuture<DBObject> sayAsync( DB db , DBMessage m , DB.WriteConcern concern )
+        throws MongoException {
+        if ( _listeners.isEmpty() )
+            return _connector.sayAsync( db , m , concern );
+
+        final DBEvent e = _started( m );
+        DBFuture<DBObject> f;
+        try {
+            f = _connector.sayAsync( db , m , concern );
+        }
+        catch ( RuntimeException re ){
+            _finished( e , 0 , re );
+            throw re;
+        }
+        f.addCallback( new DBFuture.Callback<DBObject>(){
+                public void done( DBObject res , MongoException error ){
+                    _finished( e , 0 , error );
+                }
+            } );
+        return f;
+    }
+
+    /**
+     * @return how many documents are in the reply sitting in decoder
+     */
+    static int _numReturned( ByteDecoder decoder ){
+        if ( decoder._buf.limit() < DBMessage.HEADER_LENGTH + 20 )
+            return 0;
+        return decoder._buf.getInt( DBMessage.HEADER_LENGTH + 16 );
+    }
+
+    private DBEvent _started( DBMessage m ){
+        DBEvent e = new DBEvent( m );
+        for ( DBListener l : _listeners ){
+            try {
+                l.started( e );
+            }
+            catch ( RuntimeException re ){
+                _logger.log( Level.WARNING , "listener failed" , re );
+            }
+        }
+        return e;
+    }
+
+    private void _finished( DBEvent e , int numReturned , RuntimeException error ){
+        e.finish( numReturned , error );
+        for ( DBListener l : _listeners ){
+            try {
+                l.finished( e );
+            }
+            catch ( RuntimeException re ){
+                _logger.log( Level.WARNING , "listener failed" , re );
+            }
+        }
+    }
+
+    final InternalConnector _connector;
+    final boolean _streams;
+    private final List<DBListener> _listeners = new CopyOnWriteArrayList<DBListener>();
+}
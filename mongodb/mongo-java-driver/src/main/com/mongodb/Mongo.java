@@ -61,6 +61,11 @@ import java.util.*;
  * Once the slave becomes master, the driver will begin using that connection
  * as the master connection and the exceptions will stop being thrown.
  * </p>
+ * <p>
+ * Each host is also asked whether it is master in the background, every
+ * {@link MongoOptions#monitorInterval} milliseconds, so a new master is usually
+ * picked up before any request fails on the old one.
+ * </p>
  */
 public class Mongo {
 
@@ -131,8 +136,11 @@ public class Mongo {
         _addr = addr;
         _addrs = null;
         _options = options;
-        _connector = new DBTCPConnector( this , _addr );
+        _metrics = _metrics( options , addr.toString() );
+        _connector = options.nonBlocking ? new DBNIOConnector( this , _addr ) : new DBTCPConnector( this , _addr );
+        _listening = _listening( _connector , options );
         _connector._pickInitial();
+        _connector._warmUp();
     }
 
     /**
@@ -155,8 +163,11 @@ public class Mongo {
         _addr = null;
         _addrs = Arrays.asList( left , right );
         _options = options;
-        _connector = new DBTCPConnector( this , _addrs );
+        _metrics = _metrics( options , _addrs.toString() );
+        _connector = options.nonBlocking ? new DBNIOConnector( this , _addrs ) : new DBTCPConnector( this , _addrs );
+        _listening = _listening( _connector , options );
         _connector._pickInitial();
+        _connector._warmUp();
     }
     
     public DB getDB( String dbname ){
@@ -170,7 +181,7 @@ public class Mongo {
             if ( db != null )
                 return db;
             
-            db = new DBApiLayer( dbname , _connector );
+            db = new DBApiLayer( dbname , _listening );
 
             _dbs.put( dbname , db );
             return db;
@@ -230,9 +241,54 @@ public class Mongo {
         return _connector.getAddress();
     }
     
+    /**
+     * closes every connection and stops every thread this started.
+     * anything still outstanding fails, and so does anything tried afterwards
+     */
+    public void close(){
+        _connector.close();
+        if ( _metrics != null )
+            _metrics.unregister();
+    }
+
+    /**
+     * @return the counters for everything this has sent, or null if MongoOptions.metrics is off
+     */
+    public DBMetrics getMetrics(){
+        return _metrics;
+    }
+
+    /**
+     * l will be told about every message sent from now on
+     */
+    public void addListener( DBListener l ){
+        _listening.addListener( l );
+    }
+
+    public void removeListener( DBListener l ){
+        _listening.removeListener( l );
+    }
+
+    private static ListeningConnector _listening( InternalConnector connector , MongoOptions options ){
+        ListeningConnector l = new ListeningConnector( connector , options.streamReplies && ! options.pipelined && ! options.nonBlocking );
+        if ( options.slowOpTime > 0 )
+            l.addListener( new SlowOpLogger( options.slowOpTime ) );
+        return l;
+    }
+
+    private static DBMetrics _metrics( MongoOptions options , String name ){
+        if ( ! options.metrics )
+            return null;
+        DBMetrics m = new DBMetrics();
+        m.register( name );
+        return m;
+    }
+    
     final ServerAddress _addr;
     final List<ServerAddress> _addrs;
     final MongoOptions _options;
+    final DBMetrics _metrics;
     final DBTCPConnector _connector;
+    final ListeningConnector _listening;
     final Map<String,DB> _dbs = new HashMap<String,DB>();
 }
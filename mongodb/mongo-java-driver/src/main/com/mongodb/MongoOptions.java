@@ -33,6 +33,20 @@ public class MongoOptions {
         connectTimeout = 0;
         socketTimeout = 0;
         autoConnectRetry = false;
+        pipelined = false;
+        nonBlocking = false;
+        ioThreads = 2;
+        streamReplies = false;
+        monitorInterval = 5000;
+        latencyWindow = 15;
+        minIdleConnectionsPerHost = 0;
+        maxIdleTime = 0;
+        keepAliveInterval = 0;
+        metrics = false;
+        slowOpTime = 0;
+        compression = false;
+        compressionThreshold = 1024;
+        compressionLevel = java.util.zip.Deflater.BEST_SPEED;
     }
 
     /**
@@ -63,4 +77,97 @@ public class MongoOptions {
        this controls whether or not on a connect, the system retries automatically 
     */
     public boolean autoConnectRetry;
+
+    /**
+       if true, threads share connections instead of checking them out.
+       each of the connectionsPerHost sockets can have any number of requests in flight,
+       and a reader thread per socket matches replies to requests.
+       socketTimeout is then how long to wait for a reply, not for a read
+     */
+    public boolean pipelined;
+
+    /**
+       if true, use a selector based connector.  all socket i/o is done by ioThreads threads,
+       and each calling thread always uses the same one of the connectionsPerHost sockets
+     */
+    public boolean nonBlocking;
+
+    /**
+       number of selector threads when nonBlocking is on
+     */
+    public int ioThreads;
+
+    /**
+       if true, cursors decode each document as it comes off the socket rather than waiting for the whole batch.
+       the first document is available sooner, and a batch doesn't have to fit in memory at once.
+       the connection goes back to the pool while the batch is being read,
+       and if it's needed before then, the rest of the batch is buffered.
+       ignored when pipelined or nonBlocking is on
+     */
+    public boolean streamReplies;
+
+    /**
+       when given more than one host, how often in milliseconds to ask each of them ismaster in the background.
+       the connector switches to a new master as soon as one is seen, and doesn't fail over to hosts that aren't answering.
+       0 turns this off, and the master is only looked for after an error
+     */
+    public long monitorInterval;
+
+    /**
+       queries with QUERYOPTION_SLAVEOK go to a secondary whose ping time is within this many milliseconds of the fastest one,
+       picked at random so they share the load.  they go to the master if no secondary is up.
+       only used when the monitor is on
+     */
+    public int latencyWindow;
+
+    /**
+       number of connections to each host to open ahead of time and keep sitting idle in the pool,
+       so a burst of requests doesn't have to wait for sockets to connect.
+       the master's are opened when the Mongo is created, and the rest the first time a host is used.
+       never more than connectionsPerHost.  ignored when nonBlocking is on
+     */
+    public int minIdleConnectionsPerHost;
+
+    /**
+       connections that have sat unused in the pool for this many milliseconds are closed,
+       down to minIdleConnectionsPerHost.  0 is default and keeps them forever.
+       when pipelined, a connection is unused while it has no replies outstanding, and reconnects when it's next picked
+     */
+    public long maxIdleTime;
+
+    /**
+       connections that have sat unused in the pool for this many milliseconds are sent ismaster
+       in the background, and closed if that fails, so a dead socket is found before a real request gets it.
+       0 is default and never checks.  when pipelined, only connections with no replies outstanding are checked
+     */
+    public long keepAliveInterval;
+
+    /**
+       if true, latency, bytes, cursors and pool waits are counted per host and per collection.
+       see Mongo.getMetrics, which is also registered over JMX until Mongo.close
+     */
+    public boolean metrics;
+
+    /**
+       operations that take at least this many milliseconds are logged as warnings to com.mongodb.slow,
+       and failed ones at info.  0 is default and logs nothing.  see SlowOpLogger and Mongo.addListener
+     */
+    public long slowOpTime;
+
+    /**
+       if true, messages of at least compressionThreshold bytes are sent zlib compressed in OP_COMPRESSED,
+       and compressed replies are inflated.  only for servers, or proxies, that understand OP_COMPRESSED.
+       trades cpu for bandwidth, so is worth it across slow or billed links.  ignored when nonBlocking is on
+     */
+    public boolean compression;
+
+    /**
+       messages smaller than this many bytes aren't worth compressing, and are sent as they are
+     */
+    public int compressionThreshold;
+
+    /**
+       zlib level from 1, fastest, to 9, smallest.  default is 1
+     */
+    public int compressionLevel;
 }
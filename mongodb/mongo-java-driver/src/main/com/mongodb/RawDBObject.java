@@ -27,6 +27,8 @@ import static com.mongodb.util.MyAsserts.*;
 import com.mongodb.util.*;
 /** This object wraps the binary object format ("BSON") used for the transport of serialized objects 
    to / from the Mongo database.
+   Fields are decoded in place the first time they are asked for, so it's cheap when only a few fields of a wide object are used.
+   Read only, and safe to read from more than one thread.
 
    http://www.mongodb.org/display/DOCS/BSON
 */
@@ -40,20 +42,50 @@ public class RawDBObject implements DBObject {
     }
     
     RawDBObject( ByteBuffer buf , int offset ){
+        this( buf , offset , null );
+    }
+
+    /**
+     * @param buf must not change while this object is in use
+     * @param base used to resolve references, may be null
+     */
+    RawDBObject( ByteBuffer buf , int offset , DB base ){
         _buf = buf;
         _offset = offset;
         _end = _buf.getInt( _offset );
+        _base = base;
     }
 
+    /**
+     * the cache is only touched holding the lock, so threads can share a document.
+     * the decoding is done outside it, and if two threads race the first one's value is kept
+     */
     public Object get( String key ){
+        synchronized ( this ){
+            if ( _cache != null ){
+                Object o = _cache.get( key );
+                if ( o != null || _cache.containsKey( key ) )
+                    return o;
+            }
+        }
+
         Element e = findElement( key );
         if ( e == null )
             return null;
-        return e.getObject();
+
+        Object o = e.getObject();
+        synchronized ( this ){
+            if ( _cache == null )
+                _cache = new HashMap<String,Object>();
+            else if ( _cache.containsKey( key ) )
+                return _cache.get( key );
+            _cache.put( key , o );
+        }
+        return o;
     }
 
     public Map toMap() {
-        Map m = new HashMap();
+        Map m = new LinkedHashMap();
         Iterator i = this.keySet().iterator();
         while (i.hasNext()) {
             Object s = i.next();
@@ -90,112 +122,115 @@ public class RawDBObject implements DBObject {
     }
 
     public Set<String> keySet(){    
-        Set<String> keys = new HashSet<String>();
+        Set<String> keys = new LinkedHashSet<String>();
         
         ElementIter i = new ElementIter();
         while ( i.hasNext() ){
             Element e = i.next();
-	    if ( e.eoo() )
-		break;
+            if ( e.eoo() )
+                break;
             keys.add( e.fieldName() );
         }
         
         return keys;
     }
+
     String _readCStr( final int start ){
-	return _readCStr( start , null );
+        return _readString( start , _cStrLength( start ) - 1 );
     }
-    
-    String _readCStr( final int start , final int[] end ){
-        synchronized ( _cStrBuf ){
-            int pos = 0;
-            while ( _buf.get( pos + start ) != 0 ){
-                _cStrBuf[pos] = _buf.get( pos + start );
-                pos++;
-                if ( pos >= _cStrBuf.length )
-                    throw new IllegalArgumentException( "c string too big for RawDBObject.  so far[" + new String( _cStrBuf ) + "]" );
-
-                if ( pos + start >= _buf.limit() ){
-                    StringBuilder sb = new StringBuilder();
-                    for ( int x=0; x<10; x++ ){
-                        int y = start + x;
-                        if ( y >= _buf.limit() )
-                            break;
-                        sb.append( (char)_buf.get( y ) );
-                    }
-                    throw new IllegalArgumentException( "can't find end of cstring.  start:" + start + " pos: " + pos + " [" + sb + "]" );
-                }
-            }
-            if ( end != null && end.length > 0 )
-                end[0] = start + pos;
-            return new String( _cStrBuf , 0 , pos );
 
-        }
+    String _readJavaString( final int start ){
+        return _readString( start + 4 , _buf.getInt( start ) - 1 );
     }
 
-    String _readJavaString( final int start ){
-	int size = _buf.getInt( start ) - 1;
-	
-	byte[] b = new byte[size];
+    private String _readString( final int start , final int len ){
+        if ( start + len > _buf.limit() )
+            throw new IllegalArgumentException( "string runs past end of buffer.  start:" + start + " len:" + len );
 
-	int old = _buf.position();
-	_buf.position( start + 4 );
-	_buf.get( b , 0 , b.length );
-	_buf.position( old );
-	
-	try {
-	    return new String( b , "UTF-8" );
-	}
-	catch ( java.io.UnsupportedEncodingException uee ){
-	    return new String( b );
-	}
+        byte[] b;
+        int off = 0;
+        if ( _buf.hasArray() ){
+            b = _buf.array();
+            off = _buf.arrayOffset() + start;
+        }
+        else {
+            b = new byte[len];
+            for ( int i=0; i<len; i++ )
+                b[i] = _buf.get( start + i );
+        }
+
+        try {
+            return new String( b , off , len , "UTF-8" );
+        }
+        catch ( java.io.UnsupportedEncodingException uee ){
+            throw new MongoInternalException( "impossible" , uee );
+        }
     }
 
     /**
      * includes 0 at end
      */
     int _cStrLength( final int start ){
-	int end = start;
-	while ( _buf.get( end ) != 0 )
-	    end++;
-	return 1 + ( end - start );
+        int end = start;
+        while ( _buf.get( end ) != 0 ){
+            end++;
+            if ( end >= _buf.limit() )
+                throw new IllegalArgumentException( "can't find end of cstring.  start:" + start );
+        }
+        return 1 + ( end - start );
+    }
+
+    /**
+     * compares the cstring at start to name without making a String, unless name isn't ascii
+     */
+    boolean _cStrEquals( final int start , final String name ){
+        final int len = name.length();
+        for ( int i=0; i<len; i++ ){
+            char c = name.charAt( i );
+            if ( c >= 0x80 )
+                return _readCStr( start ).equals( name );
+            if ( _buf.get( start + i ) != c )
+                return false;
+        }
+        return _buf.get( start + len ) == 0;
     }
 
     Element findElement( String name ){
         ElementIter i = new ElementIter();
         while ( i.hasNext() ){
             Element e = i.next();
-            if ( e.fieldName().equals( name ) )
+            if ( e.eoo() )
+                break;
+            if ( _cStrEquals( e._start + 1 , name ) )
                 return e;
         }
         return null;
     }
 
     public boolean isPartialObject(){
-        return false;
+        return _isPartialObject;
     }
 
-
     public void markAsPartialObject(){
-        throw new RuntimeException( "RawDBObject can't be a partial object" );
+        _isPartialObject = true;
     }
 
     public String toString(){
-        return "Object";
+        return JSON.serialize( this );
     }
     
     class Element {
         Element( final int start ){
             _start = start;
             _type = _buf.get( _start );
-            int end[] = new int[1];
-            _name = eoo() ? "" : _readCStr( _start + 1 , end );
-            
-	    if ( DEBUG ) System.out.println( "name [" + _name + "] type [" + _type + "]" );
-	    
-            int size = 1 + ( end[0] - _start); // 1 for the end of the string
+
+            int size = 1;
+            if ( ! eoo() )
+                size += _cStrLength( _start + 1 );
             _dataStart = _start + size;
 
+            if ( DEBUG ) System.out.println( "type [" + _type + "] at " + _start );
+
             switch ( _type ){
             case MAXKEY:
             case MINKEY:
@@ -211,9 +246,9 @@ public class RawDBObject implements DBObject {
             case NUMBER_LONG:
                 size += 8;
                 break;
-	    case NUMBER_INT:
-		size += 4;
-		break;
+            case NUMBER_INT:
+                size += 4;
+                break;
             case OID:
                 size += 12;
                 break;
@@ -227,16 +262,16 @@ public class RawDBObject implements DBObject {
             case CODE_W_SCOPE:
             case ARRAY:
             case OBJECT:
-		size += _buf.getInt( _dataStart );
-		break;
+                size += _buf.getInt( _dataStart );
+                break;
             case BINARY:
                 size += 4 + _buf.getInt( _dataStart ) + 1;
                 break;
             case REGEX:
-		int first = _cStrLength( _dataStart );
-		int second = _cStrLength( _dataStart + first );
-		size += first + second;
-		break;
+                int first = _cStrLength( _dataStart );
+                int second = _cStrLength( _dataStart + first );
+                size += first + second;
+                break;
             case TIMESTAMP:
                 size += 8;
                 break;
@@ -247,11 +282,13 @@ public class RawDBObject implements DBObject {
         }
 
         String fieldName(){
+            if ( _name == null )
+                _name = eoo() ? "" : _readCStr( _start + 1 );
             return _name;
         }
 
         boolean eoo(){
-            return _type == EOO || _type == MAXKEY;
+            return _type == EOO;
         }
 	
         int size(){
@@ -259,64 +296,100 @@ public class RawDBObject implements DBObject {
         }
 	
         Object getObject(){
-            
-            if ( _cached != null )
-                return _cached;
-            
+            Object o;
             switch ( _type ){
             case NUMBER:
-                return _buf.getDouble( _dataStart );
-	    case NUMBER_INT:
-		return _buf.getInt( _dataStart );
-	    case OID:
-		return new ObjectId( _buf.getInt( _dataStart ) , _buf.getInt( _dataStart + 4 ) , _buf.getInt( _dataStart + 8 ) );
-	    case CODE:
-            case CODE_W_SCOPE:
-                throw new RuntimeException( "can't handle code" );
-	    case SYMBOL:
-	    case STRING:
-		return _readJavaString( _dataStart );
-	    case DATE:
-		return new Date( _buf.getLong( _dataStart ) );
-	    case REGEX:
-		//int[] endPos = new int[1];
-		//String first = _readCStr( _dataStart , endPos );
-		//return new JSRegex( first , _readCStr( 1 + endPos[0] ) );
-                throw new RuntimeException( "can't handle regex" );
-	    case BINARY:
-		throw new RuntimeException( "can't inspect binary in db" );
-	    case BOOLEAN:
-		return _buf.get( _dataStart ) > 0;
-	    case ARRAY:
-	    case OBJECT:
-                throw new RuntimeException( "can't handle emebdded objects" );
-	    case NULL:
-            case EOO:
-	    case MAXKEY:
+                o = _buf.getDouble( _dataStart );
+                break;
+            case NUMBER_INT:
+                o = _buf.getInt( _dataStart );
+                break;
+            case NUMBER_LONG:
+                o = _buf.getLong( _dataStart );
+                break;
+            case OID:
+                o = new ObjectId( _buf.getInt( _dataStart ) , _buf.getInt( _dataStart + 4 ) , _buf.getInt( _dataStart + 8 ) );
+                break;
+            case SYMBOL:
+            case STRING:
+                o = _readJavaString( _dataStart );
+                break;
+            case DATE:
+                o = new Date( _buf.getLong( _dataStart ) );
+                break;
+            case BOOLEAN:
+                o = _buf.get( _dataStart ) > 0;
+                break;
+            case OBJECT:
+                RawDBObject embedded = new RawDBObject( _buf , _dataStart , _base );
+                if ( embedded.containsField( "$ref" ) && embedded.containsField( "$id" ) )
+                    o = new DBRef( _base , embedded.get( "$ref" ).toString() , embedded.get( "$id" ) );
+                else
+                    o = embedded;
+                break;
+            case ARRAY:
+                BasicDBList l = new BasicDBList();
+                ElementIter i = new ElementIter( _dataStart );
+                while ( i.hasNext() ){
+                    Element e = i.next();
+                    if ( e.eoo() )
+                        break;
+                    l.add( e.getObject() );
+                }
+                o = l;
+                break;
+            case NULL:
+            case UNDEFINED:
+                o = null;
+                break;
             case MINKEY:
-	    case UNDEFINED:
-                return null;
+                o = "MinKey";
+                break;
+            case MAXKEY:
+                o = "MaxKey";
+                break;
+            default:
+                return _decode();
             }
-            throw new RuntimeException( "can't decode type " + _type );
+            return Bytes.applyDecodingHooks( _type , o );
+        }
+
+        /**
+         * the less common types go through ByteDecoder so they come out the same as an eager read
+         */
+        private Object _decode(){
+            ByteBuffer buf = _buf.duplicate();
+            buf.order( Bytes.ORDER );
+            buf.position( _start );
+            buf.limit( _start + _size );
+
+            ByteDecoder decoder = new ByteDecoder( buf );
+            decoder._base = _base;
+            DBObject holder = new BasicDBObject();
+            decoder.decodeNext( holder , "" );
+            return holder.get( fieldName() );
         }
 
         final int _start;
         final byte _type;
-        final String _name;
         final int _dataStart;
         final int _size;
-
-        Object _cached;
+        private String _name;
     }
     
     class ElementIter {
         
         ElementIter(){
-            _pos = _offset + 4;
+            this( _offset );
+        }
+
+        ElementIter( int objectStart ){
+            _pos = objectStart + 4;
+            _limit = objectStart + _buf.getInt( objectStart );
         }
         
         boolean hasNext(){
-            return ! _done && _pos < _buf.limit();
+            return ! _done && _pos < _limit;
         }
         
         Element next(){
@@ -328,11 +401,15 @@ public class RawDBObject implements DBObject {
         }
         
         int _pos;
+        final int _limit;
         boolean _done = false;
     }
 
     final ByteBuffer _buf;
     final int _offset;
     final int _end;
-    private final static byte[] _cStrBuf = new byte[1024];
+    final DB _base;
+
+    private Map<String,Object> _cache;
+    private boolean _isPartialObject = false;
 }
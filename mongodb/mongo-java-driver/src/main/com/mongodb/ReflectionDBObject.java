@@ -101,12 +101,16 @@ public abstract class ReflectionDBObject implements DBObject {
     JavaWrapper _wrapper;
     Object _id;
 
+    /**
+     * everything about a class worked out once: its fields, in order, with their BSON types,
+     * so encoding and decoding don't have to figure it out again per object
+     */
     public static class JavaWrapper {
         JavaWrapper( Class c ){
             _class = c;
             _name = c.getName();
 
-            _fields = new TreeMap<String,FieldInfo>();
+            _fields = new HashMap<String,FieldInfo>();
             for ( Method m : c.getMethods() ){
                 if ( ! ( m.getName().startsWith( "get" ) || m.getName().startsWith( "set" ) ) )
                     continue;
@@ -134,7 +138,48 @@ public abstract class ReflectionDBObject implements DBObject {
                 if ( ! _fields.get( name ).ok() )
                     _fields.remove( name );
             
-            _keys = Collections.unmodifiableSet( _fields.keySet() );
+            _keys = Collections.unmodifiableSet( new TreeSet<String>( _fields.keySet() ) );
+
+            _ordered = new FieldInfo[ _keys.size() ];
+            int i = 0;
+            for ( String name : _keys ){
+                _ordered[i] = _fields.get( name );
+                _ordered[i].compile();
+                i++;
+            }
+            _id = _fields.get( "_id" );
+
+            Constructor cons = null;
+            try {
+                cons = c.getDeclaredConstructor();
+                cons.setAccessible( true );
+            }
+            catch ( NoSuchMethodException nsme ){
+                // can only be written, not read back
+            }
+            catch ( SecurityException se ){
+                cons = null;
+            }
+            _constructor = cons;
+        }
+
+        /**
+         * what the decoder uses to make objects of this class
+         */
+        ReflectionDBObject newInstance(){
+            if ( _constructor == null )
+                throw new MongoInternalException( "can't instantiate a : " + _class + " (needs a no-arg constructor)" );
+            try {
+                ReflectionDBObject o = (ReflectionDBObject)_constructor.newInstance();
+                o._wrapper = this;
+                return o;
+            }
+            catch ( InvocationTargetException ite ){
+                throw new MongoInternalException( "can't instantiate a : " + _class , ite.getCause() );
+            }
+            catch ( Exception e ){
+                throw new MongoInternalException( "can't instantiate a : " + _class , e );
+            }
         }
 
         public Set<String> keySet(){
@@ -142,34 +187,33 @@ public abstract class ReflectionDBObject implements DBObject {
         }
 
         public boolean containsKey( String key ){
-            return _keys.contains( key );
+            return _fields.containsKey( key );
         }
 
         public Object get( ReflectionDBObject t , String name ){
             FieldInfo i = _fields.get( name );
             if ( i == null )
                 return null;
-            try {
-                return i._getter.invoke( t );
-            }
-            catch ( Exception e ){
-                throw new RuntimeException( "could not invoke getter for [" + name + "] on [" + _name + "]" , e );
-            }
+            return i.get( t );
         }
 
         public Object set( ReflectionDBObject t , String name , Object val ){
             FieldInfo i = _fields.get( name );
             if ( i == null )
                 throw new IllegalArgumentException( "no field [" + name + "] on [" + _name + "]" );
-            try {
-                return i._setter.invoke( t , val );
-            }
-            catch ( Exception e ){
-                throw new RuntimeException( "could not invoke setter for [" + name + "] on [" + _name + "]" , e );
-            }
+            return i.set( t , val );
         }
 
         Class getInternalClass( String path ){
+            Class c = _internalClasses.get( path );
+            if ( c == null ){
+                c = _findInternalClass( path );
+                _internalClasses.put( path , c == null ? NONE : c );
+            }
+            return c == NONE ? null : c;
+        }
+
+        private Class _findInternalClass( String path ){
             String cur = path;
             String next = null;
             final int idx = path.indexOf( "." );
@@ -195,6 +239,10 @@ public abstract class ReflectionDBObject implements DBObject {
         final String _name;
         final Map<String,FieldInfo> _fields;
         final Set<String> _keys;
+        final FieldInfo[] _ordered;
+        final FieldInfo _id;
+        private final Constructor _constructor;
+        private final Map<String,Class> _internalClasses = new java.util.concurrent.ConcurrentHashMap<String,Class>();
     }
     
     static class FieldInfo {
@@ -208,11 +256,95 @@ public abstract class ReflectionDBObject implements DBObject {
                 _getter != null &&
                 _setter != null;
         }
+
+        /**
+         * works out how this field is written and read.  called once both accessors are known
+         */
+        void compile(){
+            _type = _bsonType( _getter.getReturnType() );
+            _setterType = _setter.getParameterTypes()[0];
+            try {
+                // skips the access check on every invoke
+                _getter.setAccessible( true );
+                _setter.setAccessible( true );
+            }
+            catch ( SecurityException se ){
+                // still works, just a bit slower
+            }
+        }
+
+        Object get( ReflectionDBObject t ){
+            try {
+                return _getter.invoke( t );
+            }
+            catch ( Exception e ){
+                throw new RuntimeException( "could not invoke getter for [" + _name + "] on [" + t.getClass().getName() + "]" , e );
+            }
+        }
+
+        Object set( ReflectionDBObject t , Object val ){
+            if ( val instanceof Number )
+                val = _convert( (Number)val );
+            try {
+                return _setter.invoke( t , val );
+            }
+            catch ( Exception e ){
+                throw new RuntimeException( "could not invoke setter for [" + _name + "] on [" + t.getClass().getName() + "]" , e );
+            }
+        }
+
+        /**
+         * the db doesn't always keep the number type we wrote (the shell makes everything a double),
+         * so make it fit the setter
+         */
+        private Object _convert( Number n ){
+            final Class c = _setterType;
+            if ( c.isInstance( n ) )
+                return n;
+            if ( c == Integer.TYPE || c == Integer.class )
+                return n.intValue();
+            if ( c == Long.TYPE || c == Long.class )
+                return n.longValue();
+            if ( c == Double.TYPE || c == Double.class )
+                return n.doubleValue();
+            if ( c == Float.TYPE || c == Float.class )
+                return n.floatValue();
+            if ( c == Short.TYPE || c == Short.class )
+                return n.shortValue();
+            if ( c == Byte.TYPE || c == Byte.class )
+                return n.byteValue();
+            return n;
+        }
         
         final String _name;
         final Class _class;
         Method _getter;
         Method _setter;
+
+        /** the BSON type values of this field are always written as, or 0 if it depends on the value */
+        byte _type;
+        Class _setterType;
+    }
+
+    static byte _bsonType( Class c ){
+        if ( c == Integer.TYPE || c == Integer.class || 
+             c == Short.TYPE || c == Short.class || 
+             c == Byte.TYPE || c == Byte.class )
+            return Bytes.NUMBER_INT;
+        if ( c == Long.TYPE || c == Long.class )
+            return Bytes.NUMBER_LONG;
+        if ( c == Double.TYPE || c == Double.class || 
+             c == Float.TYPE || c == Float.class )
+            return Bytes.NUMBER;
+        if ( c == Boolean.TYPE || c == Boolean.class )
+            return Bytes.BOOLEAN;
+        if ( c == String.class )
+            return Bytes.STRING;
+        if ( Date.class.isAssignableFrom( c ) )
+            return Bytes.DATE;
+        if ( c == ObjectId.class )
+            return Bytes.OID;
+        return 0;
     }
         
     public static JavaWrapper getWrapperIfReflectionObject( Class c ){
@@ -230,7 +362,8 @@ public abstract class ReflectionDBObject implements DBObject {
         return w;
     }
     
-    private static final Map<Class,JavaWrapper> _wrappers = Collections.synchronizedMap( new HashMap<Class,JavaWrapper>() );
+    private static final Class NONE = Void.class;
+    private static final Map<Class,JavaWrapper> _wrappers = new java.util.concurrent.ConcurrentHashMap<Class,JavaWrapper>();
     private static final Set<String> IGNORE_FIELDS = new HashSet<String>();
     static {
         IGNORE_FIELDS.add( "Int" );
@@ -0,0 +1,344 @@
+// ServerMonitor.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.io.*;
+import java.lang.ref.*;
+import java.net.*;
+import java.util.*;
+import java.util.logging.*;
+
+/**
+ * keeps track of every host a connector was given, by sending each one ismaster every so often on its own connection.
+ * when the master moves, the connector is switched over before any request has to fail to find out.
+ * holds the connector weakly, and stops once it's gone
+ */
+class ServerMonitor extends Thread {
+
+    static final Logger _logger = Logger.getLogger( Bytes.LOGGER.getName() + ".monitor" );
+
+    /** how long to wait for a host to answer when the options don't say */
+    static final int DEFAULT_TIMEOUT = 1000 * 10;
+
+    ServerMonitor( DBTCPConnector connector , List<ServerAddress> hosts , MongoOptions options ){
+        super( "ServerMonitor-" + hosts );
+        setDaemon( true );
+
+        _connector = new WeakReference<DBTCPConnector>( connector );
+        _interval = options.monitorInterval;
+
+        _portOptions = new MongoOptions();
+        _portOptions.connectTimeout = options.connectTimeout > 0 ? options.connectTimeout : DEFAULT_TIMEOUT;
+        _portOptions.socketTimeout = options.socketTimeout > 0 ? options.socketTimeout : DEFAULT_TIMEOUT;
+
+        List<Node> all = new ArrayList<Node>();
+        for ( ServerAddress a : hosts )
+            all.add( new Node( a ) );
+        _all = Collections.unmodifiableList( all );
+    }
+
+    public void run(){
+        while ( ! _closed ){
+            _sweep();
+
+            DBTCPConnector connector = _connector.get();
+            if ( connector == null || _closed )
+                break;
+            connector._masterChanged( master() );
+            connector = null;
+
+            // checks finishing wake this up too, so only a gotError or shutdown cuts the interval short
+            synchronized ( this ){
+                final long end = System.currentTimeMillis() + _interval;
+                while ( ! _closed && ! _sweepNow ){
+                    long wait = end - System.currentTimeMillis();
+                    if ( wait <= 0 )
+                        break;
+                    try {
+                        wait( wait );
+                    }
+                    catch ( InterruptedException ie ){
+                        // keep going
+                    }
+                }
+                _sweepNow = false;
+            }
+        }
+
+        // a check that's still going closes its own when it's done
+        for ( Node n : _all )
+            if ( ! n._checking )
+                n._close();
+    }
+
+    /**
+     * stops after the sweep that's going on now, if any, and closes the connections
+     */
+    void shutdown(){
+        synchronized ( this ){
+            _closed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * asks every host at once, each on its own thread, so one that's slow to answer doesn't hold up the rest.
+     * waits for them for up to an interval.  a host still being asked after that is left to finish, and skipped next time
+     */
+    private void _sweep(){
+        for ( final Node n : _all ){
+            if ( n._checking )
+                continue;
+            n._checking = true;
+            Thread t = new Thread( "ServerMonitor-check-" + n._addr ){
+                    public void run(){
+                        try {
+                            n.check();
+                        }
+                        finally {
+                            n._checks++;
+                            n._checking = false;
+                            if ( _closed )
+                                n._close();
+                            synchronized ( ServerMonitor.this ){
+                                ServerMonitor.this.notifyAll();
+                            }
+                        }
+                    }
+                };
+            t.setDaemon( true );
+            t.start();
+        }
+
+        synchronized ( this ){
+            final long end = System.currentTimeMillis() + _interval;
+            while ( ! _closed && _checking() ){
+                long wait = end - System.currentTimeMillis();
+                if ( wait <= 0 )
+                    break;
+                try {
+                    wait( wait );
+                }
+                catch ( InterruptedException ie ){
+                    // keep going
+                }
+            }
+        }
+    }
+
+    private boolean _checking(){
+        for ( Node n : _all )
+            if ( n._checking )
+                return true;
+        return false;
+    }
+
+    /**
+     * waits for every host to have been asked at least once, or for one of them to say it's master
+     * @return false if that took longer than timeout ms
+     */
+    synchronized boolean waitForFirstSweep( long timeout ){
+        final long end = System.currentTimeMillis() + timeout;
+        while ( ! _allChecked() && master() == null ){
+            long wait = end - System.currentTimeMillis();
+            if ( wait <= 0 )
+                return false;
+            try {
+                wait( wait );
+            }
+            catch ( InterruptedException ie ){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean _allChecked(){
+        for ( Node n : _all )
+            if ( n._checks == 0 )
+                return false;
+        return true;
+    }
+
+    /**
+     * the connector saw host fail.  it won't be picked again until it answers an ismaster,
+     * and the next sweep starts now rather than at the end of the interval
+     */
+    void gotError( ServerAddress host ){
+        gotError( host.getSocketAddress() );
+    }
+
+    void gotError( InetSocketAddress host ){
+        Node n = _find( host );
+        if ( n != null )
+            n._ok = false;
+        synchronized ( this ){
+            _sweepNow = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return the host that said it was master last time it was asked, or null if none did
+     */
+    ServerAddress master(){
+        for ( Node n : _all )
+            if ( n._ok && n._isMaster )
+                return n._addr;
+        return null;
+    }
+
+    /**
+     * @return the master if it isn't not, otherwise the closest host that's up and isn't not.
+     *         null if there's nothing up
+     */
+    ServerAddress best( ServerAddress not ){
+        ServerAddress m = master();
+        if ( m != null && ! m.equals( not ) )
+            return m;
+
+        Node best = null;
+        for ( Node n : _all ){
+            if ( ! n._ok || n._addr.equals( not ) )
+                continue;
+            if ( best == null || n._pingTime < best._pingTime )
+                best = n;
+        }
+        return best == null ? null : best._addr;
+    }
+
+    /**
+     * @param window how much slower than the fastest secondary a secondary can be and still be picked, in ms
+     * @return a random secondary out of the fastest ones, or null if none are up
+     */
+    ServerAddress secondary( long window ){
+        Node fastest = null;
+        for ( Node n : _all ){
+            if ( ! n._ok || ! n._isSecondary )
+                continue;
+            if ( fastest == null || n._pingTime < fastest._pingTime )
+                fastest = n;
+        }
+        if ( fastest == null )
+            return null;
+
+        List<Node> close = new ArrayList<Node>();
+        for ( Node n : _all )
+            if ( n._ok && n._isSecondary && n._pingTime <= fastest._pingTime + window )
+                close.add( n );
+        return close.get( _random.nextInt( close.size() ) )._addr;
+    }
+
+    List<Node> nodes(){
+        return _all;
+    }
+
+    private Node _find( InetSocketAddress addr ){
+        for ( Node n : _all )
+            if ( n._addr.getSocketAddress().equals( addr ) )
+                return n;
+        return null;
+    }
+
+    /**
+     * what the monitor knows about one host
+     */
+    class Node {
+
+        Node( ServerAddress addr ){
+            _addr = addr;
+        }
+
+        /**
+         * sends ismaster and times the round trip
+         */
+        void check(){
+            ByteDecoder decoder = ByteDecoder.get( null , null );
+            DBMessage m = DBTCPConnector._isMasterQuery();
+            try {
+                if ( _port == null )
+                    _port = new DBPort( _addr.getSocketAddress() , null , _portOptions );
+
+                final long start = System.nanoTime();
+                _port.call( m , decoder );
+                final float ms = ( System.nanoTime() - start ) / 1000000f;
+
+                DBObject res = DBTCPConnector._onlyResult( decoder , "ismaster" );
+                _isMaster = _isTrue( res.get( "ismaster" ) );
+                _isSecondary = _isTrue( res.get( "secondary" ) );
+                _pingTime = _ok ? ( _pingTime * .8f ) + ( ms * .2f ) : ms;
+                _ok = _isTrue( res.get( "ok" ) );
+                _lastChecked = System.currentTimeMillis();
+            }
+            catch ( Exception e ){
+                if ( _ok )
+                    _logger.log( Level.INFO , "can't reach " + _addr , e );
+                _ok = false;
+                _isMaster = false;
+                _isSecondary = false;
+                _close();
+            }
+            finally {
+                decoder.done();
+                m._encoder.done();
+            }
+        }
+
+        synchronized void _close(){
+            if ( _port != null )
+                _port.close();
+            _port = null;
+        }
+
+        public String toString(){
+            return _addr + " ok:" + _ok + " master:" + _isMaster + " secondary:" + _isSecondary + " ping:" + _pingTime + "ms";
+        }
+
+        final ServerAddress _addr;
+        private DBPort _port;
+
+        volatile boolean _ok = false;
+        volatile boolean _isMaster = false;
+        volatile boolean _isSecondary = false;
+        /** smoothed round trip time, in ms */
+        volatile float _pingTime = 0;
+        volatile long _lastChecked = 0;
+        /** how many checks have finished, answered or not.  only the checking thread changes it */
+        volatile int _checks = 0;
+        /** true while a check's thread is running */
+        volatile boolean _checking = false;
+    }
+
+    static boolean _isTrue( Object o ){
+        if ( o instanceof Boolean )
+            return (Boolean)o;
+        if ( o instanceof Number )
+            return ((Number)o).intValue() != 0;
+        return false;
+    }
+
+    final WeakReference<DBTCPConnector> _connector;
+    final long _interval;
+    final MongoOptions _portOptions;
+    final List<Node> _all;
+    final Random _random = new Random();
+
+    private volatile boolean _closed = false;
+    private boolean _sweepNow = false;
+}
@@ -0,0 +1,52 @@
+// SlowOpLogger.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.util.logging.*;
+
+/**
+ * logs every operation that takes longer than a threshold, or fails.
+ * MongoOptions.slowOpTime adds one of these to each Mongo
+ */
+public class SlowOpLogger implements DBListener {
+
+    static final Logger LOGGER = Logger.getLogger( Bytes.LOGGER.getName() + ".slow" );
+
+    /**
+     * @param threshold in ms
+     */
+    public SlowOpLogger( long threshold ){
+        _thresholdNanos = threshold * 1000000;
+    }
+
+    public void started( DBEvent e ){
+    }
+
+    public void finished( DBEvent e ){
+        if ( e.getError() != null ){
+            if ( LOGGER.isLoggable( Level.INFO ) )
+                LOGGER.info( "failed: " + e );
+            return;
+        }
+        if ( e.getNanos() >= _thresholdNanos && LOGGER.isLoggable( Level.WARNING ) )
+            LOGGER.warning( "slow: " + e );
+    }
+
+    final long _thresholdNanos;
+}
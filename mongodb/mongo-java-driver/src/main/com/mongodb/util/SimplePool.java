@@ -18,11 +18,24 @@
 
 package com.mongodb.util;
 
+import java.lang.ref.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 
+/**
+ * a bounded pool of reusable objects.
+ * when the pool is exhausted, get() waits on a fair condition and done() hands the object
+ * straight to the longest waiter, so there's no polling.
+ * objects that are checked out and never given back are only weakly held,
+ * so once they're garbage collected their slot is freed
+ */
 public abstract class SimplePool<T> {
 
-    static long _sleepTime = 15;
+    /**
+     * how often a waiter wakes up to check whether an object that was never returned has been collected
+     */
+    static long _leakCheckTime = 1000;
     
     /** 
      * See full constructor docs
@@ -60,32 +73,49 @@ public abstract class SimplePool<T> {
         return true;
     }
 
+    /**
+     * callback for something the pool is letting go of, because it was cleared, isn't ok, or there's no room to keep it.
+     * called without the pool's lock held
+     */
+    protected void dropped( T t ){
+    }
+
     /** 
      * call done when you are done with an object form the pool
      * if there is room and the object is ok will get added
      * @param t Object to add
      */
     public void done( T t ){
-        _where.remove( _hash( t ) );
+        if ( _trackLeaks )
+            _where.remove( _hash( t ) );
         
-        if ( ! ok( t ) ){
-            synchronized ( _avail ){
-                _all.remove( t );
-            }
-            return;
-        }
+        final boolean ok = ok( t );
+        boolean drop = true;
 
-        synchronized ( _avail ){
-            if ( _maxToKeep < 0 || _avail.size() < _maxToKeep ){
+        _lock.lock();
+        try {
+            if ( ! _out.remove( new Out<T>( t , null ) ) ){
                 for ( int i=0; i<_avail.size(); i++ )
                     if ( _avail.get( i ) == t )
                         throw new RuntimeException( "trying to put something back in the pool that's already there" );
                 
-                // if all doesn't contain it, it probably means this was cleared, so we don't want it
-                if ( _all.contains( t ) )
-                    _avail.add( t );
+                // not checked out, it probably means this was cleared, so we don't want it
+            }
+            else if ( ok && ( _maxToKeep < 0 || _avail.size() < _maxToKeep ) ){
+                _avail.add( t );
+                drop = false;
+                _freed.signal();
             }
+            else {
+                _debug( "dropping one" );
+                _freed.signal();
+            }
+        }
+        finally {
+            _lock.unlock();
         }
+        if ( drop )
+            dropped( t );
     }
 
     /** Gets an object from the pool - will block if none are available
@@ -104,13 +134,10 @@ public abstract class SimplePool<T> {
      */
     public T get( long waitTime ){
         final T t = _get( waitTime );
-        if ( t != null ){
-            _consecutiveSleeps = 0;
-            if ( _trackLeaks ){
-                Throwable stack = new Throwable();
-                stack.fillInStackTrace();
-                _where.put( _hash( t ) , stack );
-            }
+        if ( t != null && _trackLeaks ){
+            Throwable stack = new Throwable();
+            stack.fillInStackTrace();
+            _where.put( _hash( t ) , stack );
         }
         return t;
     }
@@ -120,46 +147,194 @@ public abstract class SimplePool<T> {
     }
     
     private T _get( long waitTime ){
-	long totalSlept = 0;
-        while ( true ){
-            synchronized ( _avail ){
+        final long end = waitTime > 0 ? System.currentTimeMillis() + waitTime : 0;
+        boolean interrupted = false;
+        boolean exhausted = false;
+
+        _lock.lock();
+        try {
+            while ( true ){
+                _expunge();
 
                 while ( _avail.size() > 0 ){
                     T t = _avail.remove( _avail.size() - 1 );
                     if ( ok( t ) ){
                         _debug( "got an old one" );
+                        _out.add( new Out<T>( t , _collected ) );
                         return t;
                     }
                     _debug( "old one was not ok" );
-                    _all.remove( t );
-                    continue;
                 }
 
-                if ( _maxTotal <= 0 || _all.size() < _maxTotal ){
-                    _everCreated++;
-                    T t = createNew();
-                    _all.add( t );
-                    return t;
+                if ( _maxTotal <= 0 || _out.size() + _creating < _maxTotal ){
+                    _creating++;
+                    break;
+                }
+
+                if ( ! exhausted ){
+                    exhausted = true;
+                    _exhausted++;
                 }
 		
-                if ( _trackLeaks && _trackPrintCount++ % 200 == 0 ){
-                    _wherePrint();
-                    _trackPrintCount = 1;
+                if ( waitTime == 0 )
+                    return null;
+                
+                long wait = _leakCheckTime;
+                if ( end > 0 ){
+                    long left = end - System.currentTimeMillis();
+                    if ( left <= 0 ){
+                        if ( _trackLeaks )
+                            _wherePrint();
+                        return null;
+                    }
+                    wait = Math.min( wait , left );
+                }
+
+                _waiting++;
+                try {
+                    _freed.await( wait , TimeUnit.MILLISECONDS );
+                }
+                catch ( InterruptedException ie ){
+                    interrupted = true;
+                }
+                finally {
+                    _waiting--;
+                }
+            }
+        }
+        finally {
+            _lock.unlock();
+            if ( interrupted )
+                Thread.currentThread().interrupt();
+        }
+
+        // creating can be slow, so it happens outside the lock.  the slot is already reserved
+        T t = null;
+        try {
+            t = createNew();
+        }
+        finally {
+            _lock.lock();
+            try {
+                _creating--;
+                if ( t != null ){
+                    _everCreated++;
+                    _out.add( new Out<T>( t , _collected ) );
                 }
+                else {
+                    _freed.signal();
+                }
+            }
+            finally {
+                _lock.unlock();
             }
-	    
-	    if ( waitTime == 0 )
-		return null;
+        }
+        return t;
+    }
 
-	    if ( waitTime > 0 && totalSlept >= waitTime )
-		return null;
-	    
-            if ( _consecutiveSleeps > 100 && totalSlept > _sleepTime * 2 )
-                _gcIfNeeded();
+    /**
+     * creates objects until at least n are available, without going over maxTotal or maxToKeep.
+     * they're created outside the lock, like in get, so nobody has to wait for them
+     * @return the ones that were created
+     */
+    public List<T> prefill( int n ){
+        List<T> created = new ArrayList<T>();
+        while ( true ){
+            _lock.lock();
+            try {
+                _expunge();
+                if ( _avail.size() + _creating >= n )
+                    break;
+                if ( _maxToKeep >= 0 && _avail.size() + _creating >= _maxToKeep )
+                    break;
+                if ( _maxTotal > 0 && _out.size() + _avail.size() + _creating >= _maxTotal )
+                    break;
+                _creating++;
+            }
+            finally {
+                _lock.unlock();
+            }
 
-            _consecutiveSleeps++;
-	    totalSlept += _sleepTime;
-            ThreadUtil.sleep( _sleepTime );
+            T t = null;
+            try {
+                t = createNew();
+            }
+            finally {
+                _lock.lock();
+                try {
+                    _creating--;
+                    if ( t != null ){
+                        _everCreated++;
+                        _avail.add( 0 , t );
+                        created.add( t );
+                    }
+                    _freed.signal();
+                }
+                finally {
+                    _lock.unlock();
+                }
+            }
+        }
+        return created;
+    }
+
+    /**
+     * callback for takeIdle
+     * @return true if t has been sitting in the pool long enough that it should be looked at
+     */
+    protected boolean isIdle( T t ){
+        return false;
+    }
+
+    /**
+     * checks out every available object that isIdle says needs looking at, oldest first.
+     * each one has to be given back with done, or thrown away with remove
+     */
+    public List<T> takeIdle(){
+        List<T> idle = new ArrayList<T>();
+        _lock.lock();
+        try {
+            for ( Iterator<T> i = _avail.iterator(); i.hasNext(); ){
+                T t = i.next();
+                if ( ! isIdle( t ) )
+                    continue;
+                i.remove();
+                _out.add( new Out<T>( t , _collected ) );
+                idle.add( t );
+            }
+        }
+        finally {
+            _lock.unlock();
+        }
+        return idle;
+    }
+
+    /**
+     * throws away a checked out object instead of giving it back, freeing its slot
+     */
+    public void remove( T t ){
+        if ( _trackLeaks )
+            _where.remove( _hash( t ) );
+
+        _lock.lock();
+        try {
+            if ( _out.remove( new Out<T>( t , null ) ) )
+                _freed.signal();
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * forgets checked out objects that were garbage collected without being returned.
+     * must hold _lock
+     */
+    private void _expunge(){
+        Reference<? extends T> r;
+        while ( ( r = _collected.poll() ) != null ){
+            if ( _out.remove( r ) )
+                _debug( "one was never returned" );
         }
     }
 
@@ -176,23 +351,76 @@ public abstract class SimplePool<T> {
         System.out.println( buf );
     }
 
-    /** Clears the pool of all objects. */
+    /** Clears the pool of all objects. 
+     * anything checked out now is dropped when it's returned, and doesn't count against maxTotal any more
+     */
     protected void clear(){
-        _avail.clear();
-        _all.clear();
-        _where.clear(); // is this correct
+        List<T> avail;
+        _lock.lock();
+        try {
+            avail = new ArrayList<T>( _avail );
+            _avail.clear();
+            _out.clear();
+            _where.clear(); // is this correct
+            _freed.signalAll();
+        }
+        finally {
+            _lock.unlock();
+        }
+        for ( T t : avail )
+            dropped( t );
     }
 
     public int total(){
-        return _all.size();
+        _lock.lock();
+        try {
+            _expunge();
+            return _out.size() + _avail.size();
+        }
+        finally {
+            _lock.unlock();
+        }
     }
     
     public int inUse(){
-        return _all.size() - _avail.size();
+        _lock.lock();
+        try {
+            _expunge();
+            return _out.size();
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * @return how many objects are sitting in the pool, ready to be handed out
+     */
+    public int idle(){
+        _lock.lock();
+        try {
+            return _avail.size();
+        }
+        finally {
+            _lock.unlock();
+        }
     }
 
     public Iterator<T> getAll(){
-        return _all.getAll().iterator();
+        List<T> l = new ArrayList<T>();
+        _lock.lock();
+        try {
+            l.addAll( _avail );
+            for ( Out<T> o : _out ){
+                T t = o.get();
+                if ( t != null )
+                    l.add( t );
+            }
+        }
+        finally {
+            _lock.unlock();
+        }
+        return l.iterator();
     }
 
     public int available(){
@@ -202,7 +430,39 @@ public abstract class SimplePool<T> {
     }
 
     public int everCreated(){
-        return _everCreated;
+        _lock.lock();
+        try {
+            return _everCreated;
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * @return how many threads are blocked in get() right now
+     */
+    public int waiting(){
+        _lock.lock();
+        try {
+            return _waiting;
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * @return how many times get() found nothing available and had to wait, or give up
+     */
+    public int exhausted(){
+        _lock.lock();
+        try {
+            return _exhausted;
+        }
+        finally {
+            _lock.unlock();
+        }
     }
 
     private void _debug( String msg ){
@@ -214,29 +474,48 @@ public abstract class SimplePool<T> {
         return _maxToKeep;
     }
 
+    /**
+     * a checked out object.  compares by identity, and only holds on weakly so leaks get collected
+     */
+    static class Out<T> extends WeakReference<T> {
+        Out( T t , ReferenceQueue<? super T> q ){
+            super( t , q );
+            _hash = System.identityHashCode( t );
+        }
+
+        public int hashCode(){
+            return _hash;
+        }
+
+        public boolean equals( Object o ){
+            if ( o == this )
+                return true;
+            if ( ! ( o instanceof Out ) )
+                return false;
+            Object me = get();
+            return me != null && me == ((Out)o).get();
+        }
+
+        final int _hash;
+    }
+
     protected final String _name;
     protected final int _maxToKeep;
     protected final int _maxTotal;
     protected final boolean _trackLeaks;
     protected final boolean _debug;
 
+    // fair, so waiters are handed objects in the order they started waiting
+    private final ReentrantLock _lock = new ReentrantLock( true );
+    private final Condition _freed = _lock.newCondition();
+
     private final List<T> _avail = new ArrayList<T>();
-    private final WeakBag<T> _all = new WeakBag<T>();
-    private final Map<Integer,Throwable> _where = new HashMap<Integer,Throwable>();
+    private final Set<Out<T>> _out = new HashSet<Out<T>>();
+    private final ReferenceQueue<T> _collected = new ReferenceQueue<T>();
+    private final Map<Integer,Throwable> _where = new ConcurrentHashMap<Integer,Throwable>();
 
     private int _everCreated = 0;
-    private int _trackPrintCount = 0;
-    private int _consecutiveSleeps = 0;
-
-
-    private static void _gcIfNeeded(){
-        final long now = System.currentTimeMillis();
-        if ( now < _nextGC )
-            return;
-
-        _nextGC = now + 5000;
-        System.gc();
-    }
-    private static long _nextGC = 0;
-    
+    private int _creating = 0;
+    private int _waiting = 0;
+    private int _exhausted = 0;
 }
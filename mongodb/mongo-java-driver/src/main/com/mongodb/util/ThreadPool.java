@@ -70,6 +70,8 @@ public abstract class ThreadPool<T> {
      * @return if the object was successfully added
      */
     public boolean offer( T t ){
+        if ( _shutdown )
+            return false;
         if ( ( _queue.size() > 0 || _inProgress.get() == _threads.size() ) && 
              _threads.size() < _maxThreads )
             _threads.add( new MyThread() );
@@ -84,6 +86,16 @@ public abstract class ThreadPool<T> {
         return _threads.size();
     }
 
+    /** Stops taking new objects.  Threads finish what is already queued, then exit.
+     */
+    public void shutdown(){
+        _shutdown = true;
+        synchronized ( _threads ){
+            for ( Thread t : _threads )
+                t.interrupt();
+        }
+    }
+
     class MyThreadGroup extends ThreadGroup {
         MyThreadGroup(){
             super( "ThreadPool.MyThreadGroup:" + _name );
@@ -112,10 +124,17 @@ public abstract class ThreadPool<T> {
             while ( true ){
                 T t = null;
 
-                try {
-                    t = _queue.take();
+                if ( _shutdown ){
+                    t = _queue.poll();
+                    if ( t == null )
+                        break;
                 }
-                catch ( InterruptedException ie ){
+                else {
+                    try {
+                        t = _queue.take();
+                    }
+                    catch ( InterruptedException ie ){
+                    }
                 }
 
                 if ( t == null )
@@ -138,6 +157,7 @@ public abstract class ThreadPool<T> {
     final String _name;
     final int _maxThreads;
 
+    private volatile boolean _shutdown = false;
     private final AtomicInteger _inProgress = new AtomicInteger(0);
     private final List<MyThread> _threads = new Vector<MyThread>();
     private final BlockingQueue<T> _queue;
@@ -0,0 +1,138 @@
+// BulkInsertTest.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.testng.annotations.Test;
+
+import com.mongodb.util.*;
+
+public class BulkInsertTest extends TestCase {
+
+    static Iterator<DBObject> _objects( final int n ){
+        return new Iterator<DBObject>(){
+            public boolean hasNext(){
+                return _i < n;
+            }
+            public DBObject next(){
+                return new BasicDBObject( "x" , _i++ );
+            }
+            public void remove(){
+                throw new UnsupportedOperationException();
+            }
+            int _i = 0;
+        };
+    }
+
+    void _run( MongoOptions options )
+        throws Exception {
+        FakeMongod fake = new FakeMongod();
+        try {
+            DBCollection c = fake.mongo( options ).getDB( "bulktest" ).getCollection( "a" );
+
+            final Set<Integer> batches = Collections.synchronizedSet( new HashSet<Integer>() );
+            final AtomicInteger objects = new AtomicInteger();
+            int n = c.bulkInsert( _objects( 2050 ) ).batchSize( 100 ).threads( 3 ).inFlight( 4 ).listener( new BulkInsert.Listener(){
+                    public void batchDone( int batch , int numObjects , DBObject lastError , MongoException error ){
+                        assertNull( error );
+                        batches.add( batch );
+                        objects.addAndGet( numObjects );
+                    }
+                } ).execute();
+
+            assertEquals( 2050 , n );
+            assertEquals( 2050 , objects.get() );
+            assertEquals( 21 , batches.size() );
+            for ( int i=0; i<21; i++ )
+                assertTrue( batches.contains( i ) );
+            assertEquals( 21 , fake.awaitCount( 2002 , 21 , 5000 ) );
+
+            c.setWriteConcern( DB.WriteConcern.STRICT );
+            final AtomicInteger acked = new AtomicInteger();
+            n = c.bulkInsert( _objects( 500 ) ).batchSize( 50 ).listener( new BulkInsert.Listener(){
+                    public void batchDone( int batch , int numObjects , DBObject lastError , MongoException error ){
+                        if ( lastError != null && ((Number)lastError.get( "ok" )).intValue() == 1 )
+                            acked.incrementAndGet();
+                    }
+                } ).execute();
+            assertEquals( 500 , n );
+            assertEquals( 10 , acked.get() );
+            assertEquals( 10 , fake.count( 2004 ) );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    @Test
+    public void testBlocking()
+        throws Exception {
+        _run( new MongoOptions() );
+    }
+
+    @Test
+    public void testPipelined()
+        throws Exception {
+        MongoOptions options = new MongoOptions();
+        options.pipelined = true;
+        _run( options );
+    }
+
+    @Test
+    public void testNonBlocking()
+        throws Exception {
+        MongoOptions options = new MongoOptions();
+        options.nonBlocking = true;
+        _run( options );
+    }
+
+    @Test
+    public void testError()
+        throws Exception {
+        FakeMongod fake = new FakeMongod(){
+                protected List<DBObject> reply( int op , String ns , DBObject query ){
+                    List<DBObject> l = new ArrayList<DBObject>();
+                    l.add( BasicDBObjectBuilder.start().add( "ok" , 1 ).add( "err" , "E11000 duplicate key" ).add( "code" , 11000 ).get() );
+                    return l;
+                }
+            };
+        try {
+            DBCollection c = fake.mongo().getDB( "bulktest" ).getCollection( "a" );
+            c.setWriteConcern( DB.WriteConcern.STRICT );
+            try {
+                c.bulkInsert( _objects( 100000 ) ).batchSize( 10 ).threads( 1 ).inFlight( 1 ).execute();
+                assertTrue( false );
+            }
+            catch ( MongoException.DuplicateKey dk ){
+                // good
+            }
+            assertTrue( fake.count( 2002 ) < 100 , "kept going after an error" );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    public static void main( String args[] )
+        throws Exception {
+        (new BulkInsertTest()).runConsole();
+    }
+}
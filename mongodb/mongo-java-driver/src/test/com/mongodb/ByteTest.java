@@ -16,6 +16,7 @@
 
 package com.mongodb;
 
+import java.nio.*;
 import java.util.*;
 import java.util.regex.*;
 import java.io.IOException;
@@ -419,6 +420,175 @@ public class ByteTest extends TestCase {
         assertEquals( x , Bytes.decode( b ) );
     }
 
+    @Test(groups = {"basic"})
+    public void testUTF8()
+        throws Exception {
+        String[] all = { "" , "_id" , "caf\u00e9" , "\u00fcber\u0800\uffff" , "a\ud834\udd1eb" , "\ud834\udd1e" };
+        ByteEncoder encoder = ByteEncoder.get();
+        try {
+            for ( String s : all ){
+                encoder.reset();
+                byte[] want = s.getBytes( "UTF-8" );
+                assertEquals( want.length + 1 , encoder._put( s ) );
+                for ( int i=0; i<want.length; i++ )
+                    assertEquals( want[i] , encoder._buf.get( i ) );
+                assertEquals( 0 , encoder._buf.get( want.length ) );
+
+                DBObject o = new BasicDBObject( s , s );
+                assertEquals( o , Bytes.decode( Bytes.encode( o ) ) );
+            }
+
+            // a lone surrogate can't be encoded, so it's sent as '?'
+            encoder.reset();
+            assertEquals( 4 , encoder._put( "a\ud834b" ) );
+            assertEquals( (byte)'?' , encoder._buf.get( 1 ) );
+
+            // running out of room partway leaves the position alone
+            encoder._buf.limit( 5 );
+            encoder._buf.position( 1 );
+            try {
+                encoder._put( "caf\u00e9" );
+                assertTrue( false );
+            }
+            catch ( java.nio.BufferOverflowException e ){
+                assertEquals( 1 , encoder._buf.position() );
+            }
+        }
+        finally {
+            encoder.done();
+        }
+    }
+
+    @Test(groups = {"basic"})
+    public void testDecoderSharesStrings(){
+        String longer = "a value that is too long to be shared";
+        ByteEncoder encoder = ByteEncoder.get();
+        for ( int i=0; i<3; i++ )
+            encoder.putObject( BasicDBObjectBuilder.start( "_id" , i ).add( "status" , "ok" ).add( "n\u00e4me" , "\u00fcber" ).add( "long" , longer ).get() );
+        encoder.flip();
+
+        // a decoder that isn't pooled only makes its tables once it reads a second object
+        ByteDecoder decoder = new ByteDecoder( encoder._buf );
+        decoder.readObject();
+        DBObject a = decoder.readObject();
+        DBObject b = decoder.readObject();
+        assertEquals( a.keySet() , b.keySet() );
+
+        Iterator<String> i = a.keySet().iterator();
+        Iterator<String> j = b.keySet().iterator();
+        while ( i.hasNext() )
+            assertTrue( i.next() == j.next() );
+
+        assertEquals( "ok" , b.get( "status" ) );
+        assertTrue( a.get( "status" ) == b.get( "status" ) );
+        assertEquals( "\u00fcber" , b.get( "n\u00e4me" ) );
+        assertTrue( a.get( "n\u00e4me" ) == b.get( "n\u00e4me" ) );
+        assertEquals( longer , b.get( "long" ) );
+        assertTrue( a.get( "long" ) != b.get( "long" ) );
+        encoder.done();
+
+        // a decoder used for one object doesn't pay for the tables
+        byte[] one = Bytes.encode( a );
+        ByteBuffer bb = ByteBuffer.wrap( one );
+        bb.order( Bytes.ORDER );
+        ByteDecoder once = new ByteDecoder( bb );
+        assertEquals( a , once.readObject() );
+        assertNull( once._names );
+        assertNull( once._values );
+        bb.position( 0 );
+        once.reset( bb );
+        assertEquals( a , once.readObject() );
+        assertNotNull( once._names );
+
+        // more names than the table has room for still decode right
+        DBObject many = new BasicDBObject();
+        for ( int k=0; k<5000; k++ )
+            many.put( "f" + k , "v" + ( k % 7 ) );
+        for ( int k=0; k<2; k++ )
+            assertEquals( many , Bytes.decode( Bytes.encode( many ) ) );
+    }
+
+    @Test(groups = {"basic"})
+    public void testNameCache(){
+        DBObject o = BasicDBObjectBuilder.start( "_id" , 1 ).add( "n\u00e4me" , "v" ).get();
+        for ( int i=0; i<3; i++ )
+            assertEquals( o , Bytes.decode( Bytes.encode( o ) ) );
+    }
+
+    /**
+     * far more names than the table has slots, so most share one with something else
+     */
+    @Test(groups = {"basic"})
+    public void testNameTable(){
+        for ( int round=0; round<2; round++ ){
+            for ( int i=0; i<ByteEncoder.MAX_CACHED_NAMES * 4; i++ ){
+                DBObject o = new BasicDBObject( "f" + i , i );
+                assertEquals( o , Bytes.decode( Bytes.encode( o ) ) );
+            }
+        }
+    }
+
+    @Test(groups = {"basic"})
+    public void testGrow(){
+        StringBuilder buf = new StringBuilder();
+        while ( buf.length() < 1024 * 1024 )
+            buf.append( "abcdefghijklmnopqrstuvwxyz" );
+        String big = buf.toString();
+
+        ByteEncoder encoder = ByteEncoder.get();
+        assertTrue( encoder._buf.capacity() <= Bytes.MAX_POOLED_BUFFER_SIZE );
+
+        encoder._buf.putInt( 17 ); // stuff before the object has to survive the buffer growing
+        encoder.putObject( BasicDBObjectBuilder.start( "a" , 1 ).add( "big" , big ).add( big.substring( 0 , 2000 ) , 2 ).get() );
+        assertTrue( encoder._buf.capacity() > big.length() );
+        encoder.flip();
+
+        ByteDecoder decoder = new ByteDecoder( encoder._buf );
+        assertEquals( 17 , decoder.getInt() );
+        DBObject read = decoder.readObject();
+        assertEquals( 1 , read.get( "a" ) );
+        assertEquals( big , read.get( "big" ) );
+        assertEquals( 2 , read.get( big.substring( 0 , 2000 ) ) );
+
+        encoder.done();
+        assertTrue( encoder._buf.capacity() <= Bytes.MAX_POOLED_BUFFER_SIZE );
+    }
+
+    @Test(groups = {"basic"})
+    public void testTooBig(){
+        ByteEncoder encoder = ByteEncoder.get();
+        try {
+            encoder.putObject( new BasicDBObject( "big" , new byte[ ByteEncoder.MAX_BUFFER_SIZE ] ) );
+            assertTrue( false );
+        }
+        catch ( IllegalArgumentException e ){
+            // good
+        }
+        finally {
+            encoder.done();
+        }
+    }
+
+    @Test(groups = {"basic"})
+    public void testDecoderGrow(){
+        ByteDecoder decoder = ByteDecoder.get( _db , null );
+        try {
+            assertTrue( decoder._buf.capacity() <= Bytes.MAX_POOLED_BUFFER_SIZE );
+
+            decoder._buf.putInt( 5 );
+            assertTrue( decoder._ensureCapacity( 1024 * 1024 ) );
+            assertTrue( decoder._buf.capacity() >= 1024 * 1024 );
+            assertEquals( 4 , decoder._buf.position() );
+            assertEquals( 5 , decoder._buf.getInt( 0 ) );
+
+            assertFalse( decoder._ensureCapacity( ByteDecoder.MAX_BUFFER_SIZE + 1 ) );
+        }
+        finally {
+            decoder.done();
+        }
+        assertTrue( decoder._buf.capacity() <= Bytes.MAX_POOLED_BUFFER_SIZE );
+    }
+
     final DB _db;
 
     public static void main( String args[] )
@@ -0,0 +1,79 @@
+// CompressionBenchmark.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.lang.management.*;
+import java.util.*;
+
+/**
+ * what wire compression costs in cpu and saves in bytes, against a FakeMongod.
+ * each op sends a query document and gets docsPerReply documents back, all of them MicroBenchmark.large()
+ * usage: CompressionBenchmark [ops] [docsPerReply]
+ */
+public class CompressionBenchmark {
+
+    static void run( String name , MongoOptions options , int numOps , int docsPerReply )
+        throws Exception {
+        List<DBObject> docs = new ArrayList<DBObject>();
+        for ( int i=0; i<docsPerReply; i++ )
+            docs.add( MicroBenchmark.large() );
+        final DBObject query = MicroBenchmark.large();
+
+        FakeMongod fake = new FakeMongod();
+        fake.setCannedReply( docs );
+        try {
+            DBCollection c = fake.mongo( options ).getDB( "bench" ).getCollection( "bench" );
+            for ( int i=0; i<numOps / 10; i++ )
+                c.find( query ).itcount();
+
+            final long in = fake.bytesIn();
+            final long out = fake.bytesOut();
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            final long cpu = threads.getCurrentThreadCpuTime();
+            final long start = System.nanoTime();
+
+            for ( int i=0; i<numOps; i++ )
+                c.find( query ).itcount();
+
+            final long nanos = System.nanoTime() - start;
+            System.out.println( name + "\t" +
+                                ( nanos / numOps / 1000 ) + " us/op\t" +
+                                ( ( threads.getCurrentThreadCpuTime() - cpu ) / numOps / 1000 ) + " us cpu/op\t" +
+                                ( ( fake.bytesIn() - in ) / numOps ) + " bytes sent/op\t" +
+                                ( ( fake.bytesOut() - out ) / numOps ) + " bytes received/op" );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    public static void main( String args[] )
+        throws Exception {
+        int ops = args.length > 0 ? Integer.parseInt( args[0] ) : 2000;
+        int docs = args.length > 1 ? Integer.parseInt( args[1] ) : 10;
+
+        run( "none  " , new MongoOptions() , ops , docs );
+        for ( int level : new int[]{ 1 , 6 , 9 } ){
+            MongoOptions options = new MongoOptions();
+            options.compression = true;
+            options.compressionLevel = level;
+            run( "zlib-" + level , options , ops , docs );
+        }
+    }
+}
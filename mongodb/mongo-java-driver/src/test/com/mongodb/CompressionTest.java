@@ -0,0 +1,234 @@
+// CompressionTest.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import org.testng.annotations.Test;
+
+import com.mongodb.util.*;
+
+public class CompressionTest extends TestCase {
+
+    static MongoOptions _compressed(){
+        MongoOptions options = new MongoOptions();
+        options.compression = true;
+        options.compressionThreshold = 0;
+        return options;
+    }
+
+    static DBObject _big( int i ){
+        char[] chars = new char[ 10000 ];
+        Arrays.fill( chars , 'q' );
+        return BasicDBObjectBuilder.start().add( "x" , i ).add( "s" , new String( chars ) ).get();
+    }
+
+    /**
+     * 5 batches of 10 big documents
+     */
+    static class BigBatches extends FakeMongod.Batches {
+        BigBatches()
+            throws java.io.IOException {
+            super();
+        }
+
+        protected List<DBObject> reply( int op , String ns , DBObject query ){
+            if ( ! ns.endsWith( ".$cmd" ) )
+                return super.reply( op , ns , query );
+            List<DBObject> l = new ArrayList<DBObject>();
+            l.add( new BasicDBObject( "ok" , 1 ) );
+            return l;
+        }
+
+        List<DBObject> _batch( int n ){
+            List<DBObject> l = new ArrayList<DBObject>();
+            for ( int i=0; i<10; i++ )
+                l.add( _big( n * 10 + i ) );
+            return l;
+        }
+    }
+
+    /**
+     * messages that don't get smaller aren't compressed, so only the big query and insert are.
+     * the reply to the query is compressed because the query was
+     */
+    void _run( MongoOptions options )
+        throws Exception {
+        BigBatches fake = new BigBatches();
+        try {
+            DBCollection c = fake.mongo( options ).getDB( "zip" ).getCollection( "a" );
+
+            DBCursor cur = c.find( _big( -1 ) ).batchSize( 10 );
+            for ( int i=0; i<50; i++ ){
+                DBObject o = cur.next();
+                assertEquals( i , ((Number)o.get( "x" )).intValue() );
+                assertEquals( 10000 , o.get( "s" ).toString().length() );
+            }
+            assertFalse( cur.hasNext() );
+            assertEquals( 4 , fake.count( 2005 ) );
+            assertEquals( 1 , fake.count( 2012 ) );
+
+            c.setWriteConcern( DB.WriteConcern.STRICT );
+            c.insert( _big( 1 ) );
+            assertEquals( 1 , fake.count( 2002 ) );
+            assertEquals( 2 , fake.count( 2012 ) );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    @Test
+    public void testBlocking()
+        throws Exception {
+        _run( _compressed() );
+    }
+
+    @Test
+    public void testPipelined()
+        throws Exception {
+        MongoOptions options = _compressed();
+        options.pipelined = true;
+        _run( options );
+    }
+
+    @Test
+    public void testStreaming()
+        throws Exception {
+        MongoOptions options = _compressed();
+        options.streamReplies = true;
+        _run( options );
+    }
+
+    @Test
+    public void testThreshold()
+        throws Exception {
+        FakeMongod fake = new FakeMongod();
+        try {
+            MongoOptions options = _compressed();
+            options.compressionThreshold = 1000;
+            DBCollection c = fake.mongo( options ).getDB( "zip" ).getCollection( "b" );
+
+            c.findOne( new BasicDBObject( "x" , 1 ) );
+            assertEquals( 0 , fake.count( 2012 ) );
+
+            DBObject big = _big( 2 );
+            assertEquals( big.get( "s" ) , c.findOne( big ).get( "s" ) );
+            assertEquals( 1 , fake.count( 2012 ) );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    /**
+     * the same big, repetitive documents take a fraction of the bytes each way
+     */
+    @Test
+    public void testSmaller()
+        throws Exception {
+        long[] plain = _bytes( new MongoOptions() );
+        long[] zipped = _bytes( _compressed() );
+        assertTrue( zipped[0] * 10 < plain[0] );
+        assertTrue( zipped[1] * 10 < plain[1] );
+    }
+
+    /**
+     * @return bytes the server received and sent
+     */
+    static long[] _bytes( MongoOptions options )
+        throws Exception {
+        FakeMongod fake = new FakeMongod();
+        try {
+            DBCollection c = fake.mongo( options ).getDB( "zip" ).getCollection( "c" );
+            for ( int i=0; i<20; i++ )
+                assertEquals( i , ((Number)c.findOne( _big( i ) ).get( "x" )).intValue() );
+            return new long[]{ fake.bytesIn() , fake.bytesOut() };
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    /**
+     * lengths in a reply come from the server, so bad ones have to be IOExceptions, not allocations
+     */
+    @Test
+    public void testBadLengths()
+        throws Exception {
+        for ( int size : new int[]{ -1 , Integer.MAX_VALUE , ByteDecoder.MAX_BUFFER_SIZE } ){
+            ByteBuffer bb = ByteBuffer.allocate( Compressor.HEADER_LENGTH ).order( Bytes.ORDER );
+            bb.putInt( 0 , Compressor.HEADER_LENGTH );
+            bb.putInt( 12 , Compressor.OP_COMPRESSED );
+            bb.putInt( 20 , size );
+            bb.put( 24 , Compressor.ZLIB );
+            try {
+                Compressor.uncompressedLength( bb.array() );
+                assertTrue( false , "uncompressed " + size );
+            }
+            catch ( IOException ioe ){
+                // good
+            }
+        }
+
+        for ( int len : new int[]{ -5 , 3 , Integer.MAX_VALUE } ){
+            byte[] header = new byte[ DBMessage.HEADER_LENGTH ];
+            ByteBuffer.wrap( header ).order( Bytes.ORDER ).putInt( 0 , len );
+            try {
+                Compressor.readRest( header , new ByteArrayInputStream( new byte[0] ) );
+                assertTrue( false , "frame " + len );
+            }
+            catch ( IOException ioe ){
+                // good
+            }
+        }
+
+        // a real message that's bigger than where it's going
+        ByteBuffer plain = ByteBuffer.allocate( 2000 ).order( Bytes.ORDER );
+        plain.putInt( 0 , 2000 );
+        plain.putInt( 12 , 1 );
+        Compressor compressor = new Compressor( 0 , 6 );
+        ByteBuffer zipped = compressor.compress( plain );
+        assertTrue( zipped != plain );
+        byte[] msg = new byte[ zipped.remaining() ];
+        zipped.get( msg );
+        try {
+            compressor.inflate( msg , ByteBuffer.allocate( 100 ).order( Bytes.ORDER ) );
+            assertTrue( false );
+        }
+        catch ( IOException ioe ){
+            // good
+        }
+
+        // end frees zlib's memory, and the next use makes it again
+        compressor.end();
+        ByteBuffer out = ByteBuffer.allocate( 2000 ).order( Bytes.ORDER );
+        compressor.inflate( msg , out );
+        assertEquals( 2000 , out.position() );
+        assertTrue( compressor.compress( plain ) != plain );
+        compressor.end();
+    }
+
+    public static void main( String args[] )
+        throws Exception {
+        (new CompressionTest()).runConsole();
+    }
+}
@@ -0,0 +1,95 @@
+// ConnectorBenchmark.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * compares the blocking, pipelined and nio connectors against a FakeMongod.
+ * usage: ConnectorBenchmark [threads] [opsPerThread] [connectionsPerHost]
+ */
+public class ConnectorBenchmark {
+
+    static void run( String name , MongoOptions options , final int numThreads , final int numOps )
+        throws Exception {
+        FakeMongod fake = new FakeMongod();
+        try {
+            final DBCollection c = fake.mongo( options ).getDB( "bench" ).getCollection( "bench" );
+            c.findOne( new BasicDBObject( "warm" , 1 ) );
+
+            final AtomicLong totalNanos = new AtomicLong();
+            final AtomicInteger peakThreads = new AtomicInteger();
+            List<Thread> threads = new ArrayList<Thread>();
+            for ( int i=0; i<numThreads; i++ ){
+                final int t = i;
+                threads.add( new Thread(){
+                        public void run(){
+                            for ( int j=0; j<numOps; j++ ){
+                                long start = System.nanoTime();
+                                c.findOne( new BasicDBObject( "x" , t * numOps + j ) );
+                                totalNanos.addAndGet( System.nanoTime() - start );
+                            }
+                            int n = Thread.activeCount();
+                            if ( n > peakThreads.get() )
+                                peakThreads.set( n );
+                        }
+                    } );
+            }
+
+            long start = System.currentTimeMillis();
+            for ( Thread t : threads )
+                t.start();
+            for ( Thread t : threads )
+                t.join();
+            long total = System.currentTimeMillis() - start;
+
+            int ops = numThreads * numOps;
+            System.out.println( name + "\t" +
+                                ( ops * 1000L / Math.max( 1 , total ) ) + " ops/sec\t" +
+                                ( totalNanos.get() / ops / 1000 ) + " us avg latency\t" +
+                                fake.connections() + " sockets\t" +
+                                peakThreads.get() + " threads" );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    public static void main( String args[] )
+        throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt( args[0] ) : 16;
+        int ops = args.length > 1 ? Integer.parseInt( args[1] ) : 2000;
+        int conns = args.length > 2 ? Integer.parseInt( args[2] ) : 2;
+
+        MongoOptions blocking = new MongoOptions();
+        blocking.connectionsPerHost = conns;
+        run( "blocking " , blocking , threads , ops );
+
+        MongoOptions pipelined = new MongoOptions();
+        pipelined.connectionsPerHost = conns;
+        pipelined.pipelined = true;
+        run( "pipelined" , pipelined , threads , ops );
+
+        MongoOptions nio = new MongoOptions();
+        nio.connectionsPerHost = conns;
+        nio.nonBlocking = true;
+        run( "nio      " , nio , threads , ops );
+    }
+}
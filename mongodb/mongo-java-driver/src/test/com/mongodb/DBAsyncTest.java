@@ -0,0 +1,208 @@
+// DBAsyncTest.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.testng.annotations.Test;
+
+import com.mongodb.util.*;
+
+public class DBAsyncTest extends TestCase {
+
+    @Test
+    public void testBlocking()
+        throws Exception {
+        _run( new MongoOptions() , "ThreadPool" );
+    }
+
+    @Test
+    public void testPipelined()
+        throws Exception {
+        MongoOptions options = new MongoOptions();
+        options.pipelined = true;
+        _run( options , "DBPort-Reader" );
+    }
+
+    @Test
+    public void testNonBlocking()
+        throws Exception {
+        MongoOptions options = new MongoOptions();
+        options.nonBlocking = true;
+        _run( options , "DBNIOConnector-Loop" );
+    }
+
+    void _run( MongoOptions options , String ioThread )
+        throws Exception {
+        FakeMongod fake = new FakeMongod();
+        try {
+            DBCollection c = fake.mongo( options ).getDB( "asynctest" ).getCollection( "a" );
+
+            // every outstanding call holds a pooled encoder, and FakeMongod needs one to reply, so keep it to 10 at a time
+            for ( int round=0; round<5; round++ ){
+                List<DBFuture<DBObject>> all = new ArrayList<DBFuture<DBObject>>();
+                for ( int i=0; i<10; i++ )
+                    all.add( c.findOneAsync( new BasicDBObject( "x" , i ) ) );
+                for ( int i=0; i<10; i++ )
+                    assertEquals( i , ((Number)all.get( i ).get( 5 , TimeUnit.SECONDS ).get( "x" )).intValue() );
+            }
+
+            final String[] thread = new String[1];
+            DBObject res = c.findOneAsync( new BasicDBObject( "x" , 17 ) ).then( new DBFuture.Transform<DBObject,DBObject>(){
+                    public DBObject apply( DBObject o ){
+                        thread[0] = Thread.currentThread().getName();
+                        o.put( "y" , 1 );
+                        return o;
+                    }
+                } ).getResult();
+            assertEquals( 17 , ((Number)res.get( "x" )).intValue() );
+            assertEquals( 1 , ((Number)res.get( "y" )).intValue() );
+            // if the reply beat us to then() the transform runs right here instead
+            assertTrue( thread[0].startsWith( ioThread ) || thread[0].equals( Thread.currentThread().getName() ) , thread[0] );
+
+            c.insertAsync( new BasicDBObject( "x" , 1 ) ).getResult();
+            c.updateAsync( new BasicDBObject( "x" , 1 ) , new BasicDBObject( "x" , 2 ) ).getResult();
+
+            c.setWriteConcern( DB.WriteConcern.STRICT );
+            DBObject err = c.insertAsync( new BasicDBObject( "x" , 2 ) ).getResult();
+            assertEquals( 1 , ((Number)err.get( "ok" )).intValue() );
+
+            final DBCollection other = c.getDB().getCollection( "b" );
+            DBFuture<DBObject> chained = c.findOneAsync( new BasicDBObject( "z" , 5 ) ).thenAsync( new DBFuture.Transform<DBObject,DBFuture<DBObject>>(){
+                    public DBFuture<DBObject> apply( DBObject o ){
+                        return other.insertAsync( o );
+                    }
+                } );
+            assertNull( chained.getResult() ); // b isn't strict, so nothing to report
+
+            assertEquals( 53 , fake.count( 2004 ) ); // 52 finds and the strict insert's getlasterror
+            assertEquals( 3 , fake.awaitCount( 2002 , 3 , 5000 ) );
+            assertEquals( 1 , fake.awaitCount( 2001 , 1 , 5000 ) );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    /**
+     * a connector written against the public DBConnector alone still gets the async and batch calls
+     */
+    @Test
+    public void testPlainConnector()
+        throws Exception {
+        FakeMongod fake = new FakeMongod();
+        try {
+            final DBConnector real = fake.mongo()._connector;
+            DBConnector plain = new DBConnector(){
+                    public void requestStart(){ real.requestStart(); }
+                    public void requestDone(){ real.requestDone(); }
+                    public void requestEnsureConnection(){ real.requestEnsureConnection(); }
+                    public void say( DB db , DBMessage m , DB.WriteConcern concern ){ real.say( db , m , concern ); }
+                    public DBMessage call( DB db , DBMessage m , ByteDecoder decoder ){ return real.call( db , m , decoder ); }
+                    public DBMessage call( DB db , DBMessage m , ByteDecoder decoder , int retries ){ return real.call( db , m , decoder , retries ); }
+                };
+            DBCollection c = new DBApiLayer( "plain" , plain ).getCollection( "a" );
+
+            assertEquals( 3 , ((Number)c.findOneAsync( new BasicDBObject( "x" , 3 ) ).getResult().get( "x" )).intValue() );
+            c.insertAsync( new BasicDBObject( "x" , 1 ) ).getResult();
+            List<DBObject> many = new ArrayList<DBObject>();
+            for ( int i=0; i<3; i++ )
+                many.add( new BasicDBObject( "x" , i ) );
+            c.insert( many );
+            assertEquals( 2 , fake.awaitCount( 2002 , 2 , 5000 ) ); // the list goes out as one message
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    @Test
+    public void testWriteError()
+        throws Exception {
+        FakeMongod fake = new FakeMongod(){
+                protected List<DBObject> reply( int op , String ns , DBObject query ){
+                    if ( ! ns.endsWith( ".$cmd" ) )
+                        return super.reply( op , ns , query );
+                    List<DBObject> l = new ArrayList<DBObject>();
+                    l.add( BasicDBObjectBuilder.start().add( "ok" , 1 ).add( "err" , "E11000 duplicate key" ).add( "code" , 11000 ).get() );
+                    return l;
+                }
+            };
+        try {
+            MongoOptions options = new MongoOptions();
+            options.pipelined = true;
+            DBCollection c = fake.mongo( options ).getDB( "asynctest" ).getCollection( "a" );
+            c.setWriteConcern( DB.WriteConcern.STRICT );
+
+            DBFuture<DBObject> f = c.insertAsync( new BasicDBObject( "_id" , 1 ) );
+            try {
+                f.getResult();
+                assertTrue( false );
+            }
+            catch ( MongoException.DuplicateKey dk ){
+                assertEquals( 11000 , dk.getCode() );
+            }
+
+            try {
+                f.get();
+                assertTrue( false );
+            }
+            catch ( ExecutionException ee ){
+                assertTrue( ee.getCause() instanceof MongoException.DuplicateKey );
+            }
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    @Test
+    public void testAll()
+        throws Exception {
+        List<DBFuture<Integer>> l = new ArrayList<DBFuture<Integer>>();
+        for ( int i=0; i<5; i++ )
+            l.add( new DBFuture<Integer>() );
+
+        DBFuture<List<Integer>> all = DBFuture.all( l );
+        for ( int i=4; i>=0; i-- ){
+            assertFalse( all.isDone() );
+            l.get( i ).set( i );
+        }
+        assertTrue( all.isDone() );
+        assertEquals( "[0, 1, 2, 3, 4]" , all.get().toString() );
+
+        DBFuture<Integer> bad = new DBFuture<Integer>();
+        DBFuture<List<Integer>> some = DBFuture.all( Arrays.asList( DBFuture.done( 1 ) , bad ) );
+        bad.fail( new MongoException( "bad" ) );
+        assertTrue( some.isDone() );
+        try {
+            some.getResult();
+            assertTrue( false );
+        }
+        catch ( MongoException e ){
+            assertEquals( "bad" , e.getMessage() );
+        }
+    }
+
+    public static void main( String args[] )
+        throws Exception {
+        (new DBAsyncTest()).runConsole();
+    }
+}
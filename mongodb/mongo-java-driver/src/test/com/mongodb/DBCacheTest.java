@@ -0,0 +1,168 @@
+// DBCacheTest.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import org.testng.annotations.Test;
+
+import com.mongodb.util.*;
+
+public class DBCacheTest extends TestCase {
+
+    static DBObject _id( Object id ){
+        return new BasicDBObject( "_id" , id );
+    }
+
+    @Test
+    public void testHits()
+        throws Exception {
+        FakeMongod fake = new FakeMongod();
+        try {
+            DBCollection c = fake.mongo().getDB( "cache" ).getCollection( "a" );
+            assertNull( c.getCache() );
+            c.setCache( 100 , 0 );
+
+            for ( int i=0; i<3; i++ )
+                assertEquals( 1 , c.findOne( 1 ).get( "_id" ) );
+            assertEquals( 1 , fake.count( 2004 ) );
+            assertEquals( 2L , c.getCache().getHits() );
+            assertEquals( 1L , c.getCache().getMisses() );
+
+            // only findOne( id ) with every field is cached
+            c.findOne( 1 , new BasicDBObject( "x" , 1 ) );
+            c.findOne( _id( 1 ) );
+            assertEquals( 3 , fake.count( 2004 ) );
+
+            c.setCache( 0 , 0 );
+            assertNull( c.getCache() );
+            c.findOne( 1 );
+            assertEquals( 4 , fake.count( 2004 ) );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    @Test
+    public void testInvalidation()
+        throws Exception {
+        FakeMongod fake = new FakeMongod();
+        try {
+            DBCollection c = fake.mongo().getDB( "cache" ).getCollection( "a" );
+            c.setCache( 100 , 0 );
+            DBCache cache = c.getCache();
+
+            c.findOne( 1 );
+            c.findOne( 2 );
+            assertEquals( 2 , cache.size() );
+
+            c.update( _id( 1 ) , new BasicDBObject( "x" , 1 ) );
+            assertEquals( 1 , cache.size() );
+            c.findOne( 2 );
+            c.findOne( 1 );
+            assertEquals( 3 , fake.count( 2004 ) );
+
+            c.save( BasicDBObjectBuilder.start().add( "_id" , 2 ).add( "x" , 2 ).get() );
+            c.insert( _id( 3 ) );
+            c.remove( _id( 3 ) );
+            assertEquals( 1 , cache.size() );
+
+            c.updateAsync( _id( 1 ) , new BasicDBObject( "x" , 1 ) ).get();
+            assertEquals( 0 , cache.size() );
+
+            c.findOne( 1 );
+            c.findOne( 2 );
+            assertEquals( 2 , cache.size() );
+            c.remove( new BasicDBObject( "x" , 1 ) );
+            assertEquals( 0 , cache.size() );
+            assertEquals( 5L , cache.getInvalidations() );
+
+            c.findOne( 1 );
+            c.drop();
+            assertEquals( 0 , cache.size() );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    /**
+     * a lookup that was out while a write dropped its _id mustn't put back what it found
+     */
+    @Test
+    public void testRace(){
+        DBCache cache = new DBCache( 10 , 0 );
+        long g = cache.generation();
+        cache.invalidate( 1 );
+        cache.put( 1 , _id( 1 ) , g );
+        assertEquals( 0 , cache.size() );
+
+        cache.put( 1 , _id( 1 ) , cache.generation() );
+        assertEquals( 1 , cache.size() );
+    }
+
+    /**
+     * removeEldestEntry has to really override LinkedHashMap's, or nothing is ever evicted
+     */
+    @Test
+    public void testEviction(){
+        DBCache cache = new DBCache( 10 , 0 );
+        for ( int i=0; i<25; i++ )
+            cache.put( i , _id( i ) , cache.generation() );
+        assertEquals( 10 , cache.size() );
+        assertEquals( 15L , cache.getEvictions() );
+        assertNull( cache.get( 14 ) );
+        assertEquals( 24 , cache.get( 24 ).get( "_id" ) );
+    }
+
+    @Test
+    public void testBounds()
+        throws Exception {
+        FakeMongod fake = new FakeMongod();
+        try {
+            DBCollection c = fake.mongo().getDB( "cache" ).getCollection( "a" );
+            c.setCache( 2 , 0 );
+            c.findOne( 1 );
+            c.findOne( 2 );
+            c.findOne( 1 );
+            c.findOne( 3 );
+            assertEquals( 2 , c.getCache().size() );
+            assertEquals( 1L , c.getCache().getEvictions() );
+            c.findOne( 1 );
+            assertEquals( 3 , fake.count( 2004 ) );
+            c.findOne( 2 );
+            assertEquals( 4 , fake.count( 2004 ) );
+
+            c.setCache( 10 , 50 );
+            c.findOne( 1 );
+            c.findOne( 1 );
+            Thread.sleep( 100 );
+            c.findOne( 1 );
+            assertEquals( 6 , fake.count( 2004 ) );
+            assertEquals( 1L , c.getCache().getExpirations() );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    public static void main( String args[] )
+        throws Exception {
+        (new DBCacheTest()).runConsole();
+    }
+}
@@ -0,0 +1,95 @@
+// DBCursorCloseTest.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.util.*;
+
+import org.testng.annotations.Test;
+
+import com.mongodb.util.*;
+
+public class DBCursorCloseTest extends TestCase {
+
+    @Test
+    public void testClose()
+        throws Exception {
+        FakeMongod fake = new FakeMongod.Batches();
+        try {
+            DBCollection c = fake.mongo().getDB( "closetest" ).getCollection( "a" );
+
+            DBCursor cur = c.find().batchSize( 10 );
+            cur.next();
+            cur.close();
+            assertEquals( 1 , fake.awaitCount( 2007 , 1 , 5000 ) );
+
+            // the rest of the batch is still there, but nothing more
+            assertEquals( 9 , cur.itcount() );
+            assertEquals( 0 , fake.count( 2005 ) );
+
+            cur.close();
+            Thread.sleep( 50 );
+            assertEquals( 1 , fake.count( 2007 ) );
+
+            // nothing to kill once it's all been read
+            cur = c.find().batchSize( 10 );
+            assertEquals( 50 , cur.itcount() );
+            cur.close();
+
+            cur = c.find().batchSize( 10 ).readAhead();
+            cur.next();
+            fake.awaitCount( 2005 , 5 , 5000 );
+            cur.close();
+            Thread.sleep( 50 );
+            assertEquals( 2 , fake.count( 2007 ) );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    @Test
+    public void testReaped()
+        throws Exception {
+        FakeMongod fake = new FakeMongod.Batches();
+        try {
+            DBCollection c = fake.mongo().getDB( "closetest" ).getCollection( "a" );
+
+            for ( int i=0; i<5; i++ ){
+                DBCursor cur = c.find().batchSize( 10 );
+                cur.next();
+            }
+
+            long end = System.currentTimeMillis() + 10000;
+            while ( fake.count( 2007 ) == 0 && System.currentTimeMillis() < end ){
+                System.gc();
+                Thread.sleep( 20 );
+            }
+            assertTrue( fake.count( 2007 ) > 0 , "abandoned cursors never killed" );
+            assertTrue( fake.count( 2007 ) <= 5 );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    public static void main( String args[] )
+        throws Exception {
+        (new DBCursorCloseTest()).runConsole();
+    }
+}
@@ -0,0 +1,83 @@
+// DBCursorReadAheadTest.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import org.testng.annotations.Test;
+
+import com.mongodb.util.*;
+
+public class DBCursorReadAheadTest extends TestCase {
+
+    void _run( MongoOptions options )
+        throws Exception {
+        FakeMongod.Batches fake = new FakeMongod.Batches();
+        try {
+            DBCollection c = fake.mongo( options ).getDB( "readahead" ).getCollection( "a" );
+
+            DBCursor cur = c.find().batchSize( 10 ).readAhead();
+            assertEquals( 0 , ((Number)cur.next().get( "x" )).intValue() );
+            // the second batch is asked for while we're still on the first, but no further
+            assertEquals( 1 , fake.awaitCount( 2005 , 1 , 5000 ) );
+            Thread.sleep( 100 );
+            assertEquals( 1 , fake.count( 2005 ) );
+
+            for ( int i=1; i<50; i++ )
+                assertEquals( i , ((Number)cur.next().get( "x" )).intValue() );
+            assertFalse( cur.hasNext() );
+            assertEquals( 4 , cur.numGetMores() );
+            assertEquals( 4 , fake.count( 2005 ) );
+
+            DBCursor plain = c.find().batchSize( 10 );
+            plain.next();
+            Thread.sleep( 100 );
+            assertEquals( 4 , fake.count( 2005 ) );
+            assertEquals( 49 , plain.itcount() );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    @Test
+    public void testBlocking()
+        throws Exception {
+        _run( new MongoOptions() );
+    }
+
+    @Test
+    public void testPipelined()
+        throws Exception {
+        MongoOptions options = new MongoOptions();
+        options.pipelined = true;
+        _run( options );
+    }
+
+    @Test
+    public void testNonBlocking()
+        throws Exception {
+        MongoOptions options = new MongoOptions();
+        options.nonBlocking = true;
+        _run( options );
+    }
+
+    public static void main( String args[] )
+        throws Exception {
+        (new DBCursorReadAheadTest()).runConsole();
+    }
+}
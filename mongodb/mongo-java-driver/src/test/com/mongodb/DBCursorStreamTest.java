@@ -0,0 +1,132 @@
+// DBCursorStreamTest.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.util.*;
+
+import org.testng.annotations.Test;
+
+import com.mongodb.util.*;
+
+public class DBCursorStreamTest extends TestCase {
+
+    static MongoOptions _streaming(){
+        MongoOptions options = new MongoOptions();
+        options.streamReplies = true;
+        return options;
+    }
+
+    @Test
+    public void testBatches()
+        throws Exception {
+        FakeMongod.Batches fake = new FakeMongod.Batches();
+        try {
+            DBCollection c = fake.mongo( _streaming() ).getDB( "stream" ).getCollection( "a" );
+
+            DBCursor cur = c.find().batchSize( 10 );
+            for ( int i=0; i<50; i++ )
+                assertEquals( i , ((Number)cur.next().get( "x" )).intValue() );
+            assertFalse( cur.hasNext() );
+            assertEquals( 4 , cur.numGetMores() );
+            assertEquals( 10 , cur.getSizes().get( 0 ).intValue() );
+
+            cur = c.find().batchSize( 10 ).lazy();
+            for ( int i=0; i<50; i++ ){
+                DBObject o = cur.next();
+                assertTrue( o instanceof RawDBObject );
+                assertEquals( i , ((Number)o.get( "x" )).intValue() );
+            }
+            assertFalse( cur.hasNext() );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    /**
+     * with one connection, anything else sent while a batch is half read has to buffer the rest of it first
+     */
+    @Test
+    public void testInterleaved()
+        throws Exception {
+        FakeMongod.Batches fake = new FakeMongod.Batches();
+        try {
+            MongoOptions options = _streaming();
+            options.connectionsPerHost = 1;
+            DB db = fake.mongo( options ).getDB( "stream" );
+            DBCollection c = db.getCollection( "a" );
+
+            DBCursor a = c.find().batchSize( 10 );
+            DBCursor b = c.find().batchSize( 10 );
+            for ( int i=0; i<50; i++ ){
+                assertEquals( i , ((Number)a.next().get( "x" )).intValue() );
+                assertEquals( i , ((Number)b.next().get( "x" )).intValue() );
+                if ( i % 7 == 0 )
+                    assertEquals( 0 , ((Number)db.getCollection( "b" ).findOne().get( "x" )).intValue() );
+            }
+            assertFalse( a.hasNext() );
+            assertFalse( b.hasNext() );
+            assertEquals( 1 , fake.connections() );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    /**
+     * a batch bigger than a decoder can hold only works if it's streamed
+     */
+    @Test
+    public void testBigBatch()
+        throws Exception {
+        final char[] chars = new char[ 3 * 1024 * 1024 ];
+        Arrays.fill( chars , 'z' );
+        final String big = new String( chars );
+
+        FakeMongod fake = new FakeMongod(){
+                protected List<DBObject> reply( int op , String ns , DBObject query ){
+                    if ( ns.endsWith( ".$cmd" ) )
+                        return super.reply( op , ns , query );
+                    List<DBObject> l = new ArrayList<DBObject>();
+                    for ( int i=0; i<4; i++ )
+                        l.add( BasicDBObjectBuilder.start().add( "x" , i ).add( "s" , big ).get() );
+                    return l;
+                }
+            };
+        try {
+            DBCollection c = fake.mongo( _streaming() ).getDB( "stream" ).getCollection( "a" );
+
+            DBCursor cur = c.find();
+            for ( int i=0; i<4; i++ ){
+                DBObject o = cur.next();
+                assertEquals( i , ((Number)o.get( "x" )).intValue() );
+                assertEquals( big.length() , o.get( "s" ).toString().length() );
+            }
+            assertFalse( cur.hasNext() );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    public static void main( String args[] )
+        throws Exception {
+        (new DBCursorStreamTest()).runConsole();
+    }
+}
@@ -0,0 +1,170 @@
+// DBListenerTest.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.testng.annotations.Test;
+
+import com.mongodb.util.*;
+
+public class DBListenerTest extends TestCase {
+
+    static class Recorder implements DBListener {
+        public void started( DBEvent e ){
+            _started.add( e );
+        }
+
+        public void finished( DBEvent e ){
+            _finished.add( e );
+        }
+
+        DBEvent last(){
+            return _finished.get( _finished.size() - 1 );
+        }
+
+        final List<DBEvent> _started = new CopyOnWriteArrayList<DBEvent>();
+        final List<DBEvent> _finished = new CopyOnWriteArrayList<DBEvent>();
+    }
+
+    @Test
+    public void testEvents()
+        throws Exception {
+        FakeMongod fake = new FakeMongod.Batches();
+        try {
+            Mongo m = fake.mongo();
+            Recorder r = new Recorder();
+            m.addListener( r );
+            DBCollection c = m.getDB( "listen" ).getCollection( "a" );
+
+            DBCursor cur = c.find().batchSize( 10 );
+            for ( int i=0; i<15; i++ )
+                cur.next();
+
+            assertEquals( 2 , r._finished.size() );
+            DBEvent q = r._finished.get( 0 );
+            assertEquals( 2004 , q.getOperation() );
+            assertEquals( "listen.a" , q.getNamespace() );
+            assertEquals( 10 , q.getNumReturned() );
+            assertTrue( q.getSize() > 0 );
+            assertTrue( q.getNanos() > 0 );
+            assertNull( q.getError() );
+            assertTrue( q == r._started.get( 0 ) );
+
+            DBEvent g = r.last();
+            assertEquals( 2005 , g.getOperation() );
+            assertEquals( "listen.a" , g.getNamespace() );
+            assertTrue( g.getRequestId() > q.getRequestId() );
+
+            cur.close();
+            assertEquals( 2007 , r.last().getOperation() );
+            assertNull( r.last().getNamespace() );
+
+            c.insert( new BasicDBObject( "x" , 1 ) );
+            assertEquals( 2002 , r.last().getOperation() );
+            assertEquals( 0 , r.last().getNumReturned() );
+
+            m.removeListener( r );
+            c.findOne();
+            assertEquals( 4 , r._finished.size() );
+            assertEquals( 4 , r._started.size() );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    @Test
+    public void testError()
+        throws Exception {
+        FakeMongod fake = new FakeMongod(){
+                protected List<DBObject> reply( int op , String ns , DBObject query ){
+                    if ( query != null && query.containsField( "getlasterror" ) ){
+                        List<DBObject> l = new ArrayList<DBObject>();
+                        l.add( BasicDBObjectBuilder.start().add( "ok" , 1 ).add( "err" , "boom" ).get() );
+                        return l;
+                    }
+                    return super.reply( op , ns , query );
+                }
+            };
+        try {
+            Mongo m = fake.mongo();
+            Recorder r = new Recorder();
+            m.addListener( r );
+            DBCollection c = m.getDB( "listen" ).getCollection( "b" );
+            c.setWriteConcern( DB.WriteConcern.STRICT );
+
+            try {
+                c.insert( new BasicDBObject( "x" , 1 ) );
+                assertTrue( false );
+            }
+            catch ( MongoException e ){
+                assertTrue( e == r.last().getError() );
+            }
+            assertEquals( 2002 , r.last().getOperation() );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    @Test
+    public void testSlowOpLogger()
+        throws Exception {
+        final List<String> logged = new CopyOnWriteArrayList<String>();
+        java.util.logging.Handler h = new java.util.logging.Handler(){
+                public void publish( java.util.logging.LogRecord r ){
+                    logged.add( r.getMessage() );
+                }
+                public void flush(){}
+                public void close(){}
+            };
+        SlowOpLogger.LOGGER.addHandler( h );
+
+        FakeMongod fake = new FakeMongod(){
+                protected List<DBObject> reply( int op , String ns , DBObject query ){
+                    if ( ns.endsWith( ".slow" ) )
+                        ThreadUtil.sleep( 60 );
+                    return super.reply( op , ns , query );
+                }
+            };
+        try {
+            MongoOptions options = new MongoOptions();
+            options.slowOpTime = 50;
+            DB db = fake.mongo( options ).getDB( "listen" );
+
+            db.getCollection( "fast" ).findOne();
+            assertEquals( 0 , logged.size() );
+
+            db.getCollection( "slow" ).findOne();
+            assertEquals( 1 , logged.size() );
+            assertTrue( logged.get( 0 ).indexOf( "listen.slow" ) >= 0 );
+        }
+        finally {
+            SlowOpLogger.LOGGER.removeHandler( h );
+            fake.close();
+        }
+    }
+
+    public static void main( String args[] )
+        throws Exception {
+        (new DBListenerTest()).runConsole();
+    }
+}
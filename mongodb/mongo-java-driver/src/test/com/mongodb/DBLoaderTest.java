@@ -0,0 +1,128 @@
+// DBLoaderTest.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.testng.annotations.Test;
+
+import com.mongodb.util.*;
+
+public class DBLoaderTest extends TestCase {
+
+    /**
+     * has numThreads threads each load one id at the same moment
+     * @return how many got the wrong answer
+     */
+    static int _loadAll( final DBLoader loader , int numThreads )
+        throws Exception {
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final AtomicInteger wrong = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for ( int i=0; i<numThreads; i++ ){
+            final int id = i;
+            Thread t = new Thread(){
+                    public void run(){
+                        try {
+                            start.await();
+                            DBObject o = loader.load( id );
+                            if ( o == null || ((Number)o.get( "y" )).intValue() != id * 10 )
+                                wrong.incrementAndGet();
+                        }
+                        catch ( Exception e ){
+                            wrong.incrementAndGet();
+                        }
+                    }
+                };
+            t.start();
+            threads.add( t );
+        }
+        start.countDown();
+        for ( Thread t : threads )
+            t.join();
+        return wrong.get();
+    }
+
+    @Test
+    public void testCoalesce()
+        throws Exception {
+        FakeMongod fake = new FakeMongod.ById();
+        try {
+            DBCollection c = fake.mongo().getDB( "loader" ).getCollection( "a" );
+            DBLoader loader = c.loader( 500 , 100 );
+
+            assertEquals( 0 , _loadAll( loader , 20 ) );
+            assertEquals( 20L , loader.getLoads() );
+            assertEquals( 1L , loader.getQueries() );
+            assertEquals( 1 , fake.count( 2004 ) );
+
+            assertNull( loader.load( 500 ) );
+            assertEquals( 10 , ((Number)loader.load( 1 ).get( "y" )).intValue() );
+            assertEquals( 3 , fake.count( 2004 ) );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    @Test
+    public void testMaxBatch()
+        throws Exception {
+        FakeMongod fake = new FakeMongod.ById();
+        try {
+            DBCollection c = fake.mongo().getDB( "loader" ).getCollection( "a" );
+            DBLoader loader = c.loader( 10000 , 5 );
+
+            final long start = System.currentTimeMillis();
+            assertEquals( 0 , _loadAll( loader , 20 ) );
+            assertTrue( System.currentTimeMillis() - start < 5000 );
+            assertEquals( 4L , loader.getQueries() );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    @Test
+    public void testCache()
+        throws Exception {
+        FakeMongod fake = new FakeMongod.ById();
+        try {
+            DBCollection c = fake.mongo().getDB( "loader" ).getCollection( "a" );
+            c.setCache( 100 , 0 );
+            DBLoader loader = c.loader( 0 , 100 );
+
+            assertEquals( 20 , ((Number)loader.load( 2 ).get( "y" )).intValue() );
+            assertEquals( 20 , ((Number)loader.load( 2 ).get( "y" )).intValue() );
+            assertEquals( 20 , ((Number)c.findOne( 2 ).get( "y" )).intValue() );
+            assertEquals( 1L , loader.getQueries() );
+            assertEquals( 2L , c.getCache().getHits() );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    public static void main( String args[] )
+        throws Exception {
+        (new DBLoaderTest()).runConsole();
+    }
+}
@@ -0,0 +1,152 @@
+// DBMetricsTest.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.lang.management.*;
+
+import javax.management.*;
+
+import org.testng.annotations.Test;
+
+import com.mongodb.util.*;
+
+public class DBMetricsTest extends TestCase {
+
+    static MongoOptions _metrics(){
+        MongoOptions options = new MongoOptions();
+        options.metrics = true;
+        return options;
+    }
+
+    static long _long( DBObject o , String path ){
+        Object cur = o;
+        for ( String p : path.split( "/" ) )
+            cur = ((DBObject)cur).get( p );
+        return ((Number)cur).longValue();
+    }
+
+    @Test
+    public void testOff()
+        throws Exception {
+        FakeMongod fake = new FakeMongod();
+        try {
+            assertNull( fake.mongo().getMetrics() );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    @Test
+    public void testCounts()
+        throws Exception {
+        FakeMongod fake = new FakeMongod.Batches();
+        try {
+            Mongo m = fake.mongo( _metrics() );
+            DBCollection c = m.getDB( "metrics" ).getCollection( "a" );
+
+            DBCursor cur = c.find().batchSize( 10 );
+            for ( int i=0; i<15; i++ )
+                cur.next();
+            cur.close();
+            assertEquals( 1 , fake.awaitCount( 2007 , 1 , 5000 ) );
+
+            c.insert( new BasicDBObject( "x" , 1 ) );
+            fake.awaitCount( 2002 , 1 , 5000 );
+
+            DBMetrics metrics = m.getMetrics();
+            DBObject snap = metrics.snapshot();
+            String host = fake.address().getSocketAddress().getHostName() + ":" + fake.port();
+
+            DBObject h = (DBObject)((DBObject)snap.get( "hosts" )).get( host );
+            assertEquals( 1 , _long( h , "ops/query/count" ) );
+            assertEquals( 1 , _long( h , "ops/getmore/count" ) );
+            assertEquals( 1 , _long( h , "ops/killcursors/count" ) );
+            assertEquals( 1 , _long( h , "ops/insert/count" ) );
+            assertEquals( 1 , _long( h , "cursorsOpened" ) );
+            assertEquals( 1 , _long( h , "cursorsKilled" ) );
+            assertEquals( 4 , _long( h , "poolGets" ) );
+            assertEquals( 0 , _long( h , "poolTimeouts" ) );
+            assertEquals( 1 , _long( h , "pool/total" ) );
+            assertTrue( _long( h , "bytesIn" ) > 0 );
+            assertTrue( _long( h , "bytesOut" ) > 0 );
+
+            DBObject a = (DBObject)((DBObject)snap.get( "collections" )).get( "metrics.a" );
+            assertEquals( 1 , _long( a , "ops/query/count" ) );
+            assertEquals( 1 , _long( a , "ops/insert/count" ) );
+            // killcursors doesn't say which collection
+            assertNull( ((DBObject)a.get( "ops" )).get( "killcursors" ) );
+
+            assertEquals( 4 , metrics.getOperations() );
+            assertEquals( _long( h , "bytesIn" ) , metrics.getBytesIn() );
+
+            // and the same over jmx
+            assertEquals( 4L , ManagementFactory.getPlatformMBeanServer().getAttribute( metrics.getObjectName() , "Operations" ) );
+            assertTrue( JSON.parse( (String)ManagementFactory.getPlatformMBeanServer().getAttribute( metrics.getObjectName() , "Snapshot" ) ) instanceof DBObject );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    /**
+     * the MBean server mustn't keep a closed Mongo's metrics alive
+     */
+    @Test
+    public void testUnregister()
+        throws Exception {
+        FakeMongod fake = new FakeMongod();
+        try {
+            Mongo m = fake.mongo( _metrics() );
+            ObjectName on = m.getMetrics().getObjectName();
+            assertTrue( ManagementFactory.getPlatformMBeanServer().isRegistered( on ) );
+            m.close();
+            assertFalse( ManagementFactory.getPlatformMBeanServer().isRegistered( on ) );
+            assertNull( m.getMetrics().getObjectName() );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    @Test
+    public void testPipelined()
+        throws Exception {
+        FakeMongod fake = new FakeMongod();
+        try {
+            MongoOptions options = _metrics();
+            options.pipelined = true;
+            Mongo m = fake.mongo( options );
+            DBCollection c = m.getDB( "metrics" ).getCollection( "b" );
+            for ( int i=0; i<5; i++ )
+                c.findOne();
+
+            DBObject b = (DBObject)((DBObject)m.getMetrics().snapshot().get( "collections" )).get( "metrics.b" );
+            assertEquals( 5 , _long( b , "ops/query/count" ) );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    public static void main( String args[] )
+        throws Exception {
+        (new DBMetricsTest()).runConsole();
+    }
+}
@@ -0,0 +1,208 @@
+// DBNIOConnectorTest.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.testng.annotations.Test;
+
+import com.mongodb.util.*;
+
+public class DBNIOConnectorTest extends TestCase {
+
+    static DBCollection _collection( FakeMongod fake )
+        throws Exception {
+        MongoOptions options = new MongoOptions();
+        options.nonBlocking = true;
+        options.connectionsPerHost = 3;
+        options.ioThreads = 2;
+        return fake.mongo( options ).getDB( "niotest" ).getCollection( "nio" );
+    }
+
+    @Test
+    public void testCall()
+        throws Exception {
+        FakeMongod fake = new FakeMongod();
+        try {
+            DBCollection c = _collection( fake );
+            for ( int i=0; i<100; i++ ){
+                DBObject res = c.findOne( new BasicDBObject( "x" , i ) );
+                assertEquals( i , ((Number)res.get( "x" )).intValue() );
+            }
+            assertEquals( 100 , fake.count( 2004 ) );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    @Test
+    public void testSayAndCallFromManyThreads()
+        throws Exception {
+        final FakeMongod fake = new FakeMongod();
+        try {
+            final DBCollection c = _collection( fake );
+            final AtomicInteger bad = new AtomicInteger();
+
+            List<Thread> threads = new ArrayList<Thread>();
+            for ( int i=0; i<8; i++ ){
+                final int t = i;
+                threads.add( new Thread(){
+                        public void run(){
+                            for ( int j=0; j<50; j++ ){
+                                int x = ( t * 1000 ) + j;
+                                c.insert( new BasicDBObject( "x" , x ) );
+                                DBObject res = c.findOne( new BasicDBObject( "x" , x ) );
+                                if ( res == null || ((Number)res.get( "x" )).intValue() != x )
+                                    bad.incrementAndGet();
+                            }
+                        }
+                    } );
+            }
+
+            for ( Thread t : threads )
+                t.start();
+            for ( Thread t : threads )
+                t.join();
+
+            assertEquals( 0 , bad.get() );
+            assertEquals( 400 , fake.count( 2004 ) );
+            assertEquals( 400 , fake.count( 2002 ) );
+            assertTrue( fake.connections() <= 3 );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    /**
+     * an Out queued on a conn the loop has already closed, as a send losing a race with close would leave it,
+     * has to be failed rather than wait for someone else to reconnect.  there's no socketTimeout to save it
+     */
+    @Test
+    public void testQueuedAfterClose()
+        throws Exception {
+        FakeMongod fake = new FakeMongod();
+        try {
+            DBCollection c = _collection( fake );
+            c.findOne( new BasicDBObject( "x" , 1 ) );
+            DBNIOConnector connector = (DBNIOConnector)fake._mongos.get( 0 )._connector;
+            DBNIOConnector.Conn conn = null;
+            for ( DBNIOConnector.Conn[] conns : connector._conns.values() )
+                for ( DBNIOConnector.Conn x : conns )
+                    if ( x != null && x._channel != null )
+                        conn = x;
+            assertNotNull( conn );
+
+            conn._loop.close( conn , new IOException( "closed by the test" ) );
+            final long end = System.currentTimeMillis() + 5000;
+            while ( conn._channel != null && System.currentTimeMillis() < end )
+                ThreadUtil.sleep( 5 );
+            assertNull( conn._channel );
+
+            final DBNIOConnector.Conn closed = conn;
+            final DBNIOConnector.Out out = new DBNIOConnector.Out( java.nio.ByteBuffer.allocate( 16 ) , null , null );
+            final IOException[] error = new IOException[1];
+            conn._outQueue.add( out );
+            conn._loop.wantWrite( conn );
+            Thread t = new Thread(){
+                    public void run(){
+                        try {
+                            out.awaitWritten( closed , 0 );
+                        }
+                        catch ( IOException ioe ){
+                            error[0] = ioe;
+                        }
+                    }
+                };
+            t.setDaemon( true );
+            t.start();
+            t.join( 5000 );
+            assertFalse( t.isAlive() );
+            assertNotNull( error[0] );
+
+            // and the conn reconnects for the next one
+            assertEquals( 2 , ((Number)c.findOne( new BasicDBObject( "x" , 2 ) ).get( "x" )).intValue() );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    /**
+     * a server that stops reading mustn't hang a writer past socketTimeout, and the interrupt has to survive the wait
+     */
+    @Test
+    public void testWriteTimeout()
+        throws Exception {
+        final CountDownLatch stuck = new CountDownLatch( 1 );
+        FakeMongod fake = new FakeMongod(){
+                protected List<DBObject> reply( int op , String ns , DBObject query ){
+                    try {
+                        stuck.await();
+                    }
+                    catch ( InterruptedException ie ){
+                        // done
+                    }
+                    return super.reply( op , ns , query );
+                }
+            };
+        try {
+            MongoOptions options = new MongoOptions();
+            options.nonBlocking = true;
+            options.connectionsPerHost = 1;
+            options.socketTimeout = 200;
+            DBCollection c = fake.mongo( options ).getDB( "niotest" ).getCollection( "nio" );
+
+            c.findOneAsync( new BasicDBObject( "x" , 1 ) ); // the fake stops reading here
+            fake.awaitCount( 2004 , 1 , 5000 );
+
+            char[] big = new char[ 1024 * 1024 ];
+            Arrays.fill( big , 'x' );
+            DBObject doc = new BasicDBObject( "s" , new String( big ) );
+
+            Thread.currentThread().interrupt();
+            final long start = System.currentTimeMillis();
+            try {
+                for ( int i=0; i<256; i++ )
+                    c.insert( doc );
+                assertTrue( false );
+            }
+            catch ( MongoException.Network e ){
+                assertTrue( e.getCause() instanceof SocketTimeoutException , e.getCause().toString() );
+            }
+            assertTrue( Thread.interrupted() );
+            assertTrue( System.currentTimeMillis() - start < 10000 );
+        }
+        finally {
+            Thread.interrupted();
+            stuck.countDown();
+            fake.close();
+        }
+    }
+
+    public static void main( String args[] )
+        throws Exception {
+        (new DBNIOConnectorTest()).runConsole();
+    }
+}
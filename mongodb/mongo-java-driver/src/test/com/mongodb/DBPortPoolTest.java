@@ -0,0 +1,286 @@
+// DBPortPoolTest.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.util.*;
+
+import org.testng.annotations.Test;
+
+import com.mongodb.util.*;
+
+public class DBPortPoolTest extends TestCase {
+
+    /**
+     * the fake counts a connection once it gets round to accepting it, which can be after the client is connected
+     */
+    static int _connections( FakeMongod fake , int n ){
+        final long end = System.currentTimeMillis() + 5000;
+        while ( fake.connections() < n && System.currentTimeMillis() < end )
+            ThreadUtil.sleep( 5 );
+        return fake.connections();
+    }
+
+    @Test
+    public void testWarmUp()
+        throws Exception {
+        FakeMongod fake = new FakeMongod();
+        try {
+            MongoOptions options = new MongoOptions();
+            options.minIdleConnectionsPerHost = 3;
+            Mongo m = fake.mongo( options );
+            assertEquals( 3 , _connections( fake , 3 ) );
+
+            // uses one of the connections that are already open
+            m.getDB( "warm" ).getCollection( "a" ).findOne();
+            ThreadUtil.sleep( 50 );
+            assertEquals( 3 , fake.connections() );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    @Test
+    public void testIdleEviction()
+        throws Exception {
+        FakeMongod fake = new FakeMongod();
+        try {
+            MongoOptions options = new MongoOptions();
+            options.connectionsPerHost = 5;
+            options.minIdleConnectionsPerHost = 1;
+            options.maxIdleTime = 50;
+            DBPortPool pool = new DBPortPool( fake.address().getSocketAddress() , options );
+
+            List<DBPort> ports = new ArrayList<DBPort>();
+            for ( int i=0; i<4; i++ ){
+                DBPort p = pool.get();
+                p.ensureOpen();
+                ports.add( p );
+            }
+            for ( DBPort p : ports )
+                pool.done( p );
+            assertEquals( 4 , pool.idle() );
+
+            // nothing has been idle long enough yet
+            pool.maintain();
+            assertEquals( 4 , pool.idle() );
+
+            ThreadUtil.sleep( 100 );
+            pool.maintain();
+            assertEquals( 1 , pool.idle() );
+            assertEquals( 1 , pool.total() );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    @Test
+    public void testKeepAlive()
+        throws Exception {
+        final boolean[] answer = new boolean[]{ true };
+        FakeMongod fake = new FakeMongod(){
+                protected List<DBObject> reply( int op , String ns , DBObject query ){
+                    if ( ! answer[0] )
+                        return new ArrayList<DBObject>();
+                    return super.reply( op , ns , query );
+                }
+            };
+        try {
+            MongoOptions options = new MongoOptions();
+            options.keepAliveInterval = 20;
+            DBPortPool pool = new DBPortPool( fake.address().getSocketAddress() , options );
+
+            DBPort p = pool.get();
+            p.ensureOpen();
+            pool.done( p );
+
+            ThreadUtil.sleep( 50 );
+            pool.maintain();
+            assertEquals( 1 , fake.count( 2004 ) );
+            assertEquals( 1 , pool.idle() );
+
+            // just checked, so not due again yet
+            pool.maintain();
+            assertEquals( 1 , fake.count( 2004 ) );
+
+            answer[0] = false;
+            ThreadUtil.sleep( 50 );
+            pool.maintain();
+            assertEquals( 2 , fake.count( 2004 ) );
+            assertEquals( 0 , pool.total() );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    /**
+     * a streamed reply bigger than the stream's buffer is still on the socket when the port goes back,
+     * and a consumer slower than maxIdleTime mustn't have it closed under it
+     */
+    @Test
+    public void testIdleWhileStreaming()
+        throws Exception {
+        FakeMongod fake = new FakeMongod(){
+                protected List<DBObject> reply( int op , String ns , DBObject query ){
+                    List<DBObject> l = new ArrayList<DBObject>();
+                    for ( int i=0; i<10; i++ )
+                        l.add( CompressionTest._big( i ) );
+                    return l;
+                }
+            };
+        try {
+            MongoOptions options = new MongoOptions();
+            options.streamReplies = true;
+            options.maxIdleTime = 20;
+            DBPortPool pool = new DBPortPool( fake.address().getSocketAddress() , options );
+
+            DBPort p = pool.get();
+            DBPort.ReplyStream s = p.stream( DBTCPConnector._isMasterQuery() );
+            assertNotNull( s.next() );
+            pool.done( p );
+            assertTrue( p.isStreaming() );
+
+            ThreadUtil.sleep( 50 );
+            pool.maintain();
+            assertTrue( p.isOpen() );
+            for ( int i=1; i<10; i++ )
+                assertNotNull( s.next() );
+            assertNull( s.next() );
+            assertFalse( p.isStreaming() );
+
+            // and once it's read, the port is idle like any other
+            ThreadUtil.sleep( 50 );
+            pool.maintain();
+            assertFalse( p.isOpen() );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    /**
+     * shared ports past minIdleConnectionsPerHost with nothing outstanding are closed in place
+     */
+    @Test
+    public void testPipelinedIdleEviction()
+        throws Exception {
+        FakeMongod fake = new FakeMongod();
+        DBPortPool pool = null;
+        try {
+            MongoOptions options = new MongoOptions();
+            options.pipelined = true;
+            options.connectionsPerHost = 3;
+            options.minIdleConnectionsPerHost = 1;
+            options.maxIdleTime = 50;
+            pool = new DBPortPool( fake.address().getSocketAddress() , options );
+
+            List<DBPort> ports = new ArrayList<DBPort>();
+            for ( int i=0; i<3; i++ ){
+                DBPort p = pool.get();
+                p.ensureOpen();
+                ports.add( p );
+            }
+            assertEquals( 3 , _connections( fake , 3 ) );
+
+            pool.maintain();
+            assertEquals( 3 , fake.awaitOpen( 3 , 0 ) );
+
+            ThreadUtil.sleep( 100 );
+            pool.maintain();
+            assertTrue( ports.get( 0 ).isOpen() );
+            assertFalse( ports.get( 1 ).isOpen() );
+            assertFalse( ports.get( 2 ).isOpen() );
+            assertEquals( 1 , fake.awaitOpen( 1 , 5000 ) );
+
+            // still in its slot, and reconnects when used
+            assertEquals( 1 , _isMaster( ports.get( 2 ) ) );
+            assertEquals( 4 , _connections( fake , 4 ) );
+        }
+        finally {
+            if ( pool != null )
+                pool.close();
+            fake.close();
+        }
+    }
+
+    @Test
+    public void testPipelinedKeepAlive()
+        throws Exception {
+        final boolean[] answer = new boolean[]{ true };
+        FakeMongod fake = new FakeMongod(){
+                protected List<DBObject> reply( int op , String ns , DBObject query ){
+                    if ( ! answer[0] )
+                        return new ArrayList<DBObject>();
+                    return super.reply( op , ns , query );
+                }
+            };
+        DBPortPool pool = null;
+        try {
+            MongoOptions options = new MongoOptions();
+            options.pipelined = true;
+            options.connectionsPerHost = 1;
+            options.keepAliveInterval = 20;
+            pool = new DBPortPool( fake.address().getSocketAddress() , options );
+
+            DBPort p = pool.get();
+            p.ensureOpen();
+
+            ThreadUtil.sleep( 50 );
+            pool.maintain();
+            assertEquals( 1 , fake.count( 2004 ) );
+            assertTrue( p.isOpen() );
+
+            pool.maintain();
+            assertEquals( 1 , fake.count( 2004 ) );
+
+            answer[0] = false;
+            ThreadUtil.sleep( 50 );
+            pool.maintain();
+            assertEquals( 2 , fake.count( 2004 ) );
+            assertFalse( p.isOpen() );
+            assertTrue( pool.get() == p );
+        }
+        finally {
+            if ( pool != null )
+                pool.close();
+            fake.close();
+        }
+    }
+
+    static int _isMaster( DBPort p )
+        throws Exception {
+        ByteDecoder decoder = ByteDecoder.get( null , null );
+        DBMessage m = DBTCPConnector._isMasterQuery();
+        try {
+            p.call( m , decoder );
+            return ((Number)DBTCPConnector._onlyResult( decoder , "ismaster" ).get( "ok" )).intValue();
+        }
+        finally {
+            decoder.done();
+            m._encoder.done();
+        }
+    }
+
+    public static void main( String args[] )
+        throws Exception {
+        (new DBPortPoolTest()).runConsole();
+    }
+}
@@ -0,0 +1,126 @@
+// DBPortTest.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.testng.annotations.Test;
+
+import com.mongodb.util.*;
+
+public class DBPortTest extends TestCase {
+
+    @Test
+    public void testPipelined()
+        throws Exception {
+        FakeMongod fake = new FakeMongod();
+        try {
+            MongoOptions options = new MongoOptions();
+            options.pipelined = true;
+            options.connectionsPerHost = 2;
+
+            final DBCollection c = fake.mongo( options ).getDB( "porttest" ).getCollection( "pipe" );
+            final AtomicInteger bad = new AtomicInteger();
+
+            List<Thread> threads = new ArrayList<Thread>();
+            for ( int i=0; i<8; i++ ){
+                final int t = i;
+                threads.add( new Thread(){
+                        public void run(){
+                            for ( int j=0; j<100; j++ ){
+                                int x = ( t * 1000 ) + j;
+                                DBObject res = c.findOne( new BasicDBObject( "x" , x ) );
+                                if ( res == null || ((Number)res.get( "x" )).intValue() != x )
+                                    bad.incrementAndGet();
+                            }
+                        }
+                    } );
+            }
+
+            for ( Thread t : threads )
+                t.start();
+            for ( Thread t : threads )
+                t.join();
+
+            assertEquals( 0 , bad.get() );
+            assertEquals( 800 , fake.count( 2004 ) );
+            assertTrue( fake.connections() <= 2 );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    /**
+     * a socket dying halfway through a reply has to fail the caller it was for, and everyone else waiting
+     */
+    @Test
+    public void testDiesMidReply()
+        throws Exception {
+        FakeMongod fake = new FakeMongod();
+        try {
+            MongoOptions options = new MongoOptions();
+            options.pipelined = true;
+            options.connectionsPerHost = 1;
+
+            final DBCollection c = fake.mongo( options ).getDB( "porttest" ).getCollection( "pipe" );
+            assertEquals( 1 , c.findOne( new BasicDBObject( "x" , 1 ) ).get( "x" ) );
+
+            fake.setCutReplies( true );
+            DBFuture<DBObject> async = c.findOneAsync( new BasicDBObject( "x" , 2 ) );
+
+            final AtomicInteger failed = new AtomicInteger();
+            Thread t = new Thread(){
+                    public void run(){
+                        try {
+                            c.findOne( new BasicDBObject( "x" , 3 ) );
+                        }
+                        catch ( MongoException e ){
+                            failed.incrementAndGet();
+                        }
+                    }
+                };
+            t.start();
+            t.join( 10000 );
+            assertFalse( t.isAlive() );
+            assertEquals( 1 , failed.get() );
+
+            try {
+                async.get( 10000 , java.util.concurrent.TimeUnit.MILLISECONDS );
+                assertTrue( false );
+            }
+            catch ( java.util.concurrent.ExecutionException e ){
+                // good
+            }
+
+            fake.setCutReplies( false );
+            assertEquals( 4 , c.findOne( new BasicDBObject( "x" , 4 ) ).get( "x" ) );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    public static void main( String args[] )
+        throws Exception {
+        (new DBPortTest()).runConsole();
+    }
+}
@@ -0,0 +1,99 @@
+// DBRefResolverTest.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.util.*;
+
+import org.testng.annotations.Test;
+
+import com.mongodb.util.*;
+
+public class DBRefResolverTest extends TestCase {
+
+    @Test
+    public void testFetch()
+        throws Exception {
+        FakeMongod fake = new FakeMongod.ById();
+        try {
+            DB db = fake.mongo().getDB( "refs" );
+
+            BasicDBList refs = new BasicDBList();
+            for ( int i=0; i<200; i++ )
+                refs.add( new DBRef( db , i % 2 == 0 ? "a" : "b" , i % 110 ) );
+            refs.add( "not a ref" );
+
+            DBRefResolver resolver = new DBRefResolver();
+            List<DBObject> docs = resolver.fetch( refs );
+            assertEquals( 2 , fake.count( 2004 ) );
+            assertEquals( 2 , resolver.getQueries() );
+            assertEquals( refs.size() , docs.size() );
+            for ( int i=0; i<200; i++ ){
+                int id = i % 110;
+                if ( id < 100 )
+                    assertEquals( id * 10 , ((Number)docs.get( i ).get( "y" )).intValue() );
+                else
+                    assertNull( docs.get( i ) );
+            }
+            assertNull( docs.get( 200 ) );
+
+            // the refs and the resolver both remember, including what wasn't found
+            assertEquals( 30 , ((Number)((DBRef)refs.get( 3 )).fetch().get( "y" )).intValue() );
+            assertNull( ((DBRef)refs.get( 105 )).fetch() );
+            assertEquals( 40 , ((Number)resolver.fetch( new DBRef( db , "a" , 4 ) ).get( "y" )).intValue() );
+            assertNull( resolver.fetch( new DBRef( db , "b" , 105 ) ) );
+            assertEquals( 2 , fake.count( 2004 ) );
+
+            // only what it hasn't seen is asked for
+            resolver.fetch( Arrays.asList( new DBRef( db , "a" , 4 ) , new DBRef( db , "c" , 4 ) ) );
+            assertEquals( 3 , fake.count( 2004 ) );
+
+            resolver.clear();
+            resolver.fetch( new DBRef( db , "a" , 4 ) );
+            assertEquals( 4 , fake.count( 2004 ) );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    @Test
+    public void testChunks()
+        throws Exception {
+        FakeMongod fake = new FakeMongod.ById();
+        try {
+            DB db = fake.mongo().getDB( "refs" );
+            List<DBRef> refs = new ArrayList<DBRef>();
+            for ( int i=0; i<DBRefResolver.MAX_IN * 2 + 1; i++ )
+                refs.add( new DBRef( db , "a" , i ) );
+
+            List<DBObject> docs = DBRefBase.fetch( refs );
+            assertEquals( 3 , fake.count( 2004 ) );
+            assertEquals( 990 , ((Number)docs.get( 99 ).get( "y" )).intValue() );
+            assertNull( docs.get( 100 ) );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    public static void main( String args[] )
+        throws Exception {
+        (new DBRefResolverTest()).runConsole();
+    }
+}
@@ -0,0 +1,456 @@
+// FakeMongod.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
+/**
+ * a tiny in-process stand in for mongod so the wire layer can be tested without a server.
+ * queries to $cmd get { ok : 1 , ismaster : 1 } back.
+ * any other query gets the query document echoed back as the only result.
+ * subclasses can override reply() to answer differently, and Batches and ById are ones several tests share.
+ * understands zlib OP_COMPRESSED, and answers a compressed request compressed
+ */
+public class FakeMongod {
+
+    /**
+     * hands out 5 batches of 10, x counting up, to any query
+     */
+    public static class Batches extends FakeMongod {
+        public Batches()
+            throws IOException {
+            super();
+        }
+
+        protected List<DBObject> reply( int op , String ns , DBObject query ){
+            return _batch( 0 );
+        }
+
+        protected List<DBObject> getMore( String ns , long cursor ){
+            return _batch( (int)cursor );
+        }
+
+        protected long cursorId( int op , String ns , long cursor ){
+            return cursor + 1 < 5 ? cursor + 1 : 0;
+        }
+
+        List<DBObject> _batch( int n ){
+            List<DBObject> l = new ArrayList<DBObject>();
+            for ( int i=0; i<10; i++ )
+                l.add( new BasicDBObject( "x" , n * 10 + i ) );
+            return l;
+        }
+    }
+
+    /**
+     * answers { _id : { $in : [ ... ] } } with { _id : x , y : x * 10 } for every x under 100
+     */
+    public static class ById extends FakeMongod {
+        public ById()
+            throws IOException {
+            super();
+        }
+
+        protected List<DBObject> reply( int op , String ns , DBObject query ){
+            if ( ns.endsWith( ".$cmd" ) || query == null || ! ( query.get( "_id" ) instanceof DBObject ) )
+                return super.reply( op , ns , query );
+            List<DBObject> l = new ArrayList<DBObject>();
+            for ( Object o : (List)((DBObject)query.get( "_id" )).get( "$in" ) ){
+                int x = ((Number)o).intValue();
+                if ( x < 100 )
+                    l.add( BasicDBObjectBuilder.start().add( "_id" , x ).add( "y" , x * 10 ).get() );
+            }
+            return l;
+        }
+    }
+
+    public FakeMongod()
+        throws IOException {
+        _server = new ServerSocket( 0 , 50 , InetAddress.getByName( "127.0.0.1" ) );
+        _acceptor = new Thread( "FakeMongod-" + port() ){
+                public void run(){
+                    _accept();
+                }
+            };
+        _acceptor.setDaemon( true );
+        _acceptor.start();
+    }
+
+    public int port(){
+        return _server.getLocalPort();
+    }
+
+    public ServerAddress address()
+        throws UnknownHostException {
+        return new ServerAddress( "127.0.0.1" , port() );
+    }
+
+    /**
+     * a Mongo connected to this, closed along with it
+     */
+    public Mongo mongo()
+        throws UnknownHostException {
+        return mongo( new MongoOptions() );
+    }
+
+    public Mongo mongo( MongoOptions options )
+        throws UnknownHostException {
+        Mongo m = new Mongo( address() , options );
+        synchronized ( _mongos ){
+            _mongos.add( m );
+        }
+        return m;
+    }
+
+    /**
+     * closes the Mongos from mongo() first, then every connection
+     */
+    public void close(){
+        synchronized ( _mongos ){
+            for ( Mongo m : _mongos )
+                m.close();
+            _mongos.clear();
+        }
+        _closed = true;
+        try {
+            _server.close();
+        }
+        catch ( IOException ioe ){
+            // don't care
+        }
+        synchronized ( _sockets ){
+            for ( Socket s : _sockets ){
+                try {
+                    s.close();
+                }
+                catch ( IOException ioe ){
+                    // don't care
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the documents to send back for a query or getmore
+     */
+    protected List<DBObject> reply( int op , String ns , DBObject query ){
+        List<DBObject> l = new ArrayList<DBObject>();
+        if ( ns.endsWith( ".$cmd" ) )
+            l.add( BasicDBObjectBuilder.start().add( "ok" , 1 ).add( "ismaster" , 1 ).add( "n" , 0 ).get() );
+        else if ( query != null )
+            l.add( query );
+        return l;
+    }
+
+    /**
+     * @return the documents to send back for a getmore on cursor, by default whatever reply says
+     */
+    protected List<DBObject> getMore( String ns , long cursor ){
+        return reply( 2005 , ns , null );
+    }
+
+    /**
+     * @param cursor the cursor a getmore was for, 0 for a query
+     * @return the cursor id to send back, 0 if there's nothing more
+     */
+    protected long cursorId( int op , String ns , long cursor ){
+        return 0;
+    }
+
+    /**
+     * from now on every query and getmore gets these documents back, encoded once up front,
+     * so the server costs next to nothing when benchmarking
+     */
+    public void setCannedReply( List<DBObject> docs ){
+        _canned = _encodeReply( 0 , docs );
+    }
+
+    /**
+     * from now on every reply to a query or getmore is cut off halfway, and the connection closed,
+     * like a server dying while it answers
+     */
+    public void setCutReplies( boolean cut ){
+        _cut = cut;
+    }
+
+    /** how many messages with this opcode have been received */
+    public int count( int op ){
+        AtomicInteger i = _counts.get( op );
+        return i == null ? 0 : i.get();
+    }
+
+    /**
+     * writes are fire and forget, so tests have to wait for the server to see them
+     * @return the count once it reaches n, or whatever it is after timeout ms
+     */
+    public int awaitCount( int op , int n , long timeout )
+        throws InterruptedException {
+        final long end = System.currentTimeMillis() + timeout;
+        while ( count( op ) < n && System.currentTimeMillis() < end )
+            Thread.sleep( 5 );
+        return count( op );
+    }
+
+    public int connections(){
+        return _connections.get();
+    }
+
+    /**
+     * waits for the number of connections still open to drop to n
+     * @return how many are open
+     */
+    public int awaitOpen( int n , long timeout )
+        throws InterruptedException {
+        final long end = System.currentTimeMillis() + timeout;
+        while ( _open.get() > n && System.currentTimeMillis() < end )
+            Thread.sleep( 5 );
+        return _open.get();
+    }
+
+    private void _accept(){
+        while ( ! _closed ){
+            try {
+                final Socket s = _server.accept();
+                s.setTcpNoDelay( true );
+                _connections.incrementAndGet();
+                _open.incrementAndGet();
+                synchronized ( _sockets ){
+                    _sockets.add( s );
+                }
+                Thread t = new Thread( "FakeMongod-conn-" + port() ){
+                        public void run(){
+                            _serve( s );
+                        }
+                    };
+                t.setDaemon( true );
+                t.start();
+            }
+            catch ( IOException ioe ){
+                if ( ! _closed )
+                    ioe.printStackTrace();
+            }
+        }
+    }
+
+    private void _serve( Socket s ){
+        try {
+            DataInputStream in = new DataInputStream( new BufferedInputStream( s.getInputStream() ) );
+            OutputStream out = s.getOutputStream();
+            while ( true ){
+                byte[] header = new byte[16];
+                in.readFully( header );
+                ByteBuffer hb = ByteBuffer.wrap( header ).order( Bytes.ORDER );
+                int len = hb.getInt( 0 );
+                int id = hb.getInt( 4 );
+                int op = hb.getInt( 12 );
+
+                byte[] body = new byte[ len - 16 ];
+                in.readFully( body );
+                _bytesIn.addAndGet( len );
+
+                // OP_COMPRESSED: original opcode, uncompressed size, compressor, then the compressed body.
+                // replies to a compressed request are compressed too
+                boolean compressed = false;
+                if ( op == 2012 ){
+                    _count( op );
+                    compressed = true;
+                    ByteBuffer cb = ByteBuffer.wrap( body ).order( Bytes.ORDER );
+                    op = cb.getInt();
+                    byte[] full = new byte[ cb.getInt() ];
+                    if ( cb.get() != 2 )
+                        throw new IOException( "fake only knows zlib" );
+                    Inflater inflater = new Inflater();
+                    inflater.setInput( body , 9 , body.length - 9 );
+                    try {
+                        int got = 0;
+                        while ( got < full.length ){
+                            int x = inflater.inflate( full , got , full.length - got );
+                            if ( x == 0 && ( inflater.finished() || inflater.needsInput() ) )
+                                throw new IOException( "short compressed message" );
+                            got += x;
+                        }
+                    }
+                    catch ( DataFormatException dfe ){
+                        throw new IOException( "bad compressed message: " + dfe );
+                    }
+                    finally {
+                        inflater.end();
+                    }
+                    body = full;
+                }
+
+                _count( op );
+
+                if ( op != 2004 && op != 2005 )
+                    continue;
+
+                byte[] canned = _canned;
+                if ( canned != null ){
+                    byte[] res = canned.clone();
+                    ByteBuffer rb = ByteBuffer.wrap( res ).order( Bytes.ORDER );
+                    rb.putInt( 4 , _ids.incrementAndGet() );
+                    rb.putInt( 8 , id );
+                    _write( out , res , compressed );
+                    continue;
+                }
+
+                ByteBuffer bb = ByteBuffer.wrap( body ).order( Bytes.ORDER );
+                bb.getInt(); // flags or reserved
+                String ns = _readCStr( bb );
+                List<DBObject> docs;
+                long cursor = 0;
+                if ( op == 2004 ){
+                    bb.getInt(); // skip
+                    bb.getInt(); // num to return
+                    docs = reply( op , ns , new ByteDecoder( bb ).readObject() );
+                }
+                else {
+                    bb.getInt(); // num to return
+                    cursor = bb.getLong();
+                    docs = getMore( ns , cursor );
+                }
+
+                byte[] res = _encodeReply( id , docs );
+                ByteBuffer.wrap( res ).order( Bytes.ORDER ).putLong( 20 , cursorId( op , ns , cursor ) );
+                _write( out , res , compressed );
+            }
+        }
+        catch ( IOException ioe ){
+            // connection went away
+        }
+        finally {
+            _open.decrementAndGet();
+            try {
+                s.close();
+            }
+            catch ( IOException ioe ){
+                // don't care
+            }
+        }
+    }
+
+    private void _write( OutputStream out , byte[] res , boolean compress )
+        throws IOException {
+        if ( compress ){
+            Deflater deflater = new Deflater();
+            deflater.setInput( res , 16 , res.length - 16 );
+            deflater.finish();
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            byte[] buf = new byte[ 8192 ];
+            while ( ! deflater.finished() ){
+                int x = deflater.deflate( buf );
+                bout.write( buf , 0 , x );
+            }
+            deflater.end();
+
+            ByteBuffer in = ByteBuffer.wrap( res ).order( Bytes.ORDER );
+            ByteBuffer bb = ByteBuffer.allocate( 25 + bout.size() ).order( Bytes.ORDER );
+            bb.putInt( 25 + bout.size() );
+            bb.putInt( in.getInt( 4 ) );
+            bb.putInt( in.getInt( 8 ) );
+            bb.putInt( 2012 );
+            bb.putInt( in.getInt( 12 ) );
+            bb.putInt( res.length - 16 );
+            bb.put( (byte)2 );
+            bb.put( bout.toByteArray() );
+            res = bb.array();
+        }
+        if ( _cut ){
+            synchronized ( out ){
+                out.write( res , 0 , res.length / 2 );
+                out.flush();
+            }
+            throw new IOException( "cut off" );
+        }
+        synchronized ( out ){
+            out.write( res );
+            out.flush();
+        }
+        _bytesOut.addAndGet( res.length );
+    }
+
+    /** bytes received, as they were on the wire */
+    public long bytesIn(){
+        return _bytesIn.get();
+    }
+
+    /** bytes sent, as they were on the wire */
+    public long bytesOut(){
+        return _bytesOut.get();
+    }
+
+    private byte[] _encodeReply( int responseTo , List<DBObject> docs ){
+        ByteArrayOutputStream docBytes = new ByteArrayOutputStream();
+        for ( DBObject o : docs ){
+            byte[] b = Bytes.encode( o );
+            docBytes.write( b , 0 , b.length );
+        }
+
+        ByteBuffer bb = ByteBuffer.allocate( 36 + docBytes.size() ).order( Bytes.ORDER );
+        bb.putInt( 36 + docBytes.size() );
+        bb.putInt( _ids.incrementAndGet() );
+        bb.putInt( responseTo );
+        bb.putInt( 1 ); // OP_REPLY
+        bb.putInt( 0 ); // flags
+        bb.putLong( 0 ); // cursor
+        bb.putInt( 0 ); // starting from
+        bb.putInt( docs.size() );
+        bb.put( docBytes.toByteArray() );
+        return bb.array();
+    }
+
+    private void _count( int op ){
+        AtomicInteger i;
+        synchronized ( _counts ){
+            i = _counts.get( op );
+            if ( i == null ){
+                i = new AtomicInteger();
+                _counts.put( op , i );
+            }
+        }
+        i.incrementAndGet();
+    }
+
+    static String _readCStr( ByteBuffer bb ){
+        StringBuilder buf = new StringBuilder();
+        byte b;
+        while ( ( b = bb.get() ) != 0 )
+            buf.append( (char)b );
+        return buf.toString();
+    }
+
+    final ServerSocket _server;
+    final Thread _acceptor;
+    final List<Socket> _sockets = new ArrayList<Socket>();
+    final List<Mongo> _mongos = new ArrayList<Mongo>();
+    final Map<Integer,AtomicInteger> _counts = new HashMap<Integer,AtomicInteger>();
+    final AtomicInteger _connections = new AtomicInteger();
+    final AtomicInteger _open = new AtomicInteger();
+    final AtomicInteger _ids = new AtomicInteger();
+    final AtomicLong _bytesIn = new AtomicLong();
+    final AtomicLong _bytesOut = new AtomicLong();
+    volatile boolean _closed = false;
+    volatile byte[] _canned;
+    volatile boolean _cut = false;
+}
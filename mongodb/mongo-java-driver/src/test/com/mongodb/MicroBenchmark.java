@@ -0,0 +1,354 @@
+// MicroBenchmark.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.nio.*;
+import java.util.*;
+
+import com.mongodb.util.*;
+
+/**
+ * times the driver's hot paths without needing a mongod.
+ * each benchmark is warmed up, then timed over several iterations, and the mean and best ns/op printed.
+ * usage: MicroBenchmark [-time ms per iteration] [-iterations n] [name prefix...]
+ * or: ant benchmark -Dbench.args="-time 500 encode"
+ */
+public class MicroBenchmark {
+
+    /**
+     * one thing to time.  op's result is kept, so the work can't be optimized away
+     */
+    static abstract class Bench {
+        Bench( String name ){
+            _name = name;
+        }
+
+        void setup()
+            throws Exception {
+        }
+
+        abstract Object op()
+            throws Exception;
+
+        void teardown()
+            throws Exception {
+        }
+
+        final String _name;
+        Object _last;
+    }
+
+    static DBObject small(){
+        return BasicDBObjectBuilder.start()
+            .add( "_id" , new ObjectId() )
+            .add( "name" , "small" )
+            .add( "n" , 5 )
+            .get();
+    }
+
+    static DBObject large(){
+        BasicDBList words = new BasicDBList();
+        for ( int i=0; i<280; i++ )
+            words.add( "word" + ( i % 14 ) );
+
+        BasicDBObjectBuilder b = BasicDBObjectBuilder.start()
+            .add( "_id" , new ObjectId() )
+            .add( "base_url" , "http://www.example.com/test-me" )
+            .add( "total_word_count" , 6743 )
+            .add( "access_time" , new Date() )
+            .add( "meta_tags" , BasicDBObjectBuilder.start()
+                  .add( "description" , "i am a long description string" )
+                  .add( "author" , "Holly Man" )
+                  .get() )
+            .add( "harvested_words" , words );
+        for ( int i=0; i<40; i++ )
+            b.add( "field" + i , i % 2 == 0 ? (Object)( "value " + i ) : (Object)( i * 1.5 ) );
+        return b.get();
+    }
+
+    /**
+     * the kind of domain object people persist with ReflectionDBObject
+     */
+    public static class Doc extends ReflectionDBObject {
+        public String getName(){ return _name; }
+        public void setName( String s ){ _name = s; }
+        public int getCount(){ return _count; }
+        public void setCount( int n ){ _count = n; }
+        public long getTotal(){ return _total; }
+        public void setTotal( long n ){ _total = n; }
+        public double getScore(){ return _score; }
+        public void setScore( double d ){ _score = d; }
+        public boolean getActive(){ return _active; }
+        public void setActive( boolean b ){ _active = b; }
+        public Date getCreated(){ return _created; }
+        public void setCreated( Date d ){ _created = d; }
+        public String getEmail(){ return _email; }
+        public void setEmail( String s ){ _email = s; }
+        public int getVersion(){ return _version; }
+        public void setVersion( int n ){ _version = n; }
+
+        String _name;
+        int _count;
+        long _total;
+        double _score;
+        boolean _active;
+        Date _created;
+        String _email;
+        int _version;
+    }
+
+    static Doc doc(){
+        Doc d = new Doc();
+        d.set_id( new ObjectId() );
+        d.setName( "some name" );
+        d.setCount( 17 );
+        d.setTotal( 1234567890123L );
+        d.setScore( 4.5 );
+        d.setActive( true );
+        d.setCreated( new Date() );
+        d.setEmail( "someone@example.com" );
+        d.setVersion( 3 );
+        return d;
+    }
+
+    static ByteBuffer wrap( byte[] b ){
+        ByteBuffer buf = ByteBuffer.wrap( b );
+        buf.order( Bytes.ORDER );
+        return buf;
+    }
+
+    static List<Bench> all(){
+        List<Bench> l = new ArrayList<Bench>();
+
+        l.add( new Bench( "encode.small" ){
+                final DBObject o = small();
+                Object op(){
+                    ByteEncoder e = ByteEncoder.get();
+                    int n = e.putObject( o );
+                    e.done();
+                    return n;
+                }
+            } );
+
+        l.add( new Bench( "encode.large" ){
+                final DBObject o = large();
+                Object op(){
+                    ByteEncoder e = ByteEncoder.get();
+                    int n = e.putObject( o );
+                    e.done();
+                    return n;
+                }
+            } );
+
+        l.add( new Bench( "decode.large" ){
+                final byte[] bytes = Bytes.encode( large() );
+                Object op(){
+                    ByteDecoder d = ByteDecoder.get( null , null );
+                    d._buf.put( bytes );
+                    d._buf.flip();
+                    DBObject o = d.readObject();
+                    d.done();
+                    return o;
+                }
+            } );
+
+        l.add( new Bench( "encode.reflection" ){
+                final DBObject o = doc();
+                Object op(){
+                    ByteEncoder e = ByteEncoder.get();
+                    int n = e.putObject( o );
+                    e.done();
+                    return n;
+                }
+            } );
+
+        l.add( new Bench( "decode.reflection" ){
+                final byte[] bytes = Bytes.encode( doc() );
+                DBCollection _coll;
+                void setup()
+                    throws Exception {
+                    _coll = new Mongo( "127.0.0.1" ).getDB( "bench" ).getCollection( "docs" );
+                    _coll.setObjectClass( Doc.class );
+                }
+                Object op(){
+                    ByteDecoder d = ByteDecoder.get( _coll.getDB() , _coll );
+                    d._buf.put( bytes );
+                    d._buf.flip();
+                    DBObject o = d.readObject();
+                    d.done();
+                    return o;
+                }
+            } );
+
+        l.add( new Bench( "raw.get3" ){
+                final ByteBuffer buf = wrap( Bytes.encode( large() ) );
+                Object op(){
+                    RawDBObject o = new RawDBObject( buf , 0 );
+                    o.get( "_id" );
+                    o.get( "total_word_count" );
+                    return o.get( "field39" );
+                }
+            } );
+
+        l.add( new Bench( "objectid.get" ){
+                Object op(){
+                    return ObjectId.get();
+                }
+            } );
+
+        l.add( new Bench( "objectid.reserve" ){
+                ObjectId.Block _block = ObjectId.reserve( 1000 );
+                Object op(){
+                    if ( ! _block.hasNext() )
+                        _block = ObjectId.reserve( 1000 );
+                    return _block.next();
+                }
+            } );
+
+        l.add( new Bench( "json.serialize" ){
+                final DBObject o = large();
+                Object op(){
+                    return JSON.serialize( o );
+                }
+            } );
+
+        l.add( new Bench( "json.parse" ){
+                final String s = JSON.serialize( large() );
+                Object op(){
+                    return JSON.parse( s );
+                }
+            } );
+
+        l.add( new Bench( "pool.getDone" ){
+                final SimplePool<Object> pool = new SimplePool<Object>( "bench" , 10 , 10 ){
+                    protected Object createNew(){
+                        return new Object();
+                    }
+                };
+                Object op(){
+                    Object o = pool.get();
+                    pool.done( o );
+                    return o;
+                }
+            } );
+
+        l.add( new FindBench( "find.roundtrip" , false ) );
+        l.add( new FindBench( "find.roundtrip.lazy" , true ) );
+
+        return l;
+    }
+
+    /**
+     * a findOne against a FakeMongod replaying the same encoded reply, so it's all driver time plus loopback
+     */
+    static class FindBench extends Bench {
+        FindBench( String name , boolean lazy ){
+            super( name );
+            _lazy = lazy;
+        }
+
+        void setup()
+            throws Exception {
+            _fake = new FakeMongod();
+            _fake.setCannedReply( Arrays.asList( new DBObject[]{ large() } ) );
+            _coll = _fake.mongo().getDB( "bench" ).getCollection( "bench" );
+        }
+
+        Object op(){
+            DBCursor c = _coll.find( _query ).limit( -1 );
+            if ( _lazy )
+                c.lazy();
+            return c.next().get( "total_word_count" );
+        }
+
+        void teardown(){
+            _fake.close();
+        }
+
+        final boolean _lazy;
+        final DBObject _query = new BasicDBObject( "base_url" , "http://www.example.com/test-me" );
+        FakeMongod _fake;
+        DBCollection _coll;
+    }
+
+    /**
+     * runs b for about millis, in batches so the clock isn't read every op
+     * @return ns per op
+     */
+    static double time( Bench b , long millis )
+        throws Exception {
+        final long end = System.nanoTime() + ( millis * 1000000L );
+        long ops = 0;
+        long start = System.nanoTime();
+        long now;
+        int batch = 1;
+        do {
+            for ( int i=0; i<batch; i++ )
+                b._last = b.op();
+            ops += batch;
+            now = System.nanoTime();
+            if ( batch < 1024 )
+                batch *= 2;
+        } while ( now < end );
+        return (double)( now - start ) / ops;
+    }
+
+    static void run( Bench b , long millis , int iterations )
+        throws Exception {
+        b.setup();
+        try {
+            time( b , millis ); // warm up
+            double total = 0;
+            double best = Double.MAX_VALUE;
+            for ( int i=0; i<iterations; i++ ){
+                double t = time( b , millis );
+                total += t;
+                best = Math.min( best , t );
+            }
+            System.out.println( String.format( "%-24s %12.1f ns/op  (best %.1f)" , b._name , total / iterations , best ) );
+        }
+        finally {
+            b.teardown();
+        }
+    }
+
+    public static void main( String args[] )
+        throws Exception {
+        long millis = 1000;
+        int iterations = 5;
+        List<String> only = new ArrayList<String>();
+
+        for ( int i=0; i<args.length; i++ ){
+            if ( args[i].equals( "-time" ) )
+                millis = Long.parseLong( args[++i] );
+            else if ( args[i].equals( "-iterations" ) )
+                iterations = Integer.parseInt( args[++i] );
+            else
+                only.add( args[i] );
+        }
+
+        for ( Bench b : all() ){
+            boolean want = only.size() == 0;
+            for ( String s : only )
+                want = want || b._name.startsWith( s );
+            if ( want )
+                run( b , millis , iterations );
+        }
+    }
+}
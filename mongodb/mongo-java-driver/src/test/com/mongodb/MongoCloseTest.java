@@ -0,0 +1,141 @@
+// MongoCloseTest.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.util.concurrent.*;
+
+import org.testng.annotations.Test;
+
+import com.mongodb.util.*;
+
+public class MongoCloseTest extends TestCase {
+
+    @Test
+    public void testBlocking()
+        throws Exception {
+        MongoOptions options = new MongoOptions();
+        options.maxIdleTime = 1000;
+        _run( options , "ThreadPool.MyThread:DBTCPConnector-async" , "DBPortPool-Keeper" );
+    }
+
+    @Test
+    public void testPipelined()
+        throws Exception {
+        MongoOptions options = new MongoOptions();
+        options.pipelined = true;
+        _run( options , "DBPort-Reader" );
+    }
+
+    @Test
+    public void testNonBlocking()
+        throws Exception {
+        MongoOptions options = new MongoOptions();
+        options.nonBlocking = true;
+        _run( options , "DBNIOConnector-Loop" );
+    }
+
+    @Test
+    public void testMonitor()
+        throws Exception {
+        FakeMongod a = new FakeMongod();
+        FakeMongod b = new FakeMongod();
+        Mongo m = null;
+        try {
+            MongoOptions options = new MongoOptions();
+            options.monitorInterval = 50;
+            int before = _count( "ServerMonitor" );
+            m = new Mongo( a.address() , b.address() , options );
+            // the monitor, and any checks it has going
+            assertTrue( _count( "ServerMonitor" ) > before );
+            m.close();
+            assertTrue( _awaitCount( "ServerMonitor" , before ) );
+        }
+        finally {
+            if ( m != null )
+                m.close();
+            a.close();
+            b.close();
+        }
+    }
+
+    void _run( MongoOptions options , String ... threads )
+        throws Exception {
+        FakeMongod fake = new FakeMongod();
+        try {
+            int[] before = new int[ threads.length ];
+            for ( int i=0; i<threads.length; i++ )
+                before[i] = _count( threads[i] );
+
+            Mongo m = fake.mongo( options );
+            DBCollection c = m.getDB( "closetest" ).getCollection( "a" );
+            assertEquals( 1 , c.findOneAsync( new BasicDBObject( "x" , 1 ) ).getResult().get( "x" ) );
+            for ( int i=0; i<threads.length; i++ )
+                assertTrue( _count( threads[i] ) > before[i] , threads[i] );
+
+            m.close();
+            for ( int i=0; i<threads.length; i++ )
+                assertTrue( _awaitCount( threads[i] , before[i] ) , threads[i] );
+            assertEquals( 0 , fake.awaitOpen( 0 , 5000 ) );
+
+            try {
+                c.findOne( new BasicDBObject( "x" , 2 ) );
+                assertTrue( false );
+            }
+            catch ( MongoException e ){
+                // closed
+            }
+            try {
+                c.findOneAsync( new BasicDBObject( "x" , 3 ) ).get( 5 , TimeUnit.SECONDS );
+                assertTrue( false );
+            }
+            catch ( MongoException e ){
+                // closed, and it could tell before sending
+            }
+            catch ( ExecutionException e ){
+                // closed
+            }
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    static int _count( String prefix ){
+        int n = 0;
+        for ( Thread t : Thread.getAllStackTraces().keySet() )
+            if ( t.isAlive() && t.getName().startsWith( prefix ) )
+                n++;
+        return n;
+    }
+
+    static boolean _awaitCount( String prefix , int n ){
+        final long end = System.currentTimeMillis() + 5000;
+        while ( _count( prefix ) > n ){
+            if ( System.currentTimeMillis() > end )
+                return false;
+            ThreadUtil.sleep( 5 );
+        }
+        return true;
+    }
+
+    public static void main( String args[] )
+        throws Exception {
+        (new MongoCloseTest()).runConsole();
+    }
+}
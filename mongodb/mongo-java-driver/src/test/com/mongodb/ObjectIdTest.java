@@ -94,6 +94,68 @@ public class ObjectIdTest extends TestCase {
         assertEquals( d.getTime() / 1000 , a.getTime() / 1000 );
     }
 
+    @Test
+    public void testFlip(){
+        assertEquals( 0x04030201 , ObjectId._flip( 0x01020304 ) );
+        assertEquals( 0x7f , ObjectId._flip( 0x7f000000 ) );
+        assertEquals( -1 , ObjectId._flip( -1 ) );
+    }
+
+    @Test
+    public void testReserve(){
+        ObjectId.Block block = ObjectId.reserve( 100 );
+        ObjectId first = block.next();
+        assertTrue( first._new );
+        assertLess( Math.abs( first.getTime() - System.currentTimeMillis() ) , 3000 );
+
+        java.util.Set<ObjectId> seen = new java.util.HashSet<ObjectId>();
+        seen.add( first );
+        for ( int i=1; i<100; i++ ){
+            ObjectId id = block.next();
+            assertEquals( first._machine , id._machine );
+            assertEquals( first._inc + i , id._inc );
+            seen.add( id );
+        }
+        assertEquals( 100 , seen.size() );
+        assertFalse( block.hasNext() );
+        try {
+            block.next();
+            assertTrue( false );
+        }
+        catch ( java.util.NoSuchElementException e ){}
+
+        // the block's range is taken, so the next id is past it
+        assertEquals( first._inc + 100 , new ObjectId()._inc );
+    }
+
+    @Test
+    public void testInsertReserves()
+        throws Exception {
+        FakeMongod fake = new FakeMongod();
+        try {
+            DBCollection c = fake.mongo().getDB( "oidtest" ).getCollection( "a" );
+            DBObject[] arr = new DBObject[10];
+            for ( int i=0; i<arr.length; i++ )
+                arr[i] = new BasicDBObject( "x" , i );
+            arr[3].put( "_id" , 3 );
+            c.insert( arr );
+
+            assertEquals( 3 , arr[3].get( "_id" ) );
+            ObjectId first = (ObjectId)arr[0].get( "_id" );
+            int inc = first._inc;
+            for ( int i=1; i<arr.length; i++ ){
+                if ( i == 3 )
+                    continue;
+                inc++;
+                assertEquals( inc , ((ObjectId)arr[i].get( "_id" ))._inc );
+                assertFalse( ((ObjectId)arr[i].get( "_id" ))._new );
+            }
+        }
+        finally {
+            fake.close();
+        }
+    }
+
     @Test
     public void testStringOnServer(){
         ObjectId oid = new ObjectId();
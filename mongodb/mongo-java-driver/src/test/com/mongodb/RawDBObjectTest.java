@@ -0,0 +1,186 @@
+// RawDBObjectTest.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.nio.*;
+import java.util.*;
+import java.util.regex.*;
+
+import org.testng.annotations.Test;
+
+import com.mongodb.util.*;
+
+public class RawDBObjectTest extends TestCase {
+
+    DBObject _wide(){
+        BasicDBObject o = new BasicDBObject();
+        o.put( "_id" , new ObjectId() );
+        o.put( "i" , 5 );
+        o.put( "l" , 5000000000L );
+        o.put( "d" , 5.5 );
+        o.put( "s" , "abc\u00e9" );
+        o.put( "b" , true );
+        o.put( "n" , null );
+        o.put( "date" , new Date( 12345 ) );
+        o.put( "re" , Pattern.compile( "a.*b" , Pattern.CASE_INSENSITIVE ) );
+        o.put( "bin" , new byte[]{ 1 , 2 , 3 } );
+        o.put( "sub" , new BasicDBObject( "a" , 1 ).append( "b" , new BasicDBObject( "c" , "d" ) ) );
+        o.put( "arr" , Arrays.asList( new Object[]{ 1 , "two" , new BasicDBObject( "three" , 3 ) } ) );
+        o.put( "\u00fcber" , "non ascii name" );
+        for ( int i=0; i<50; i++ )
+            o.put( "f" + i , "value " + i );
+        return o;
+    }
+
+    RawDBObject _raw( DBObject o ){
+        ByteBuffer buf = ByteBuffer.wrap( Bytes.encode( o ) );
+        buf.order( Bytes.ORDER );
+        return new RawDBObject( buf );
+    }
+
+    @Test
+    public void testSameAsEager(){
+        DBObject o = _wide();
+        RawDBObject raw = _raw( o );
+        DBObject eager = new ByteDecoder( raw._buf.duplicate().order( Bytes.ORDER ) ).readObject();
+
+        assertEquals( new ArrayList<String>( eager.keySet() ).toString() , new ArrayList<String>( raw.keySet() ).toString() );
+        for ( String k : eager.keySet() ){
+            if ( k.equals( "re" ) || k.equals( "bin" ) )
+                continue;
+            assertEquals( JSON.serialize( eager.get( k ) ) , JSON.serialize( raw.get( k ) ) );
+        }
+        
+        assertEquals( "a.*b" , ((Pattern)raw.get( "re" )).pattern() );
+        assertEquals( 3 , ((byte[])raw.get( "bin" )).length );
+        assertEquals( 5000000000L , ((Long)raw.get( "l" )).longValue() );
+        assertEquals( "non ascii name" , raw.get( "\u00fcber" ) );
+        assertEquals( "d" , ((DBObject)((DBObject)raw.get( "sub" )).get( "b" )).get( "c" ) );
+        assertEquals( 3 , ((Number)((DBObject)((List)raw.get( "arr" )).get( 2 )).get( "three" )).intValue() );
+
+        assertTrue( raw.containsField( "n" ) );
+        assertNull( raw.get( "n" ) );
+        assertFalse( raw.containsField( "nope" ) );
+        assertNull( raw.get( "nope" ) );
+
+        assertEquals( o.get( "_id" ) , raw.get( "_id" ) );
+        assertEquals( JSON.serialize( eager ) , raw.toString() );
+    }
+
+    @Test
+    public void testCached(){
+        RawDBObject raw = _raw( _wide() );
+        Object sub = raw.get( "sub" );
+        assertTrue( sub == raw.get( "sub" ) );
+        assertTrue( raw.get( "f49" ) == raw.get( "f49" ) );
+    }
+
+    /**
+     * threads reading the same document all get the same cached values
+     */
+    @Test
+    public void testThreads()
+        throws Exception {
+        final RawDBObject raw = _raw( _wide() );
+        final Set<String> keys = raw.keySet();
+        final List<Map<String,Object>> seen = new Vector<Map<String,Object>>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for ( int i=0; i<8; i++ ){
+            Thread t = new Thread(){
+                    public void run(){
+                        Map<String,Object> m = new HashMap<String,Object>();
+                        for ( String k : keys )
+                            m.put( k , raw.get( k ) );
+                        seen.add( m );
+                    }
+                };
+            t.start();
+            threads.add( t );
+        }
+        for ( Thread t : threads )
+            t.join();
+
+        assertEquals( 8 , seen.size() );
+        for ( Map<String,Object> m : seen )
+            for ( String k : keys )
+                assertTrue( m.get( k ) == raw.get( k ) , k );
+    }
+
+    @Test
+    public void testReadOnly(){
+        RawDBObject raw = _raw( _wide() );
+        try {
+            raw.put( "x" , 1 );
+            assertTrue( false );
+        }
+        catch ( RuntimeException e ){
+            // good
+        }
+
+        assertFalse( raw.isPartialObject() );
+        raw.markAsPartialObject();
+        assertTrue( raw.isPartialObject() );
+    }
+
+    @Test
+    public void testReencode(){
+        DBObject o = _wide();
+        RawDBObject raw = _raw( o );
+        assertTrue( Arrays.equals( Bytes.encode( o ) , Bytes.encode( raw ) ) );
+    }
+
+    @Test
+    public void testLazyCursor()
+        throws Exception {
+        FakeMongod fake = new FakeMongod(){
+                protected List<DBObject> reply( int op , String ns , DBObject query ){
+                    List<DBObject> l = new ArrayList<DBObject>();
+                    for ( int i=0; i<5; i++ )
+                        l.add( new BasicDBObject( "_id" , i ).append( "x" , "x" + i ).append( "y" , new BasicDBObject( "z" , i ) ) );
+                    return l;
+                }
+            };
+        try {
+            DBCollection c = fake.mongo().getDB( "rawtest" ).getCollection( "a" );
+
+            int n = 0;
+            for ( DBObject o : c.find().lazy() ){
+                assertTrue( o instanceof RawDBObject );
+                assertEquals( n , ((Number)o.get( "_id" )).intValue() );
+                assertEquals( "x" + n , o.get( "x" ) );
+                assertEquals( n , ((Number)((DBObject)o.get( "y" )).get( "z" )).intValue() );
+                n++;
+            }
+            assertEquals( 5 , n );
+
+            DBObject partial = c.find( new BasicDBObject() , new BasicDBObject( "x" , 1 ) ).lazy().next();
+            assertTrue( partial.isPartialObject() );
+
+            assertFalse( c.find().next() instanceof RawDBObject );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    public static void main( String args[] )
+        throws Exception {
+        (new RawDBObjectTest()).runConsole();
+    }
+}
@@ -17,6 +17,7 @@
 package com.mongodb;
 
 import java.io.*;
+import java.util.*;
 
 import org.testng.annotations.Test;
 
@@ -109,6 +110,118 @@ public class ReflectionTest extends TestCase {
         assertEquals( 17 , o.getInner().getNumber() );
     }
 
+    public static class Typed extends ReflectionDBObject {
+        public int getI(){ return _i; }
+        public void setI( int i ){ _i = i; }
+        public long getL(){ return _l; }
+        public void setL( long l ){ _l = l; }
+        public double getD(){ return _d; }
+        public void setD( double d ){ _d = d; }
+        public float getF(){ return _f; }
+        public void setF( float f ){ _f = f; }
+        public boolean getB(){ return _b; }
+        public void setB( boolean b ){ _b = b; }
+        public Integer getBoxed(){ return _boxed; }
+        public void setBoxed( Integer i ){ _boxed = i; }
+        public String getS(){ return _s; }
+        public void setS( String s ){ _s = s; }
+        public Date getWhen(){ return _when; }
+        public void setWhen( Date d ){ _when = d; }
+        public ObjectId getOid(){ return _oid; }
+        public void setOid( ObjectId oid ){ _oid = oid; }
+        public List getList(){ return _list; }
+        public void setList( List l ){ _list = l; }
+        public Inner getInner(){ return _inner; }
+        public void setInner( Inner in ){ _inner = in; }
+
+        int _i;
+        long _l;
+        double _d;
+        float _f;
+        boolean _b;
+        Integer _boxed;
+        String _s;
+        Date _when;
+        ObjectId _oid;
+        List _list;
+        Inner _inner;
+    }
+
+    Typed _typed(){
+        Typed t = new Typed();
+        t.set_id( new ObjectId() );
+        t.setI( 5 );
+        t.setL( 1L << 40 );
+        t.setD( 1.5 );
+        t.setF( 2.5f );
+        t.setB( true );
+        t.setS( "caf\u00e9" );
+        t.setWhen( new Date() );
+        t.setOid( new ObjectId() );
+        t.setList( Arrays.asList( new Object[]{ 1 , "two" } ) );
+        t.setInner( new Inner( 17 ) );
+        return t;
+    }
+
+    @Test
+    public void testEncodeSameAsGeneric(){
+        Typed t = _typed();
+
+        BasicDBObject generic = new BasicDBObject();
+        generic.put( "_id" , t.get_id() );
+        for ( String k : t.keySet() )
+            if ( ! k.equals( "_id" ) )
+                generic.put( k , t.get( k ) );
+        generic.put( "Inner" , BasicDBObjectBuilder.start().add( "Number" , 17 ).add( "_id" , null ).get() );
+        generic.put( "F" , 2.5 );
+
+        assertEquals( Arrays.toString( Bytes.encode( generic ) ) , Arrays.toString( Bytes.encode( t ) ) );
+    }
+
+    @Test
+    public void testDecodeTyped(){
+        Typed t = _typed();
+        DBCollection c = _db.getCollection( "typed" );
+        c.setObjectClass( Typed.class );
+
+        Typed out = (Typed)_decode( c , Bytes.encode( t ) );
+        assertEquals( t.get_id() , out.get_id() );
+        assertEquals( 5 , out.getI() );
+        assertEquals( 1L << 40 , out.getL() );
+        assertEquals( 1.5 , out.getD() );
+        assertEquals( 2.5f , out.getF() );
+        assertTrue( out.getB() );
+        assertNull( out.getBoxed() );
+        assertEquals( "caf\u00e9" , out.getS() );
+        assertEquals( t.getWhen() , out.getWhen() );
+        assertEquals( t.getOid() , out.getOid() );
+        assertEquals( 2 , out.getList().size() );
+        assertEquals( "two" , out.getList().get( 1 ) );
+        assertEquals( 17 , out.getInner().getNumber() );
+    }
+
+    @Test
+    public void testDecodeConvertsNumbers(){
+        DBCollection c = _db.getCollection( "inner" );
+        c.setObjectClass( Inner.class );
+
+        // what the shell writes for { Number : 17 }
+        Inner out = (Inner)_decode( c , Bytes.encode( new BasicDBObject( "Number" , 17.0 ) ) );
+        assertEquals( 17 , out.getNumber() );
+    }
+
+    static DBObject _decode( DBCollection c , byte[] bytes ){
+        ByteDecoder d = ByteDecoder.get( c.getDB() , c );
+        try {
+            d._buf.put( bytes );
+            d._buf.flip();
+            return d.readObject();
+        }
+        finally {
+            d.done();
+        }
+    }
+
     final DB _db;
     
     public static void main( String args[] )
@@ -0,0 +1,200 @@
+// ServerMonitorTest.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.testng.annotations.Test;
+
+import com.mongodb.util.*;
+
+public class ServerMonitorTest extends TestCase {
+
+    /**
+     * says it's master or not depending on _master
+     */
+    static class Member extends FakeMongod {
+        Member( boolean master )
+            throws java.io.IOException {
+            super();
+            _master = master;
+        }
+
+        protected List<DBObject> reply( int op , String ns , DBObject query ){
+            if ( ! ns.endsWith( ".$cmd" ) )
+                return super.reply( op , ns , query );
+            List<DBObject> l = new ArrayList<DBObject>();
+            l.add( BasicDBObjectBuilder.start()
+                   .add( "ok" , 1 )
+                   .add( "ismaster" , _master )
+                   .add( "secondary" , ! _master )
+                   .get() );
+            return l;
+        }
+
+        volatile boolean _master;
+    }
+
+    static MongoOptions _options(){
+        MongoOptions options = new MongoOptions();
+        options.monitorInterval = 20;
+        options.connectTimeout = 1000;
+        return options;
+    }
+
+    static boolean _waitFor( Mongo m , ServerAddress addr ){
+        final long end = System.currentTimeMillis() + 5000;
+        while ( ! addr.equals( m.getAddress() ) && System.currentTimeMillis() < end )
+            ThreadUtil.sleep( 5 );
+        return addr.equals( m.getAddress() );
+    }
+
+    @Test
+    public void testFollowsMaster()
+        throws Exception {
+        Member a = new Member( false );
+        Member b = new Member( true );
+        Mongo m = null;
+        try {
+            m = new Mongo( a.address() , b.address() , _options() );
+            // found by the monitor, not by asking on the constructor's connection
+            assertEquals( b.address() , m.getAddress() );
+
+            b._master = false;
+            a._master = true;
+            assertTrue( _waitFor( m , a.address() ) );
+
+            ServerMonitor.Node na = m._connector.getMonitor().nodes().get( 0 );
+            assertTrue( na._ok );
+            assertTrue( na._isMaster );
+            assertTrue( na._pingTime >= 0 );
+            // b's check can have been answered before it stepped down, so give it another sweep
+            ServerMonitor.Node nb = m._connector.getMonitor().nodes().get( 1 );
+            final long end = System.currentTimeMillis() + 5000;
+            while ( ! nb._isSecondary && System.currentTimeMillis() < end )
+                ThreadUtil.sleep( 5 );
+            assertTrue( nb._isSecondary );
+        }
+        finally {
+            if ( m != null )
+                m.close();
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test
+    public void testSkipsDeadHost()
+        throws Exception {
+        Member a = new Member( true );
+        Member b = new Member( false );
+        Mongo m = null;
+        try {
+            m = new Mongo( a.address() , b.address() , _options() );
+            assertEquals( a.address() , m.getAddress() );
+
+            // a saying it's master is enough for the constructor, so b may not have answered yet
+            ServerMonitor mon = m._connector.getMonitor();
+            final long up = System.currentTimeMillis() + 5000;
+            while ( ! mon.nodes().get( 1 )._ok && System.currentTimeMillis() < up )
+                ThreadUtil.sleep( 5 );
+            assertTrue( mon.nodes().get( 1 )._ok );
+
+            b.close();
+            final long end = System.currentTimeMillis() + 5000;
+            while ( mon.nodes().get( 1 )._ok && System.currentTimeMillis() < end )
+                ThreadUtil.sleep( 5 );
+            assertFalse( mon.nodes().get( 1 )._ok );
+
+            // an error on a shouldn't send the next request to b
+            try {
+                m._connector._error( new java.io.IOException( "a had a problem" ) );
+                assertTrue( false );
+            }
+            catch ( MongoException e ){
+                // nowhere to go
+            }
+            assertEquals( a.address() , m.getAddress() );
+            // and a is back as soon as it answers again
+            final long back = System.currentTimeMillis() + 5000;
+            while ( ! mon.nodes().get( 0 )._ok && System.currentTimeMillis() < back )
+                ThreadUtil.sleep( 5 );
+            assertTrue( mon.nodes().get( 0 )._ok );
+            assertEquals( a.address() , m.getAddress() );
+        }
+        finally {
+            if ( m != null )
+                m.close();
+            a.close();
+            b.close();
+        }
+    }
+
+    /**
+     * a host that takes its connection but never answers mustn't hold up finding the master, or checking it
+     */
+    @Test
+    public void testStuckHost()
+        throws Exception {
+        final CountDownLatch release = new CountDownLatch( 1 );
+        Member a = new Member( false ){
+                protected List<DBObject> reply( int op , String ns , DBObject query ){
+                    try {
+                        release.await();
+                    }
+                    catch ( InterruptedException ie ){
+                        // let it go
+                    }
+                    return super.reply( op , ns , query );
+                }
+            };
+        Member b = new Member( true );
+        Mongo m = null;
+        try {
+            MongoOptions options = _options();
+            options.socketTimeout = 10000;
+            long start = System.currentTimeMillis();
+            m = new Mongo( a.address() , b.address() , options );
+            assertTrue( System.currentTimeMillis() - start < 2000 );
+            assertEquals( b.address() , m.getAddress() );
+
+            ServerMonitor mon = m._connector.getMonitor();
+            ServerMonitor.Node node = mon.nodes().get( 1 );
+            long last = node._lastChecked;
+            final long end = System.currentTimeMillis() + 5000;
+            while ( node._lastChecked == last && System.currentTimeMillis() < end )
+                ThreadUtil.sleep( 5 );
+            assertTrue( node._lastChecked > last );
+            assertTrue( mon.nodes().get( 0 )._checking );
+        }
+        finally {
+            release.countDown();
+            if ( m != null )
+                m.close();
+            a.close();
+            b.close();
+        }
+    }
+
+    public static void main( String args[] )
+        throws Exception {
+        (new ServerMonitorTest()).runConsole();
+    }
+}
@@ -0,0 +1,248 @@
+// SlaveOkTest.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.testng.annotations.Test;
+
+import com.mongodb.util.*;
+
+public class SlaveOkTest extends TestCase {
+
+    /**
+     * counts the queries that aren't commands, and hands out 3 batches of 2
+     */
+    static class Counting extends ServerMonitorTest.Member {
+        Counting( boolean master )
+            throws java.io.IOException {
+            super( master );
+        }
+
+        protected List<DBObject> reply( int op , String ns , DBObject query ){
+            if ( ns.endsWith( ".$cmd" ) )
+                return super.reply( op , ns , query );
+            _queries.incrementAndGet();
+            return _batch();
+        }
+
+        protected List<DBObject> getMore( String ns , long cursor ){
+            return _batch();
+        }
+
+        protected long cursorId( int op , String ns , long cursor ){
+            return cursor + 1 < 3 ? cursor + 1 : 0;
+        }
+
+        List<DBObject> _batch(){
+            List<DBObject> l = new ArrayList<DBObject>();
+            l.add( new BasicDBObject( "master" , _master ) );
+            l.add( new BasicDBObject( "master" , _master ) );
+            return l;
+        }
+
+        final AtomicInteger _queries = new AtomicInteger();
+    }
+
+    /**
+     * a Counting that, like mongod, only lets a socket read once it has authenticated on it
+     */
+    static class Authed extends Counting {
+        Authed( boolean master )
+            throws java.io.IOException {
+            super( master );
+        }
+
+        protected List<DBObject> reply( int op , String ns , DBObject query ){
+            if ( query.containsField( "getnonce" ) )
+                return Arrays.asList( (DBObject)new BasicDBObject( "nonce" , "abc" ).append( "ok" , 1 ) );
+            if ( query.containsField( "authenticate" ) ){
+                _authed.set( Boolean.TRUE );
+                _auths.incrementAndGet();
+                return Arrays.asList( (DBObject)new BasicDBObject( "ok" , 1 ) );
+            }
+            if ( ! ns.endsWith( ".$cmd" ) && _authed.get() == null ){
+                _unauthorized.incrementAndGet();
+                return Arrays.asList( (DBObject)new BasicDBObject( "$err" , "unauthorized" ) );
+            }
+            return super.reply( op , ns , query );
+        }
+
+        protected List<DBObject> getMore( String ns , long cursor ){
+            if ( _authed.get() == null )
+                _unauthorized.incrementAndGet();
+            return super.getMore( ns , cursor );
+        }
+
+        final ThreadLocal<Boolean> _authed = new ThreadLocal<Boolean>();
+        final AtomicInteger _auths = new AtomicInteger();
+        final AtomicInteger _unauthorized = new AtomicInteger();
+    }
+
+    void _runAuth( MongoOptions options )
+        throws Exception {
+        Authed a = new Authed( true );
+        Authed b = new Authed( false );
+        Mongo m = null;
+        try {
+            m = new Mongo( a.address() , b.address() , options );
+            ServerMonitor.Node nb = m._connector.getMonitor().nodes().get( 1 );
+            final long up = System.currentTimeMillis() + 5000;
+            while ( ! nb._ok && System.currentTimeMillis() < up )
+                ThreadUtil.sleep( 5 );
+            assertTrue( nb._ok );
+
+            DB db = m.getDB( "slaveok" );
+            assertTrue( db.authenticate( "u" , "pw".toCharArray() ) );
+            DBCollection c = db.getCollection( "a" );
+
+            assertEquals( 6 , c.find().batchSize( 2 ).itcount() );
+            // the secondary's socket has to be authenticated itself, not the master's again
+            assertEquals( 6 , c.find().batchSize( 2 ).slaveOk().itcount() );
+            assertEquals( 1 , b._queries.get() );
+            assertTrue( b._auths.get() > 0 );
+            assertEquals( 0 , a._unauthorized.get() );
+            assertEquals( 0 , b._unauthorized.get() );
+        }
+        finally {
+            if ( m != null )
+                m.close();
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test
+    public void testAuth()
+        throws Exception {
+        _runAuth( ServerMonitorTest._options() );
+
+        MongoOptions options = ServerMonitorTest._options();
+        options.streamReplies = true;
+        _runAuth( options );
+
+        options = ServerMonitorTest._options();
+        options.pipelined = true;
+        _runAuth( options );
+    }
+
+    void _run( MongoOptions options )
+        throws Exception {
+        Counting a = new Counting( true );
+        Counting b = new Counting( false );
+        Mongo m = null;
+        try {
+            m = new Mongo( a.address() , b.address() , options );
+            DBCollection c = m.getDB( "slaveok" ).getCollection( "a" );
+            // the constructor only waits for the master, so b may not have answered yet
+            ServerMonitor.Node nb = m._connector.getMonitor().nodes().get( 1 );
+            final long up = System.currentTimeMillis() + 5000;
+            while ( ! nb._ok && System.currentTimeMillis() < up )
+                ThreadUtil.sleep( 5 );
+            assertTrue( nb._ok );
+
+            assertEquals( 6 , c.find().batchSize( 2 ).itcount() );
+            assertEquals( 1 , a._queries.get() );
+            assertEquals( 0 , b._queries.get() );
+
+            // the getmores have to follow the query to the secondary
+            assertEquals( 6 , c.find().batchSize( 2 ).slaveOk().itcount() );
+            assertEquals( 1 , a._queries.get() );
+            assertEquals( 1 , b._queries.get() );
+            assertEquals( 2 , b.count( 2005 ) );
+            assertEquals( 2 , a.count( 2005 ) );
+
+            c.addOption( Bytes.QUERYOPTION_SLAVEOK );
+            assertEquals( Boolean.FALSE , c.findOne().get( "master" ) );
+            assertEquals( 2 , b._queries.get() );
+
+            // the secondary is gone, so slaveOk reads fall back to the master
+            b.close();
+            final long end = System.currentTimeMillis() + 5000;
+            while ( nb._ok && System.currentTimeMillis() < end )
+                ThreadUtil.sleep( 5 );
+            assertFalse( nb._ok );
+            assertEquals( Boolean.TRUE , c.findOne().get( "master" ) );
+            assertEquals( Boolean.TRUE , c.findOne().get( "master" ) );
+            assertEquals( a.address() , m.getAddress() );
+        }
+        finally {
+            if ( m != null )
+                m.close();
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test
+    public void testBlocking()
+        throws Exception {
+        _run( ServerMonitorTest._options() );
+    }
+
+    @Test
+    public void testStreaming()
+        throws Exception {
+        MongoOptions options = ServerMonitorTest._options();
+        options.streamReplies = true;
+        _run( options );
+    }
+
+    @Test
+    public void testPipelined()
+        throws Exception {
+        MongoOptions options = ServerMonitorTest._options();
+        options.pipelined = true;
+        _run( options );
+    }
+
+    @Test
+    public void testLatencyWindow()
+        throws Exception {
+        ServerMonitor mon = new ServerMonitor( null , Arrays.asList( new ServerAddress( "127.0.0.1" , 1 ) ,
+                                                                   new ServerAddress( "127.0.0.1" , 2 ) ,
+                                                                   new ServerAddress( "127.0.0.1" , 3 ) ) ,
+                                               new MongoOptions() );
+        float[] pings = new float[]{ 1 , 5 , 50 };
+        for ( int i=0; i<3; i++ ){
+            ServerMonitor.Node n = mon.nodes().get( i );
+            n._ok = true;
+            n._isSecondary = true;
+            n._pingTime = pings[i];
+        }
+
+        Set<Integer> seen = new HashSet<Integer>();
+        for ( int i=0; i<200; i++ )
+            seen.add( mon.secondary( 10 ).getPort() );
+        assertEquals( 2 , seen.size() );
+        assertFalse( seen.contains( 3 ) );
+
+        assertEquals( 1 , mon.secondary( 0 ).getPort() );
+
+        mon.nodes().get( 0 )._ok = false;
+        mon.nodes().get( 1 )._ok = false;
+        assertEquals( 3 , mon.secondary( 0 ).getPort() );
+    }
+
+    public static void main( String args[] )
+        throws Exception {
+        (new SlaveOkTest()).runConsole();
+    }
+}
@@ -0,0 +1,117 @@
+// WriteConcernTest.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.util.*;
+
+import org.testng.annotations.Test;
+
+import com.mongodb.util.*;
+
+public class WriteConcernTest extends TestCase {
+
+    void _run( MongoOptions options )
+        throws Exception {
+        FakeMongod fake = new FakeMongod();
+        try {
+            DBCollection c = fake.mongo( options ).getDB( "wctest" ).getCollection( "a" );
+            c.setWriteConcern( DB.WriteConcern.STRICT );
+
+            c.insert( new BasicDBObject( "x" , 1 ) );
+            c.update( new BasicDBObject( "x" , 1 ) , new BasicDBObject( "x" , 2 ) );
+            c.remove( new BasicDBObject( "x" , 2 ) );
+            assertEquals( 3 , fake.count( 2004 ) );
+
+            // 6 objects of 1.5mb is 3 messages, but only one getlasterror
+            char[] big = new char[ 1024 * 1536 ];
+            Arrays.fill( big , 'x' );
+            String s = new String( big );
+            DBObject[] arr = new DBObject[6];
+            for ( int i=0; i<arr.length; i++ )
+                arr[i] = new BasicDBObject( "s" , s );
+            int inserts = fake.count( 2002 );
+            c.insert( arr );
+            assertEquals( inserts + 3 , fake.count( 2002 ) );
+            assertEquals( 4 , fake.count( 2004 ) );
+
+            c.setWriteConcern( DB.WriteConcern.NORMAL );
+            c.insert( arr );
+            assertEquals( inserts + 6 , fake.awaitCount( 2002 , inserts + 6 , 5000 ) );
+            assertEquals( 4 , fake.count( 2004 ) );
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    @Test
+    public void testBlocking()
+        throws Exception {
+        _run( new MongoOptions() );
+    }
+
+    @Test
+    public void testPipelined()
+        throws Exception {
+        MongoOptions options = new MongoOptions();
+        options.pipelined = true;
+        _run( options );
+    }
+
+    @Test
+    public void testNonBlocking()
+        throws Exception {
+        MongoOptions options = new MongoOptions();
+        options.nonBlocking = true;
+        _run( options );
+    }
+
+    @Test
+    public void testError()
+        throws Exception {
+        FakeMongod fake = new FakeMongod(){
+                protected List<DBObject> reply( int op , String ns , DBObject query ){
+                    List<DBObject> l = new ArrayList<DBObject>();
+                    l.add( BasicDBObjectBuilder.start().add( "ok" , 1 ).add( "err" , "E11000 duplicate key" ).add( "code" , 11000 ).get() );
+                    return l;
+                }
+            };
+        try {
+            DBCollection c = fake.mongo().getDB( "wctest" ).getCollection( "a" );
+            c.setWriteConcern( DB.WriteConcern.STRICT );
+            for ( int i=0; i<3; i++ ){
+                try {
+                    c.insert( new BasicDBObject( "_id" , 1 ) );
+                    assertTrue( false );
+                }
+                catch ( MongoException.DuplicateKey dk ){
+                    assertEquals( 11000 , dk.getCode() );
+                }
+            }
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    public static void main( String args[] )
+        throws Exception {
+        (new WriteConcernTest()).runConsole();
+    }
+}
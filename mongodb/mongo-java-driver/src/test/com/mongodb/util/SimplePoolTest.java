@@ -105,6 +105,99 @@ public class SimplePoolTest extends com.mongodb.util.TestCase {
     }
     
 
+    @org.testng.annotations.Test
+    public void testHandOff()
+        throws Exception {
+	final MyPool p = new MyPool( 10 , 1 );
+	
+	final Integer a = p.get();
+	final Integer[] got = new Integer[1];
+	Thread t = new Thread(){
+		public void run(){
+		    got[0] = p.get( 5000 );
+		}
+	    };
+	t.start();
+
+	while ( p.waiting() == 0 )
+	    Thread.sleep( 1 );
+	
+	long start = System.currentTimeMillis();
+	p.done( a );
+	t.join();
+	assertEquals( a , got[0] );
+	assertTrue( System.currentTimeMillis() - start < 1000 );
+	assertEquals( 1 , p.everCreated() );
+    }
+
+    @org.testng.annotations.Test
+    public void testTimeout(){
+	MyPool p = new MyPool( 10 , 1 );
+	p.get();
+
+	long start = System.currentTimeMillis();
+	assertNull( p.get( 50 ) );
+	assertTrue( System.currentTimeMillis() - start >= 50 );
+	assertEquals( 0 , p.waiting() );
+    }
+
+    @org.testng.annotations.Test
+    public void testDoubleReturn(){
+	MyPool p = new MyPool( 10 , 10 );
+	Integer a = p.get();
+	p.done( a );
+	try {
+	    p.done( a );
+	    assertTrue( false );
+	}
+	catch ( RuntimeException e ){
+	    // good
+	}
+	assertEquals( 1 , p.total() );
+	assertEquals( 0 , p.inUse() );
+    }
+
+    @org.testng.annotations.Test
+    public void testClear(){
+	MyPool p = new MyPool( 10 , 1 );
+	Integer a = p.get();
+	assertNull( p.get( 0 ) );
+
+	p.clear();
+	Integer b = p.get( 0 );
+	assertEquals( 1 , (int)b );
+
+	// a was checked out before the clear, so it doesn't come back
+	p.done( a );
+	p.done( b );
+	assertEquals( 1 , p.total() );
+    }
+
+    @org.testng.annotations.Test
+    public void testDropped(){
+	final java.util.List<Integer> dropped = new java.util.ArrayList<Integer>();
+	MyPool p = new MyPool( 1 , 10 ){
+		protected void dropped( Integer t ){
+		    dropped.add( t );
+		}
+	    };
+	Integer a = p.get();
+	Integer b = p.get();
+	Integer c = p.get();
+	p.done( a );
+	p.done( b );
+	assertEquals( 1 , dropped.size() );
+	assertEquals( b , dropped.get( 0 ) );
+
+	// what was in the pool goes now, and what was checked out goes when it comes back
+	p.clear();
+	assertEquals( 2 , dropped.size() );
+	assertEquals( a , dropped.get( 1 ) );
+	p.done( c );
+	assertEquals( 3 , dropped.size() );
+	assertEquals( c , dropped.get( 2 ) );
+    }
+
     public static void main( String args[] ){
 	SimplePoolTest t = new SimplePoolTest();
 	t.runConsole();